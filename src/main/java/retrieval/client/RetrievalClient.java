@@ -56,6 +56,11 @@ public class RetrievalClient implements RetrievalClientInterface{
      */
     private List<RetrievalServer> listServerObjects;
 
+    /**
+     * Persistent connections with distant servers (null if not used)
+     */
+    private ServerConnectionPool connectionPool;
+
     /**
      * Logger
      */
@@ -72,6 +77,7 @@ public class RetrievalClient implements RetrievalClientInterface{
         this.configClient = configClient;
         readTestsVectors(configClient);
         readServerList(configClient,serversFile);
+        createConnectionPool(configClient);
     }
 
     /**
@@ -84,6 +90,7 @@ public class RetrievalClient implements RetrievalClientInterface{
         this.configClient = configClient;
         this.listsServerSocket = listsServerSocket;
         readTestsVectors(configClient);
+        createConnectionPool(configClient);
     }
 
     /**
@@ -162,7 +169,7 @@ public class RetrievalClient implements RetrievalClientInterface{
     public ResultsSimilarities search(BufferedImage img, int N, int k,String[] storages) throws CBIRException {
         try {
             //extract Visual word for img
-            List<ConcurrentHashMap<String, Long>> visualWords = testVectors.generateVisualWordFromPicture(img,
+            List<ConcurrentHashMap<Long, Long>> visualWords = testVectors.generateVisualWordFromPicture(img,
                     null, 
                     configClient.getNumberOfPatch(), 
                     configClient.getResizeMethod(), 
@@ -184,7 +191,7 @@ public class RetrievalClient implements RetrievalClientInterface{
      * @return Similar pictures and server state
      * @throws CBIRException Error during search
      */
-    public ResultsSimilarities search(List<ConcurrentHashMap<String, Long>> visualWords, int N, int k) throws CBIRException{
+    public ResultsSimilarities search(List<ConcurrentHashMap<Long, Long>> visualWords, int N, int k) throws CBIRException{
         return search(visualWords,N,k, new String[0]);
     }
     
@@ -197,7 +204,7 @@ public class RetrievalClient implements RetrievalClientInterface{
      * @return Similar pictures and server state
      * @throws CBIRException Error during search
      */    
-    public ResultsSimilarities search(List<ConcurrentHashMap<String, Long>> visualWords, int N, int k, String[] storages)
+    public ResultsSimilarities search(List<ConcurrentHashMap<Long, Long>> visualWords, int N, int k, String[] storages)
             throws CBIRException {
         try {
             /**
@@ -208,7 +215,7 @@ public class RetrievalClient implements RetrievalClientInterface{
             if(listsServerSocket!=null) {
                 ListServerInformationSocket serversSocket = (ListServerInformationSocket) this.getListsServerSocket().getServers();
                 logger.info("Search on "+serversSocket);
-                RetrievalClientToServersXML serverNetwork = new RetrievalClientToServersXML(serversSocket);
+                RetrievalClientToServersXML serverNetwork = new RetrievalClientToServersXML(serversSocket,configClient.isBinaryProtocol(),connectionPool);
 //                logger.info("search: " + k + " similar pictures on "+ serverNetwork.getNumberOfServer() + " servers");
                 result = serverNetwork.searchMultiThread(visualWords, N, k,storages);                
             } else {
@@ -226,6 +233,33 @@ public class RetrievalClient implements RetrievalClientInterface{
         }
     }
 
+    /**
+     * Close persistent connections with servers (if any).
+     * A new search will open them again.
+     */
+    public void close() {
+        if(connectionPool!=null) {
+            connectionPool.closeAll();
+        }
+    }
+
+    /**
+     * Create the persistent connections pool if client keeps connections with servers
+     * @param configClient Configuration object of client
+     */
+    private void createConnectionPool(ConfigClient configClient) {
+        if(configClient.isBinaryProtocol() && configClient.isPersistentConnection()) {
+            connectionPool = new ServerConnectionPool();
+        }
+    }
+
+    /**
+     * @return the persistent connections with servers (null if not used)
+     */
+    public ServerConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
     /**
      * Read tests vectors on a path
      * @param configClient Configuration object of client
@@ -75,7 +75,7 @@ public interface RetrievalClientInterface {
      * @return Similar pictures and server state
      * @throws CBIRException Error during search
      */   
-    ResultsSimilarities search(List<ConcurrentHashMap<String, Long>> visualWords, int N, int k) throws CBIRException;
+    ResultsSimilarities search(List<ConcurrentHashMap<Long, Long>> visualWords, int N, int k) throws CBIRException;
     
     /**
      * Search similar pictures thanks to visualWords, search only on servers in servers array
@@ -86,5 +86,5 @@ public interface RetrievalClientInterface {
      * @return Similar pictures and server state
      * @throws CBIRException Error during search
      */    
-    ResultsSimilarities search(List<ConcurrentHashMap<String, Long>> visualWords, int N, int k, String[] storages) throws CBIRException;
+    ResultsSimilarities search(List<ConcurrentHashMap<Long, Long>> visualWords, int N, int k, String[] storages) throws CBIRException;
 }
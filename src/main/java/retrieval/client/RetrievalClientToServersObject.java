@@ -77,7 +77,7 @@ public class RetrievalClientToServersObject  {
      * @return Similarities
      * @throws InterruptedException 
      */
-    public ResultsSimilarities searchMultiThread(List<ConcurrentHashMap<String, Long>> visualWords, int N, int k, String[] storages) throws InterruptedException {
+    public ResultsSimilarities searchMultiThread(List<ConcurrentHashMap<Long, Long>> visualWords, int N, int k, String[] storages) throws InterruptedException {
         this.storages = new HashMap<String,Storage>();
         
         //Only get storages from storages param
@@ -142,7 +142,7 @@ public class RetrievalClientToServersObject  {
      * @return Message with sum of NBT from each server
      * @throws InterruptedException
      */
-    protected MessageSimilarities getNBTFromServers(List<ConcurrentHashMap<String, Long>> visualWords, int N, int k) throws InterruptedException {
+    protected MessageSimilarities getNBTFromServers(List<ConcurrentHashMap<Long, Long>> visualWords, int N, int k) throws InterruptedException {
         logger.debug("getNBTFromServers");
         MessageNBT msgVW = new MessageNBT(visualWords);
         MessageSimilarities msgSimilar = new MessageSimilarities(visualWords, N, k);
@@ -235,8 +235,8 @@ class AskNBTObjectThread extends Thread {
     public void run() {
         try {
             MessageNBT toSend = (MessageNBT) msgSource.copyWithoutValue();
-            MessageNBT response = new MessageNBT(storage.getNBT(toSend.getVisualWordsByTestVector()));
-            msgResult.addNBT(response.toXML());
+            //storage is in the same process: no XML message, NBT are added directly
+            msgResult.addNBT(storage.getNBT(toSend.getVisualWordsByTestVector()));
         } catch (WrongNumberOfTestsVectorsException ex) {
             logger.error("run nbt: undef1:" + ex.toString() + " storage="+storage.getStorageName());
         } catch (Exception ex) {
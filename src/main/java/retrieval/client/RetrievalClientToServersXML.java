@@ -31,6 +31,8 @@ import java.util.concurrent.ConcurrentHashMap;
 /**
  * Client side of Communication class between Client and servers
  * with XML message and TCP/IP Socket
+ * (or binary frames if binary protocol is used,
+ * on persistent connections if a connection pool is given)
  * @author Rollus Loic
  */
 public class RetrievalClientToServersXML{
@@ -39,6 +41,14 @@ public class RetrievalClientToServersXML{
      * Server list
      */
     private final ListServerInformationSocket listsServer;
+    /**
+     * Use binary protocol (XML if false)
+     */
+    private final boolean binaryProtocol;
+    /**
+     * Persistent connections with servers (null = a new connection for each search)
+     */
+    private final ServerConnectionPool connectionPool;
     /**
      * Logger
      */
@@ -49,7 +59,28 @@ public class RetrievalClientToServersXML{
      * @param listsServer List of server
      */
     public RetrievalClientToServersXML(ListServerInformationSocket listsServer) {
+        this(listsServer,false);
+    }
+
+    /**
+     * Launch communication class on server
+     * @param listsServer List of server
+     * @param binaryProtocol Use binary protocol (XML if false)
+     */
+    public RetrievalClientToServersXML(ListServerInformationSocket listsServer, boolean binaryProtocol) {
+        this(listsServer,binaryProtocol,null);
+    }
+
+    /**
+     * Launch communication class on server
+     * @param listsServer List of server
+     * @param binaryProtocol Use binary protocol (XML if false)
+     * @param connectionPool Persistent connections with servers, binary protocol only (null = a new connection for each search)
+     */
+    public RetrievalClientToServersXML(ListServerInformationSocket listsServer, boolean binaryProtocol, ServerConnectionPool connectionPool) {
         this.listsServer = listsServer;
+        this.binaryProtocol = binaryProtocol;
+        this.connectionPool = connectionPool;
     }
 
     /**
@@ -62,7 +93,7 @@ public class RetrievalClientToServersXML{
      * @return Max k*S similar pictures and a list of server state
      * @throws InterruptedException Internal error during search
      */
-    public ResultsSimilarities searchMultiThread(List<ConcurrentHashMap<String, Long>> visualWords, int N, int k, String[] storages) throws InterruptedException {
+    public ResultsSimilarities searchMultiThread(List<ConcurrentHashMap<Long, Long>> visualWords, int N, int k, String[] storages) throws InterruptedException {
 
         if (logger.isDebugEnabled()) {
             logger.debug("searchMultiThread: N=" + N + " T=" + visualWords.size() + " k=" + k);
@@ -130,8 +161,8 @@ public class RetrievalClientToServersXML{
      * @return Message with sum of NBT from each server
      * @throws InterruptedException
      */
-    protected MultiServerMessageSimilarities getNBTFromServers(List<ConcurrentHashMap<String, Long>> visualWords, int N, int k, String[] servers) throws InterruptedException {
-        Map<String,List<ConcurrentHashMap<String, Long>>> visualWordsMap = new TreeMap<String,List<ConcurrentHashMap<String, Long>>>();
+    protected MultiServerMessageSimilarities getNBTFromServers(List<ConcurrentHashMap<Long, Long>> visualWords, int N, int k, String[] servers) throws InterruptedException {
+        Map<String,List<ConcurrentHashMap<Long, Long>>> visualWordsMap = new TreeMap<String,List<ConcurrentHashMap<Long, Long>>>();
         visualWordsMap.put("#all#", visualWords);
 
         MultiServerMessageNBT msgVW = new MultiServerMessageNBT(visualWordsMap,servers);
@@ -142,7 +173,7 @@ public class RetrievalClientToServersXML{
         for (int i = 0; i < serverKeys.size(); i++) {
             Integer serverKey = serverKeys.get(i);
             //if server is OK, try to send message
-            threadsNBT[i] = new ClientAskNbtThread(msgVW, msgSimilar, listsServer.get(serverKey));
+            threadsNBT[i] = new ClientAskNbtThread(msgVW, msgSimilar, listsServer.get(serverKey), binaryProtocol, connectionPool);
             threadsNBT[i].start();
             logger.error("searchMultiThread1: ok=" + listsServer.get(serverKey).toString());
         }
@@ -175,7 +206,7 @@ public class RetrievalClientToServersXML{
             Integer serverKey = serverKeys.get(i);
             //get the results only if server has send NBT...
             if (listsServer.get(serverKey).getState() == ServerInformationSocket.NOERROR) {
-                threadsSimilar[i] = new ClientAskSimilaritiesThread(msgWithNBT, msg3s, i, listsServer.get(serverKey));
+                threadsSimilar[i] = new ClientAskSimilaritiesThread(msgWithNBT, msg3s, i, listsServer.get(serverKey), binaryProtocol, connectionPool);
                 threadsSimilar[i].start();
                 logger.info("searchMultiThread2: ok=" + i);
             } else {
@@ -210,6 +241,8 @@ class ClientAskNbtThread extends Thread {
     private MultiServerMessageNBT msgSource;
     private MultiServerMessageSimilarities msgResult;
     private ServerInformationSocket server;
+    private boolean binaryProtocol;
+    private ServerConnectionPool connectionPool;
     private static Logger logger = Logger.getLogger(ClientAskNbtThread.class);
 
     /**
@@ -217,25 +250,50 @@ class ClientAskNbtThread extends Thread {
      * @param msgSource Message with NBT (Source: IN)
      * @param msgResult Message build with similarity (Result: OUT)
      * @param server Server index
+     * @param binaryProtocol Use binary protocol (XML if false)
+     * @param connectionPool Persistent connections (null = a new connection)
      */
     ClientAskNbtThread(
             MultiServerMessageNBT msgSource,
             MultiServerMessageSimilarities msgResult,
-            ServerInformationSocket server) {
+            ServerInformationSocket server,
+            boolean binaryProtocol,
+            ServerConnectionPool connectionPool) {
         this.msgSource = msgSource;
         this.msgResult = msgResult;
         this.server = server;
+        this.binaryProtocol = binaryProtocol;
+        this.connectionPool = connectionPool;
     }
 
     @Override
     public void run() {
 
         try {
+            if (connectionPool != null) {
+                ServerConnection connection = connectionPool.getConnection(server);
+                server.connectionState = ServerInformationSocket.NOERROR;
+                BinaryFrame msg1 = connection.request(msgSource, server.timeout);
+                if (msg1.isErrorMessage()) {
+                    throw MessageError.getException(msg1);
+                }
+                msgResult.addNBT(msg1);
+                return;
+            }
             server.connect();
             //set max wait for a server
             //write message
             logger.debug("ClientAskNbtThread run nbt: 1 write msg1 to " + server);
 
+            if (binaryProtocol) {
+                NetworkUtils.writeBinaryToSocket(server.getSocket(), msgSource);
+                BinaryFrame msg1 = NetworkUtils.readBinaryFromSocket(server.getSocket());
+                if (msg1.isErrorMessage()) {
+                    throw MessageError.getException(msg1);
+                }
+                msgResult.addNBT(msg1);
+                return;
+            }
             NetworkUtils.writeXmlToSocket(server.getSocket(), msgSource.toXML());
             //read reponse
             logger.debug("ClientAskNbtThread run nbt: 2 read msg1 from " + server);
@@ -278,21 +336,44 @@ class ClientAskSimilaritiesThread extends Thread {
     private MultiServerMessageResults[] msgToReceive;
     private ServerInformationSocket server;
     private int numberOfThread;
+    private boolean binaryProtocol;
+    private ServerConnectionPool connectionPool;
     private static Logger logger = Logger.getLogger(ClientAskSimilaritiesThread.class);
 
-    ClientAskSimilaritiesThread(MultiServerMessageSimilarities msgToSend, MultiServerMessageResults[] msgToReceive, int numberOfThread, ServerInformationSocket server) {
+    ClientAskSimilaritiesThread(MultiServerMessageSimilarities msgToSend, MultiServerMessageResults[] msgToReceive, int numberOfThread, ServerInformationSocket server, boolean binaryProtocol, ServerConnectionPool connectionPool) {
         this.msgToSend = msgToSend;
         this.msgToReceive = msgToReceive;
         this.server = server;
         this.numberOfThread = numberOfThread;
+        this.binaryProtocol = binaryProtocol;
+        this.connectionPool = connectionPool;
     }
 
     @Override
     public void run() {
 
         try {
+            if (connectionPool != null) {
+                ServerConnection connection = connectionPool.getConnection(server);
+                server.connectionState = ServerInformationSocket.NOERROR;
+                BinaryFrame msg3 = connection.request(msgToSend, server.timeout);
+                if (msg3.isErrorMessage()) {
+                    throw MessageError.getException(msg3);
+                }
+                msgToReceive[numberOfThread] = new MultiServerMessageResults(msg3);
+                return;
+            }
             //write request
             logger.debug("ClientAskSimilaritiesThread run sim: 1 write message...:");
+            if (binaryProtocol) {
+                NetworkUtils.writeBinaryToSocket(server.getSocket(), msgToSend);
+                BinaryFrame msg3 = NetworkUtils.readBinaryFromSocket(server.getSocket());
+                if (msg3.isErrorMessage()) {
+                    throw MessageError.getException(msg3);
+                }
+                msgToReceive[numberOfThread] = new MultiServerMessageResults(msg3);
+                return;
+            }
             NetworkUtils.writeXmlToSocket(server.getSocket(), msgToSend.toXML());
             //read response
             logger.debug("ClientAskSimilaritiesThread run sim: 2 read response...");
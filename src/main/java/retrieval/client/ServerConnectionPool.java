@@ -0,0 +1,255 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.client;
+
+import org.apache.log4j.Logger;
+import retrieval.dist.BinaryFrame;
+import retrieval.dist.MessageBinary;
+import retrieval.utils.NetworkUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent connections between a client and its servers.
+ * There is one connection for each server (host/port), open at the first request
+ * and kept for all searches. Several requests (from several searches) may be sent
+ * at the same time on a connection: each request has an id and the response
+ * with the same id is given to its sender (NetworkUtils.PROTOCOL_MULTIPLEXED).
+ * A lost connection is open again on the next request.
+ * @author Rollus Loic
+ */
+public class ServerConnectionPool {
+
+    /**
+     * Connection for each server (key = host:port)
+     */
+    private final Map<String, ServerConnection> connections = new HashMap<String, ServerConnection>();
+    /**
+     * Logger
+     */
+    private static final Logger logger = Logger.getLogger(ServerConnectionPool.class);
+
+    /**
+     * Get the connection with a server, open it if there is no open connection
+     * @param server Server
+     * @return Connection
+     * @throws IOException Cannot connect to server
+     */
+    public synchronized ServerConnection getConnection(ServerInformationSocket server) throws IOException {
+        String key = server.getAddress() + ":" + server.getPort();
+        ServerConnection connection = connections.get(key);
+        if (connection == null || connection.isClosed()) {
+            logger.debug("getConnection: open connection with " + key);
+            connection = new ServerConnection(server.getAddress(), server.getPort());
+            connections.put(key, connection);
+        }
+        return connection;
+    }
+
+    /**
+     * Get the number of open connections
+     * @return Number of open connections
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (ServerConnection connection : connections.values()) {
+            if (!connection.isClosed()) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Close all connections
+     */
+    public synchronized void closeAll() {
+        for (ServerConnection connection : new ArrayList<ServerConnection>(connections.values())) {
+            connection.close();
+        }
+        connections.clear();
+    }
+}
+
+/**
+ * A persistent connection with a server.
+ * A reader thread gives each response to the request with the same id.
+ * @author Rollus Loic
+ */
+class ServerConnection {
+
+    private final Socket socket;
+    private final OutputStream output;
+    private final AtomicInteger requestIds = new AtomicInteger();
+    /**
+     * Requests which wait for their response (key = request id)
+     */
+    private final ConcurrentHashMap<Integer, PendingRequest> pending = new ConcurrentHashMap<Integer, PendingRequest>();
+    private volatile boolean closed = false;
+    /**
+     * Logger
+     */
+    private static final Logger logger = Logger.getLogger(ServerConnection.class);
+
+    /**
+     * Open a connection with a server
+     * @param address Server Address
+     * @param port Server Port
+     * @throws IOException Cannot connect to server
+     */
+    ServerConnection(String address, int port) throws IOException {
+        socket = new Socket(address, port);
+        socket.setTcpNoDelay(true);
+        output = socket.getOutputStream();
+        final InputStream input = socket.getInputStream();
+        Thread reader = new Thread("connection-" + address + ":" + port) {
+            @Override
+            public void run() {
+                readResponses(input);
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Send a request and wait for its response
+     * @param message Request
+     * @param timeout Max wait for the response in ms (0 = no limit)
+     * @return Response frame
+     * @throws SocketTimeoutException No response after timeout
+     * @throws SocketException Connection is lost
+     * @throws IOException Error on socket
+     * @throws InterruptedException Interrupted during wait
+     */
+    BinaryFrame request(MessageBinary message, int timeout) throws IOException, InterruptedException {
+        if (closed) {
+            throw new SocketException("Connection is closed!");
+        }
+        int requestId = requestIds.incrementAndGet();
+        PendingRequest request = new PendingRequest();
+        pending.put(requestId, request);
+        try {
+            synchronized (output) {
+                NetworkUtils.writeBinaryToStream(output, requestId, message);
+            }
+            //connection may be lost between the check and the put
+            if (closed) {
+                request.setError(new SocketException("Connection is closed!"));
+            }
+            return request.waitResponse(timeout);
+        } catch (SocketException e) {
+            close();
+            throw e;
+        } finally {
+            pending.remove(requestId);
+        }
+    }
+
+    /**
+     * Read all responses until the connection is closed
+     * @param input Socket input
+     */
+    private void readResponses(InputStream input) {
+        try {
+            while (true) {
+                BinaryFrame frame = NetworkUtils.readBinaryFromStream(input);
+                PendingRequest request = pending.get(frame.getRequestId());
+                if (request != null) {
+                    request.setResponse(frame);
+                } else {
+                    logger.warn("readResponses: no request " + frame.getRequestId() + " (timeout?)");
+                }
+            }
+        } catch (Exception e) {
+            if (!closed) {
+                logger.warn("readResponses: connection lost " + e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Check if connection is closed
+     * @return True if closed
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close connection, all requests which wait for a response get an error
+     */
+    void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.warn("close: " + e);
+        }
+        for (PendingRequest request : pending.values()) {
+            request.setError(new SocketException("Connection is closed!"));
+        }
+    }
+}
+
+/**
+ * A request which wait for its response
+ * @author Rollus Loic
+ */
+class PendingRequest {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile BinaryFrame response;
+    private volatile IOException error;
+
+    void setResponse(BinaryFrame response) {
+        this.response = response;
+        done.countDown();
+    }
+
+    void setError(IOException error) {
+        this.error = error;
+        done.countDown();
+    }
+
+    BinaryFrame waitResponse(int timeout) throws IOException, InterruptedException {
+        if (timeout > 0) {
+            if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+                throw new SocketTimeoutException("No response after " + timeout + " ms");
+            }
+        } else {
+            done.await();
+        }
+        if (response != null) {
+            return response;
+        }
+        throw error;
+    }
+}
@@ -70,6 +70,10 @@ public class ServerInformationSocket extends ServerInformation implements Clonea
      * Close server connection
      */
     public void close() {
+        if(socket==null) {
+            //never connected (or connection from a pool)
+            return;
+        }
         try {
             socket.close();
         } catch(Exception e) {
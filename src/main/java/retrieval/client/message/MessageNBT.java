@@ -19,6 +19,7 @@ import org.jdom.Attribute;
 import org.jdom.Document;
 import org.jdom.Element;
 import retrieval.dist.Message;
+import retrieval.utils.ConvertUtils;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -43,19 +44,19 @@ public class MessageNBT implements Message, Cloneable {
      * VT2
      * ...
      */
-    private List<ConcurrentHashMap<String, Long>> tvList;
+    private List<ConcurrentHashMap<Long, Long>> tvList;
 
-    public MessageNBT(List<ConcurrentHashMap<String, Long>> tvList) {
+    public MessageNBT(List<ConcurrentHashMap<Long, Long>> tvList) {
         this.tvList = tvList;
     }
 
 
     public MessageNBT copyWithoutValue() throws CloneNotSupportedException {
 
-        List<ConcurrentHashMap<String, Long>> tvListNewObject = new ArrayList<ConcurrentHashMap<String, Long>>(tvList.size());
+        List<ConcurrentHashMap<Long, Long>> tvListNewObject = new ArrayList<ConcurrentHashMap<Long, Long>>(tvList.size());
         for (int j = 0; j < tvList.size(); j++) {
-            ConcurrentHashMap<String, Long> tvm = new ConcurrentHashMap<String, Long>(tvList.get(j).size());
-            for (Map.Entry<String, Long> entry : tvList.get(j).entrySet()) {
+            ConcurrentHashMap<Long, Long> tvm = new ConcurrentHashMap<Long, Long>(tvList.get(j).size());
+            for (Map.Entry<Long, Long> entry : tvList.get(j).entrySet()) {
                 tvm.put(entry.getKey(), 0L);
             }
             tvListNewObject.add(tvm);
@@ -74,14 +75,14 @@ public class MessageNBT implements Message, Cloneable {
 
         for (int i = 0; i < tvList.size(); i++) {
 
-            ConcurrentHashMap<String, Long> tv = tvList.get(i);
+            ConcurrentHashMap<Long, Long> tv = tvList.get(i);
             Element tvxml = new Element("tv");
             tvxml.setAttribute(new Attribute("id", i + ""));
             racine.addContent(tvxml);
 
-            for (Map.Entry<String, Long> entree : tv.entrySet()) {
+            for (Map.Entry<Long, Long> entree : tv.entrySet()) {
                 Element vw = new Element("vw");
-                vw.setAttribute(new Attribute("b", entree.getKey()));
+                vw.setAttribute(new Attribute("b", ConvertUtils.convertVisualWordToHexa(entree.getKey())));
                 vw.setAttribute(new Attribute("nbit", entree.getValue().intValue() + ""));
                 tvxml.addContent(vw);
             }
@@ -94,7 +95,7 @@ public class MessageNBT implements Message, Cloneable {
      * ex: Item 2 is a map with each vw and nbt for test vector 2
      * @return Vector with each tests vector Visual words
      */
-    public List<ConcurrentHashMap<String, Long>> getVisualWordsByTestVector() {
+    public List<ConcurrentHashMap<Long, Long>> getVisualWordsByTestVector() {
         return tvList;
     }
 }
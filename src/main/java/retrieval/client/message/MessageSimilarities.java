@@ -18,6 +18,7 @@ package retrieval.client.message;
 import org.jdom.Document;
 import org.jdom.Element;
 import retrieval.dist.RequestPictureVisualWord;
+import retrieval.utils.ConvertUtils;
 
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -38,7 +39,7 @@ public class MessageSimilarities implements Cloneable {
      * that produced visualword B and nBtsum is the total number of patchs
      * map on all server with visual word B (for this tests vector)
      */
-    private List<ConcurrentHashMap<String, RequestPictureVisualWord>> tvList;
+    private List<ConcurrentHashMap<Long, RequestPictureVisualWord>> tvList;
     /**
      * Number of patch produced by request image Iq
      */
@@ -56,13 +57,13 @@ public class MessageSimilarities implements Cloneable {
      * @param N Number of patch produced by request image Iq
      * @param k Max number of similar pictures to get
      */
-    public MessageSimilarities(List<ConcurrentHashMap<String, Long>> lists, int N, int k) {
+    public MessageSimilarities(List<ConcurrentHashMap<Long, Long>> lists, int N, int k) {
         this.N = N;
         this.k = k;
-        tvList = new ArrayList<ConcurrentHashMap<String, RequestPictureVisualWord>>(lists.size());
+        tvList = new ArrayList<ConcurrentHashMap<Long, RequestPictureVisualWord>>(lists.size());
         for (int i = 0; i < lists.size(); i++) {
-            tvList.add(new ConcurrentHashMap<String, RequestPictureVisualWord>(N));
-            for (Map.Entry<String, Long> entry : lists.get(i).entrySet()) {
+            tvList.add(new ConcurrentHashMap<Long, RequestPictureVisualWord>(N));
+            for (Map.Entry<Long, Long> entry : lists.get(i).entrySet()) {
                 tvList.get(i).put(entry.getKey(), new RequestPictureVisualWord(entry.getValue().intValue()));
             }
         }
@@ -89,7 +90,7 @@ public class MessageSimilarities implements Cloneable {
      * Get the visual word map for each tests vector
      * @return Visual word map for each tests vector
      */
-    public List<ConcurrentHashMap<String, RequestPictureVisualWord>> getVisualWord() {
+    public List<ConcurrentHashMap<Long, RequestPictureVisualWord>> getVisualWord() {
         return tvList;
     }
 
@@ -115,7 +116,7 @@ public class MessageSimilarities implements Cloneable {
             while (it2.hasNext()) {
 
                 Element assoc = (Element) it2.next();
-                String vw = assoc.getAttributeValue("b");
+                Long vw = ConvertUtils.convertHexaToVisualWord(assoc.getAttributeValue("b"));
                 int nbit = Integer.parseInt(assoc.getAttributeValue("nbit"));
                 //System.out.println("tvList="+tvList);
                 RequestPictureVisualWord item = tvList.get(i).get(vw);
@@ -129,4 +130,19 @@ public class MessageSimilarities implements Cloneable {
         }
     }
 
+    /**
+     * Add the NBT of a local storage (server object) to produce this message.
+     * Same as addNBT(Document) without XML: NBT maps are read directly
+     * @param nbt NBT for each visual word of each tests vector (Storage.getNBT)
+     */
+    public synchronized void addNBT(List<ConcurrentHashMap<Long, Long>> nbt) {
+        for (int i = 0; i < nbt.size(); i++) {
+            ConcurrentHashMap<Long, RequestPictureVisualWord> tv = tvList.get(i);
+            for (Map.Entry<Long, Long> entry : nbt.get(i).entrySet()) {
+                //add the NBT of server s to the total NBT
+                tv.get(entry.getKey()).addNbtSum(entry.getValue().intValue());
+            }
+        }
+    }
+
 }
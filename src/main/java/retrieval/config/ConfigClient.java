@@ -50,6 +50,16 @@ public class ConfigClient extends Config {
      * Timeout for server communication
      */
     private int timeout;
+    /**
+     * Use binary protocol with servers (XML if false).
+     * Optional (PROTOCOL=XML or BINARY), XML by default so that old servers keep working
+     */
+    private boolean binaryProtocol;
+    /**
+     * Keep one connection open with each server for all searches (binary protocol only).
+     * Optional (PERSISTENTCONNECTION=true or false), false by default
+     */
+    private boolean persistentConnection;
 
     /**
      * Constructor for a central server configuration object
@@ -65,6 +75,15 @@ public class ConfigClient extends Config {
             resizeMethod = Integer.parseInt(p.getProperty("RESIZEMETHOD", propertiesError));
             vectorPath = p.getProperty("VECTORPATH", propertiesError);
             timeout = Integer.parseInt(p.getProperty("TIMEOUT", propertiesError));            
+            String protocol = p.getProperty("PROTOCOL", "XML");
+            if(!protocol.equals("XML") && !protocol.equals("BINARY")) {
+                throw new IllegalArgumentException("PROTOCOL must be XML or BINARY: "+protocol);
+            }
+            binaryProtocol = protocol.equals("BINARY");
+            persistentConnection = Boolean.parseBoolean(p.getProperty("PERSISTENTCONNECTION", "false"));
+            if(persistentConnection && !binaryProtocol) {
+                throw new IllegalArgumentException("PERSISTENTCONNECTION needs PROTOCOL=BINARY");
+            }
         } catch(Exception e) {
             throw new CBIRException(e.toString());
         }
@@ -168,4 +187,32 @@ public class ConfigClient extends Config {
     public void setNumberOfTV(int numberOfTV) {
         this.numberOfTV = numberOfTV;
     }
+
+    /**
+     * @return true if binary protocol is used with servers
+     */
+    public boolean isBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    /**
+     * @param binaryProtocol true to use binary protocol with servers
+     */
+    public void setBinaryProtocol(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+    }
+
+    /**
+     * @return true if a persistent connection is kept with each server
+     */
+    public boolean isPersistentConnection() {
+        return persistentConnection;
+    }
+
+    /**
+     * @param persistentConnection true to keep a persistent connection with each server
+     */
+    public void setPersistentConnection(boolean persistentConnection) {
+        this.persistentConnection = persistentConnection;
+    }
 }
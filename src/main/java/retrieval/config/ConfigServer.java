@@ -90,10 +90,54 @@ public class ConfigServer extends Config implements Cloneable {
      * Max client for search (central server) at the same time
      */
     private int searchMax;
+    /**
+     * Number of threads for search tasks (0 = number of processors)
+     */
+    private int searchThreads;
+    /**
+     * Max number of NBT in the cache of each storage (0 = no cache)
+     */
+    private int nbtCacheSize;
+    /**
+     * Number of threads which carry client requests (multiplexed frames, and connections with NIO)
+     */
+    private int serverThreads;
+    /**
+     * Max wait (ms) for the data of a request on a connection (0 = no limit)
+     */
+    private int serverReadTimeout;
+    /**
+     * Max multiplexed requests waiting for a worker, a new request is rejected (too many requests)
+     */
+    private int serverMaxPending;
+    /**
+     * Network interface of server: SOCKET (blocking accept) or NIO (selector, connections limit)
+     */
+    private String serverInterface;
+    /**
+     * Max open connections (NIO interface)
+     */
+    private int serverMaxConnections;
+    /**
+     * Max wait of a new connection for a free slot in ms, 0 = reject immediately (NIO interface)
+     */
+    private int serverQueueTimeout;
+    /**
+     * Max wait for running requests when server stops in ms (NIO interface)
+     */
+    private int serverDrainTimeout;
     /**
      * Size of server queue
      */
     private int sizeOfIndexQueue;
+    /**
+     * Number of threads which extract visual words of queued pictures (0 = number of processors)
+     */
+    private int indexThreads;
+    /**
+     * Max number of pictures written in index at once
+     */
+    private int indexBatchSize;
 
 
     /**************************************************************************
@@ -110,12 +154,16 @@ public class ConfigServer extends Config implements Cloneable {
      */
     private String indexPath;
     /**
-     * Structure type of value (hashmap=0,treemap=1)
+     * Directory of pictures which may be indexed with their path (empty = path requests are rejected)
+     */
+    private String indexPictureRoot;
+    /**
+     * Structure type of value (hashmap=0,treemap=1,primitive arrays=2)
      */
     private int strucType;
     /**
      * Default start size for hashmap map with a visual word 
-     * (only effect if STRUCTYPE=0)
+     * (only effect if STRUCTYPE=0 or 2)
      * Too low is not good: hashmap will make too much rehash during index process
      * Too hight is not good: hashmap will be too big in memory
      * HASHMAPSTARTSIZE = 0 is no compression
@@ -124,6 +172,7 @@ public class ConfigServer extends Config implements Cloneable {
     
     /**
      * Force sync database on disk avec each index images (only effect with some DB: Redis, BDB,...)
+     * With MEMORYWAL: fsync log after each image (true) or after each batch of images (false)
      */
     private boolean syncAfterImage;  
     
@@ -133,6 +182,36 @@ public class ConfigServer extends Config implements Cloneable {
      * Too hight is not good: hashmap will be too big in memory
      */
     private int memoryStartSize;
+    /**
+     * Keep the visual words of each picture (only-memory index):
+     * purge and presence checks only read the visual words of the pictures
+     */
+    private boolean memoryReverseIndex;
+    /**
+     * Seconds between two snapshots of a storage on disk (only-memory index)
+     * 0 = no snapshot (index is lost on restart), snapshots are read at startup
+     */
+    private int memorySnapshot;
+    /**
+     * Write each modification in a log before applying it (only-memory index, needs MEMORYSNAPSHOT)
+     * Log is replayed at startup after the snapshot
+     */
+    private boolean memoryWal;
+
+    /**
+     * Number of postings kept in memory for each test vector before they are
+     * written in a new segment file (segment index)
+     */
+    private int segmentBuffer;
+    /**
+     * Number of segments of the same size merged in a bigger one (segment index)
+     */
+    private int segmentMerge;
+
+    /**
+     * Size (MB) of a chunk of mapped data file, max size of a visual word (mapped index)
+     */
+    private int mappedChunk;
 
     /**
      * Redis host adress
@@ -144,6 +223,11 @@ public class ConfigServer extends Config implements Cloneable {
      */
     private String redisPort;
 
+    /**
+     * Layout of the posting list of a visual word in Redis: HASH or BINARY
+     */
+    private String redisPostings;
+
     private static Logger logger = Logger.getLogger(ConfigServer.class);
 
     public ConfigServer(String configFileServer) throws Exception {
@@ -167,10 +251,25 @@ public class ConfigServer extends Config implements Cloneable {
         
         kMax = Integer.parseInt(p.getProperty("KMAX", propertiesError));
         searchMax = Integer.parseInt(p.getProperty("SEARCHMAX", propertiesError));
+        searchThreads = Integer.parseInt(p.getProperty("SEARCHTHREADS", "0"));
+        nbtCacheSize = Integer.parseInt(p.getProperty("NBTCACHESIZE", "0"));
+        serverThreads = Integer.parseInt(p.getProperty("SERVERTHREADS", "32"));
+        serverReadTimeout = Integer.parseInt(p.getProperty("SERVERREADTIMEOUT", "60000"));
+        serverMaxPending = Integer.parseInt(p.getProperty("SERVERMAXPENDING", "64"));
+        serverInterface = p.getProperty("SERVERINTERFACE", "SOCKET");
+        if(!serverInterface.equals("SOCKET") && !serverInterface.equals("NIO")) {
+            throw new IllegalArgumentException("SERVERINTERFACE must be SOCKET or NIO: "+serverInterface);
+        }
+        serverMaxConnections = Integer.parseInt(p.getProperty("SERVERMAXCONNECTIONS", "1024"));
+        serverQueueTimeout = Integer.parseInt(p.getProperty("SERVERQUEUETIMEOUT", "5000"));
+        serverDrainTimeout = Integer.parseInt(p.getProperty("SERVERDRAINTIMEOUT", "30000"));
         sizeOfIndexQueue = Integer.parseInt(p.getProperty("SIZEOFINDEXQUEUE", propertiesError));
+        indexThreads = Integer.parseInt(p.getProperty("INDEXTHREADS", "0"));
+        indexBatchSize = Integer.parseInt(p.getProperty("INDEXBATCHSIZE", "16"));
        
 
         indexPath = p.getProperty("INDEXPATH", propertiesError);
+        indexPictureRoot = p.getProperty("INDEXPICTUREROOT", "");
         storeName = p.getProperty("STORENAME", propertiesError);
         strucType = Integer.parseInt(p.getProperty("STRUCTYPE", propertiesError));
         hashMapStartSize = Integer.parseInt(p.getProperty("HASHMAPSTARTSIZE", propertiesError));
@@ -178,9 +277,20 @@ public class ConfigServer extends Config implements Cloneable {
         
         
         memoryStartSize = Integer.parseInt(p.getProperty("MEMORYSTARTSIZE", propertiesError));
+        memoryReverseIndex = Boolean.parseBoolean(p.getProperty("MEMORYREVERSEINDEX", "false"));
+        memorySnapshot = Integer.parseInt(p.getProperty("MEMORYSNAPSHOT", "0"));
+        memoryWal = Boolean.parseBoolean(p.getProperty("MEMORYWAL", "false"));
+
+        segmentBuffer = Integer.parseInt(p.getProperty("SEGMENTBUFFER", "1000000"));
+        segmentMerge = Integer.parseInt(p.getProperty("SEGMENTMERGE", "4"));
+        mappedChunk = Integer.parseInt(p.getProperty("MAPPEDCHUNK", "64"));
 
         redisHost = p.getProperty("REDISHOST", propertiesError);
         redisPort = p.getProperty("REDISPORT", propertiesError);
+        redisPostings = p.getProperty("REDISPOSTINGS", "HASH");
+        if(!redisPostings.equals("HASH") && !redisPostings.equals("BINARY")) {
+            throw new IllegalArgumentException("REDISPOSTINGS must be HASH or BINARY: "+redisPostings);
+        }
     }
 
     @Override
@@ -333,6 +443,132 @@ public class ConfigServer extends Config implements Cloneable {
         this.searchMax = searchMax;
     }
 
+    /**
+     * @return the searchThreads
+     */
+    public int getSearchThreads() {
+        return searchThreads;
+    }
+
+    /**
+     * @param searchThreads the searchThreads to set
+     */
+    public void setSearchThreads(int searchThreads) {
+        this.searchThreads = searchThreads;
+    }
+
+    /**
+     * @return the nbtCacheSize
+     */
+    public int getNbtCacheSize() {
+        return nbtCacheSize;
+    }
+
+    /**
+     * @param nbtCacheSize the nbtCacheSize to set
+     */
+    public void setNbtCacheSize(int nbtCacheSize) {
+        this.nbtCacheSize = nbtCacheSize;
+    }
+
+    /**
+     * @return the serverThreads
+     */
+    public int getServerThreads() {
+        return serverThreads;
+    }
+
+    /**
+     * @param serverThreads the serverThreads to set
+     */
+    public void setServerThreads(int serverThreads) {
+        this.serverThreads = serverThreads;
+    }
+
+    /**
+     * @return the serverReadTimeout
+     */
+    public int getServerReadTimeout() {
+        return serverReadTimeout;
+    }
+
+    /**
+     * @param serverReadTimeout the serverReadTimeout to set
+     */
+    public void setServerReadTimeout(int serverReadTimeout) {
+        this.serverReadTimeout = serverReadTimeout;
+    }
+
+    /**
+     * @return the serverMaxPending
+     */
+    public int getServerMaxPending() {
+        return serverMaxPending;
+    }
+
+    /**
+     * @param serverMaxPending the serverMaxPending to set
+     */
+    public void setServerMaxPending(int serverMaxPending) {
+        this.serverMaxPending = serverMaxPending;
+    }
+
+    /**
+     * @return the serverInterface
+     */
+    public String getServerInterface() {
+        return serverInterface;
+    }
+
+    /**
+     * @param serverInterface the serverInterface to set
+     */
+    public void setServerInterface(String serverInterface) {
+        this.serverInterface = serverInterface;
+    }
+
+    /**
+     * @return the serverMaxConnections
+     */
+    public int getServerMaxConnections() {
+        return serverMaxConnections;
+    }
+
+    /**
+     * @param serverMaxConnections the serverMaxConnections to set
+     */
+    public void setServerMaxConnections(int serverMaxConnections) {
+        this.serverMaxConnections = serverMaxConnections;
+    }
+
+    /**
+     * @return the serverQueueTimeout
+     */
+    public int getServerQueueTimeout() {
+        return serverQueueTimeout;
+    }
+
+    /**
+     * @param serverQueueTimeout the serverQueueTimeout to set
+     */
+    public void setServerQueueTimeout(int serverQueueTimeout) {
+        this.serverQueueTimeout = serverQueueTimeout;
+    }
+
+    /**
+     * @return the serverDrainTimeout
+     */
+    public int getServerDrainTimeout() {
+        return serverDrainTimeout;
+    }
+
+    /**
+     * @param serverDrainTimeout the serverDrainTimeout to set
+     */
+    public void setServerDrainTimeout(int serverDrainTimeout) {
+        this.serverDrainTimeout = serverDrainTimeout;
+    }
+
     /**
      * @return the sizeOfIndexQueue
      */
@@ -347,6 +583,34 @@ public class ConfigServer extends Config implements Cloneable {
         this.sizeOfIndexQueue = sizeOfIndexQueue;
     }
 
+    /**
+     * @return the indexThreads
+     */
+    public int getIndexThreads() {
+        return indexThreads;
+    }
+
+    /**
+     * @param indexThreads the indexThreads to set
+     */
+    public void setIndexThreads(int indexThreads) {
+        this.indexThreads = indexThreads;
+    }
+
+    /**
+     * @return the indexBatchSize
+     */
+    public int getIndexBatchSize() {
+        return indexBatchSize;
+    }
+
+    /**
+     * @param indexBatchSize the indexBatchSize to set
+     */
+    public void setIndexBatchSize(int indexBatchSize) {
+        this.indexBatchSize = indexBatchSize;
+    }
+
     /**
      * @return the storeName
      */
@@ -375,6 +639,20 @@ public class ConfigServer extends Config implements Cloneable {
         this.indexPath = indexPath;
     }
 
+    /**
+     * @return the indexPictureRoot
+     */
+    public String getIndexPictureRoot() {
+        return indexPictureRoot;
+    }
+
+    /**
+     * @param indexPictureRoot the indexPictureRoot to set
+     */
+    public void setIndexPictureRoot(String indexPictureRoot) {
+        this.indexPictureRoot = indexPictureRoot;
+    }
+
     /**
      * @return the strucType
      */
@@ -431,6 +709,90 @@ public class ConfigServer extends Config implements Cloneable {
         this.memoryStartSize = memoryStartSize;
     }
 
+    /**
+     * @return the memoryReverseIndex
+     */
+    public boolean isMemoryReverseIndex() {
+        return memoryReverseIndex;
+    }
+
+    /**
+     * @param memoryReverseIndex the memoryReverseIndex to set
+     */
+    public void setMemoryReverseIndex(boolean memoryReverseIndex) {
+        this.memoryReverseIndex = memoryReverseIndex;
+    }
+
+    /**
+     * @return the memorySnapshot
+     */
+    public int getMemorySnapshot() {
+        return memorySnapshot;
+    }
+
+    /**
+     * @param memorySnapshot the memorySnapshot to set
+     */
+    public void setMemorySnapshot(int memorySnapshot) {
+        this.memorySnapshot = memorySnapshot;
+    }
+
+    /**
+     * @return the memoryWal
+     */
+    public boolean isMemoryWal() {
+        return memoryWal;
+    }
+
+    /**
+     * @param memoryWal the memoryWal to set
+     */
+    public void setMemoryWal(boolean memoryWal) {
+        this.memoryWal = memoryWal;
+    }
+
+    /**
+     * @return the segmentBuffer
+     */
+    public int getSegmentBuffer() {
+        return segmentBuffer;
+    }
+
+    /**
+     * @param segmentBuffer the segmentBuffer to set
+     */
+    public void setSegmentBuffer(int segmentBuffer) {
+        this.segmentBuffer = segmentBuffer;
+    }
+
+    /**
+     * @return the segmentMerge
+     */
+    public int getSegmentMerge() {
+        return segmentMerge;
+    }
+
+    /**
+     * @param segmentMerge the segmentMerge to set
+     */
+    public void setSegmentMerge(int segmentMerge) {
+        this.segmentMerge = segmentMerge;
+    }
+
+    /**
+     * @return the mappedChunk
+     */
+    public int getMappedChunk() {
+        return mappedChunk;
+    }
+
+    /**
+     * @param mappedChunk the mappedChunk to set
+     */
+    public void setMappedChunk(int mappedChunk) {
+        this.mappedChunk = mappedChunk;
+    }
+
 
     public String getRedisHost() {
         return redisHost;
@@ -448,6 +810,20 @@ public class ConfigServer extends Config implements Cloneable {
         this.redisPort = redisPort;
     }
 
+    /**
+     * @return the redisPostings
+     */
+    public String getRedisPostings() {
+        return redisPostings;
+    }
+
+    /**
+     * @param redisPostings the redisPostings to set
+     */
+    public void setRedisPostings(String redisPostings) {
+        this.redisPostings = redisPostings;
+    }
+
     public int getNumberOfTV() {
         return numberOfTV;
     }
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.dist;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A message of the binary protocol.
+ * On the socket, a frame is: [version][type][payload length (int)][payload]
+ * (see NetworkUtils.writeBinaryToSocket).
+ * On a multiplexed connection, a frame is: [version][type][request id (int)][payload length (int)][payload]
+ * and the response of a request has the same request id.
+ * Payload is written by the message (MessageBinary) with protobuf varints,
+ * a visual word and its NBT cost a few bytes instead of a XML element.
+ * @author Rollus Loic
+ */
+public class BinaryFrame {
+
+    /**
+     * Ask NBT (central server to server) and NBT response (server to central server)
+     */
+    public static final byte SEARCH1 = 1;
+    /**
+     * Ask similarities (central server to server)
+     */
+    public static final byte SEARCH2 = 2;
+    /**
+     * Similar pictures (server to central server)
+     */
+    public static final byte SEARCH3 = 3;
+    /**
+     * Index a picture (indexer to server)
+     */
+    public static final byte INDEX = 4;
+    /**
+     * Index results (server to indexer)
+     */
+    public static final byte INDEXRESULTS = 5;
+    /**
+     * Index a picture of a stream (indexer to server, multiplexed connection only).
+     * Same payload as INDEX, the server answers with INDEXRESULTS without closing the connection
+     */
+    public static final byte INDEXSTREAM = 6;
+    /**
+     * Error message
+     */
+    public static final byte ERROR = 9;
+
+    private final byte type;
+    private final int requestId;
+    private final CodedInputStream input;
+
+    /**
+     * Constructor for a frame read on a socket
+     * @param type Type of frame
+     * @param payload Payload of the frame
+     */
+    public BinaryFrame(byte type, byte[] payload) {
+        this(type, 0, payload);
+    }
+
+    /**
+     * Constructor for a frame read on a multiplexed connection
+     * @param type Type of frame
+     * @param requestId Id of the request on the connection
+     * @param payload Payload of the frame
+     */
+    public BinaryFrame(byte type, int requestId, byte[] payload) {
+        this.type = type;
+        this.requestId = requestId;
+        this.input = CodedInputStream.newInstance(payload);
+        //a payload may contains a picture, no limit (payload is already in memory)
+        this.input.setSizeLimit(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the type of frame
+     */
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * @return the request id of frame (0 if not a multiplexed frame)
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Get the payload, each message read its own fields
+     * @return Payload
+     */
+    public CodedInputStream getInput() {
+        return input;
+    }
+
+    /**
+     * Check if frame is an error message
+     * @return True if error message, else false;
+     */
+    public boolean isErrorMessage() {
+        return type == ERROR;
+    }
+
+    /**
+     * Check that the frame has the type expected by a message
+     * @param expected Type expected
+     * @throws NotValidMessageXMLException Frame is not a message of this type
+     */
+    public void checkType(byte expected) throws NotValidMessageXMLException {
+        if (type != expected) {
+            throw new NotValidMessageXMLException("Frame type " + type + " is not valid (" + expected + " expected)!");
+        }
+    }
+
+    /**
+     * Write a string which may be null
+     * @param output Payload
+     * @param s String
+     * @throws IOException Error during writing
+     */
+    public static void writeNullableString(CodedOutputStream output, String s) throws IOException {
+        output.writeBoolNoTag(s != null);
+        if (s != null) {
+            output.writeStringNoTag(s);
+        }
+    }
+
+    /**
+     * Read a string which may be null
+     * @param input Payload
+     * @return String
+     * @throws IOException Error during reading
+     */
+    public static String readNullableString(CodedInputStream input) throws IOException {
+        return input.readBool() ? input.readString() : null;
+    }
+
+    /**
+     * Write a list of string (null = empty list)
+     * @param output Payload
+     * @param strings Strings
+     * @throws IOException Error during writing
+     */
+    public static void writeStrings(CodedOutputStream output, List<String> strings) throws IOException {
+        if (strings == null) {
+            output.writeUInt32NoTag(0);
+            return;
+        }
+        output.writeUInt32NoTag(strings.size());
+        for (String s : strings) {
+            output.writeStringNoTag(s);
+        }
+    }
+
+    /**
+     * Read a list of string
+     * @param input Payload
+     * @return Strings
+     * @throws IOException Error during reading
+     */
+    public static List<String> readStrings(CodedInputStream input) throws IOException {
+        int size = input.readUInt32();
+        List<String> strings = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            strings.add(input.readString());
+        }
+        return strings;
+    }
+
+    /**
+     * Write properties of a picture (null = no properties)
+     * @param output Payload
+     * @param properties Properties
+     * @throws IOException Error during writing
+     */
+    public static void writeProperties(CodedOutputStream output, Map<String, String> properties) throws IOException {
+        if (properties == null) {
+            output.writeUInt32NoTag(0);
+            return;
+        }
+        output.writeUInt32NoTag(properties.size());
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            output.writeStringNoTag(entry.getKey() + "");
+            output.writeStringNoTag(entry.getValue() + "");
+        }
+    }
+
+    /**
+     * Read properties of a picture
+     * @param input Payload
+     * @return Properties
+     * @throws IOException Error during reading
+     */
+    public static Map<String, String> readProperties(CodedInputStream input) throws IOException {
+        int size = input.readUInt32();
+        Map<String, String> properties = new HashMap<String, String>(size * 2);
+        for (int i = 0; i < size; i++) {
+            properties.put(input.readString(), input.readString());
+        }
+        return properties;
+    }
+
+    /**
+     * Write a picture: width, height and RGB bytes of each pixel
+     * @param output Payload
+     * @param image Picture
+     * @throws IOException Error during writing
+     */
+    public static void writeImage(CodedOutputStream output, BufferedImage image) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        byte[] rgb = new byte[pixels.length * 3];
+        for (int i = 0, j = 0; i < pixels.length; i++) {
+            rgb[j++] = (byte) (pixels[i] >> 16);
+            rgb[j++] = (byte) (pixels[i] >> 8);
+            rgb[j++] = (byte) pixels[i];
+        }
+        output.writeUInt32NoTag(width);
+        output.writeUInt32NoTag(height);
+        output.writeRawBytes(rgb);
+    }
+
+    /**
+     * Read a picture (same image type as ImageSerializable: TYPE_INT_RGB)
+     * @param input Payload
+     * @return Picture
+     * @throws IOException Error during reading
+     */
+    public static BufferedImage readImage(CodedInputStream input) throws IOException {
+        int width = input.readUInt32();
+        int height = input.readUInt32();
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        byte[] rgb = input.readRawBytes(pixels.length * 3);
+        for (int i = 0, j = 0; i < pixels.length; i++) {
+            pixels[i] = ((rgb[j++] & 0xFF) << 16) | ((rgb[j++] & 0xFF) << 8) | (rgb[j++] & 0xFF);
+        }
+        return image;
+    }
+}
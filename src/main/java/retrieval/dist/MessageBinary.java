@@ -0,0 +1,44 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.dist;
+
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+
+/**
+ * Force to implement method for binary message
+ * In practice, each class MessageX which implements MessageBinary
+ * should implement a constructor:
+ * MessageX(BinaryFrame frame) so that client and server can read/write
+ * MessageX from/to a binary frame.
+ * @author Rollus Loic
+ */
+public interface MessageBinary {
+
+    /**
+     * Get the type of frame for this message (BinaryFrame.SEARCH1,...)
+     * @return Frame type
+     */
+    byte getBinaryType();
+
+    /**
+     * Write the message in the payload of a binary frame
+     * @param output Frame payload
+     * @throws IOException Error during binary generation
+     */
+    void writeBinary(CodedOutputStream output) throws IOException;
+}
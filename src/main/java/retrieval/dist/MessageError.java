@@ -15,15 +15,19 @@
  */
 package retrieval.dist;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import org.jdom.Document;
 import org.jdom.Element;
 import retrieval.exception.CBIRException;
 
+import java.io.IOException;
+
 /**
  * Message for XML error by a central server or a server
  * @author Rollus Loic
  */
-public class MessageError implements Message {
+public class MessageError implements Message, MessageBinary {
 
     /**
      * Code for the exception
@@ -66,6 +70,36 @@ public class MessageError implements Message {
             this.message = root.getAttributeValue("message");
     }
 
+    /**
+     * Constructor
+     * @param frame Binary error message
+     * @throws NotValidMessageXMLException Not valid binary error message
+     */
+    public MessageError(BinaryFrame frame) throws NotValidMessageXMLException {
+        frame.checkType(BinaryFrame.ERROR);
+        try {
+            CodedInputStream input = frame.getInput();
+            this.code = BinaryFrame.readNullableString(input);
+            this.message = BinaryFrame.readNullableString(input);
+        } catch (IOException e) {
+            throw new NotValidMessageXMLException(e.toString());
+        }
+    }
+
+    public byte getBinaryType() {
+        return BinaryFrame.ERROR;
+    }
+
+    /**
+     * Write the error message in a binary frame
+     * @param output Frame payload
+     * @throws IOException Error during writing
+     */
+    public void writeBinary(CodedOutputStream output) throws IOException {
+        BinaryFrame.writeNullableString(output, code);
+        BinaryFrame.writeNullableString(output, message);
+    }
+
     /**
      * Generate a XML document from the error message
      * @return XML document
@@ -93,6 +127,17 @@ public class MessageError implements Message {
         }
     }
 
+    /**
+     * Generate the exception from the binary message
+     * @param frame Binary error message
+     * @return CBIRException build with message
+     * @throws NotValidMessageXMLException Not valid binary error message
+     */
+    public static CBIRException getException(BinaryFrame frame) throws NotValidMessageXMLException {
+        MessageError error = new MessageError(frame);
+        return new CBIRException(error.code, error.message);
+    }
+
     /**
      * Generate the exception from the xml message
      * @param msg XML message
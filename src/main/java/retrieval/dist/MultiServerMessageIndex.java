@@ -15,25 +15,50 @@
  */
 package retrieval.dist;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import org.apache.log4j.Logger;
 import org.jdom.Document;
 import org.jdom.Element;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 /**
+ * Index request message.
+ * The picture is sent as pixels after the message (default), as its encoded file
+ * (JPEG, PNG,... decoded by the server) or as a file path read by the server.
  * @author Rollus Loic
  */
-public class MultiServerMessageIndex implements Message, Cloneable {
+public class MultiServerMessageIndex implements Message, MessageBinary, Cloneable {
     private static Logger logger = Logger.getLogger(MultiServerMessageIndex.class);
 
+    /**
+     * Picture is sent as pixels after the message
+     */
+    public static final int PICTURE_PIXELS = 0;
+    /**
+     * Picture is sent as its encoded file (after the XML message or in the binary frame)
+     */
+    public static final int PICTURE_ENCODED = 1;
+    /**
+     * Picture is a file path on server
+     */
+    public static final int PICTURE_PATH = 2;
+
+    private static final String[] PICTURE_NAMES = {"PIXELS", "ENCODED", "PATH"};
+
     private Long id;
     private Map<String,String> properties;
     private String storage;
     public boolean async;
+    private int pictureTransfer = PICTURE_PIXELS;
+    private byte[] encoded;
+    private String path;
+    private boolean stream = false;
 
     public MultiServerMessageIndex(Long id,Map<String,String> properties, String storage,boolean async) {
         this.id = id;
@@ -50,9 +75,13 @@ public class MultiServerMessageIndex implements Message, Cloneable {
             if(root.getAttributeValue("id")!=null && !root.getAttributeValue("id").equals("null")) {
                 id = Long.parseLong(root.getAttributeValue("id"));
             } else id = null;
-            
-           
-            
+            //old clients always send pixels
+            String picture = root.getAttributeValue("picture");
+            if(picture!=null) {
+                pictureTransfer = pictureTransfer(picture);
+            }
+            path = root.getAttributeValue("path");
+
             List listProperties = root.getChildren("property");
             Iterator itProperty = listProperties.iterator();
             properties = new HashMap<String,String>();
@@ -66,10 +95,68 @@ public class MultiServerMessageIndex implements Message, Cloneable {
         }
     }
 
+    /**
+     * Constructor for an index message.
+     * The picture is read after the message in the same frame (BinaryFrame.readImage)
+     * @param frame Binary frame
+     * @throws NotValidMessageXMLException Bad binary frame
+     */
+    public MultiServerMessageIndex(BinaryFrame frame) throws NotValidMessageXMLException {
+        if(frame.getType()==BinaryFrame.INDEXSTREAM) {
+            stream = true;
+        } else {
+            frame.checkType(BinaryFrame.INDEX);
+        }
+        try {
+            CodedInputStream input = frame.getInput();
+            id = input.readBool() ? input.readInt64() : null;
+            storage = BinaryFrame.readNullableString(input);
+            async = input.readBool();
+            properties = BinaryFrame.readProperties(input);
+            pictureTransfer = input.readRawVarint32();
+            if (pictureTransfer == PICTURE_ENCODED) {
+                encoded = input.readRawBytes(input.readRawVarint32());
+            } else if (pictureTransfer == PICTURE_PATH) {
+                path = input.readString();
+            } else if (pictureTransfer != PICTURE_PIXELS) {
+                throw new NotValidMessageXMLException("Picture transfer " + pictureTransfer + " not valid!");
+            }
+        } catch (IOException e) {
+            throw new NotValidMessageXMLException(e.toString());
+        }
+    }
+
+    public byte getBinaryType() {
+        return stream ? BinaryFrame.INDEXSTREAM : BinaryFrame.INDEX;
+    }
+
+    /**
+     * Write this message in a binary frame (with encoded picture or path,
+     * pixels are written after by NetworkUtils)
+     * @param output Frame payload
+     * @throws IOException Error during writing
+     */
+    public void writeBinary(CodedOutputStream output) throws IOException {
+        output.writeBoolNoTag(id != null);
+        if (id != null) {
+            output.writeInt64NoTag(id);
+        }
+        BinaryFrame.writeNullableString(output, storage);
+        output.writeBoolNoTag(async);
+        BinaryFrame.writeProperties(output, properties);
+        output.writeRawVarint32(pictureTransfer);
+        if (pictureTransfer == PICTURE_ENCODED) {
+            output.writeRawVarint32(encoded.length);
+            output.writeRawBytes(encoded);
+        } else if (pictureTransfer == PICTURE_PATH) {
+            output.writeStringNoTag(path);
+        }
+    }
+
     @Override
     public String toString() {
         String s = "MESSAGE SUPER SERVER INDEX\n";
-        s = s + "PICTURE " + id +"\n";
+        s = s + "PICTURE " + id + " " + PICTURE_NAMES[pictureTransfer] + (path!=null? " " + path : "") + "\n";
         if(properties!=null) {
             for(Map.Entry<String,String> entry : properties.entrySet()) {
                s = s + "PROP " + entry.getKey() + "=" + entry.getValue() + "\n";
@@ -98,6 +185,10 @@ public class MultiServerMessageIndex implements Message, Cloneable {
             
             racine.setAttribute("id", id+"");
             racine.setAttribute("storage", getStorage());
+            racine.setAttribute("picture", PICTURE_NAMES[pictureTransfer]);
+            if(path!=null) {
+                racine.setAttribute("path", path);
+            }
 
             if(properties!=null) {
                 for(Map.Entry<String,String> entry : properties.entrySet()) {
@@ -137,4 +228,73 @@ public class MultiServerMessageIndex implements Message, Cloneable {
         return storage;
     }
 
+    /**
+     * @return the way picture is sent (PICTURE_PIXELS, PICTURE_ENCODED or PICTURE_PATH)
+     */
+    public int getPictureTransfer() {
+        return pictureTransfer;
+    }
+
+    /**
+     * @return the encoded picture (if PICTURE_ENCODED)
+     */
+    public byte[] getEncoded() {
+        return encoded;
+    }
+
+    /**
+     * Send picture as its encoded file (JPEG, PNG,...) instead of pixels
+     * @param encoded Bytes of picture file
+     */
+    public void setEncoded(byte[] encoded) {
+        this.pictureTransfer = PICTURE_ENCODED;
+        this.encoded = encoded;
+    }
+
+    /**
+     * @return the picture path on server (if PICTURE_PATH)
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Send a file path read by the server instead of pixels
+     * @param path Picture path on server
+     */
+    public void setPath(String path) {
+        this.pictureTransfer = PICTURE_PATH;
+        this.path = path;
+    }
+
+    /**
+     * @return true if the message is a picture of an index stream (BinaryFrame.INDEXSTREAM)
+     */
+    public boolean isStream() {
+        return stream;
+    }
+
+    /**
+     * Send this message as a picture of an index stream (BinaryFrame.INDEXSTREAM)
+     * on a multiplexed connection
+     * @param stream True for an index stream
+     */
+    public void setStream(boolean stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Get the picture transfer from its name
+     * @param name PIXELS, ENCODED or PATH
+     * @return Picture transfer
+     */
+    public static int pictureTransfer(String name) {
+        for (int i = 0; i < PICTURE_NAMES.length; i++) {
+            if (PICTURE_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Picture transfer must be PIXELS, ENCODED or PATH: " + name);
+    }
+
 }
@@ -15,10 +15,13 @@
  */
 package retrieval.dist;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import org.jdom.Document;
 import org.jdom.Element;
 import retrieval.exception.CBIRException;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.Map.Entry;
 
@@ -27,7 +30,7 @@ import java.util.Map.Entry;
  * A server will send this message as a response to an indexer
  * @author Rollus Loic
  */
-public class MultiServerMessageIndexResults implements Message {
+public class MultiServerMessageIndexResults implements Message, MessageBinary {
    /**
      * A map which map a picture path with an exception
      * (which can be null or NoException)
@@ -82,6 +85,60 @@ public class MultiServerMessageIndexResults implements Message {
         }
     }
 
+    /**
+     * Constructor
+     * @param frame Binary message
+     * @throws NotValidMessageXMLException Binary message was not valid
+     */
+    public MultiServerMessageIndexResults(BinaryFrame frame)
+            throws NotValidMessageXMLException {
+        frame.checkType(BinaryFrame.INDEXRESULTS);
+        try {
+            CodedInputStream input = frame.getInput();
+            int numberOfServer = input.readUInt32();
+            allPictures = new HashMap<String,Map<Long, CBIRException>>(numberOfServer * 2);
+            for (int s = 0; s < numberOfServer; s++) {
+                String idServer = input.readString();
+                int numberOfPictures = input.readUInt32();
+                Map<Long, CBIRException> subAllPictures = new HashMap<Long, CBIRException>(numberOfPictures * 2);
+                for (int i = 0; i < numberOfPictures; i++) {
+                    Long key = input.readBool() ? input.readInt64() : null;
+                    String valueCode = BinaryFrame.readNullableString(input);
+                    String valueMsg = BinaryFrame.readNullableString(input);
+                    subAllPictures.put(key, new CBIRException(valueCode, valueMsg));
+                }
+                allPictures.put(idServer, subAllPictures);
+            }
+        } catch (IOException e) {
+            throw new NotValidMessageXMLException(e.toString());
+        }
+    }
+
+    public byte getBinaryType() {
+        return BinaryFrame.INDEXRESULTS;
+    }
+
+    /**
+     * Write this message in a binary frame
+     * @param output Frame payload
+     * @throws IOException Error during writing
+     */
+    public void writeBinary(CodedOutputStream output) throws IOException {
+        output.writeUInt32NoTag(allPictures.size());
+        for (Entry<String,Map<Long, CBIRException>> entry : allPictures.entrySet()) {
+            output.writeStringNoTag(entry.getKey());
+            output.writeUInt32NoTag(entry.getValue().size());
+            for (Map.Entry<Long, CBIRException> subentry : entry.getValue().entrySet()) {
+                output.writeBoolNoTag(subentry.getKey() != null);
+                if (subentry.getKey() != null) {
+                    output.writeInt64NoTag(subentry.getKey());
+                }
+                BinaryFrame.writeNullableString(output, subentry.getValue().getCode());
+                BinaryFrame.writeNullableString(output, subentry.getValue().toString());
+            }
+        }
+    }
+
     /**
      * Generate a XML document from the error message
      * @return XML document
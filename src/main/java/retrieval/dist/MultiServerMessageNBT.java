@@ -15,12 +15,16 @@
  */
 package retrieval.dist;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import org.apache.log4j.Logger;
 import org.jdom.Attribute;
 import org.jdom.Document;
 import org.jdom.Element;
 import retrieval.utils.CollectionUtils;
+import retrieval.utils.ConvertUtils;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
@@ -28,7 +32,7 @@ import java.util.concurrent.ConcurrentHashMap;
 /**
  * @author Rollus Loic
  */
-public class MultiServerMessageNBT implements Message, Cloneable {
+public class MultiServerMessageNBT implements Message, MessageBinary, Cloneable {
     private static Logger logger = Logger.getLogger(MultiServerMessageNBT.class);
     /**
      * Each Server has a list of map which contains for each tests vector a map with
@@ -43,10 +47,10 @@ public class MultiServerMessageNBT implements Message, Cloneable {
      *  VT1
      *   ...
      */
-    private Map<String,List<ConcurrentHashMap<String, Long>>> tvLists;
+    private Map<String,List<ConcurrentHashMap<Long, Long>>> tvLists;
     private List<String> containers;
 
-    public MultiServerMessageNBT(Map<String,List<ConcurrentHashMap<String, Long>>> tvLists,String[] containers) {
+    public MultiServerMessageNBT(Map<String,List<ConcurrentHashMap<Long, Long>>> tvLists,String[] containers) {
         this.tvLists = tvLists;
         this.containers=Arrays.asList(containers);
     }
@@ -64,24 +68,24 @@ public class MultiServerMessageNBT implements Message, Cloneable {
 
             List listServer = root.getChildren("server");
             Iterator itServer = listServer.iterator();
-            tvLists = new TreeMap<String,List<ConcurrentHashMap<String, Long>>>();
+            tvLists = new TreeMap<String,List<ConcurrentHashMap<Long, Long>>>();
 
             while (itServer.hasNext()) {
                 Element serverNBT = (Element) itServer.next();
                 String idServer = serverNBT.getAttributeValue("id");
                 List listTV = serverNBT.getChildren("tv");
                 Iterator it = listTV.iterator();
-                List<ConcurrentHashMap<String, Long>> tvList = new ArrayList<ConcurrentHashMap<String, Long>>(listTV.size());
+                List<ConcurrentHashMap<Long, Long>> tvList = new ArrayList<ConcurrentHashMap<Long, Long>>(listTV.size());
 
                 while (it.hasNext()) {
                     Element tvxml = (Element) it.next();
                     List listVW = tvxml.getChildren();
                     Iterator it2 = listVW.iterator();
-                    ConcurrentHashMap<String, Long> tv =
-                            new ConcurrentHashMap<String, Long>();
+                    ConcurrentHashMap<Long, Long> tv =
+                            new ConcurrentHashMap<Long, Long>();
                     while (it2.hasNext()) {
                         Element assoc = (Element) it2.next();
-                        String vw = assoc.getAttributeValue("b");
+                        Long vw = ConvertUtils.convertHexaToVisualWord(assoc.getAttributeValue("b"));
                         Long nbit = Long.parseLong(assoc.getAttributeValue("nbit"));
                         tv.put(vw, nbit);
                     }
@@ -94,6 +98,71 @@ public class MultiServerMessageNBT implements Message, Cloneable {
         }
     }
 
+    /**
+     * Constructor for a NBT message
+     * @param frame Binary frame
+     * @throws NotValidMessageXMLException Bad binary frame
+     */
+    public MultiServerMessageNBT(BinaryFrame frame) throws NotValidMessageXMLException {
+        frame.checkType(BinaryFrame.SEARCH1);
+        try {
+            CodedInputStream input = frame.getInput();
+            containers = BinaryFrame.readStrings(input);
+            int numberOfServer = input.readUInt32();
+            tvLists = new TreeMap<String,List<ConcurrentHashMap<Long, Long>>>();
+
+            for (int s = 0; s < numberOfServer; s++) {
+                String idServer = input.readString();
+                int numberOfTV = input.readUInt32();
+                List<ConcurrentHashMap<Long, Long>> tvList = new ArrayList<ConcurrentHashMap<Long, Long>>(numberOfTV);
+
+                for (int i = 0; i < numberOfTV; i++) {
+                    int numberOfVW = input.readUInt32();
+                    ConcurrentHashMap<Long, Long> tv = new ConcurrentHashMap<Long, Long>(numberOfVW);
+                    for (int j = 0; j < numberOfVW; j++) {
+                        Long vw = input.readUInt64();
+                        Long nbit = input.readUInt64();
+                        tv.put(vw, nbit);
+                    }
+                    tvList.add(tv);
+                }
+                tvLists.put(idServer, tvList);
+            }
+        } catch (IOException e) {
+            throw new NotValidMessageXMLException(e.toString());
+        }
+    }
+
+    public byte getBinaryType() {
+        return BinaryFrame.SEARCH1;
+    }
+
+    /**
+     * Write this message in a binary frame:
+     * containers, then for each server, each test vector: visual word and nbt as varint
+     * @param output Frame payload
+     * @throws IOException Error during writing
+     */
+    public void writeBinary(CodedOutputStream output) throws IOException {
+        BinaryFrame.writeStrings(output, getContainers());
+        output.writeUInt32NoTag(tvLists.size());
+
+        for (Entry<String,List<ConcurrentHashMap<Long, Long>>> entry : tvLists.entrySet()) {
+            output.writeStringNoTag(entry.getKey());
+            List<ConcurrentHashMap<Long, Long>> tvList = entry.getValue();
+            output.writeUInt32NoTag(tvList.size());
+
+            for (int i = 0; i < tvList.size(); i++) {
+                ConcurrentHashMap<Long, Long> tv = tvList.get(i);
+                output.writeUInt32NoTag(tv.size());
+                for (Map.Entry<Long, Long> entree : tv.entrySet()) {
+                    output.writeUInt64NoTag(entree.getKey());
+                    output.writeUInt64NoTag(entree.getValue().intValue());
+                }
+            }
+        }
+    }
+
     /**
      * Method to build XML document from this message
      * @return XML document
@@ -107,25 +176,25 @@ public class MultiServerMessageNBT implements Message, Cloneable {
         racine.setAttribute("type","SEARCH1");
         document = new Document(racine);
 
-       Iterator<Entry<String,List<ConcurrentHashMap<String, Long>>>> it = tvLists.entrySet().iterator();
+       Iterator<Entry<String,List<ConcurrentHashMap<Long, Long>>>> it = tvLists.entrySet().iterator();
 
         while(it.hasNext()) {
-            Entry<String,List<ConcurrentHashMap<String, Long>>> entry = it.next();
+            Entry<String,List<ConcurrentHashMap<Long, Long>>> entry = it.next();
             String server = entry.getKey();
-            List<ConcurrentHashMap<String, Long>> tvList = entry.getValue();
+            List<ConcurrentHashMap<Long, Long>> tvList = entry.getValue();
 
             Element racineServer = new Element("server");
             racineServer.setAttribute("id", server);
 
             for (int i = 0; i < tvList.size(); i++) {
-                ConcurrentHashMap<String, Long> tv = tvList.get(i);
+                ConcurrentHashMap<Long, Long> tv = tvList.get(i);
                 Element tvxml = new Element("tv");
                 tvxml.setAttribute(new Attribute("id", i + ""));
                 racineServer.addContent(tvxml);
 
-                for (Map.Entry<String, Long> entree : tv.entrySet()) {
+                for (Map.Entry<Long, Long> entree : tv.entrySet()) {
                     Element vw = new Element("vw");
-                    vw.setAttribute(new Attribute("b", entree.getKey()));
+                    vw.setAttribute(new Attribute("b", ConvertUtils.convertVisualWordToHexa(entree.getKey())));
                     vw.setAttribute(new Attribute("nbit", entree.getValue().intValue() + ""));
                     tvxml.addContent(vw);
                 }
@@ -144,7 +213,7 @@ public class MultiServerMessageNBT implements Message, Cloneable {
      * @param visualWords Vector with each tests vector Visual words
      */
     public void setVisualWordsByTestVectorServer(
-            Map<String,List<ConcurrentHashMap<String, Long>>> visualWords) {
+            Map<String,List<ConcurrentHashMap<Long, Long>>> visualWords) {
         tvLists = visualWords;
     }
 
@@ -153,30 +222,30 @@ public class MultiServerMessageNBT implements Message, Cloneable {
      * ex: Item 2 is a map with each vw and nbt for test vector 2
      * @return Vector with each tests vector Visual words
      */
-    public Map<String,List<ConcurrentHashMap<String, Long>>> getVisualWordsByTestVectorServer() {
+    public Map<String,List<ConcurrentHashMap<Long, Long>>> getVisualWordsByTestVectorServer() {
         return tvLists;
     }
 
 
-    public static List<ConcurrentHashMap<String, Long>> copyVWList(List<ConcurrentHashMap<String, Long>> baseList) {
-        List<ConcurrentHashMap<String, Long>> newList = new ArrayList<ConcurrentHashMap<String, Long>>();
+    public static List<ConcurrentHashMap<Long, Long>> copyVWList(List<ConcurrentHashMap<Long, Long>> baseList) {
+        List<ConcurrentHashMap<Long, Long>> newList = new ArrayList<ConcurrentHashMap<Long, Long>>();
 
-        Iterator<ConcurrentHashMap<String, Long>> it = baseList.iterator();
+        Iterator<ConcurrentHashMap<Long, Long>> it = baseList.iterator();
 
         while (it.hasNext()) {
-            ConcurrentHashMap<String, Long> map = it.next();
-            ConcurrentHashMap<String, Long> newMap = copyVWMap(map);
+            ConcurrentHashMap<Long, Long> map = it.next();
+            ConcurrentHashMap<Long, Long> newMap = copyVWMap(map);
             newList.add(newMap);
         }
         return newList;
     }
 
-    public static ConcurrentHashMap<String, Long> copyVWMap(ConcurrentHashMap<String, Long> baseMap) {
-        ConcurrentHashMap<String, Long> copyMap = new ConcurrentHashMap<String, Long>(baseMap.size());
-        Iterator<Entry<String, Long>> it = baseMap.entrySet().iterator();
+    public static ConcurrentHashMap<Long, Long> copyVWMap(ConcurrentHashMap<Long, Long> baseMap) {
+        ConcurrentHashMap<Long, Long> copyMap = new ConcurrentHashMap<Long, Long>(baseMap.size());
+        Iterator<Entry<Long, Long>> it = baseMap.entrySet().iterator();
 
         while (it.hasNext()) {
-            Entry<String, Long> entry = it.next();
+            Entry<Long, Long> entry = it.next();
 
             copyMap.put(entry.getKey(), new Long(entry.getValue().longValue()));
         }
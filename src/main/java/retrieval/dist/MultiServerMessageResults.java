@@ -15,12 +15,15 @@
  */
 package retrieval.dist;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import org.jdom.Attribute;
 import org.jdom.Document;
 import org.jdom.Element;
 import retrieval.client.ListServerInformationSocket;
 import retrieval.storage.index.ResultSim;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.Map.Entry;
 
@@ -32,7 +35,7 @@ import java.util.Map.Entry;
  * and a list of server state
  * @author Rollus Loic
  */
-public class MultiServerMessageResults implements Message {
+public class MultiServerMessageResults implements Message, MessageBinary {
 
     /**
      * Lists of ordered similar pictures
@@ -95,6 +98,35 @@ public class MultiServerMessageResults implements Message {
         }
     }
 
+    /**
+     * Constructor for a result message
+     * @param frame Binary frame
+     * @throws NotValidMessageXMLException Bad binary frame
+     */
+    public MultiServerMessageResults(BinaryFrame frame) throws NotValidMessageXMLException {
+        frame.checkType(BinaryFrame.SEARCH3);
+        try {
+            CodedInputStream input = frame.getInput();
+            serverlists = new TreeMap<String,List<ResultSim>>();
+            int numberOfServer = input.readUInt32();
+
+            for (int s = 0; s < numberOfServer; s++) {
+                String idServer = input.readString();
+                int numberOfPictures = input.readUInt32();
+                List<ResultSim> lists = new ArrayList<ResultSim>(numberOfPictures);
+                for (int i = 0; i < numberOfPictures; i++) {
+                    Long id = input.readInt64();
+                    double similarity = input.readDouble();
+                    Map<String,String> properties = BinaryFrame.readProperties(input);
+                    lists.add(new ResultSim(id,properties,similarity));
+                }
+                serverlists.put(idServer, lists);
+            }
+        } catch (IOException e) {
+            throw new NotValidMessageXMLException(e.toString());
+        }
+    }
+
     /**
      * Constructor for a result message
      * @param serverlists List of results
@@ -148,6 +180,30 @@ public class MultiServerMessageResults implements Message {
         return document;
     }
 
+    public byte getBinaryType() {
+        return BinaryFrame.SEARCH3;
+    }
+
+    /**
+     * Write this message in a binary frame:
+     * for each server, each picture: id, similarity and properties
+     * @param output Frame payload
+     * @throws IOException Error during writing
+     */
+    public void writeBinary(CodedOutputStream output) throws IOException {
+        output.writeUInt32NoTag(serverlists.size());
+        for (Entry<String,List<ResultSim>> entry : serverlists.entrySet()) {
+            output.writeStringNoTag(entry.getKey());
+            List<ResultSim> result = entry.getValue();
+            output.writeUInt32NoTag(result.size());
+            for (ResultSim sim : result) {
+                output.writeInt64NoTag(sim.getId());
+                output.writeDoubleNoTag(sim.getSimilarities());
+                BinaryFrame.writeProperties(output, sim.getProperties());
+            }
+        }
+    }
+
     /**
      * Get most similar pictures
      * @return Most similar pictures
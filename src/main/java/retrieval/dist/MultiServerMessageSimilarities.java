@@ -15,11 +15,15 @@
  */
 package retrieval.dist;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import org.jdom.Attribute;
 import org.jdom.Document;
 import org.jdom.Element;
 import retrieval.utils.CollectionUtils;
+import retrieval.utils.ConvertUtils;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
@@ -29,7 +33,7 @@ import java.util.concurrent.ConcurrentHashMap;
  * A central server will send information of request picture to each server.
  * @author Rollus Loic
  */
-public class MultiServerMessageSimilarities implements Message,Cloneable {
+public class MultiServerMessageSimilarities implements Message,MessageBinary,Cloneable {
 
     /**
      * A structure which contain for each test vectors a map with
@@ -37,7 +41,7 @@ public class MultiServerMessageSimilarities implements Message,Cloneable {
      * that produced visualword B and nBtsum is the total number of patchs
      * map on all server with visual word B (for this tests vector)
      */
-    private Map<String,List<ConcurrentHashMap<String, RequestPictureVisualWord>>> tvLists;
+    private Map<String,List<ConcurrentHashMap<Long, RequestPictureVisualWord>>> tvLists;
     private List<String> containers;
     /**
      * Number of patch produced by request image Iq
@@ -56,24 +60,24 @@ public class MultiServerMessageSimilarities implements Message,Cloneable {
      * @param N Number of patch produced by request image Iq
      * @param k Max number of similar pictures to get
      */
-    public MultiServerMessageSimilarities(Map<String,List<ConcurrentHashMap<String, Long>>> lists, int N, int k,List<String> containers) {
+    public MultiServerMessageSimilarities(Map<String,List<ConcurrentHashMap<Long, Long>>> lists, int N, int k,List<String> containers) {
         this.N = N;
         this.k = k;
         this.containers = containers;
-        tvLists = new TreeMap<String,List<ConcurrentHashMap<String, RequestPictureVisualWord>>>();
+        tvLists = new TreeMap<String,List<ConcurrentHashMap<Long, RequestPictureVisualWord>>>();
 
-        Iterator<Entry<String,List<ConcurrentHashMap<String, Long>>>> it = lists.entrySet().iterator();
+        Iterator<Entry<String,List<ConcurrentHashMap<Long, Long>>>> it = lists.entrySet().iterator();
 
         while(it.hasNext()) {
-            Entry<String,List<ConcurrentHashMap<String, Long>>> entry = it.next();
+            Entry<String,List<ConcurrentHashMap<Long, Long>>> entry = it.next();
             String server = entry.getKey();
-            List<ConcurrentHashMap<String, Long>> tvListLong = entry.getValue();
-            List<ConcurrentHashMap<String, RequestPictureVisualWord>> tvListRequestPictureVisualWord =
-                    new ArrayList<ConcurrentHashMap<String, RequestPictureVisualWord>>();
+            List<ConcurrentHashMap<Long, Long>> tvListLong = entry.getValue();
+            List<ConcurrentHashMap<Long, RequestPictureVisualWord>> tvListRequestPictureVisualWord =
+                    new ArrayList<ConcurrentHashMap<Long, RequestPictureVisualWord>>();
 
             for (int i = 0; i < tvListLong.size(); i++) {
-                tvListRequestPictureVisualWord.add(new ConcurrentHashMap<String, RequestPictureVisualWord>(N));
-                for (Map.Entry<String, Long> entry2 : tvListLong.get(i).entrySet()) {
+                tvListRequestPictureVisualWord.add(new ConcurrentHashMap<Long, RequestPictureVisualWord>(N));
+                for (Map.Entry<Long, Long> entry2 : tvListLong.get(i).entrySet()) {
                     tvListRequestPictureVisualWord.get(i).put(entry2.getKey(), new RequestPictureVisualWord(entry2.getValue().intValue()));
                 }
             }
@@ -81,7 +85,7 @@ public class MultiServerMessageSimilarities implements Message,Cloneable {
         }
     }
 
-    public MultiServerMessageSimilarities(Map<String,List<ConcurrentHashMap<String, Long>>> lists, int N, int k,String[] containers) {
+    public MultiServerMessageSimilarities(Map<String,List<ConcurrentHashMap<Long, Long>>> lists, int N, int k,String[] containers) {
         this(lists,N,k,Arrays.asList(containers));
     }
 
@@ -98,7 +102,7 @@ public class MultiServerMessageSimilarities implements Message,Cloneable {
             k = Integer.parseInt(root.getAttributeValue("k"));            
             List listServer = root.getChildren("server");
             Iterator itServer = listServer.iterator();
-            tvLists = new TreeMap<String,List<ConcurrentHashMap<String, RequestPictureVisualWord>>>();
+            tvLists = new TreeMap<String,List<ConcurrentHashMap<Long, RequestPictureVisualWord>>>();
 
             while (itServer.hasNext()) {
                 Element serverSim = (Element) itServer.next();
@@ -106,19 +110,19 @@ public class MultiServerMessageSimilarities implements Message,Cloneable {
                 List listTV = serverSim.getChildren("tv");
 
                 Iterator it = listTV.iterator();
-                List<ConcurrentHashMap<String, RequestPictureVisualWord>> tvList =
-                        new ArrayList<ConcurrentHashMap<String, RequestPictureVisualWord>>(listTV.size());
+                List<ConcurrentHashMap<Long, RequestPictureVisualWord>> tvList =
+                        new ArrayList<ConcurrentHashMap<Long, RequestPictureVisualWord>>(listTV.size());
 
                 while (it.hasNext()) {
 
-                    ConcurrentHashMap<String, RequestPictureVisualWord> tvm = new ConcurrentHashMap<String, RequestPictureVisualWord>();
+                    ConcurrentHashMap<Long, RequestPictureVisualWord> tvm = new ConcurrentHashMap<Long, RequestPictureVisualWord>();
                     Element tvxml = (Element) it.next();
                     List listVW = tvxml.getChildren();
                     Iterator it2 = listVW.iterator();
 
                     while (it2.hasNext()) {
                         Element assoc = (Element) it2.next();
-                        String vw = assoc.getAttributeValue("b");
+                        Long vw = ConvertUtils.convertHexaToVisualWord(assoc.getAttributeValue("b"));
                         int nbiq = Integer.parseInt(assoc.getAttributeValue("nbiq"));
                         int nbt = Integer.parseInt(assoc.getAttributeValue("nbt"));
                         tvm.put(vw, new RequestPictureVisualWord(nbiq, nbt));
@@ -135,6 +139,78 @@ public class MultiServerMessageSimilarities implements Message,Cloneable {
     }
 
 
+    /**
+     * Constructor for a similarities message
+     * @param frame Binary frame similarities
+     * @throws NotValidMessageXMLException Not a valid message
+     */
+    public MultiServerMessageSimilarities(BinaryFrame frame) throws NotValidMessageXMLException {
+        frame.checkType(BinaryFrame.SEARCH2);
+        try {
+            CodedInputStream input = frame.getInput();
+            containers = BinaryFrame.readStrings(input);
+            N = input.readUInt32();
+            k = input.readUInt32();
+            int numberOfServer = input.readUInt32();
+            tvLists = new TreeMap<String,List<ConcurrentHashMap<Long, RequestPictureVisualWord>>>();
+
+            for (int s = 0; s < numberOfServer; s++) {
+                String idServer = input.readString();
+                int numberOfTV = input.readUInt32();
+                List<ConcurrentHashMap<Long, RequestPictureVisualWord>> tvList =
+                        new ArrayList<ConcurrentHashMap<Long, RequestPictureVisualWord>>(numberOfTV);
+
+                for (int i = 0; i < numberOfTV; i++) {
+                    int numberOfVW = input.readUInt32();
+                    ConcurrentHashMap<Long, RequestPictureVisualWord> tvm = new ConcurrentHashMap<Long, RequestPictureVisualWord>(numberOfVW);
+                    for (int j = 0; j < numberOfVW; j++) {
+                        Long vw = input.readUInt64();
+                        int nbiq = input.readUInt32();
+                        int nbt = input.readUInt32();
+                        tvm.put(vw, new RequestPictureVisualWord(nbiq, nbt));
+                    }
+                    tvList.add(tvm);
+                }
+                tvLists.put(idServer, tvList);
+            }
+        } catch (IOException e) {
+            throw new NotValidMessageXMLException(e.toString());
+        }
+    }
+
+    public byte getBinaryType() {
+        return BinaryFrame.SEARCH2;
+    }
+
+    /**
+     * Write this message in a binary frame:
+     * containers, N, k, then for each server, each test vector: visual word, nbiq and nbt as varint
+     * @param output Frame payload
+     * @throws IOException Error during writing
+     */
+    public void writeBinary(CodedOutputStream output) throws IOException {
+        BinaryFrame.writeStrings(output, getContainers());
+        output.writeUInt32NoTag(N);
+        output.writeUInt32NoTag(k);
+        output.writeUInt32NoTag(tvLists.size());
+
+        for (Entry<String,List<ConcurrentHashMap<Long, RequestPictureVisualWord>>> entry : tvLists.entrySet()) {
+            output.writeStringNoTag(entry.getKey());
+            List<ConcurrentHashMap<Long, RequestPictureVisualWord>> tvList = entry.getValue();
+            output.writeUInt32NoTag(tvList.size());
+
+            for (int i = 0; i < tvList.size(); i++) {
+                ConcurrentHashMap<Long, RequestPictureVisualWord> tv = tvList.get(i);
+                output.writeUInt32NoTag(tv.size());
+                for (Map.Entry<Long, RequestPictureVisualWord> entry2 : tv.entrySet()) {
+                    output.writeUInt64NoTag(entry2.getKey());
+                    output.writeUInt32NoTag(entry2.getValue().nbiq);
+                    output.writeUInt32NoTag(entry2.getValue().nbtSum);
+                }
+            }
+        }
+    }
+
     /**
      * Method to build XML document from this message
      * @return XML document
@@ -147,28 +223,28 @@ public class MultiServerMessageSimilarities implements Message,Cloneable {
         racine.setAttribute("k", k + "");
         Document document = new Document(racine);
 
-        Iterator<Entry<String,List<ConcurrentHashMap<String, RequestPictureVisualWord>>>> it = tvLists.entrySet().iterator();
+        Iterator<Entry<String,List<ConcurrentHashMap<Long, RequestPictureVisualWord>>>> it = tvLists.entrySet().iterator();
 
         while(it.hasNext()) {
-            Entry<String,List<ConcurrentHashMap<String, RequestPictureVisualWord>>> entry = it.next();
+            Entry<String,List<ConcurrentHashMap<Long, RequestPictureVisualWord>>> entry = it.next();
             String server = entry.getKey();
-            List<ConcurrentHashMap<String, RequestPictureVisualWord>> tvList = entry.getValue();
+            List<ConcurrentHashMap<Long, RequestPictureVisualWord>> tvList = entry.getValue();
 
             Element racineServer = new Element("server");
             racineServer.setAttribute("id", server);
 
             for (int i = 0; i < tvList.size(); i++) {
 
-                ConcurrentHashMap<String, RequestPictureVisualWord> tv = tvList.get(i);
+                ConcurrentHashMap<Long, RequestPictureVisualWord> tv = tvList.get(i);
                 Element tvxml = new Element("tv");
                 tvxml.setAttribute(new Attribute("id", i + ""));
                 racineServer.addContent(tvxml);
 
-                for (Map.Entry<String, RequestPictureVisualWord> entry2 : tv.entrySet()) {
+                for (Map.Entry<Long, RequestPictureVisualWord> entry2 : tv.entrySet()) {
 
                     RequestPictureVisualWord tvm2 = entry2.getValue();
                     Element vw = new Element("vw");
-                    vw.setAttribute(new Attribute("b", entry2.getKey()));
+                    vw.setAttribute(new Attribute("b", ConvertUtils.convertVisualWordToHexa(entry2.getKey())));
                     vw.setAttribute(new Attribute("nbiq", tvm2.nbiq + ""));
                     vw.setAttribute(new Attribute("nbt", tvm2.nbtSum + ""));
                     tvxml.addContent(vw);
@@ -200,7 +276,7 @@ public class MultiServerMessageSimilarities implements Message,Cloneable {
      * Get the visual word map for each tests vector
      * @return Visual word map for each tests vector
      */
-    public Map<String,List<ConcurrentHashMap<String, RequestPictureVisualWord>>> getVisualWord() {
+    public Map<String,List<ConcurrentHashMap<Long, RequestPictureVisualWord>>> getVisualWord() {
         return tvLists;
     }
 
@@ -208,7 +284,7 @@ public class MultiServerMessageSimilarities implements Message,Cloneable {
      * Set the visual word map for each tests vector
      * @param vw Visual word map for each tests vector
      */
-    public void setVisualWords(Map<String,List<ConcurrentHashMap<String, RequestPictureVisualWord>>> vw) {
+    public void setVisualWords(Map<String,List<ConcurrentHashMap<Long, RequestPictureVisualWord>>> vw) {
         this.tvLists = vw;
     }
 
@@ -230,30 +306,7 @@ public class MultiServerMessageSimilarities implements Message,Cloneable {
             String server = serverxml.getAttributeValue("id");
             List listTV = serverxml.getChildren("tv");
 
-            List<ConcurrentHashMap<String, RequestPictureVisualWord>> tvList = tvLists.get(server);
-
-
-            //if not exist for this server, create a new list with empty value
-            if(tvList==null) {
-                tvList = new ArrayList<ConcurrentHashMap<String, RequestPictureVisualWord>> ();
-
-                List<ConcurrentHashMap<String, RequestPictureVisualWord>> base = tvLists.get("#all#");
-
-                for(int i=0;i<base.size();i++) {
-                    ConcurrentHashMap<String, RequestPictureVisualWord> baseMap = base.get(i);
-                    ConcurrentHashMap<String, RequestPictureVisualWord> newMap = new ConcurrentHashMap<String, RequestPictureVisualWord>();
-
-                    Iterator<Entry<String,RequestPictureVisualWord>> it = baseMap.entrySet().iterator();
-
-                    while(it.hasNext()) {
-                        Entry<String,RequestPictureVisualWord> entry = it.next();
-                        RequestPictureVisualWord value = entry.getValue();
-                        newMap.put(entry.getKey(), new RequestPictureVisualWord(value.nbiq,value.nbtSum));
-                    }
-                    tvList.add(newMap);
-                }
-                tvLists.put(server,tvList);
-            }
+            List<ConcurrentHashMap<Long, RequestPictureVisualWord>> tvList = getServerList(server);
 
             int i = 0;
             Iterator it = listTV.iterator();
@@ -265,7 +318,7 @@ public class MultiServerMessageSimilarities implements Message,Cloneable {
                 while (it2.hasNext()) {
 
                     Element assoc = (Element) it2.next();
-                    String vw = assoc.getAttributeValue("b");
+                    Long vw = ConvertUtils.convertHexaToVisualWord(assoc.getAttributeValue("b"));
                     int nbit = Integer.parseInt(assoc.getAttributeValue("nbit"));
                     
                     
@@ -284,6 +337,68 @@ public class MultiServerMessageSimilarities implements Message,Cloneable {
         }
     }
 
+    /**
+     * Add a new binary message NBT (from server s) to produce this message.
+     * Same as addNBT(Document) for the binary protocol
+     * @param messageNBT Binary frame with message NBT
+     * @throws Exception Not valid message
+     */
+    public synchronized void addNBT(BinaryFrame messageNBT) throws Exception {
+        messageNBT.checkType(BinaryFrame.SEARCH1);
+        CodedInputStream input = messageNBT.getInput();
+        //containers are not used here
+        BinaryFrame.readStrings(input);
+        int numberOfServer = input.readUInt32();
+
+        for (int s = 0; s < numberOfServer; s++) {
+            String server = input.readString();
+            List<ConcurrentHashMap<Long, RequestPictureVisualWord>> tvList = getServerList(server);
+            int numberOfTV = input.readUInt32();
+
+            for (int i = 0; i < numberOfTV; i++) {
+                int numberOfVW = input.readUInt32();
+                for (int j = 0; j < numberOfVW; j++) {
+                    Long vw = input.readUInt64();
+                    int nbit = (int) input.readUInt64();
+                    //add the NBT of server s to the total NBT
+                    tvList.get(i).get(vw).addNbtSum(nbit);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the visual words of a server.
+     * If not exist for this server, create a new list with value of #all#
+     * @param server Server id
+     * @return Visual words for each tests vector
+     */
+    private List<ConcurrentHashMap<Long, RequestPictureVisualWord>> getServerList(String server) {
+        List<ConcurrentHashMap<Long, RequestPictureVisualWord>> tvList = tvLists.get(server);
+
+        if(tvList==null) {
+            tvList = new ArrayList<ConcurrentHashMap<Long, RequestPictureVisualWord>> ();
+
+            List<ConcurrentHashMap<Long, RequestPictureVisualWord>> base = tvLists.get("#all#");
+
+            for(int i=0;i<base.size();i++) {
+                ConcurrentHashMap<Long, RequestPictureVisualWord> baseMap = base.get(i);
+                ConcurrentHashMap<Long, RequestPictureVisualWord> newMap = new ConcurrentHashMap<Long, RequestPictureVisualWord>();
+
+                Iterator<Entry<Long, RequestPictureVisualWord>> it = baseMap.entrySet().iterator();
+
+                while(it.hasNext()) {
+                    Entry<Long, RequestPictureVisualWord> entry = it.next();
+                    RequestPictureVisualWord value = entry.getValue();
+                    newMap.put(entry.getKey(), new RequestPictureVisualWord(value.nbiq,value.nbtSum));
+                }
+                tvList.add(newMap);
+            }
+            tvLists.put(server,tvList);
+        }
+        return tvList;
+    }
+
 
     /**
      * @return the containers
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.indexer;
+
+import org.apache.log4j.Logger;
+import retrieval.dist.BinaryFrame;
+import retrieval.dist.MessageError;
+import retrieval.dist.MultiServerMessageIndex;
+import retrieval.dist.MultiServerMessageIndexResults;
+import retrieval.exception.CBIRException;
+import retrieval.storage.exception.PictureNotFoundException;
+import retrieval.utils.FileUtils;
+import retrieval.utils.NetworkUtils;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stream of pictures to index on a distant server, on a single connection.
+ * Each picture is sent (BinaryFrame.INDEXSTREAM on a multiplexed connection)
+ * without waiting for the results of previous pictures: at most 'window' pictures
+ * are sent and not yet acknowledged. A reader thread gets the results of the server
+ * (indexed ids and errors). Server indexes the pictures of the window at the same time.
+ * @author Rollus Loic
+ */
+public class IndexStream {
+
+    private final Socket socket;
+    private final OutputStream output;
+    private final String storage;
+    private final boolean synchronous;
+    private final int pictureTransfer;
+    private final int window;
+    /**
+     * Max number of pictures sent and not acknowledged
+     */
+    private final Semaphore inFlight;
+    private final AtomicInteger requestIds = new AtomicInteger();
+    /**
+     * Pictures sent and not acknowledged (key = request id, value = picture name)
+     */
+    private final ConcurrentHashMap<Integer, String> pending = new ConcurrentHashMap<Integer, String>();
+    /**
+     * Id of pictures indexed (or in queue if async)
+     */
+    private final List<Long> indexed = Collections.synchronizedList(new ArrayList<Long>());
+    /**
+     * Error for each picture name
+     */
+    private final Map<String, CBIRException> errors = Collections.synchronizedMap(new HashMap<String, CBIRException>());
+    private volatile boolean closed = false;
+    /**
+     * Logger
+     */
+    private static final Logger logger = Logger.getLogger(IndexStream.class);
+
+    /**
+     * Open a stream of pictures with a server
+     * @param host Server host
+     * @param port Server port
+     * @param storage Storage from server
+     * @param synchronous Async/Sync mode
+     * @param pictureTransfer How a picture file is sent (MultiServerMessageIndex.PICTURE_PIXELS, PICTURE_ENCODED or PICTURE_PATH)
+     * @param window Max number of pictures sent and not acknowledged
+     * @throws IOException Cannot connect to server
+     */
+    IndexStream(String host, int port, String storage, boolean synchronous, int pictureTransfer, int window) throws IOException {
+        this.storage = storage;
+        this.synchronous = synchronous;
+        this.pictureTransfer = pictureTransfer;
+        this.window = Math.max(1, window);
+        this.inFlight = new Semaphore(this.window);
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        output = socket.getOutputStream();
+        final InputStream input = socket.getInputStream();
+        Thread reader = new Thread("index-stream-" + host + ":" + port) {
+            @Override
+            public void run() {
+                readResults(input);
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Send a picture file (pixels, encoded file or path, see RetrievalIndexerDistantStorage.setPictureTransfer).
+     * Wait if there are already 'window' pictures not acknowledged.
+     * @param file Picture file
+     * @param id Resource id in server (null = id generated by server)
+     * @param properties Properties to store for the image
+     * @throws PictureNotFoundException Picture file cannot be read
+     * @throws IOException Connection is lost
+     * @throws InterruptedException Interrupted during wait
+     */
+    public void index(File file, Long id, Map<String,String> properties) throws PictureNotFoundException, IOException, InterruptedException {
+        MultiServerMessageIndex message = message(id, properties);
+        BufferedImage image = null;
+        if (pictureTransfer == MultiServerMessageIndex.PICTURE_PATH) {
+            message.setPath(file.getAbsolutePath());
+        } else {
+            byte[] encoded;
+            try {
+                encoded = Files.readAllBytes(file.toPath());
+            } catch (IOException e) {
+                throw new PictureNotFoundException("Cannot read: " + file.getAbsolutePath() + ": " + e.toString());
+            }
+            if (pictureTransfer == MultiServerMessageIndex.PICTURE_ENCODED) {
+                message.setEncoded(encoded);
+            } else {
+                image = FileUtils.readPictureFromBytes(encoded);
+            }
+        }
+        send(file.getPath(), message, image);
+    }
+
+    /**
+     * Send a picture (pixels).
+     * Wait if there are already 'window' pictures not acknowledged.
+     * @param image Picture
+     * @param id Resource id in server (null = id generated by server)
+     * @param properties Properties to store for the image
+     * @throws IOException Connection is lost
+     * @throws InterruptedException Interrupted during wait
+     */
+    public void index(BufferedImage image, Long id, Map<String,String> properties) throws IOException, InterruptedException {
+        send("picture " + id, message(id, properties), image);
+    }
+
+    private MultiServerMessageIndex message(Long id, Map<String,String> properties) {
+        MultiServerMessageIndex message = new MultiServerMessageIndex(id, properties, storage, !synchronous);
+        message.setStream(true);
+        return message;
+    }
+
+    private void send(String name, MultiServerMessageIndex message, BufferedImage image) throws IOException, InterruptedException {
+        if (closed) {
+            throw new SocketException("Connection is closed!");
+        }
+        inFlight.acquire();
+        int requestId = requestIds.incrementAndGet();
+        pending.put(requestId, name);
+        //connection may be lost between the check and the put
+        if (closed) {
+            acknowledge(requestId);
+            throw new SocketException("Connection is closed!");
+        }
+        try {
+            synchronized (output) {
+                NetworkUtils.writeBinaryToStream(output, requestId, message, image);
+            }
+        } catch (IOException e) {
+            acknowledge(requestId);
+            closeConnection();
+            throw e;
+        }
+    }
+
+    /**
+     * Read all results until the connection is closed
+     * @param input Socket input
+     */
+    private void readResults(InputStream input) {
+        try {
+            while (true) {
+                BinaryFrame frame = NetworkUtils.readBinaryFromStream(input);
+                String name = pending.get(frame.getRequestId());
+                if (name == null) {
+                    logger.warn("readResults: no picture for request " + frame.getRequestId());
+                } else if (frame.isErrorMessage()) {
+                    errors.put(name, MessageError.getException(frame));
+                } else {
+                    MultiServerMessageIndexResults results = new MultiServerMessageIndexResults(frame);
+                    for (Map<Long, CBIRException> pictures : results.getAllPictures().values()) {
+                        for (Map.Entry<Long, CBIRException> picture : pictures.entrySet()) {
+                            if (picture.getValue().isNotAnException()) {
+                                indexed.add(picture.getKey());
+                            } else {
+                                errors.put(name, picture.getValue());
+                            }
+                        }
+                    }
+                }
+                //results are saved before close() can see the picture acknowledged
+                acknowledge(frame.getRequestId());
+            }
+        } catch (Exception e) {
+            if (!closed) {
+                logger.warn("readResults: connection lost " + e);
+            }
+        } finally {
+            closeConnection();
+            //pictures not acknowledged are lost
+            for (Integer requestId : new ArrayList<Integer>(pending.keySet())) {
+                String name = acknowledge(requestId);
+                if (name != null) {
+                    errors.put(name, new CBIRException("Connection is closed!"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget a picture sent and let a new picture be sent
+     * @param requestId Request id of the picture
+     * @return Picture name (null if picture is already acknowledged)
+     */
+    private String acknowledge(int requestId) {
+        String name = pending.remove(requestId);
+        if (name != null) {
+            inFlight.release();
+        }
+        return name;
+    }
+
+    /**
+     * Wait for the results of all pictures sent, then close the connection
+     * @throws InterruptedException Interrupted during wait
+     */
+    public void close() throws InterruptedException {
+        inFlight.acquire(window);
+        inFlight.release(window);
+        closeConnection();
+    }
+
+    private void closeConnection() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.warn("close: " + e);
+        }
+    }
+
+    /**
+     * Get the number of pictures sent and not acknowledged
+     * @return Number of pictures
+     */
+    public int getInFlight() {
+        return pending.size();
+    }
+
+    /**
+     * Get the id of pictures indexed (or added in queue if async)
+     * @return Ids of acknowledged pictures
+     */
+    public List<Long> getIndexed() {
+        synchronized (indexed) {
+            return new ArrayList<Long>(indexed);
+        }
+    }
+
+    /**
+     * Get the error of each picture which is not indexed
+     * @return Error for each picture name (file path)
+     */
+    public Map<String, CBIRException> getErrors() {
+        synchronized (errors) {
+            return new HashMap<String, CBIRException>(errors);
+        }
+    }
+}
@@ -19,11 +19,15 @@ import org.apache.log4j.Logger;
 import org.jdom.Document;
 import retrieval.dist.*;
 import retrieval.exception.CBIRException;
+import retrieval.storage.exception.NoValidPictureException;
+import retrieval.storage.exception.PictureNotFoundException;
 import retrieval.utils.NetworkUtils;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.Map.Entry;
 
@@ -49,6 +53,17 @@ public class RetrievalIndexerDistantStorage extends RetrievalIndexer {
      * RetrievalServer storage
      */        
     public String storage;
+
+    /**
+     * Use binary protocol to index pictures (XML if false)
+     */
+    private boolean binaryProtocol = false;
+
+    /**
+     * How a picture file is sent: pixels (default), encoded file or path on server
+     * (MultiServerMessageIndex.PICTURE_PIXELS, PICTURE_ENCODED or PICTURE_PATH)
+     */
+    private int pictureTransfer = MultiServerMessageIndex.PICTURE_PIXELS;
     
     /**
      * Logger
@@ -68,7 +83,48 @@ public class RetrievalIndexerDistantStorage extends RetrievalIndexer {
         this.host = host;
         this.port = port;
     }    
+
+    /**
+     * Build an indexer for a distant server
+     * @param host RetrievalServer host
+     * @param port RetrievalServer port
+     * @param storage Storage from server
+     * @param synchronous Async/Sync mode (only for index)
+     * @param binaryProtocol Use binary protocol to index pictures (XML if false)
+     */
+    public RetrievalIndexerDistantStorage(String host, int port, String storage, boolean synchronous, boolean binaryProtocol) {
+        this(host, port, storage, synchronous);
+        this.binaryProtocol = binaryProtocol;
+    }
     
+  /**
+     * This function insert a picture file on a CBIR storage.
+     * The file is sent as pixels, as its encoded bytes or as its path (see setPictureTransfer)
+     * @param file Local file to index
+     * @param id Resource id in server
+     * @param properties Properties to store for the image
+     * @return Image id
+     * @throws IOException Cannot make a correct connection with server
+     * @throws NotValidMessageXMLException Bad message format
+     * @throws NoValidPictureException Image cannot be read
+     * @throws CBIRException Error from server
+     */
+    @Override
+    public Long index(File file, Long id, Map<String,String> properties) throws IOException, NoValidPictureException, NotValidMessageXMLException, CBIRException {
+        if(pictureTransfer==MultiServerMessageIndex.PICTURE_ENCODED) {
+            byte[] encoded;
+            try {
+                encoded = Files.readAllBytes(file.toPath());
+            } catch(IOException e) {
+                throw new PictureNotFoundException("Cannot read: " + file.getAbsolutePath() + ": " + e.toString());
+            }
+            return indexEncodedToStorage(encoded, id, properties);
+        } else if(pictureTransfer==MultiServerMessageIndex.PICTURE_PATH) {
+            return indexPathToStorage(file.getAbsolutePath(), id, properties);
+        }
+        return super.index(file, id, properties);
+    }
+
   /**
      * This function insert a picture on a CBIR storage
      * @param image Image to index
@@ -80,27 +136,76 @@ public class RetrievalIndexerDistantStorage extends RetrievalIndexer {
      * @throws CBIRException Error from server
      */ 
     public Long indexToStorage(BufferedImage image, Long id, Map<String,String> properties) throws IOException, NotValidMessageXMLException, CBIRException {
+        return indexToStorage(new MultiServerMessageIndex(id,properties, storage,!isSynchronous()), image);
+    }
+
+  /**
+     * This function insert an encoded picture (JPEG, PNG,... file) on a CBIR storage.
+     * Picture is decoded by the server.
+     * @param encoded Bytes of picture file
+     * @param id Resource id in server
+     * @param properties Properties to store for the image
+     * @return Image id
+     * @throws CBIRException Error from server
+     */
+    public Long indexEncodedToStorage(byte[] encoded, Long id, Map<String,String> properties) throws CBIRException {
+        MultiServerMessageIndex message = new MultiServerMessageIndex(id,properties, storage,!isSynchronous());
+        message.setEncoded(encoded);
+        return indexToStorage(message, null);
+    }
+
+  /**
+     * This function insert a picture file read by the server on a CBIR storage.
+     * Path must be readable by the server (shared storage).
+     * @param path Picture path on server
+     * @param id Resource id in server
+     * @param properties Properties to store for the image
+     * @return Image id
+     * @throws CBIRException Error from server
+     */
+    public Long indexPathToStorage(String path, Long id, Map<String,String> properties) throws CBIRException {
+        MultiServerMessageIndex message = new MultiServerMessageIndex(id,properties, storage,!isSynchronous());
+        message.setPath(path);
+        return indexToStorage(message, null);
+    }
+
+    private Long indexToStorage(MultiServerMessageIndex message, BufferedImage image) throws CBIRException {
         
         try {
         Socket server = new Socket(host, port);     
         
-        MultiServerMessageIndex message = new MultiServerMessageIndex(id,properties, storage,!isSynchronous());
         logger.debug(message);
-        Document doc = message.toXML();
 
-        NetworkUtils.writeXmlToSocket(server, doc);
-        NetworkUtils.writeXmlToSocket(server, image);
-        
-        //read reponse
-        Document responsexml = NetworkUtils.readXmlFromSocket(server);
+        MultiServerMessageIndexResults msgIndex;
+        if(binaryProtocol) {
+            //message and picture in the same frame
+            NetworkUtils.writeBinaryToSocket(server, message, image);
+            BinaryFrame response = NetworkUtils.readBinaryFromSocket(server);
+            if (response.isErrorMessage()) {
+                throw MessageError.getException(response);
+            }
+            msgIndex = new MultiServerMessageIndexResults(response);
+        } else {
+            Document doc = message.toXML();
 
-        //check if error message, if true, throw exception
-        if (MessageError.isErrorMessage(responsexml)) {
-            throw MessageError.getException(responsexml);
-        }
+            NetworkUtils.writeXmlToSocket(server, doc);
+            if(message.getPictureTransfer()==MultiServerMessageIndex.PICTURE_PIXELS) {
+                NetworkUtils.writeXmlToSocket(server, image);
+            } else if(message.getPictureTransfer()==MultiServerMessageIndex.PICTURE_ENCODED) {
+                NetworkUtils.writeBytesToSocket(server, message.getEncoded());
+            }
+
+            //read reponse
+            Document responsexml = NetworkUtils.readXmlFromSocket(server);
+
+            //check if error message, if true, throw exception
+            if (MessageError.isErrorMessage(responsexml)) {
+                throw MessageError.getException(responsexml);
+            }
 
-        //create result message and return pictures lists
-        MultiServerMessageIndexResults msgIndex = new MultiServerMessageIndexResults(responsexml);
+            //create result message and return pictures lists
+            msgIndex = new MultiServerMessageIndexResults(responsexml);
+        }
         TreeMap<Long, CBIRException> map = msgIndex.getAllPicturesFlat();
         
         Long returnId = null;
@@ -126,6 +231,32 @@ public class RetrievalIndexerDistantStorage extends RetrievalIndexer {
             throw new CBIRException(e.toString());
         }
     }    
+
+    /**
+     * Open a stream to index many pictures on a single connection.
+     * Pictures are sent without waiting for the results of previous pictures.
+     * Stream uses the storage, the sync/async mode and the picture transfer of this indexer.
+     * @param window Max number of pictures sent and not acknowledged
+     * @return Stream (must be closed to wait for all results)
+     * @throws IOException Cannot connect to server
+     */
+    public IndexStream openStream(int window) throws IOException {
+        return new IndexStream(host, port, storage, isSynchronous(), pictureTransfer, window);
+    }
+
+    /**
+     * @return how a picture file is sent (MultiServerMessageIndex.PICTURE_PIXELS, PICTURE_ENCODED or PICTURE_PATH)
+     */
+    public int getPictureTransfer() {
+        return pictureTransfer;
+    }
+
+    /**
+     * @param pictureTransfer how a picture file is sent (MultiServerMessageIndex.PICTURE_PIXELS, PICTURE_ENCODED or PICTURE_PATH)
+     */
+    public void setPictureTransfer(int pictureTransfer) {
+        this.pictureTransfer = pictureTransfer;
+    }
     
      /**
      * This function delete a list of images on a storage. 
@@ -17,12 +17,16 @@ package retrieval.indexer.main;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
-import retrieval.indexer.RetrievalIndexer;
+import retrieval.dist.MultiServerMessageIndex;
+import retrieval.exception.CBIRException;
+import retrieval.indexer.IndexStream;
 import retrieval.indexer.RetrievalIndexerDistantStorage;
 import retrieval.server.RetrievalServer;
+import retrieval.storage.exception.PictureNotFoundException;
 
 import java.io.File;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -37,12 +41,14 @@ public class RetrievalIndexerMain {
      * Main methode for indexer
      * Param0: Server host
      * param1: Server port
-     * Param2: Picture URI
+     * Param2: Picture URI (a directory: all its pictures are sent on a single connection)
      * Param3: (Optional) 'async' or 'sync' string
      * Param4: (Optional) Storage name 
      * Param5: (Optional) Picture id
      * Param6: (Optional) Picture properties keys (comma sep) (e.g. id,name,date)
      * Param7: (Optional) Picture properties values (comma sep) (e.g. 123,test,2014/10/31)
+     * Param8: (Optional) Local file transfer: 'pixels' (default), 'encoded' (file bytes) or 'path' (file read by server, must be in its INDEXPICTUREROOT)
+     * Param9: (Optional) Directory: max number of pictures sent and not acknowledged (default 64)
      * @param args Params arays
      */
     public static void main(String[] args) throws Exception {
@@ -94,7 +100,7 @@ public class RetrievalIndexerMain {
             throw new IllegalArgumentException("Storage name is not valid '"+storage+"'");
         }           
                 
-        RetrievalIndexer index = new RetrievalIndexerDistantStorage(host,port,storage,synchrone);
+        RetrievalIndexerDistantStorage index = new RetrievalIndexerDistantStorage(host,port,storage,synchrone);
         
         Long id = null;
         
@@ -126,8 +132,26 @@ public class RetrievalIndexerMain {
             
         }    
         
+        if(args.length>8) {
+            try {
+               index.setPictureTransfer(MultiServerMessageIndex.pictureTransfer(args[8].toUpperCase()));
+            } catch(Exception e) {
+                throw new IllegalArgumentException("Transfer param must be 'pixels', 'encoded' or 'path'");
+            }
+        }
+
         logger.info("INDEX Host:"+host + " Port:"+port + " Image:"+ picture + " Async:"+synchrone + " Storage: "+storage + " Id: " + id + " properties:"+properties);
-        if(new File(picture).exists()) {
+        if(new File(picture).isDirectory()) {
+            int window = 64;
+            if(args.length>9) {
+                try {
+                   window = Integer.parseInt(args[9]);
+                } catch(NumberFormatException e) {
+                    throw new IllegalArgumentException("Window must be a number! "+args[9]+ " is not valid!");
+                }
+            }
+            indexDirectory(index,new File(picture),properties,window);
+        } else if(new File(picture).exists()) {
             index.index(new File(picture),id,properties);
         } else if(picture.startsWith("http:") || picture.startsWith("https:")) {
             index.index(new URL(picture),id,properties);
@@ -137,4 +161,37 @@ public class RetrievalIndexerMain {
                    
     }
 
+
+    /**
+     * Index all pictures of a directory (picture id are generated by server)
+     * @param indexer Indexer
+     * @param directory Directory with pictures
+     * @param properties Properties to store for each picture
+     * @param window Max number of pictures sent and not acknowledged
+     */
+    private static void indexDirectory(RetrievalIndexerDistantStorage indexer, File directory, Map<String,String> properties, int window) throws Exception {
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        long start = System.currentTimeMillis();
+        IndexStream stream = indexer.openStream(window);
+        int sent = 0;
+        for(File file : files) {
+            if(!file.isFile()) {
+                continue;
+            }
+            try {
+                stream.index(file,null,properties);
+                sent++;
+            } catch(PictureNotFoundException e) {
+                logger.warn("Picture not sent: " + file + ": " + e.getMessage());
+            }
+        }
+        stream.close();
+        long time = Math.max(1, System.currentTimeMillis() - start);
+        for(Map.Entry<String,CBIRException> error : stream.getErrors().entrySet()) {
+            logger.warn("Picture not indexed: " + error.getKey() + ": " + error.getValue().getMessage());
+        }
+        logger.info("INDEX directory " + directory + ": " + sent + " sent, " + stream.getIndexed().size() + " indexed in " + time + " ms (" + (stream.getIndexed().size() * 1000 / time) + " pictures/s)");
+    }
+
 }
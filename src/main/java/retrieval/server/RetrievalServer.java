@@ -22,15 +22,23 @@ import retrieval.dist.RequestPictureVisualWord;
 import retrieval.exception.CBIRException;
 import retrieval.server.globaldatabase.GlobalDatabase;
 import retrieval.server.globaldatabase.MemoryDatabase;
+import retrieval.server.globaldatabase.MappedDatabase;
 import retrieval.server.globaldatabase.RedisDatabase;
 import retrieval.storage.Storage;
 import retrieval.storage.exception.InternalServerException;
+import retrieval.storage.exception.PictureNotFoundException;
 import retrieval.storage.index.ResultSim;
+import retrieval.storage.index.ValueStructure;
+import retrieval.storage.index.main.MappedHashTable;
+import retrieval.storage.index.main.RedisHashTable;
+import retrieval.storage.index.main.SegmentHashTable;
+import retrieval.testvector.TestVectorListServer;
 import retrieval.utils.CollectionUtils;
 import retrieval.utils.FileUtils;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
@@ -69,7 +77,7 @@ public final class RetrievalServer {
     /**
      * Socket interface to wait request (index, search, infos,...)
      */
-    private RetrievalServerSocketXML socketInterface;
+    private ServerNetworkInterface socketInterface;
     private WaitRequestThread threadRequest;
     
     /**
@@ -83,6 +91,11 @@ public final class RetrievalServer {
     private int currentStorageIndex;
     
     GlobalDatabase globalDatabase = null;
+
+    /**
+     * Scheduler for all search tasks (storage x test vector)
+     */
+    private SearchScheduler searchScheduler;
     
     private static Logger logger = Logger.getLogger(RetrievalServer.class);
 
@@ -131,14 +144,19 @@ public final class RetrievalServer {
                 clearIndexDirectory();
             }            
             
-            if(configMain.getStoreName().equals("MEMORY")) {
+            if(configMain.getStoreName().equals("MEMORY") || configMain.getStoreName().equals(SegmentHashTable.NAME)) {
                 logger.info("Init global memory database");
                globalDatabase = new MemoryDatabase(configServer);
             } else if(configMain.getStoreName().equals("REDIS")) {
                 logger.info("Init global redis database");
                 globalDatabase = new RedisDatabase(configServer);
+            } else if(configMain.getStoreName().equals(MappedHashTable.NAME)) {
+                logger.info("Init global mapped database");
+                globalDatabase = new MappedDatabase(configServer);
             }  else throw new CBIRException("Index name "+configMain.getStoreName() +" not supported!");
                        
+            searchScheduler = new SearchScheduler(configMain);
+
             logger.info("Read container...");
             List<String> containers;
             if(storageKeys!=null && !storageKeys.isEmpty()) {
@@ -182,6 +200,7 @@ public final class RetrievalServer {
         ConfigServer configLocalServer = configMain.clone();
         logger.info("Create storage " + key + " path:" + configLocalServer.getIndexPath());
         Storage storage = new Storage(key,configLocalServer,globalDatabase);
+        storage.setSearchScheduler(searchScheduler);
         storageMap.put(key, storage);
         getStorageList().add(storage);
         logger.info("Server list:"+getStorageList());
@@ -301,7 +320,11 @@ public final class RetrievalServer {
     public void loadWithSocket(int port) {
         try {
             this.port = port;
-            socketInterface = new RetrievalServerSocketXML(this, port);
+            if(configMain.getServerInterface().equals("NIO")) {
+                socketInterface = new RetrievalServerSocketNIO(this, port, configMain);
+            } else {
+                socketInterface = new RetrievalServerSocketXML(this, port, configMain.getServerThreads(), configMain.getServerReadTimeout(), configMain.getServerMaxPending());
+            }
             threadRequest = new WaitRequestThread(socketInterface);
             threadRequest.start();
 
@@ -326,6 +349,10 @@ public final class RetrievalServer {
      */
     public void stop() {
         logger.info("Stop all server");
+        //stop requests first (running requests may be drained), then storages
+        try {closeSocket();}catch(Exception e) {logger.error("Cannot close connection:"+e);}
+        try {threadRequest.stop();}catch(Exception e) {logger.error("Cannot close connection:"+e);}
+        try {socketInterface.close();}catch(Exception e) {logger.error("Cannot close connection:"+e);}
         for (int i = 0; i < getStorageList().size(); i++) {
             try {
                 getStorageList().get(i).stop();
@@ -334,9 +361,9 @@ public final class RetrievalServer {
             }
             logger.info("server " + i + " stoped...");
         }
-        try {closeSocket();}catch(Exception e) {logger.error("Cannot close connection:"+e);}
-        try {threadRequest.stop();}catch(Exception e) {logger.error("Cannot close connection:"+e);}
-        try {socketInterface.close();}catch(Exception e) {logger.error("Cannot close connection:"+e);}
+        if(searchScheduler!=null) {
+            searchScheduler.close();
+        }
         logger.info("All servers are closed!");
     }   
     
@@ -378,6 +405,34 @@ public final class RetrievalServer {
         Storage storage = getNextStorage();
         storage.indexPicture(picture,id,properties);
     }    
+
+    /**
+     * Check the path of a picture sent by a client (PATH index request):
+     * the picture must be in INDEXPICTUREROOT
+     * @param path Picture path (absolute or relative to the server directory)
+     * @return Canonical path of the picture
+     * @throws PictureNotFoundException Path requests are disabled or picture is out of INDEXPICTUREROOT
+     */
+    public String checkPicturePath(String path) throws PictureNotFoundException {
+        String root = configMain.getIndexPictureRoot();
+        if(root==null || root.trim().isEmpty()) {
+            throw new PictureNotFoundException("Index with a path is disabled on this server (INDEXPICTUREROOT)");
+        }
+        if(path==null) {
+            throw new PictureNotFoundException("No picture path");
+        }
+        try {
+            File rootDirectory = new File(root).getCanonicalFile();
+            File picture = new File(path).getCanonicalFile();
+            if(!picture.toPath().startsWith(rootDirectory.toPath())) {
+                logger.warn("checkPicturePath: " + path + " is out of " + rootDirectory);
+                throw new PictureNotFoundException("Cannot read: " + path + ": out of INDEXPICTUREROOT");
+            }
+            return picture.getPath();
+        } catch(IOException e) {
+            throw new PictureNotFoundException("Cannot read: " + path + ": " + e);
+        }
+    }
     
     /**
      * Delete all picture path from all server
@@ -418,7 +473,24 @@ public final class RetrievalServer {
         for (int i = 0; i < getStorageList().size(); i++) {
             getStorageList().get(i).printIndex();
         }
+        logger.info("Search scheduler: " + searchScheduler);
     }   
+
+    /**
+     * Get the scheduler for search tasks (metrics: queue size, active searches,...)
+     * @return Search scheduler
+     */
+    public SearchScheduler getSearchScheduler() {
+        return searchScheduler;
+    }
+
+    /**
+     * Get number of search tasks waiting for a thread
+     * @return Queue depth of search scheduler
+     */
+    public long getSearchQueueSize() {
+        return searchScheduler.getQueueSize();
+    }
     
     /**
      * Check if all queues are empty
@@ -453,8 +525,9 @@ public final class RetrievalServer {
      * @return All Visual words NBT for each servers
      * @throws Exception Error during search
      */
-    Map<String, List<ConcurrentHashMap<String, Long>>> getNBT(List<ConcurrentHashMap<String, Long>> visualWords, List<String> servers) throws Exception {
-        Map<String, List<ConcurrentHashMap<String, Long>>> allNBT = new TreeMap<String, List<ConcurrentHashMap<String, Long>>>();
+    Map<String, List<ConcurrentHashMap<Long, Long>>> getNBT(List<ConcurrentHashMap<Long, Long>> visualWords, List<String> servers) throws Exception {
+        //filled by one task for each storage
+        Map<String, List<ConcurrentHashMap<Long, Long>>> allNBT = Collections.synchronizedMap(new TreeMap<String, List<ConcurrentHashMap<Long, Long>>>());
 
         Map<String,Storage> serversInstance;
         if(!servers.isEmpty()) serversInstance = getStorageMapByName(servers);
@@ -463,27 +536,23 @@ public final class RetrievalServer {
         logger.debug("Servers available " + getStorageMap());
         Iterator<Entry<String, Storage>> it = serversInstance.entrySet().iterator();
 
-        NBTRequestThread[] threads = new NBTRequestThread[serversInstance.size()];
-        int i=0;
+        List<NBTRequestTask> tasks = new ArrayList<NBTRequestTask>(serversInstance.size());
         while (it.hasNext()) {
             Entry<String, Storage> entry = it.next();
             String idServer = entry.getKey();
             Storage server = entry.getValue();
             logger.debug("Search on container "+ idServer);
             logger.debug("Search on "+ idServer + " with size " + server.getNumberOfItem());
-            threads[i]=new NBTRequestThread(server,idServer,allNBT,visualWords);
-            threads[i].start();
-            i++;
-        }
-
-        for(i=0;i<threads.length;i++) {
-            threads[i].join();
+            tasks.add(new NBTRequestTask(server,idServer,allNBT,visualWords));
         }
+        searchScheduler.search(tasks);
         return allNBT;
     }
 
     /**
      * Thanks to visual words info from vw, retrieve all similar pictures from each servers (search part 2)
+     * With a Redis store, posting lists of all storages and test vectors are read
+     * in a single round-trip, then each storage computes its similarities locally.
      * @param vw Visual word info
      * @param Niq Number of patches produced on search picture
      * @param k Max number of similar pictures for each server
@@ -491,8 +560,9 @@ public final class RetrievalServer {
      * @return Similar pictures for each server (key=id server, value=server)
      * @throws Exception Error during search
      */
-    public Map<String, List<ResultSim>> getPicturesSimilarities(Map<String, List<ConcurrentHashMap<String, RequestPictureVisualWord>>> vw, int Niq, int k,List<String> servers) throws Exception {
-        Map<String, List<ResultSim>> allPictures = new TreeMap<String, List<ResultSim>>();
+    public Map<String, List<ResultSim>> getPicturesSimilarities(Map<String, List<ConcurrentHashMap<Long, RequestPictureVisualWord>>> vw, int Niq, int k,List<String> servers) throws Exception {
+        //filled by one task for each storage
+        Map<String, List<ResultSim>> allPictures = Collections.synchronizedMap(new TreeMap<String, List<ResultSim>>());
 
         Map<String,Storage> serversInstance;
         if(!servers.isEmpty()) {
@@ -501,95 +571,52 @@ public final class RetrievalServer {
         else {
             serversInstance = storageMap;
         }
+        Map<String,Map<String,Map<Long,ValueStructure>>> postings = null;
+        if(configMain.getStoreName().equals(RedisHashTable.NAME) && !serversInstance.isEmpty()) {
+            postings = getPostings(serversInstance, vw);
+        }
+
         Iterator<Entry<String, Storage>> it = serversInstance.entrySet().iterator();
 
-        SimRequestThread[] threads = new SimRequestThread[serversInstance.size()];
-        int i = 0;
+        List<SimRequestTask> tasks = new ArrayList<SimRequestTask>(serversInstance.size());
         while (it.hasNext()) {
             Entry<String, Storage> entry = it.next();
             String idServer = entry.getKey();
             Storage server = entry.getValue();
             logger.debug("Search on "+ idServer + " with size " + server.getNumberOfItem());
-            threads[i]=new SimRequestThread(server,idServer,vw,Niq,k,allPictures);
-            threads[i].start();
-            i++;
-        }
-
-        for(i=0;i<threads.length;i++) {
-            threads[i].join();
+            tasks.add(new SimRequestTask(server,idServer,vw,Niq,k,allPictures,postings != null ? postings.get(idServer) : null));
         }
+        searchScheduler.search(tasks);
         return allPictures;
     }
 
-//    public Map<String, List<ResultSim>> getPicturesSimilarities(Map<String, List<ConcurrentHashMap<String, RequestPictureVisualWord>>> vw, int Niq, int k,List<String> servers) throws Exception {
-//        Map<String, List<ResultSim>> allPictures = new TreeMap<String, List<ResultSim>>();
-//
-//        Map<String,Storage> serversInstance;
-//        if(!servers.isEmpty()) {
-//            serversInstance = getStorageMapByName(servers);
-//        }
-//        else {
-//            serversInstance = storageMap;
-//        }
-//
-//        List<ConcurrentHashMap<String, RequestPictureVisualWord>> vwByVT = vw.entrySet().iterator().next().getValue();
-//        String firstStorageName = serversInstance.keySet().iterator().next();
-//        Storage storage = serversInstance.get(firstStorageName);
-//        TestVectorListServer testVectorList = storage.getTestVectors();
-//
-//        Map<String,List<String>> mapTV = new TreeMap<String,List<String>>();
-//
-//
-//        for(int i=0 ; i<testVectorList.size() ; i++) {
-//            TestVectorServer tvs = testVectorList.get(i);
-//            List<String> keys = new ArrayList<>();
-//            ConcurrentHashMap<String, RequestPictureVisualWord> words = vwByVT.get(i);
-//            for(String word : words.keySet()) {
-//                keys.add(word);
-//            }
-//
-//            mapTV.put(tvs.getName(),keys);
-//        }
-//
-//        Map<String,Map<String,List<String>>> map = new TreeMap<String,Map<String,List<String>>>();
-//
-//        for(String storageName : serversInstance.keySet()) {
-//            map.put(storageName,mapTV);
-//        }
-//
-//
-//        Map<String,Map<String,Map<String,ValueStructure>>> vws = testVectorList.getAll(map);
-//
-//        for(String storageName : serversInstance.keySet()) {
-//            allPictures.put(storageName, storageMap.get(storageName).getPicturesSimilarities(vws.get(storageName),vw.get(storageName), Niq, k));
-//        }
-//        return allPictures;
-//
-//
-//
-//
-//
-////        Iterator<Entry<String, Storage>> it = serversInstance.entrySet().iterator();
-////
-////        SimRequestThread[] threads = new SimRequestThread[serversInstance.size()];
-////        int i = 0;
-////        while (it.hasNext()) {
-////            Entry<String, Storage> entry = it.next();
-////            String idServer = entry.getKey();
-////            Storage server = entry.getValue();
-////            logger.debug("Search on "+ idServer + " with size " + server.getNumberOfItem());
-////            threads[i]=new SimRequestThread(server,idServer,vw,Niq,k,allPictures);
-////            threads[i].start();
-////            i++;
-////        }
-////
-////        for(i=0;i<threads.length;i++) {
-////            threads[i].join();
-////        }
-////        return allPictures;
-//    }
-
-
+    /**
+     * Read posting lists of the visual words of vw for all storages and test vectors
+     * with a single request to the store
+     * @param serversInstance Storages of the search
+     * @param vw Visual word info for each storage
+     * @return For each storage, for each test vector name: visual words found and their posting list
+     */
+    private Map<String,Map<String,Map<Long,ValueStructure>>> getPostings(Map<String,Storage> serversInstance, Map<String, List<ConcurrentHashMap<Long, RequestPictureVisualWord>>> vw) {
+        Map<String,Map<String,List<Long>>> keysByStorage = new HashMap<String,Map<String,List<Long>>>();
+        TestVectorListServer testVectorList = null;
+        for(Entry<String, Storage> entry : serversInstance.entrySet()) {
+            List<ConcurrentHashMap<Long, RequestPictureVisualWord>> vwByTV = vw.get(entry.getKey());
+            if(vwByTV == null || entry.getValue().getNumberOfItem() < 1) {
+                continue;
+            }
+            testVectorList = entry.getValue().getTestVectors();
+            Map<String,List<Long>> keysByTV = new HashMap<String,List<Long>>();
+            for(int i=0;i<vwByTV.size() && i<testVectorList.size();i++) {
+                keysByTV.put(testVectorList.get(i).getName(), new ArrayList<Long>(vwByTV.get(i).keySet()));
+            }
+            keysByStorage.put(entry.getKey(), keysByTV);
+        }
+        if(testVectorList == null) {
+            return null;
+        }
+        return testVectorList.getAll(keysByStorage);
+    }
 
     /**
      * Get all pictures from a storage
@@ -638,16 +665,16 @@ public final class RetrievalServer {
     }
 }
 
-class NBTRequestThread extends Thread {
+class NBTRequestTask implements Runnable {
 
     private Storage server;
     private String idServer;
-    private Map<String, List<ConcurrentHashMap<String, Long>>> allNBT;
-    private List<ConcurrentHashMap<String, Long>> vw;
+    private Map<String, List<ConcurrentHashMap<Long, Long>>> allNBT;
+    private List<ConcurrentHashMap<Long, Long>> vw;
     
-    private static Logger logger = Logger.getLogger(NBTRequestThread.class);
+    private static Logger logger = Logger.getLogger(NBTRequestTask.class);
 
-    public NBTRequestThread(Storage server, String idServer, Map<String, List<ConcurrentHashMap<String, Long>>> allNBT,List<ConcurrentHashMap<String, Long>> vw) {
+    public NBTRequestTask(Storage server, String idServer, Map<String, List<ConcurrentHashMap<Long, Long>>> allNBT,List<ConcurrentHashMap<Long, Long>> vw) {
         this.server = server;
         this.idServer = idServer;
         this.allNBT = allNBT;
@@ -657,7 +684,7 @@ class NBTRequestThread extends Thread {
     @Override
     public void run() {
         try {
-        List<ConcurrentHashMap<String, Long>> nbtFromServer = server.getNBT(MultiServerMessageNBT.copyVWList(vw));
+        List<ConcurrentHashMap<Long, Long>> nbtFromServer = server.getNBT(MultiServerMessageNBT.copyVWList(vw));
         allNBT.put(idServer, nbtFromServer);
         } catch(Exception e) {
             logger.error("ERROR:"+e);
@@ -665,30 +692,35 @@ class NBTRequestThread extends Thread {
     }
 }
 
-class SimRequestThread extends Thread {
+class SimRequestTask implements Runnable {
 
     private Storage server;
     private String idServer;
-    private Map<String, List<ConcurrentHashMap<String, RequestPictureVisualWord>>> vw;
+    private Map<String, List<ConcurrentHashMap<Long, RequestPictureVisualWord>>> vw;
     private int Niq;
     private int k;
     private Map<String, List<ResultSim>> allPictures;
+    /**
+     * Posting lists already read for each test vector (null: read by the storage)
+     */
+    private Map<String,Map<Long,ValueStructure>> postings;
 
-    private static Logger logger = Logger.getLogger(SimRequestThread.class);
+    private static Logger logger = Logger.getLogger(SimRequestTask.class);
 
-    public SimRequestThread(Storage server, String idServer, Map<String, List<ConcurrentHashMap<String, RequestPictureVisualWord>>> vw, int Niq, int k,Map<String, List<ResultSim>> allPictures) {
+    public SimRequestTask(Storage server, String idServer, Map<String, List<ConcurrentHashMap<Long, RequestPictureVisualWord>>> vw, int Niq, int k,Map<String, List<ResultSim>> allPictures,Map<String,Map<Long,ValueStructure>> postings) {
         this.server = server;
         this.idServer = idServer;
         this.vw = vw;
         this.Niq = Niq;
         this.k = k;
         this.allPictures=allPictures;
+        this.postings=postings;
     }
 
     @Override
     public void run() {
         try {
-            allPictures.put(idServer, server.getPicturesSimilarities(vw.get(idServer), Niq, k));
+            allPictures.put(idServer, server.getPicturesSimilarities(vw.get(idServer), postings, Niq, k));
         } catch(Exception e) {
             logger.error("ERROR:"+e);
         }
@@ -697,11 +729,11 @@ class SimRequestThread extends Thread {
 
 class WaitRequestThread extends Thread {
 
-    private RetrievalServerSocketXML server;
+    private ServerNetworkInterface server;
     
     private static Logger logger = Logger.getLogger(WaitRequestThread.class);
 
-    public WaitRequestThread(RetrievalServerSocketXML server) {
+    public WaitRequestThread(ServerNetworkInterface server) {
         this.server = server;
     }
 
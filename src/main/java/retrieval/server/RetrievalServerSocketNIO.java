@@ -0,0 +1,447 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.server;
+
+import org.apache.log4j.Logger;
+import retrieval.config.ConfigServer;
+import retrieval.storage.exception.InternalServerException;
+import retrieval.storage.exception.TooMuchSearchRequestException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server side Communication class between Client and server with a NIO selector.
+ * Messages are the same as RetrievalServerSocketXML (XML, binary or multiplexed).
+ * A connection takes no thread until its request is received: the selector waits for
+ * the first bytes, then the connection is carried by a bounded pool of workers.
+ * Open connections are limited (SERVERMAXCONNECTIONS): when the limit is reached,
+ * a new connection waits for a free slot (SERVERQUEUETIMEOUT) or is rejected (closed).
+ * A connection given to a worker waits for its request at most SERVERREADTIMEOUT.
+ * At most SERVERTHREADS + SERVERMAXPENDING frames of multiplexed connections are running
+ * or waiting for a worker, a new frame gets the too many requests error.
+ * An error on a connection (or on accept, ex: too many open files) only closes this
+ * connection (accept is retried later), the selector keeps running.
+ * When server stops, no connection is accepted and running requests may finish
+ * (SERVERDRAINTIMEOUT).
+ * @author Rollus Loic
+ */
+public class RetrievalServerSocketNIO implements ServerNetworkInterface, ConnectionManager {
+
+    /**
+     * Server which will carry request
+     */
+    private RetrievalServer server;
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    /**
+     * Worker threads which carry requests
+     */
+    private ExecutorService workers;
+    /**
+     * Max multiplexed requests waiting for a worker
+     */
+    private int maxPending;
+    /**
+     * Multiplexed requests running or waiting for a worker (SERVERTHREADS + SERVERMAXPENDING permits)
+     */
+    private Semaphore requests;
+    /**
+     * Max open connections
+     */
+    private int maxConnections;
+    /**
+     * Max wait of a new connection for a free slot (ms), 0 = reject
+     */
+    private int queueTimeout;
+    /**
+     * Max wait for running requests when server stops (ms)
+     */
+    private int drainTimeout;
+    /**
+     * Max wait (ms) for the data of a request on a connection given to a worker (0 = no limit)
+     */
+    private int readTimeout;
+    /**
+     * Wait (ms) before a new accept after an accept error
+     */
+    private static final int ACCEPT_RETRY = 1000;
+    /**
+     * Key of the server channel
+     */
+    private SelectionKey acceptKey;
+    /**
+     * Time of the next accept after an accept error (0 = accept is enabled)
+     */
+    private long acceptRetry = 0;
+    /**
+     * Open connections: wait for request, carried by a worker or multiplexed
+     */
+    private final AtomicInteger openConnections = new AtomicInteger();
+    /**
+     * Connections accepted when the limit was reached (only used by selector thread)
+     */
+    private final ArrayDeque<QueuedConnection> queue = new ArrayDeque<QueuedConnection>();
+    /**
+     * Multiplexed connections opened by clients
+     */
+    private final Set<MultiplexedConnection> multiplexedConnections = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed = false;
+    private final CountDownLatch selectorStopped = new CountDownLatch(1);
+    /**
+     * Logger
+     */
+    private static final Logger logger = Logger.getLogger(RetrievalServerSocketNIO.class);
+
+    /**
+     * Constructor for a central server vs server communication
+     * @param server Server which will carry request
+     * @param port Port for request
+     * @param config Server configuration (threads, connections limit, timeouts)
+     * @throws InternalServerException Exception during the opening of the port
+     */
+    public RetrievalServerSocketNIO(RetrievalServer server, int port, ConfigServer config)
+            throws InternalServerException {
+        logger.info("RetrievalServerSocketNIO: start on " + port + " with " + config.getServerThreads() + " workers"
+                + " and " + config.getServerMaxConnections() + " connections max");
+        this.server = server;
+        this.maxConnections = Math.max(1, config.getServerMaxConnections());
+        this.queueTimeout = config.getServerQueueTimeout();
+        this.drainTimeout = config.getServerDrainTimeout();
+        this.readTimeout = config.getServerReadTimeout();
+        this.maxPending = Math.max(1, config.getServerMaxPending());
+        this.requests = new Semaphore(Math.max(1, config.getServerThreads()) + maxPending);
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            logger.error(e);
+            try {selector.close();} catch(Exception ex){}
+            try {serverChannel.close();} catch(Exception ex){}
+            throw new InternalServerException(e.getMessage());
+        }
+        final String name = "request-" + port + "-";
+        workers = Executors.newFixedThreadPool(Math.max(1, config.getServerThreads()), new ThreadFactory() {
+            private final AtomicInteger number = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + number.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Wait for connections and requests until close
+     */
+    public void waitForRequest() {
+        try {
+            while (!closed) {
+                if (selector.selectedKeys().isEmpty()) {
+                    selector.select(nextDeadline());
+                } else {
+                    selector.selectNow();
+                }
+                List<SocketChannel> ready = new ArrayList<SocketChannel>();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            acceptConnections();
+                        } else if (key.isReadable()) {
+                            //request is received, connection is given to a worker
+                            key.cancel();
+                            ready.add((SocketChannel) key.channel());
+                        }
+                    } catch (Exception e) {
+                        //only this connection is closed
+                        logger.error("waitForRequest: " + e);
+                        if (key.channel() instanceof SocketChannel) {
+                            key.cancel();
+                            closeConnection(((SocketChannel) key.channel()).socket());
+                        }
+                    }
+                }
+                if (!ready.isEmpty()) {
+                    //deregister cancelled keys before blocking mode
+                    selector.selectNow();
+                    for (SocketChannel channel : ready) {
+                        dispatch(channel);
+                    }
+                }
+                admitQueuedConnections();
+                enableAccept();
+            }
+        } catch (Exception e) {
+            if (!closed) {
+                logger.fatal(e);
+            }
+        } finally {
+            //connections without request are closed
+            for (SelectionKey key : selector.keys()) {
+                if (key.channel() instanceof SocketChannel) {
+                    closeConnection(((SocketChannel) key.channel()).socket());
+                }
+            }
+            for (QueuedConnection connection : queue) {
+                reject(connection.channel);
+            }
+            queue.clear();
+            try {selector.close();} catch(Exception e){logger.warn("close: "+e);}
+            try {serverChannel.close();} catch(Exception e){logger.warn("close: "+e);}
+            selectorStopped.countDown();
+        }
+    }
+
+    /**
+     * Stop accepting connections, wait for running requests and close all connections
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {serverChannel.close();} catch(Exception e){logger.warn("close: "+e);}
+        selector.wakeup();
+        try {
+            if (!selectorStopped.await(5, TimeUnit.SECONDS)) {
+                //selector thread not started
+                try {selector.close();} catch(Exception e){logger.warn("close: "+e);}
+            }
+            workers.shutdown();
+            if (!workers.awaitTermination(drainTimeout, TimeUnit.MILLISECONDS)) {
+                logger.warn("close: requests still running after " + drainTimeout + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdownNow();
+        for (MultiplexedConnection connection : new ArrayList<MultiplexedConnection>(multiplexedConnections)) {
+            connection.close();
+        }
+        logger.info("close: " + openConnections.get() + " connections still open");
+    }
+
+    /**
+     * Get the number of open connections
+     * @return Open connections
+     */
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    public void execute(final Runnable task) throws TooMuchSearchRequestException {
+        if (!requests.tryAcquire()) {
+            throw new TooMuchSearchRequestException("There are already " + maxPending + " requests waiting for a worker");
+        }
+        try {
+            workers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        requests.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            requests.release();
+            throw e;
+        }
+    }
+
+    public void openMultiplexedConnection(Socket client, InputStream input) throws IOException {
+        MultiplexedConnection connection = new MultiplexedConnection(server, this, client, input);
+        multiplexedConnections.add(connection);
+        connection.start();
+    }
+
+    public void removeConnection(MultiplexedConnection connection) {
+        if (multiplexedConnections.remove(connection)) {
+            releaseConnection();
+        }
+    }
+
+    private void acceptConnections() {
+        SocketChannel channel;
+        while ((channel = accept()) != null) {
+            if (openConnections.get() < maxConnections) {
+                register(channel);
+            } else if (queueTimeout > 0 && queue.size() < maxConnections) {
+                logger.debug("acceptConnections: connection queued");
+                queue.add(new QueuedConnection(channel, System.currentTimeMillis() + queueTimeout));
+            } else {
+                logger.warn("acceptConnections: too many connections, rejected");
+                reject(channel);
+            }
+        }
+    }
+
+    /**
+     * Accept a connection. After an error (ex: too many open files), accept is
+     * disabled during ACCEPT_RETRY, the selector keeps carrying other connections.
+     * @return New connection (null if no connection or error)
+     */
+    private SocketChannel accept() {
+        try {
+            return serverChannel.accept();
+        } catch (IOException e) {
+            logger.error("accept: " + e + ", next accept in " + ACCEPT_RETRY + " ms");
+            acceptKey.interestOps(0);
+            acceptRetry = System.currentTimeMillis() + ACCEPT_RETRY;
+            return null;
+        }
+    }
+
+    /**
+     * Accept connections again after an accept error
+     */
+    private void enableAccept() {
+        if (acceptRetry != 0 && acceptRetry <= System.currentTimeMillis()) {
+            acceptRetry = 0;
+            acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    /**
+     * Give a free slot to queued connections, reject connections after timeout
+     */
+    private void admitQueuedConnections() {
+        while (!queue.isEmpty() && openConnections.get() < maxConnections) {
+            register(queue.poll().channel);
+        }
+        long now = System.currentTimeMillis();
+        while (!queue.isEmpty() && queue.peek().deadline <= now) {
+            logger.warn("admitQueuedConnections: no free connection after " + queueTimeout + " ms, rejected");
+            reject(queue.poll().channel);
+        }
+    }
+
+    /**
+     * Max wait of selector (ms) before the timeout of the first queued connection
+     * or the next accept after an error
+     * @return Wait (0 = no limit)
+     */
+    private long nextDeadline() {
+        long deadline = acceptRetry;
+        if (!queue.isEmpty() && (deadline == 0 || queue.peek().deadline < deadline)) {
+            deadline = queue.peek().deadline;
+        }
+        if (deadline == 0) {
+            return 0;
+        }
+        return Math.max(1, deadline - System.currentTimeMillis());
+    }
+
+    private void register(SocketChannel channel) {
+        openConnections.incrementAndGet();
+        try {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            logger.error("register: " + e);
+            closeConnection(channel.socket());
+        }
+    }
+
+    private void dispatch(SocketChannel channel) {
+        final Socket client = channel.socket();
+        try {
+            channel.configureBlocking(true);
+            //a client which doesn't send all its request is disconnected
+            client.setSoTimeout(readTimeout);
+            workers.execute(new Runnable() {
+                public void run() {
+                    NewClientTask task = new NewClientTask(server, RetrievalServerSocketNIO.this, client);
+                    try {
+                        task.run();
+                    } finally {
+                        if (!task.isMultiplexed()) {
+                            closeConnection(client);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warn("dispatch: server is closed");
+            closeConnection(client);
+        } catch (IOException e) {
+            logger.error("dispatch: " + e);
+            closeConnection(client);
+        }
+    }
+
+    private void reject(SocketChannel channel) {
+        try {channel.close();} catch(Exception e){logger.warn("reject: "+e);}
+    }
+
+    private void closeConnection(Socket client) {
+        try {client.close();} catch(Exception e){logger.warn("close: "+e);}
+        releaseConnection();
+    }
+
+    private void releaseConnection() {
+        openConnections.decrementAndGet();
+        //a queued connection may take the free slot
+        if (queueTimeout > 0) {
+            selector.wakeup();
+        }
+    }
+}
+
+/**
+ * A connection which waits for a free slot
+ * @author Rollus Loic
+ */
+class QueuedConnection {
+
+    final SocketChannel channel;
+    final long deadline;
+
+    QueuedConnection(SocketChannel channel, long deadline) {
+        this.channel = channel;
+        this.deadline = deadline;
+    }
+}
@@ -20,30 +20,58 @@ import org.jdom.Document;
 import org.jdom.Element;
 import retrieval.dist.*;
 import retrieval.exception.CBIRException;
+import retrieval.storage.PictureInfo;
 import retrieval.storage.Storage;
 import retrieval.storage.exception.InternalServerException;
 import retrieval.storage.exception.NoException;
+import retrieval.storage.exception.PictureNotFoundException;
+import retrieval.storage.exception.TooMuchSearchRequestException;
 import retrieval.storage.exception.WrongNumberOfTestsVectorsException;
 import retrieval.storage.index.ResultSim;
 import retrieval.utils.NetworkUtils;
 
 import java.awt.image.BufferedImage;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Server side Communication class between Client and server
  * with XML message and TCP/IP Socket.
  * This include NBT and similarities exchange
+ * The first byte of a request choose the protocol: a XML message (java serialization)
+ * or a binary frame (NetworkUtils.PROTOCOL_BINARY) for search and index requests.
+ * A response is always in the protocol of the request.
+ * A connection has its own thread, which waits for its request at most SERVERREADTIMEOUT.
+ * A multiplexed connection (NetworkUtils.PROTOCOL_MULTIPLEXED) stays open:
+ * each frame is a request (SEARCH1, SEARCH2 or INDEXSTREAM) carried by a bounded pool
+ * of worker threads, the response has the request id of the frame.
+ * At most SERVERMAXPENDING frames wait for a worker, a new frame gets the
+ * too many requests error (so a fast client cannot fill the heap with frames).
+ * So slow or idle legacy connections never hold the workers of multiplexed requests.
  * @author Rollus Loic
  */
-public class RetrievalServerSocketXML implements ServerNetworkInterface {
+public class RetrievalServerSocketXML implements ServerNetworkInterface, ConnectionManager {
 
     
     /**
@@ -54,6 +82,34 @@ public class RetrievalServerSocketXML implements ServerNetworkInterface {
      * Socket for this server
      */
     private ServerSocket serverSocket = null;
+    /**
+     * Worker threads which carry multiplexed requests
+     */
+    private ExecutorService workers;
+    /**
+     * Max multiplexed requests waiting for a worker
+     */
+    private int maxPending;
+    /**
+     * Threads of connections (one for each connection, during its request)
+     */
+    private ExecutorService connectionThreads;
+    /**
+     * Max wait (ms) for the data of a request on a connection (0 = no limit)
+     */
+    private int readTimeout;
+    /**
+     * Multiplexed connections opened by clients
+     */
+    private Set<MultiplexedConnection> connections = ConcurrentHashMap.newKeySet();
+    /**
+     * Thread which accepts connections (in waitForRequest)
+     */
+    private volatile Thread acceptThread;
+    /**
+     * Max wait (ms) for the accept thread when the server is closed
+     */
+    private static final int ACCEPT_CLOSE_TIMEOUT = 5000;
     /**
      * Logger
      */
@@ -67,28 +123,100 @@ public class RetrievalServerSocketXML implements ServerNetworkInterface {
      */
     public RetrievalServerSocketXML(RetrievalServer server,int port)
             throws InternalServerException {
-        logger.info("MultiServerSocketXML: start on " + port);
+        this(server,port,32,60000,64);
+    }
+
+    /**
+     * Constructor for a central server vs server communication
+     * @param server Server which will carry request
+     * @param port Port for request
+     * @param threads Number of worker threads which carry multiplexed requests
+     * @param readTimeout Max wait (ms) for the data of a request on a connection (0 = no limit)
+     * @param maxPending Max multiplexed requests waiting for a worker
+     * @throws InternalServerException Exception during the start of the request thread
+     */
+    public RetrievalServerSocketXML(RetrievalServer server,int port,int threads,int readTimeout,int maxPending)
+            throws InternalServerException {
+        logger.info("MultiServerSocketXML: start on " + port + " with " + threads + " workers");
 
         this.server = server;
+        this.readTimeout = readTimeout;
+        this.maxPending = Math.max(1, maxPending);
         try {
             serverSocket = new ServerSocket(port);
         } catch (IOException e) {
             logger.error(e);
             throw new InternalServerException(e.getMessage());
         }
+        workers = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(this.maxPending), daemonThreads("request-" + port + "-"));
+        connectionThreads = Executors.newCachedThreadPool(daemonThreads("connection-" + port + "-"));
+    }
 
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger number = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + number.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
     }
 
     public void close()
     {
         try {serverSocket.close();} catch(Exception e){logger.warn("close: "+e);}
+        //socket is really closed (port released) when the thread blocked in accept leaves it
+        Thread thread = acceptThread;
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(ACCEPT_CLOSE_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        connectionThreads.shutdownNow();
+        workers.shutdownNow();
+        for(MultiplexedConnection connection : new ArrayList<MultiplexedConnection>(connections)) {
+            connection.close();
+        }
+    }
+
+    public void execute(Runnable task) throws TooMuchSearchRequestException {
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            if (workers.isShutdown()) {
+                throw e;
+            }
+            throw new TooMuchSearchRequestException("There are already " + maxPending + " requests waiting for a worker");
+        }
+    }
+
+    public void openMultiplexedConnection(Socket client, InputStream input) throws IOException {
+        MultiplexedConnection connection = new MultiplexedConnection(server, this, client, input);
+        connections.add(connection);
+        connection.start();
+    }
+
+    public void removeConnection(MultiplexedConnection connection) {
+        connections.remove(connection);
     }
 
     /**
      * Wait for a search request from central server
      */
     public void waitForRequest() {
+        acceptThread = Thread.currentThread();
+        try {
+            acceptRequests();
+        } finally {
+            acceptThread = null;
+        }
+    }
 
+    private void acceptRequests() {
         while (true) {
             Socket clientSocket = null;
             try {
@@ -101,8 +229,26 @@ public class RetrievalServerSocketXML implements ServerNetworkInterface {
 
                 logger.debug("waitForRequest: connexion on " + clientSocket.getInetAddress().getHostAddress());
 
-                NewClientThread ncw = new NewClientThread(server,clientSocket);
-                ncw.start();
+                try {
+                    //a client which doesn't send its request is disconnected
+                    clientSocket.setSoTimeout(readTimeout);
+                    final Socket client = clientSocket;
+                    connectionThreads.execute(new Runnable() {
+                        public void run() {
+                            NewClientTask task = new NewClientTask(server, RetrievalServerSocketXML.this, client);
+                            try {
+                                task.run();
+                            } finally {
+                                if (!task.isMultiplexed()) {
+                                    try {client.close();} catch(Exception e){logger.warn("close: "+e);}
+                                }
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    logger.warn("waitForRequest: server is closed");
+                    clientSocket.close();
+                }
 
             } catch (Exception e) {
                 logger.fatal(e);
@@ -112,10 +258,42 @@ public class RetrievalServerSocketXML implements ServerNetworkInterface {
 }
 
 /**
- * A thread which will carry A single request from central server
+ * Socket interface which carries the requests of its connections
+ * (RetrievalServerSocketXML or RetrievalServerSocketNIO)
+ * @author Rollus Loic
+ */
+interface ConnectionManager {
+
+    /**
+     * Carry a request with a worker thread
+     * @param task Request
+     * @throws TooMuchSearchRequestException Too many requests are waiting for a worker (SERVERMAXPENDING)
+     * @throws RejectedExecutionException Server is closed
+     */
+    void execute(Runnable task) throws TooMuchSearchRequestException;
+
+    /**
+     * Keep a client connection open for multiplexed requests.
+     * The connection has its own reader thread, requests are carried by workers.
+     * @param client Socket from client
+     * @param input Socket input (first byte not read)
+     * @throws IOException Error on socket
+     */
+    void openMultiplexedConnection(Socket client, InputStream input) throws IOException;
+
+    /**
+     * Forget a closed multiplexed connection
+     * @param connection Connection
+     */
+    void removeConnection(MultiplexedConnection connection);
+}
+
+/**
+ * A task which will carry A single request from central server
+ * (or which gives a multiplexed connection to its own reader)
  * @author Rollus Loic
  */
-class NewClientThread extends Thread {
+class NewClientTask implements Runnable {
 
     /**
      * Socket from client (central server)
@@ -125,21 +303,41 @@ class NewClientThread extends Thread {
      * Server which will carry the request
      */
     private RetrievalServer multiServer;
+    /**
+     * Socket interface which has accepted the client
+     */
+    private ConnectionManager socketInterface;
+    /**
+     * True if connection is now a multiplexed connection (kept open)
+     */
+    private boolean multiplexed = false;
+    /**
+     * True if client use the binary protocol
+     */
+    private boolean binary = false;
     /**
      * Logger
      */
-    private static Logger logger = Logger.getLogger(NewClientThread.class);
+    private static Logger logger = Logger.getLogger(NewClientTask.class);
 
     /**
-     * Constructor for a search thread
-     * @param server Server which will carry the request
+     * Constructor for a search task
+     * @param multiServer Server which will carry the request
+     * @param socketInterface Socket interface which has accepted the client
      * @param client Socket from client (central server)
-     * @param tg Thread Group which will be group of this thread
-     * @param maxK Max number of similar picture for a request
      */
-    NewClientThread(RetrievalServer multiServer, Socket client) {
+    NewClientTask(RetrievalServer multiServer, ConnectionManager socketInterface, Socket client) {
         this.client = client;
         this.multiServer = multiServer;
+        this.socketInterface = socketInterface;
+    }
+
+    /**
+     * Check if the connection has been given to a multiplexed connection reader
+     * @return True if connection is still open for multiplexed requests
+     */
+    boolean isMultiplexed() {
+        return multiplexed;
     }
 
     @Override public void run() {
@@ -147,16 +345,41 @@ class NewClientThread extends Thread {
         try {
 
             logger.debug("run: read message");
+            //first byte is the protocol version (XML message starts with java serialization header)
+            PushbackInputStream input = new PushbackInputStream(client.getInputStream());
+            int version = input.read();
+            if(version==-1) {
+                throw new IOException("Connection is closed!");
+            }
+            input.unread(version);
+            if(version==NetworkUtils.PROTOCOL_MULTIPLEXED) {
+                //a multiplexed connection may wait for requests without limit
+                client.setSoTimeout(0);
+                socketInterface.openMultiplexedConnection(client, input);
+                multiplexed = true;
+                return;
+            }
+            if(version==NetworkUtils.PROTOCOL_BINARY) {
+                binary = true;
+                takeBinaryRequest(input);
+                return;
+            }
             //receive message that ask NBT from server
-            Document requestXML = NetworkUtils.readXmlFromSocket(client);
+            Document requestXML = NetworkUtils.readXmlFromStream(input);
 
             logger.debug("run: requestXML message");
             if(requestXML.getRootElement().getAttributeValue("type").equals("SEARCH1")) {
-                takeSearchRequest(requestXML);
+                takeSearchRequest(new MultiServerMessageNBT(requestXML));
             }
             else if(requestXML.getRootElement().getAttributeValue("type").equals("INDEX")) {
-                BufferedImage image = NetworkUtils.readBufferedImageFromSocket(client);
-                takeIndexRequest(requestXML,image);
+                MultiServerMessageIndex msgIndex = new MultiServerMessageIndex(requestXML);
+                BufferedImage image = null;
+                if(msgIndex.getPictureTransfer()==MultiServerMessageIndex.PICTURE_PIXELS) {
+                    image = NetworkUtils.readBufferedImageFromSocket(client);
+                } else if(msgIndex.getPictureTransfer()==MultiServerMessageIndex.PICTURE_ENCODED) {
+                    msgIndex.setEncoded(NetworkUtils.readBytesFromSocket(client));
+                }
+                takeIndexRequest(msgIndex,image);
             }
             else if(requestXML.getRootElement().getAttributeValue("type").equals("DELETE")) {
                 takeDeleteRequest(requestXML);
@@ -177,33 +400,91 @@ class NewClientThread extends Thread {
         } catch (WrongNumberOfTestsVectorsException e) {
             logger.error(e);
             MessageError msg = new MessageError(e);
-            NetworkUtils.writeXmlToSocketWithoutException(client, msg.toXML());
+            writeErrorWithoutException(msg);
+        } catch (TooMuchSearchRequestException e) {
+            logger.warn(e);
+            MessageError msg = new MessageError(e);
+            writeErrorWithoutException(msg);
         } catch (NotValidMessageXMLException e) {
             logger.error("waitForRequest:NotValidMessageException" + e);
-            NetworkUtils.writeXmlToSocketWithoutException(client, new MessageError("9999", "Fatal error").toXML());
+            writeErrorWithoutException(new MessageError("9999", "Fatal error"));
         } catch (Exception e) {
             logger.error("waitForRequest:" + e);
             e.printStackTrace();
-            NetworkUtils.writeXmlToSocketWithoutException(client, new MessageError("9999", "Fatal error").toXML());
+            writeErrorWithoutException(new MessageError("9999", "Fatal error"));
+
+        }
+    }
+
+    /**
+     * Carry a request with the binary protocol (only search and index)
+     * @param input Socket input
+     */
+    private void takeBinaryRequest(InputStream input) throws Exception {
+        BinaryFrame frame = NetworkUtils.readBinaryFromStream(input);
+        if(frame.getType()==BinaryFrame.SEARCH1) {
+            takeSearchRequest(new MultiServerMessageNBT(frame));
+        }
+        else if(frame.getType()==BinaryFrame.INDEX) {
+            MultiServerMessageIndex msgIndex = new MultiServerMessageIndex(frame);
+            BufferedImage image = null;
+            if(msgIndex.getPictureTransfer()==MultiServerMessageIndex.PICTURE_PIXELS) {
+                image = BinaryFrame.readImage(frame.getInput());
+            }
+            takeIndexRequest(msgIndex,image);
+        }
+        else {
+            throw new NotValidMessageXMLException("Frame "+frame.getType()+ " not valid!");
+        }
+    }
+
+    /**
+     * Write a message to client in the protocol of its request
+     * @param msg Message
+     */
+    private <T extends Message & MessageBinary> void writeMessage(T msg) throws Exception {
+        if(binary) {
+            NetworkUtils.writeBinaryToSocket(client, msg);
+        } else {
+            NetworkUtils.writeXmlToSocket(client, msg.toXML());
+        }
+    }
 
+    /**
+     * Write an error message to client without exception throw
+     * @param msg Error message
+     */
+    private void writeErrorWithoutException(MessageError msg) {
+        if(binary) {
+            try {
+                NetworkUtils.writeBinaryToSocket(client, msg);
+            } catch (Exception e) {
+                logger.error(e.toString());
+            }
+        } else {
+            NetworkUtils.writeXmlToSocketWithoutException(client, msg.toXML());
         }
     }
 
-    private void takeSearchRequest(Document xml) throws NotValidMessageXMLException, IOException,WrongNumberOfTestsVectorsException, Exception {
+    private void takeSearchRequest(MultiServerMessageNBT msgAskNBT) throws NotValidMessageXMLException, IOException,WrongNumberOfTestsVectorsException, Exception {
             logger.debug("takeSearchRequest");
-            MultiServerMessageNBT msgAskNBT = new MultiServerMessageNBT(xml);
             
             logger.debug("run: get NBT");
             //search all NBT and fill this message
-            Map<String,List<ConcurrentHashMap<String, Long>>> visualWords  = multiServer.getNBT(msgAskNBT.getVisualWordsByTestVectorServer().get("#all#"),msgAskNBT.getContainers());
+            Map<String,List<ConcurrentHashMap<Long, Long>>> visualWords  = multiServer.getNBT(msgAskNBT.getVisualWordsByTestVectorServer().get("#all#"),msgAskNBT.getContainers());
             msgAskNBT.setVisualWordsByTestVectorServer(visualWords);
             logger.debug("run: write response NBT");
             //response to central server
-            NetworkUtils.writeXmlToSocket(client, msgAskNBT.toXML());
+            writeMessage(msgAskNBT);
             logger.debug("run: read similarities message");
             //read second message that ask similarities from central server
-            MultiServerMessageSimilarities msg2 = new MultiServerMessageSimilarities(NetworkUtils.readXmlFromSocket(client));
-            Map<String,List<ConcurrentHashMap<String, RequestPictureVisualWord>>> vw = msg2.getVisualWord();
+            MultiServerMessageSimilarities msg2;
+            if(binary) {
+                msg2 = new MultiServerMessageSimilarities(NetworkUtils.readBinaryFromSocket(client));
+            } else {
+                msg2 = new MultiServerMessageSimilarities(NetworkUtils.readXmlFromSocket(client));
+            }
+            Map<String,List<ConcurrentHashMap<Long, RequestPictureVisualWord>>> vw = msg2.getVisualWord();
             int Niq = msg2.getNiq();
             int k = msg2.getK();
             //send results messages
@@ -214,26 +495,34 @@ class NewClientThread extends Thread {
             //logger.debug("### Server size:"+serverSize);
             MultiServerMessageResults msg3 = new MultiServerMessageResults(results);
 //            logger.debug("### Server size:"+msg3.getNumberOfPicturesInIndex());
-            NetworkUtils.writeXmlToSocket(client, msg3.toXML());
+            writeMessage(msg3);
 
             client.close();
     }
 
 
-    private void takeIndexRequest(Document xml, BufferedImage image) throws NotValidMessageXMLException, IOException,WrongNumberOfTestsVectorsException, Exception {
+    private void takeIndexRequest(MultiServerMessageIndex msgIndex, BufferedImage image) throws NotValidMessageXMLException, IOException,WrongNumberOfTestsVectorsException, Exception {
         logger.debug("takeIndexRequest");
-        MultiServerMessageIndex msgIndex = new MultiServerMessageIndex(xml);
-        MultiServerMessageIndexResults msgResult;
+        writeMessage(indexPicture(multiServer,msgIndex,image));
+        client.close();
+    }
+
+    /**
+     * Index the picture of a request (in queue if request is async)
+     * @param multiServer Server which will carry the request
+     * @param msgIndex Index request
+     * @param image Picture (null if picture is encoded or a path)
+     * @return Results message
+     */
+    static MultiServerMessageIndexResults indexPicture(RetrievalServer multiServer, MultiServerMessageIndex msgIndex, BufferedImage image) throws Exception {
         if(msgIndex.async) {
-            msgResult = takeIndexAsynchroneRequest(msgIndex,image);
+            return takeIndexAsynchroneRequest(multiServer,msgIndex,image);
         } else {
-            msgResult = takeIndexSynchroneRequest(msgIndex,image);
+            return takeIndexSynchroneRequest(multiServer,msgIndex,image);
         }
-        NetworkUtils.writeXmlToSocket(client, msgResult.toXML());
-        client.close();
     }
     
-    private MultiServerMessageIndexResults takeIndexAsynchroneRequest(MultiServerMessageIndex msgIndex, BufferedImage image) throws Exception {
+    private static MultiServerMessageIndexResults takeIndexAsynchroneRequest(RetrievalServer multiServer, MultiServerMessageIndex msgIndex, BufferedImage image) throws Exception {
             logger.debug("index asyncrhone");
             //sort pictures by server key
             Long pictureId = msgIndex.getId();
@@ -258,7 +547,7 @@ class NewClientThread extends Thread {
             }            
 
             try {
-                pictureId = server.addToIndexQueue(image, pictureId, msgIndex.getProperties());
+                pictureId = server.addToIndexQueue(pictureInfo(multiServer, msgIndex, image));
                 serverResult.put(pictureId, new NoException());
             } catch(CBIRException e) {
                 serverResult.put(pictureId, e);
@@ -272,7 +561,25 @@ class NewClientThread extends Thread {
             return new MultiServerMessageIndexResults(allServerResult);        
     }
     
-    private MultiServerMessageIndexResults takeIndexSynchroneRequest(MultiServerMessageIndex msgIndex, BufferedImage image) throws Exception {
+    /**
+     * Build the picture to index from the request (pixels, encoded file or path)
+     * @param multiServer Server which will carry the request
+     * @param msgIndex Index request
+     * @param image Picture (null if picture is encoded or a path)
+     * @return Picture to index
+     * @throws PictureNotFoundException Path is not allowed (see RetrievalServer.checkPicturePath)
+     */
+    private static PictureInfo pictureInfo(RetrievalServer multiServer, MultiServerMessageIndex msgIndex, BufferedImage image) throws PictureNotFoundException {
+        String path = null;
+        if(msgIndex.getPictureTransfer()==MultiServerMessageIndex.PICTURE_PATH) {
+            path = multiServer.checkPicturePath(msgIndex.getPath());
+        }
+        PictureInfo picture = new PictureInfo(msgIndex.getEncoded(), path, msgIndex.getId(), msgIndex.getProperties());
+        picture.image = image;
+        return picture;
+    }
+
+    private static MultiServerMessageIndexResults takeIndexSynchroneRequest(RetrievalServer multiServer, MultiServerMessageIndex msgIndex, BufferedImage image) throws Exception {
             logger.debug("index synchrone");
             System.out.println("msgIndex.getStorage()="+msgIndex.getStorage());
             Storage server;
@@ -292,8 +599,13 @@ class NewClientThread extends Thread {
             Map<String,Map<Long, CBIRException>> mapResult = new TreeMap<String,Map<Long, CBIRException>>();
             Map<Long, CBIRException> map = new HashMap<Long, CBIRException>();            
             try {
-                Long id = server.indexPicture(image,msgIndex.getId(),msgIndex.getProperties());
-                map.put(id, new NoException());
+                if(image!=null) {
+                    Long id = server.indexPicture(image,msgIndex.getId(),msgIndex.getProperties());
+                    map.put(id, new NoException());
+                } else {
+                    //encoded picture (or path): decoded by the index extract threads
+                    map.putAll(server.indexPictures(Collections.singletonList(pictureInfo(multiServer, msgIndex, null))));
+                }
             } catch(CBIRException e) {
                 map.put(msgIndex.getId(), e);
             } 
@@ -332,3 +644,146 @@ class NewClientThread extends Thread {
     }     
 }
 
+
+/**
+ * A persistent connection with several requests at the same time.
+ * This thread only reads frames, each frame is carried by a worker
+ * and responses are written with the request id of the frame.
+ * @author Rollus Loic
+ */
+class MultiplexedConnection extends Thread {
+
+    /**
+     * Socket from client (central server)
+     */
+    private Socket client;
+    private InputStream input;
+    private OutputStream output;
+    /**
+     * Server which will carry requests
+     */
+    private RetrievalServer multiServer;
+    private ConnectionManager socketInterface;
+    /**
+     * Logger
+     */
+    private static Logger logger = Logger.getLogger(MultiplexedConnection.class);
+
+    MultiplexedConnection(RetrievalServer multiServer, ConnectionManager socketInterface, Socket client, InputStream input) throws IOException {
+        super("multiplexed-" + client.getRemoteSocketAddress());
+        setDaemon(true);
+        this.multiServer = multiServer;
+        this.socketInterface = socketInterface;
+        this.client = client;
+        this.input = input;
+        this.output = client.getOutputStream();
+    }
+
+    @Override public void run() {
+        try {
+            while(true) {
+                BinaryFrame frame = NetworkUtils.readBinaryFromStream(input);
+                try {
+                    socketInterface.execute(new MultiplexedRequestTask(multiServer, this, frame));
+                } catch (TooMuchSearchRequestException e) {
+                    //frame is dropped, the client may send it again later
+                    logger.warn(e);
+                    write(frame.getRequestId(), new MessageError(e));
+                } catch (RejectedExecutionException e) {
+                    //server is stopping: previous requests are still carried, connection is closed after them
+                    write(frame.getRequestId(), new MessageError("9999", "Server is closed"));
+                }
+            }
+        } catch (EOFException e) {
+            logger.debug("run: connection closed by client");
+        } catch (Exception e) {
+            if(!client.isClosed()) {
+                logger.error("run:" + e);
+            }
+        } finally {
+            close();
+            socketInterface.removeConnection(this);
+        }
+    }
+
+    /**
+     * Write the response of a request
+     * @param requestId Id of the request
+     * @param msg Response
+     * @throws IOException Error on socket
+     */
+    void write(int requestId, MessageBinary msg) throws IOException {
+        synchronized(output) {
+            NetworkUtils.writeBinaryToStream(output, requestId, msg);
+        }
+    }
+
+    void close() {
+        try {client.close();} catch(Exception e){logger.warn("close: "+e);}
+    }
+}
+
+/**
+ * A task which carry a single request (a frame) of a multiplexed connection.
+ * A request is stateless: SEARCH1 gives NBT, SEARCH2 gives similar pictures,
+ * INDEXSTREAM indexes a picture of a stream and gives its results.
+ * @author Rollus Loic
+ */
+class MultiplexedRequestTask implements Runnable {
+
+    private RetrievalServer multiServer;
+    private MultiplexedConnection connection;
+    private BinaryFrame frame;
+    /**
+     * Logger
+     */
+    private static Logger logger = Logger.getLogger(MultiplexedRequestTask.class);
+
+    MultiplexedRequestTask(RetrievalServer multiServer, MultiplexedConnection connection, BinaryFrame frame) {
+        this.multiServer = multiServer;
+        this.connection = connection;
+        this.frame = frame;
+    }
+
+    @Override public void run() {
+        MessageBinary response;
+        try {
+            if(frame.getType()==BinaryFrame.SEARCH1) {
+                MultiServerMessageNBT msgAskNBT = new MultiServerMessageNBT(frame);
+                Map<String,List<ConcurrentHashMap<Long, Long>>> visualWords  = multiServer.getNBT(msgAskNBT.getVisualWordsByTestVectorServer().get("#all#"),msgAskNBT.getContainers());
+                msgAskNBT.setVisualWordsByTestVectorServer(visualWords);
+                response = msgAskNBT;
+            }
+            else if(frame.getType()==BinaryFrame.SEARCH2) {
+                MultiServerMessageSimilarities msg2 = new MultiServerMessageSimilarities(frame);
+                Map<String,List<ResultSim>> results = multiServer.getPicturesSimilarities(msg2.getVisualWord(), msg2.getNiq(), msg2.getK(),msg2.getContainers());
+                response = new MultiServerMessageResults(results);
+            }
+            else if(frame.getType()==BinaryFrame.INDEXSTREAM) {
+                MultiServerMessageIndex msgIndex = new MultiServerMessageIndex(frame);
+                BufferedImage image = null;
+                if(msgIndex.getPictureTransfer()==MultiServerMessageIndex.PICTURE_PIXELS) {
+                    image = BinaryFrame.readImage(frame.getInput());
+                }
+                response = NewClientTask.indexPicture(multiServer, msgIndex, image);
+            }
+            else {
+                throw new NotValidMessageXMLException("Frame "+frame.getType()+ " not valid on a multiplexed connection!");
+            }
+        } catch (WrongNumberOfTestsVectorsException e) {
+            logger.error(e);
+            response = new MessageError(e);
+        } catch (TooMuchSearchRequestException e) {
+            logger.warn(e);
+            response = new MessageError(e);
+        } catch (Exception e) {
+            logger.error("run:" + e);
+            response = new MessageError("9999", "Fatal error");
+        }
+        try {
+            connection.write(frame.getRequestId(), response);
+        } catch (IOException e) {
+            logger.warn("run: response not written " + e);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.server;
+
+import org.apache.log4j.Logger;
+import retrieval.config.ConfigServer;
+import retrieval.storage.exception.TooMuchSearchRequestException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-wide scheduler for search tasks (storage x test vector).
+ * All tasks run on a bounded fork/join pool instead of a new thread
+ * for each storage and each test vector.
+ * A search takes a permit (SEARCHMAX), if there is no more permit
+ * the search is rejected with TooMuchSearchRequestException.
+ * @author Rollus Loic
+ */
+public class SearchScheduler {
+
+    /**
+     * Pool for storages that are not created by a retrieval server
+     */
+    private static SearchScheduler defaultScheduler;
+
+    private final ForkJoinPool pool;
+    private final Semaphore permits;
+    private final int searchMax;
+    private final AtomicLong rejected = new AtomicLong();
+
+    private static Logger logger = Logger.getLogger(SearchScheduler.class);
+
+    /**
+     * Create a scheduler from config (SEARCHTHREADS and SEARCHMAX)
+     * @param config Config object
+     */
+    public SearchScheduler(ConfigServer config) {
+        this(config.getSearchThreads(), config.getSearchMax());
+    }
+
+    /**
+     * Create a scheduler
+     * @param threads Number of threads (0 = number of processors)
+     * @param searchMax Max search at the same time
+     */
+    public SearchScheduler(int threads, int searchMax) {
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.searchMax = searchMax > 0 ? searchMax : Integer.MAX_VALUE;
+        logger.info("SearchScheduler: threads=" + threads + " searchMax=" + this.searchMax);
+        this.pool = new ForkJoinPool(threads);
+        this.permits = new Semaphore(this.searchMax);
+    }
+
+    /**
+     * Get the shared scheduler used when no server scheduler is set
+     * @return Default scheduler
+     */
+    public static synchronized SearchScheduler getDefault() {
+        if (defaultScheduler == null) {
+            defaultScheduler = new SearchScheduler(0, Integer.MAX_VALUE);
+        }
+        return defaultScheduler;
+    }
+
+    /**
+     * Run a search: take a permit and run all tasks on the pool
+     * @param tasks Tasks (one for each storage)
+     * @throws TooMuchSearchRequestException There are already SEARCHMAX searches
+     */
+    public void search(List<? extends Runnable> tasks) throws TooMuchSearchRequestException {
+        if (!permits.tryAcquire()) {
+            rejected.incrementAndGet();
+            throw new TooMuchSearchRequestException("There are already " + searchMax + " search requests");
+        }
+        try {
+            invokeAll(tasks);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Run all tasks on the pool and wait for them.
+     * Called from a task of this pool, subtasks are forked and the
+     * current thread helps to run them (no blocked thread).
+     * @param tasks Tasks
+     */
+    public void invokeAll(List<? extends Runnable> tasks) {
+        final List<ForkJoinTask<?>> forkJoinTasks = new ArrayList<ForkJoinTask<?>>(tasks.size());
+        for (int i = 0; i < tasks.size(); i++) {
+            forkJoinTasks.add(ForkJoinTask.adapt(tasks.get(i)));
+        }
+        if (ForkJoinTask.getPool() == pool) {
+            ForkJoinTask.invokeAll(forkJoinTasks);
+        } else {
+            pool.invoke(new ForkJoinTask<Void>() {
+                public Void getRawResult() {
+                    return null;
+                }
+
+                protected void setRawResult(Void value) {
+                }
+
+                protected boolean exec() {
+                    ForkJoinTask.invokeAll(forkJoinTasks);
+                    return true;
+                }
+            });
+        }
+    }
+
+    /**
+     * Get the number of searches running
+     * @return Active searches
+     */
+    public int getActiveSearches() {
+        return searchMax - permits.availablePermits();
+    }
+
+    /**
+     * Get the number of searches rejected because of SEARCHMAX
+     * @return Rejected searches since start
+     */
+    public long getRejectedSearches() {
+        return rejected.get();
+    }
+
+    /**
+     * Get the number of tasks waiting in the pool (queue depth)
+     * @return Queued tasks and submissions
+     */
+    public long getQueueSize() {
+        return pool.getQueuedTaskCount() + pool.getQueuedSubmissionCount();
+    }
+
+    /**
+     * Get the number of threads running a task
+     * @return Active threads
+     */
+    public int getActiveThreads() {
+        return pool.getActiveThreadCount();
+    }
+
+    /**
+     * Get the max number of threads
+     * @return Parallelism
+     */
+    public int getThreads() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Stop pool threads (running tasks are completed)
+     */
+    public void close() {
+        pool.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "threads=" + getThreads() + " activeThreads=" + getActiveThreads()
+                + " activeSearches=" + getActiveSearches() + " queue=" + getQueueSize()
+                + " rejected=" + getRejectedSearches();
+    }
+}
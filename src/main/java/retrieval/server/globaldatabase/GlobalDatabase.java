@@ -32,6 +32,7 @@ public interface GlobalDatabase {
     String KEY_COMPRESS_STORE = "COMPRESS";
     String KEY_STORAGE_STORE = "STORAGE";
     String KEY_PURGE_STORE = "PURGE";
+    String KEY_REVERSE_STORE = "REVERSE";
 
     Object getDatabase();
     
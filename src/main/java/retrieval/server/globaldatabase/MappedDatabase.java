@@ -0,0 +1,265 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.server.globaldatabase;
+
+import org.apache.log4j.Logger;
+import retrieval.config.ConfigServer;
+import retrieval.storage.exception.ReadIndexException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Database of the MAPPED store: each index is a MappedStore in INDEXPATH,
+ * named storage.kind (storage.testvector.kind for the index of a test vector).
+ * Stores are opened once and shared by the indexes of a storage.
+ * The list of storages is a text file (one storage by line).
+ * @author Rollus Loic
+ */
+public class MappedDatabase implements GlobalDatabase {
+
+    /**
+     * Visual words of a test vector (image id => number of patchs)
+     */
+    public static final String POSTINGS = "postings";
+    /**
+     * Visual words of each image for a test vector (purge)
+     */
+    public static final String REVERSE = "reverse";
+    /**
+     * Blacklisted visual words of a test vector
+     */
+    public static final String COMPRESS = "compress";
+    /**
+     * Properties of each image
+     */
+    public static final String PROPERTIES = "properties";
+    /**
+     * Number of patchs of each image
+     */
+    public static final String PATCHS = "patchs";
+    /**
+     * Images to purge
+     */
+    public static final String PURGE = "purge";
+    /**
+     * File with the list of storages
+     */
+    public static final String STORAGES = "storages.list";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static Logger logger = Logger.getLogger(MappedDatabase.class);
+
+    private File directory;
+    /**
+     * Chunk shift of the posting stores (other stores are small: 1 MB chunks)
+     */
+    private int postingsChunkShift;
+    private Map<String, MappedStore> stores;
+    private List<String> storages;
+
+    public MappedDatabase(ConfigServer config) throws ReadIndexException {
+        logger.info("MappedDatabase: start");
+        directory = new File(config.getIndexPath());
+        directory.mkdirs();
+        postingsChunkShift = 20 + Integer.numberOfTrailingZeros(Integer.highestOneBit(Math.max(1, config.getMappedChunk())));
+        stores = new HashMap<String, MappedStore>();
+        storages = new ArrayList<String>();
+        try {
+            File file = new File(directory, STORAGES);
+            if (file.exists()) {
+                for (String storage : Files.readAllLines(file.toPath(), UTF8)) {
+                    if (!storage.isEmpty()) {
+                        storages.add(storage);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new ReadIndexException("Cannot read storages: " + e);
+        }
+    }
+
+    /**
+     * Get the directory with the stores
+     * @return Index directory
+     */
+    public File getIndexDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get (open or create) the store of a storage
+     * @param idStorage Storage id
+     * @param kind Kind of store (PROPERTIES, PATCHS, PURGE)
+     * @return Store
+     * @throws IOException Error during open
+     */
+    public MappedStore getStore(String idStorage, String kind) throws IOException {
+        return getStore(idStorage + "." + kind, 20);
+    }
+
+    /**
+     * Get (open or create) the store of a test vector of a storage
+     * @param idStorage Storage id
+     * @param idTestVector Test vector id
+     * @param kind Kind of store (POSTINGS, REVERSE, COMPRESS)
+     * @return Store
+     * @throws IOException Error during open
+     */
+    public MappedStore getStore(String idStorage, String idTestVector, String kind) throws IOException {
+        return getStore(idStorage + "." + idTestVector + "." + kind, kind.equals(POSTINGS) ? postingsChunkShift : 20);
+    }
+
+    private synchronized MappedStore getStore(String name, int chunkShift) throws IOException {
+        MappedStore store = stores.get(name);
+        if (store == null) {
+            store = new MappedStore(new File(directory, name), chunkShift);
+            stores.put(name, store);
+        }
+        return store;
+    }
+
+    public Object getDatabase() {
+        return this;
+    }
+
+    public Object getDatabasePatchs() {
+        return this;
+    }
+
+    public Object getDatabaseProperties() {
+        return this;
+    }
+
+    public Object getDatabaseCompress() {
+        return this;
+    }
+
+    public Object getDatabaseStorage() {
+        return this;
+    }
+
+    public synchronized List<String> getStorages() {
+        logger.info("storages=" + storages);
+        return new ArrayList<String>(storages);
+    }
+
+    public synchronized void addStorage(String name) {
+        if (!storages.contains(name)) {
+            storages.add(name);
+            writeStorages();
+        }
+    }
+
+    /**
+     * Remove a storage from the list and delete its stores
+     * @param name Storage id
+     */
+    public synchronized void deleteStorage(String name) {
+        if (storages.remove(name)) {
+            writeStorages();
+        }
+        Iterator<String> it = stores.keySet().iterator();
+        while (it.hasNext()) {
+            if (isStoreOf(it.next(), name)) {
+                it.remove();
+            }
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String store = file.getName();
+                if (store.endsWith(MappedStore.DIRECTORY)) {
+                    store = store.substring(0, store.length() - MappedStore.DIRECTORY.length());
+                    if (isStoreOf(store, name)) {
+                        MappedStore.delete(new File(directory, store));
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isStoreOf(String store, String storage) {
+        if (!store.startsWith(storage + ".")) {
+            return false;
+        }
+        String kind = store.substring(storage.length() + 1);
+        return kind.equals(PROPERTIES) || kind.equals(PATCHS) || kind.equals(PURGE)
+                || kind.matches("[^.]+\\.(" + POSTINGS + "|" + REVERSE + "|" + COMPRESS + ")");
+    }
+
+    /**
+     * Write the list of storages in a new file which replaces the old one
+     */
+    private void writeStorages() {
+        try {
+            File file = new File(directory, STORAGES);
+            File temp = new File(directory, STORAGES + ".tmp");
+            Files.write(temp.toPath(), storages, UTF8);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("Cannot write storages: " + e);
+        }
+    }
+
+    public void putToPurge(String storage, Map<Long, Integer> toPurge) {
+        try {
+            MappedStore store = getStore(storage, PURGE);
+            for (Map.Entry<Long, Integer> entry : toPurge.entrySet()) {
+                store.put(entry.getKey(), ByteBuffer.allocate(4).putInt(entry.getValue()).array());
+            }
+            store.sync();
+        } catch (IOException e) {
+            logger.error("putToPurge: " + e);
+        }
+    }
+
+    public Map<Long, Integer> getPicturesToPurge(String storage) {
+        Map<Long, Integer> map = new HashMap<Long, Integer>();
+        try {
+            MappedStore store = getStore(storage, PURGE);
+            for (long id : store.keys()) {
+                byte[] value = store.get(id);
+                if (value != null) {
+                    map.put(id, ByteBuffer.wrap(value).getInt());
+                }
+            }
+        } catch (IOException e) {
+            logger.error("getPicturesToPurge: " + e);
+        }
+        return map;
+    }
+
+    public void clearPurge(String storage) {
+        try {
+            MappedStore store = getStore(storage, PURGE);
+            store.clear();
+            store.sync();
+        } catch (IOException e) {
+            logger.error("clearPurge: " + e);
+        }
+    }
+}
@@ -0,0 +1,615 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.server.globaldatabase;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Embedded key-value store in memory-mapped files (STORENAME=MAPPED).
+ * Keys are long, values are byte arrays. Files are read and written through the page cache:
+ * the store may be bigger than the heap, the OS keeps the pages which are used.
+ * -name.dir: hash directory (open addressing, linear probing), each slot is
+ * [key][offset of value][length][capacity], a slot is free if offset is 0
+ * -name.generation.data: values, mapped in chunks (a value is never split between chunks)
+ * A value is written in place if its capacity is big enough, else it is moved at the end
+ * with a doubled capacity (append is amortized O(1)). Space of moved values is reclaimed
+ * by sync() when it is more than half of the data file (new data generation).
+ * Readers run in parallel, a writer locks the store. Pages are written on disk by the OS,
+ * sync() forces them (SYNCAFTERIMAGE).
+ * @author Rollus Loic
+ */
+public class MappedStore {
+
+    /**
+     * Extension of a hash directory
+     */
+    public static final String DIRECTORY = ".dir";
+    /**
+     * Extension of a data file
+     */
+    public static final String DATA = ".data";
+
+    static final long MAGIC = 0x434249524d415031L;
+    static final int VERSION = 1;
+    /**
+     * Magic, version, chunk shift, capacity, size, data generation, end of data, garbage
+     */
+    static final int HEADER_SIZE = 64;
+    /**
+     * Key, offset, length, capacity
+     */
+    static final int SLOT_SIZE = 24;
+    private static final float LOAD_FACTOR = 0.5f;
+    /**
+     * Offset 0 means a free slot: first value is written after
+     */
+    private static final long FIRST_OFFSET = 8;
+
+    private static Logger logger = Logger.getLogger(MappedStore.class);
+
+    private final File file;
+    private final int chunkShift;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private MappedByteBuffer directory;
+    private int capacity;
+    private int size;
+    private long generation;
+    private long end;
+    private long garbage;
+    private final List<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+
+    /**
+     * Open (or create) a store
+     * @param file Path of the store without extension
+     * @param chunkShift Size of a data chunk (1 &lt;&lt; chunkShift), max size of a value
+     * @throws IOException Error during open
+     */
+    public MappedStore(File file, int chunkShift) throws IOException {
+        this.file = file;
+        File dir = getDirectoryFile();
+        if (dir.exists()) {
+            directory = map(dir, dir.length());
+            if (directory.getLong(0) != MAGIC || directory.getInt(8) != VERSION) {
+                throw new IOException(dir + " is not a store directory");
+            }
+            this.chunkShift = directory.getInt(12);
+            capacity = directory.getInt(16);
+            size = directory.getInt(20);
+            generation = directory.getLong(24);
+            end = directory.getLong(32);
+            garbage = directory.getLong(40);
+            long length = getDataFile(generation).length();
+            for (long position = 0; position < length; position = position + getChunkSize()) {
+                chunks.add(map(getDataFile(generation), position, getChunkSize()));
+            }
+        } else {
+            this.chunkShift = chunkShift;
+            generation = 0;
+            end = FIRST_OFFSET;
+            directory = createDirectory(dir, 16);
+            capacity = 16;
+            writeHeader();
+        }
+        deleteOtherGenerations();
+    }
+
+    /**
+     * Get a value
+     * @param key Key
+     * @return Value or null if key is not in store
+     */
+    public byte[] get(long key) {
+        return get(key, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get a part of a value
+     * @param key Key
+     * @param position First byte
+     * @param length Max number of bytes
+     * @return Bytes (less than length if value is smaller) or null if key is not in store
+     */
+    public byte[] get(long key, int position, int length) {
+        lock.readLock().lock();
+        try {
+            int slot = find(key);
+            if (slot < 0) {
+                return null;
+            }
+            int valueLength = directory.getInt(slotOffset(slot) + 16);
+            byte[] value = new byte[Math.max(0, Math.min(length, valueLength - position))];
+            read(directory.getLong(slotOffset(slot) + 8) + position, value);
+            return value;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Check if a key is in store
+     * @param key Key
+     * @return True if key has a value
+     */
+    public boolean contains(long key) {
+        lock.readLock().lock();
+        try {
+            return find(key) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Put a value (replace old one)
+     * @param key Key
+     * @param value Value
+     * @throws IOException Error during write
+     */
+    public void put(long key, byte[] value) throws IOException {
+        lock.writeLock().lock();
+        try {
+            int slot = find(key);
+            if (slot >= 0 && directory.getInt(slotOffset(slot) + 20) >= value.length) {
+                write(directory.getLong(slotOffset(slot) + 8), value, 0, value.length);
+                directory.putInt(slotOffset(slot) + 16, value.length);
+                return;
+            }
+            if (slot >= 0) {
+                garbage = garbage + directory.getInt(slotOffset(slot) + 20);
+            }
+            long offset = allocate(value.length);
+            write(offset, value, 0, value.length);
+            setSlot(key, slot, offset, value.length, value.length);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replace the first bytes of a value and append data at the end of the value
+     * (value is created if key is not in store)
+     * @param key Key
+     * @param head New first bytes of the value
+     * @param data Bytes to append
+     * @throws IOException Error during write
+     */
+    public void append(long key, byte[] head, byte[] data) throws IOException {
+        lock.writeLock().lock();
+        try {
+            int slot = find(key);
+            if (slot < 0) {
+                int length = head.length + data.length;
+                long offset = allocate(Math.max(length, 32));
+                write(offset, head, 0, head.length);
+                write(offset + head.length, data, 0, data.length);
+                setSlot(key, slot, offset, length, Math.max(length, 32));
+                return;
+            }
+            int position = slotOffset(slot);
+            long offset = directory.getLong(position + 8);
+            int length = directory.getInt(position + 16);
+            int valueCapacity = directory.getInt(position + 20);
+            //data is appended after the head if value is smaller than the head
+            int start = Math.max(length, head.length);
+            if (start + data.length > getChunkSize()) {
+                //checked before the move: value stays as it is
+                throw new IOException("Value of key " + key + " (" + (start + data.length) + " bytes) is bigger than a chunk of " + file.getName());
+            }
+            if (start + data.length > valueCapacity) {
+                //move value with a doubled capacity
+                int newCapacity = (int) Math.min(getChunkSize(), Math.max((long) valueCapacity * 2, start + data.length));
+                long newOffset = allocate(newCapacity);
+                byte[] old = new byte[length];
+                read(offset, old);
+                write(newOffset, old, 0, length);
+                garbage = garbage + valueCapacity;
+                offset = newOffset;
+                valueCapacity = newCapacity;
+            }
+            write(offset, head, 0, head.length);
+            write(offset + start, data, 0, data.length);
+            setSlot(key, slot, offset, start + data.length, valueCapacity);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove a key
+     * @param key Key
+     * @return True if key was in store
+     */
+    public boolean remove(long key) {
+        lock.writeLock().lock();
+        try {
+            int slot = find(key);
+            if (slot < 0) {
+                return false;
+            }
+            garbage = garbage + directory.getInt(slotOffset(slot) + 20);
+            shiftBack(slot);
+            size--;
+            writeHeader();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the number of keys
+     * @return Size
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get all keys
+     * @return Keys (no order)
+     */
+    public long[] keys() {
+        lock.readLock().lock();
+        try {
+            long[] keys = new long[size];
+            int n = 0;
+            for (int slot = 0; slot < capacity; slot++) {
+                if (directory.getLong(slotOffset(slot) + 8) != 0) {
+                    keys[n++] = directory.getLong(slotOffset(slot));
+                }
+            }
+            return keys;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Remove all keys
+     * @throws IOException Error during write
+     */
+    public void clear() throws IOException {
+        lock.writeLock().lock();
+        try {
+            File temp = new File(getDirectoryFile().getPath() + ".tmp");
+            directory = createDirectory(temp, 16);
+            capacity = 16;
+            size = 0;
+            chunks.clear();
+            generation++;
+            end = FIRST_OFFSET;
+            garbage = 0;
+            writeHeader();
+            directory.force();
+            Files.move(temp.toPath(), getDirectoryFile().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            deleteOtherGenerations();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reclaim space of moved or removed values (if it is more than half of data)
+     * and write pages on disk
+     * @throws IOException Error during write
+     */
+    public void sync() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (garbage > getChunkSize() && garbage * 2 > end) {
+                compact();
+            }
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+            directory.force();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the bytes used by values, the bytes of moved or removed values and the file size
+     * @return Used, garbage and data file size
+     */
+    public long[] getSpace() {
+        lock.readLock().lock();
+        try {
+            return new long[]{end - garbage, garbage, (long) chunks.size() * getChunkSize()};
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Delete files of a store
+     * @param file Path of the store without extension
+     */
+    public static void delete(File file) {
+        File[] files = file.getAbsoluteFile().getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File other : files) {
+            String name = other.getName();
+            if (name.startsWith(file.getName() + ".")) {
+                String extension = name.substring(file.getName().length());
+                if ((extension.equals(DIRECTORY) || extension.matches("\\.[0-9]+" + DATA.replace(".", "\\."))) && !other.delete()) {
+                    logger.error("Cannot delete " + other);
+                }
+            }
+        }
+    }
+
+    private long getChunkSize() {
+        return 1L << chunkShift;
+    }
+
+    private File getDirectoryFile() {
+        return new File(file.getPath() + DIRECTORY);
+    }
+
+    private File getDataFile(long generation) {
+        return new File(file.getPath() + "." + generation + DATA);
+    }
+
+    private void deleteOtherGenerations() {
+        File[] files = file.getAbsoluteFile().getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File other : files) {
+            String name = other.getName();
+            if (name.startsWith(file.getName() + ".") && name.endsWith(DATA)) {
+                String number = name.substring(file.getName().length() + 1, name.length() - DATA.length());
+                if (number.matches("[0-9]+") && Long.parseLong(number) != generation && !other.delete()) {
+                    logger.error("Cannot delete " + other);
+                }
+            }
+        }
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * Find the slot of a key
+     * @return Slot or (-(free slot) - 1)
+     */
+    private int find(long key) {
+        int mask = capacity - 1;
+        int slot = hash(key) & mask;
+        while (directory.getLong(slotOffset(slot) + 8) != 0) {
+            if (directory.getLong(slotOffset(slot)) == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -(slot + 1);
+    }
+
+    private void setSlot(long key, int slot, long offset, int length, int valueCapacity) throws IOException {
+        boolean added = slot < 0;
+        if (added) {
+            slot = -(slot + 1);
+            size++;
+        }
+        int position = slotOffset(slot);
+        directory.putLong(position, key);
+        directory.putLong(position + 8, offset);
+        directory.putInt(position + 16, length);
+        directory.putInt(position + 20, valueCapacity);
+        if (added && size > capacity * LOAD_FACTOR) {
+            resize(capacity << 1);
+        }
+        writeHeader();
+    }
+
+    /**
+     * Free a slot and move back the following keys of the cluster
+     */
+    private void shiftBack(int i) {
+        int mask = capacity - 1;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (directory.getLong(slotOffset(j) + 8) == 0) {
+                break;
+            }
+            int home = hash(directory.getLong(slotOffset(j))) & mask;
+            //move j in i if its home slot is not between i (excluded) and j (included)
+            if ((j > i && (home <= i || home > j)) || (j < i && (home <= i && home > j))) {
+                for (int k = 0; k < SLOT_SIZE; k = k + 8) {
+                    directory.putLong(slotOffset(i) + k, directory.getLong(slotOffset(j) + k));
+                }
+                i = j;
+            }
+        }
+        directory.putLong(slotOffset(i) + 8, 0);
+    }
+
+    /**
+     * Rehash directory in a new file which replaces the old one
+     */
+    private void resize(int newCapacity) throws IOException {
+        File temp = new File(getDirectoryFile().getPath() + ".tmp");
+        MappedByteBuffer resized = createDirectory(temp, newCapacity);
+        int mask = newCapacity - 1;
+        for (int slot = 0; slot < capacity; slot++) {
+            int position = slotOffset(slot);
+            if (directory.getLong(position + 8) != 0) {
+                int i = hash(directory.getLong(position)) & mask;
+                while (resized.getLong(slotOffset(i) + 8) != 0) {
+                    i = (i + 1) & mask;
+                }
+                for (int k = 0; k < SLOT_SIZE; k = k + 8) {
+                    resized.putLong(slotOffset(i) + k, directory.getLong(position + k));
+                }
+            }
+        }
+        directory = resized;
+        capacity = newCapacity;
+        writeHeader();
+        directory.force();
+        Files.move(temp.toPath(), getDirectoryFile().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Copy values in a new data generation (new directory file is the commit)
+     */
+    private void compact() throws IOException {
+        long start = System.currentTimeMillis();
+        long oldEnd = end;
+        List<MappedByteBuffer> oldChunks = new ArrayList<MappedByteBuffer>(chunks);
+        File temp = new File(getDirectoryFile().getPath() + ".tmp");
+        MappedByteBuffer compacted = createDirectory(temp, capacity);
+        chunks.clear();
+        generation++;
+        end = FIRST_OFFSET;
+        garbage = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int position = slotOffset(slot);
+            if (directory.getLong(position + 8) != 0) {
+                int length = directory.getInt(position + 16);
+                byte[] value = new byte[length];
+                read(oldChunks, directory.getLong(position + 8), value);
+                long offset = allocate(length);
+                write(offset, value, 0, length);
+                compacted.putLong(position, directory.getLong(position));
+                compacted.putLong(position + 8, offset);
+                compacted.putInt(position + 16, length);
+                compacted.putInt(position + 20, length);
+            }
+        }
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+        directory = compacted;
+        writeHeader();
+        directory.force();
+        Files.move(temp.toPath(), getDirectoryFile().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deleteOtherGenerations();
+        logger.info("compact " + file.getName() + ": " + oldEnd + " -> " + end + " bytes in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void writeHeader() {
+        directory.putLong(0, MAGIC);
+        directory.putInt(8, VERSION);
+        directory.putInt(12, chunkShift);
+        directory.putInt(16, capacity);
+        directory.putInt(20, size);
+        directory.putLong(24, generation);
+        directory.putLong(32, end);
+        directory.putLong(40, garbage);
+    }
+
+    /**
+     * Reserve space for a value at the end of data (next chunk if it does not fit in the last one)
+     */
+    private long allocate(int length) throws IOException {
+        if (length > getChunkSize()) {
+            throw new IOException("Value of " + length + " bytes is bigger than a chunk of " + file.getName());
+        }
+        long offset = end;
+        long last = offset + Math.max(length, 1) - 1;
+        if ((offset >> chunkShift) != (last >> chunkShift)) {
+            garbage = garbage + (((offset >> chunkShift) + 1) << chunkShift) - offset;
+            offset = ((offset >> chunkShift) + 1) << chunkShift;
+            last = offset + Math.max(length, 1) - 1;
+        }
+        while (chunks.size() <= (last >> chunkShift)) {
+            chunks.add(map(getDataFile(generation), (long) chunks.size() * getChunkSize(), getChunkSize()));
+        }
+        end = offset + length;
+        return offset;
+    }
+
+    private void read(long offset, byte[] value) {
+        read(chunks, offset, value);
+    }
+
+    private void read(List<MappedByteBuffer> chunks, long offset, byte[] value) {
+        ByteBuffer chunk = chunks.get((int) (offset >> chunkShift)).duplicate();
+        chunk.position((int) (offset & (getChunkSize() - 1)));
+        chunk.get(value);
+    }
+
+    private void write(long offset, byte[] value, int from, int length) {
+        ByteBuffer chunk = chunks.get((int) (offset >> chunkShift)).duplicate();
+        chunk.position((int) (offset & (getChunkSize() - 1)));
+        chunk.put(value, from, length);
+    }
+
+    private static MappedByteBuffer createDirectory(File file, int capacity) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.setLength(0);
+        } finally {
+            output.close();
+        }
+        return map(file, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+    }
+
+    private static MappedByteBuffer map(File file, long length) throws IOException {
+        return map(file, 0, length);
+    }
+
+    /**
+     * Map a part of a file (file is extended if needed, mapping stays valid once file is closed)
+     */
+    private static MappedByteBuffer map(File file, long position, long length) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            if (output.length() < position + length) {
+                output.setLength(position + length);
+            }
+            return output.getChannel().map(FileChannel.MapMode.READ_WRITE, position, length);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static int hash(long key) {
+        //mix bits: visual words and ids are often close to each other
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return file.getName() + " keys=" + size + " space=" + Arrays.toString(getSpace());
+    }
+}
@@ -20,12 +20,16 @@ import redis.clients.jedis.JedisPool;
 import retrieval.config.ConfigServer;
 import retrieval.storage.Storage;
 import retrieval.storage.exception.ReadIndexException;
-import retrieval.storage.index.ValueStructure;
+import retrieval.storage.index.main.SegmentHashTable;
+import retrieval.storage.index.main.VisualWordTable;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -34,28 +38,216 @@ import java.util.Map;
 public class MemoryDatabase implements GlobalDatabase{
     private static Logger logger = Logger.getLogger(Storage.class);
 
-    private Map<String,ValueStructure> database;
-    private Map<String,String> databasePatchs;
-    private Map<Long, Map<String,String>> databasePath;
-    private Map<String,Integer> databaseCompress;
+    private Map<String,VisualWordTable> database;
+    private Map<String,Map<Long,Integer>> databasePatchs;
+    private Map<String,Map<String,String>> databasePath;
+    private Map<String,Map<String,Integer>> databaseCompress;
     private Map<String,String> databaseStorage;
     private Map<String,Map<Long,Integer>> databasePurge;
+    private Map<String,ConcurrentHashMap<Long,long[]>> databaseReverse;
+    /**
+     * Directory with the snapshot of each storage
+     */
+    private String indexPath;
+    /**
+     * First log segment not in the snapshot of each storage
+     */
+    private Map<String,Long> snapshotLogs;
 
     
     public MemoryDatabase(ConfigServer config) throws ReadIndexException {
         logger.info("MemoryDatabase: start");
-        database = new HashMap<String,ValueStructure>();
-        databasePatchs = new HashMap<String,String>();
-        databasePath = new HashMap<Long, Map<String,String>>();
-        databaseCompress = new HashMap<String,Integer>();
+        database = new HashMap<String,VisualWordTable>();
+        databasePatchs = new HashMap<String,Map<Long,Integer>>();
+        databasePath = new ConcurrentHashMap<String, Map<String,String>>();
+        databaseCompress = new HashMap<String,Map<String,Integer>>();
         databaseStorage = new HashMap<String,String>(); 
         databasePurge = new HashMap<String,Map<Long,Integer>>(); 
+        databaseReverse = new HashMap<String,ConcurrentHashMap<Long,long[]>>();
+        indexPath = config.getIndexPath();
+        snapshotLogs = new ConcurrentHashMap<String,Long>();
+        if(config.getMemorySnapshot()>0) {
+            restore(config);
+        }
     }    
 
+    /**
+     * Read the snapshot of each storage in index path.
+     * A storage with only a log (no snapshot yet) is also restored (log is replayed by the storage).
+     * Sections of a snapshot (test vectors, properties,...) are read in parallel
+     * @param config Configuration object
+     * @throws ReadIndexException Error during a snapshot read
+     */
+    private void restore(ConfigServer config) throws ReadIndexException {
+        File[] files = new File(indexPath).listFiles();
+        if(files==null) {
+            return;
+        }
+        try {
+            for(File file : files) {
+                if(file.getName().endsWith(MemorySnapshot.EXTENSION)) {
+                    long start = System.currentTimeMillis();
+                    String storage = MemorySnapshot.read(file, this, config);
+                    addStorage(storage);
+                    logger.info("restore storage " + storage + " from " + file + " in " + (System.currentTimeMillis()-start) + " ms");
+                }
+            }
+            for(String storage : WriteAheadLog.getStorages(getIndexDirectory())) {
+                addStorage(storage);
+            }
+        } catch(Exception e) {
+            throw new ReadIndexException("Cannot read snapshot: " + e);
+        }
+    }
+
+    /**
+     * Get the directory with snapshots and logs
+     * @return Index directory
+     */
+    public File getIndexDirectory() {
+        return new File(indexPath);
+    }
+
+    /**
+     * Get the first log segment not in the snapshot of a storage
+     * @param idStorage Storage id
+     * @return Log segment (0 if no snapshot)
+     */
+    public long getSnapshotLog(String idStorage) {
+        Long log = snapshotLogs.get(idStorage);
+        return log == null ? 0 : log;
+    }
+
+    void setSnapshotLog(String idStorage, long log) {
+        snapshotLogs.put(idStorage, log);
+    }
+
+    /**
+     * Get the snapshot file of a storage
+     * @param idStorage Storage id
+     * @return Snapshot file (may not exist)
+     */
+    public File getSnapshotFile(String idStorage) {
+        return new File(indexPath, idStorage + MemorySnapshot.EXTENSION);
+    }
+
     public Object getDatabase() {
         logger.info("getDatabase on memory!");
         return database;
     }  
+
+    /**
+     * Get the visual word table of a test vector (create it if not exist)
+     * @param idStorage Storage id
+     * @param idTestVector Test vector id
+     * @return Visual word table for this test vector
+     */
+    public synchronized VisualWordTable getIndexTable(String idStorage, String idTestVector) {
+        String key = idStorage + "#" + idTestVector;
+        VisualWordTable table = database.get(key);
+        if(table==null) {
+            table = new VisualWordTable(1024);
+            database.put(key, table);
+        }
+        return table;
+    }
+
+    /**
+     * Get the reverse index of a test vector: visual words of each picture (create it if not exist)
+     * @param idStorage Storage id
+     * @param idTestVector Test vector id
+     * @return Visual words for each picture id
+     */
+    public synchronized ConcurrentHashMap<Long,long[]> getReverseTable(String idStorage, String idTestVector) {
+        String key = idStorage + "#" + idTestVector;
+        ConcurrentHashMap<Long,long[]> table = databaseReverse.get(key);
+        if(table==null) {
+            table = new ConcurrentHashMap<Long,long[]>();
+            databaseReverse.put(key, table);
+        }
+        return table;
+    }
+
+    /**
+     * Get the visual word tables of a storage
+     * @param idStorage Storage id
+     * @return Visual word table for each test vector id
+     */
+    synchronized Map<String,VisualWordTable> getIndexTables(String idStorage) {
+        return filter(database, idStorage);
+    }
+
+    /**
+     * Set the visual word table of a test vector (snapshot read)
+     * @param idStorage Storage id
+     * @param idTestVector Test vector id
+     * @param table Visual word table
+     */
+    synchronized void putIndexTable(String idStorage, String idTestVector, VisualWordTable table) {
+        database.put(idStorage + "#" + idTestVector, table);
+    }
+
+    /**
+     * Get the reverse index of a storage
+     * @param idStorage Storage id
+     * @return Reverse index for each test vector id
+     */
+    synchronized Map<String,ConcurrentHashMap<Long,long[]>> getReverseTables(String idStorage) {
+        return filter(databaseReverse, idStorage);
+    }
+
+    /**
+     * Get the number of patchs of each picture of a storage (create it if not exist)
+     * @param idStorage Storage id
+     * @return Number of patchs for each picture id
+     */
+    public synchronized Map<Long,Integer> getPatchsTable(String idStorage) {
+        Map<Long,Integer> table = databasePatchs.get(idStorage);
+        if(table==null) {
+            table = new ConcurrentHashMap<Long,Integer>();
+            databasePatchs.put(idStorage, table);
+        }
+        return table;
+    }
+
+    /**
+     * Get the blacklisted visual words of a test vector (create it if not exist)
+     * @param idStorage Storage id
+     * @param idTestVector Test vector id
+     * @return Blacklisted visual words (hexa)
+     */
+    public synchronized Map<String,Integer> getCompressTable(String idStorage, String idTestVector) {
+        String key = idStorage + "#" + idTestVector;
+        Map<String,Integer> table = databaseCompress.get(key);
+        if(table==null) {
+            table = new ConcurrentHashMap<String,Integer>();
+            databaseCompress.put(key, table);
+        }
+        return table;
+    }
+
+    /**
+     * Get the blacklisted visual words of a storage
+     * @param idStorage Storage id
+     * @return Blacklisted visual words for each test vector id
+     */
+    synchronized Map<String,Map<String,Integer>> getCompressTables(String idStorage) {
+        return filter(databaseCompress, idStorage);
+    }
+
+    /**
+     * Get the tables of a storage in a map with key "storage#testvector"
+     */
+    private static <T> Map<String,T> filter(Map<String,T> tables, String idStorage) {
+        Map<String,T> result = new HashMap<String,T>();
+        for(Map.Entry<String,T> entry : tables.entrySet()) {
+            if(entry.getKey().startsWith(idStorage + "#")) {
+                result.put(entry.getKey().substring(idStorage.length() + 1), entry.getValue());
+            }
+        }
+        return result;
+    }
+
     public Object getDatabasePatchs() {
         logger.info("getDatabase on memory!");
        return databasePatchs;
@@ -71,7 +263,7 @@ public class MemoryDatabase implements GlobalDatabase{
     
     public Object getDatabaseCompress() {
         logger.info("getDatabase on memory!");
-        return databaseStorage;
+        return databaseCompress;
     }
     
     public Object getDatabaseStorage() {
@@ -93,9 +285,31 @@ public class MemoryDatabase implements GlobalDatabase{
     
     public void deleteStorage(String name) {
         databaseStorage.remove(name);
+        synchronized(this) {
+            removeStorage(database, name);
+            removeStorage(databaseReverse, name);
+            removeStorage(databaseCompress, name);
+            databasePatchs.remove(name);
+        }
+        File snapshot = getSnapshotFile(name);
+        if(snapshot.exists() && !snapshot.delete()) {
+            logger.error("Cannot delete snapshot " + snapshot);
+        }
+        WriteAheadLog.delete(getIndexDirectory(), name, Long.MAX_VALUE);
+        SegmentHashTable.delete(getIndexDirectory(), name);
+        snapshotLogs.remove(name);
+    }
+
+    private static void removeStorage(Map<String,?> tables, String name) {
+        Iterator<String> it = tables.keySet().iterator();
+        while(it.hasNext()) {
+            if(it.next().startsWith(name + "#")) {
+                it.remove();
+            }
+        }
     }
 
-    public void putToPurge(String storage, Map<Long, Integer> toPurge) {
+    public synchronized void putToPurge(String storage, Map<Long, Integer> toPurge) {
         Map<Long,Integer> map = databasePurge.get(storage);
         if(map==null) {
             map = new HashMap<Long,Integer>();
@@ -104,7 +318,7 @@ public class MemoryDatabase implements GlobalDatabase{
         databasePurge.put(storage,map);
     }
 
-    public Map<Long, Integer> getPicturesToPurge(String storage) {
+    public synchronized Map<Long, Integer> getPicturesToPurge(String storage) {
         Map<Long,Integer> map = databasePurge.get(storage);
         if(map==null) {
             map = new HashMap<Long,Integer>();
@@ -112,7 +326,7 @@ public class MemoryDatabase implements GlobalDatabase{
         return map;
     }
 
-    public void clearPurge(String storage) {
+    public synchronized void clearPurge(String storage) {
         databasePurge.put(storage,new HashMap<Long,Integer>());        
     }
     
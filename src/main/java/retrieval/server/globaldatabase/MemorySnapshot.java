@@ -0,0 +1,678 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.server.globaldatabase;
+
+import org.apache.log4j.Logger;
+import retrieval.config.ConfigServer;
+import retrieval.storage.index.EntryCursor;
+import retrieval.storage.index.ValueStructure;
+import retrieval.storage.index.main.VisualWordTable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Binary snapshot of a storage in a memory database (STORENAME=MEMORY).
+ * Snapshot contains the posting lists, the reverse index and the blacklisted visual words
+ * of each test vector, the pictures properties, their number of patchs and the pictures to purge.
+ * Structures are cut in sections of SECTION_SIZE bytes:
+ * sections are encoded in parallel in memory (storage must not be modified during encode)
+ * and written on disk later without any lock. To read a snapshot, each section
+ * is mapped in memory and decoded in its own task.
+ * File: magic, version, header size, first log segment not in snapshot, storage,
+ * [type, key, records, offset, length] for each section, sections.
+ * Numbers are varint, pictures ids are zigzag delta with the previous id
+ * (posting lists are sorted with STRUCTYPE=2, so an id often takes 1 or 2 bytes).
+ * @author lrollus
+ */
+public class MemorySnapshot {
+
+    /**
+     * Extension of a snapshot file (file is storage id + extension)
+     */
+    public static final String EXTENSION = ".snapshot";
+
+    static final long MAGIC = 0x43424952534e4150L;
+    static final int VERSION = 2;
+    /**
+     * A new section is started when a section is bigger (bytes)
+     */
+    static final int SECTION_SIZE = 1 << 26;
+
+    static final byte POSTINGS = 1;
+    static final byte REVERSE = 2;
+    static final byte COMPRESS = 3;
+    static final byte PROPERTIES = 4;
+    static final byte PATCHS = 5;
+    static final byte PURGE = 6;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static Logger logger = Logger.getLogger(MemorySnapshot.class);
+
+    private String storage;
+    private List<Section> sections;
+    private long updates;
+    private long log;
+
+    private MemorySnapshot(String storage, List<Section> sections, long updates, long log) {
+        this.storage = storage;
+        this.sections = sections;
+        this.updates = updates;
+        this.log = log;
+    }
+
+    /**
+     * Get the storage id
+     * @return Storage
+     */
+    public String getStorage() {
+        return storage;
+    }
+
+    /**
+     * Get the number of modifications of the storage saved in this snapshot
+     * @return Updates
+     */
+    public long getUpdates() {
+        return updates;
+    }
+
+    /**
+     * Get the first log segment with modifications not in this snapshot
+     * @return Log segment
+     */
+    public long getLog() {
+        return log;
+    }
+
+    /**
+     * Get the size of all sections
+     * @return Size (bytes)
+     */
+    public long getSize() {
+        long size = 0;
+        for (Section section : sections) {
+            size = size + section.data.size;
+        }
+        return size;
+    }
+
+    /**
+     * Encode all structures of a storage in memory.
+     * Pictures must not be added, deleted or purged during the encode.
+     * @param database Memory database
+     * @param storage Storage id
+     * @param updates Number of modifications of the storage (see getUpdates)
+     * @param log First log segment with modifications not in snapshot (0 without log)
+     * @return Snapshot to write
+     * @throws IOException Error during encode
+     */
+    public static MemorySnapshot encode(final MemoryDatabase database, final String storage, long updates, long log) throws IOException {
+        List<Callable<List<Section>>> tasks = new ArrayList<Callable<List<Section>>>();
+        for (final Map.Entry<String, VisualWordTable> entry : database.getIndexTables(storage).entrySet()) {
+            tasks.add(new Callable<List<Section>>() {
+                public List<Section> call() {
+                    return encodePostings(entry.getKey(), entry.getValue());
+                }
+            });
+        }
+        for (final Map.Entry<String, ConcurrentHashMap<Long, long[]>> entry : database.getReverseTables(storage).entrySet()) {
+            tasks.add(new Callable<List<Section>>() {
+                public List<Section> call() {
+                    return encodeReverse(entry.getKey(), entry.getValue());
+                }
+            });
+        }
+        for (final Map.Entry<String, Map<String, Integer>> entry : database.getCompressTables(storage).entrySet()) {
+            tasks.add(new Callable<List<Section>>() {
+                public List<Section> call() {
+                    SectionList list = new SectionList(COMPRESS, entry.getKey());
+                    for (String visualWord : entry.getValue().keySet()) {
+                        list.next().data.writeString(visualWord);
+                    }
+                    return list.sections;
+                }
+            });
+        }
+        tasks.add(new Callable<List<Section>>() {
+            public List<Section> call() {
+                return encodeProperties(storage, (Map<String, Map<String, String>>) database.getDatabaseProperties());
+            }
+        });
+        tasks.add(new Callable<List<Section>>() {
+            public List<Section> call() {
+                return encodeIds(PATCHS, database.getPatchsTable(storage));
+            }
+        });
+        final Map<Long, Integer> purge;
+        synchronized (database) {
+            purge = new HashMap<Long, Integer>(database.getPicturesToPurge(storage));
+        }
+        tasks.add(new Callable<List<Section>>() {
+            public List<Section> call() {
+                return encodeIds(PURGE, purge);
+            }
+        });
+
+        List<Section> sections = new ArrayList<Section>();
+        for (List<Section> result : invokeAll(tasks)) {
+            sections.addAll(result);
+        }
+        return new MemorySnapshot(storage, sections, updates, log);
+    }
+
+    /**
+     * Write snapshot in file.
+     * Snapshot is written in a temp file which replaces file at the end (old snapshot is kept on error)
+     * @param file Snapshot file
+     * @throws IOException Error during write
+     */
+    public void write(File file) throws IOException {
+        Output header = new Output();
+        header.writeLong(MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(0);
+        header.writeLong(log);
+        header.writeString(storage);
+        header.writeVarint(sections.size());
+        int[] offsets = new int[sections.size()];
+        for (int i = 0; i < sections.size(); i++) {
+            Section section = sections.get(i);
+            header.writeByte(section.type);
+            header.writeString(section.key);
+            header.writeVarint(section.count);
+            offsets[i] = header.size;
+            header.writeLong(0);
+            header.writeLong(section.data.size);
+        }
+        header.setInt(12, header.size);
+        long offset = header.size;
+        for (int i = 0; i < sections.size(); i++) {
+            header.setLong(offsets[i], offset);
+            offset = offset + sections.get(i).data.size;
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(temp);
+        try {
+            FileChannel channel = output.getChannel();
+            header.writeTo(channel);
+            for (Section section : sections) {
+                section.data.writeTo(channel);
+            }
+            channel.force(true);
+        } finally {
+            output.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read a snapshot file in the memory database.
+     * Each section is mapped in memory and decoded in parallel.
+     * Log segments written since the snapshot must be replayed by the storage.
+     * @param file Snapshot file
+     * @param database Memory database
+     * @param config Configuration object (STRUCTYPE, MEMORYREVERSEINDEX)
+     * @return Storage id
+     * @throws IOException Error during read
+     */
+    public static String read(File file, final MemoryDatabase database, final ConfigServer config) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 16);
+            if (header.getLong() != MAGIC) {
+                throw new IOException(file + " is not a snapshot");
+            }
+            int version = header.getInt();
+            if (version != VERSION && version != 1) {
+                throw new IOException(file + ": snapshot version " + version + " is not supported");
+            }
+            header = channel.map(FileChannel.MapMode.READ_ONLY, 0, header.getInt());
+            header.position(16);
+            //version 1 has no log
+            long log = version == 1 ? 0 : header.getLong();
+            final String storage = readString(header);
+            database.setSnapshotLog(storage, log);
+            int size = (int) readVarint(header);
+
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            Map<String, Integer> words = new HashMap<String, Integer>();
+            final Map<String, VisualWordTable> tables = new HashMap<String, VisualWordTable>();
+            List<MappedSection> postings = new ArrayList<MappedSection>();
+            for (int i = 0; i < size; i++) {
+                final MappedSection section = new MappedSection();
+                section.type = header.get();
+                section.key = readString(header);
+                section.count = (int) readVarint(header);
+                long offset = header.getLong();
+                section.data = channel.map(FileChannel.MapMode.READ_ONLY, offset, header.getLong());
+                if (section.type == POSTINGS) {
+                    Integer count = words.get(section.key);
+                    words.put(section.key, (count == null ? 0 : count) + section.count);
+                    postings.add(section);
+                } else if (section.type != REVERSE || config.isMemoryReverseIndex()) {
+                    tasks.add(new Callable<Object>() {
+                        public Object call() {
+                            readSection(section, storage, database);
+                            return null;
+                        }
+                    });
+                }
+            }
+            //table size is known before reading, so it is never resized
+            for (Map.Entry<String, Integer> entry : words.entrySet()) {
+                VisualWordTable table = new VisualWordTable(entry.getValue());
+                database.putIndexTable(storage, entry.getKey(), table);
+                tables.put(entry.getKey(), table);
+            }
+            for (final MappedSection section : postings) {
+                tasks.add(new Callable<Object>() {
+                    public Object call() {
+                        readPostings(section, tables.get(section.key), config);
+                        return null;
+                    }
+                });
+            }
+            invokeAll(tasks);
+
+            if (config.isMemoryReverseIndex()) {
+                //snapshot written without reverse index
+                tasks.clear();
+                final Map<String, ConcurrentHashMap<Long, long[]>> reverse = database.getReverseTables(storage);
+                for (final Map.Entry<String, VisualWordTable> entry : tables.entrySet()) {
+                    if (!reverse.containsKey(entry.getKey())) {
+                        tasks.add(new Callable<Object>() {
+                            public Object call() {
+                                buildReverse(entry.getValue(), database.getReverseTable(storage, entry.getKey()));
+                                return null;
+                            }
+                        });
+                    }
+                }
+                if (!tasks.isEmpty()) {
+                    logger.info("build reverse index of " + tasks.size() + " test vectors");
+                    invokeAll(tasks);
+                }
+            }
+            return storage;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static List<Section> encodePostings(String testVector, VisualWordTable table) {
+        SectionList list = new SectionList(POSTINGS, testVector);
+        for (int i = 0; i < table.capacity(); i++) {
+            ValueStructure value = table.valueAt(i);
+            if (value == null || value.isEmpty()) {
+                continue;
+            }
+            Output output = list.next().data;
+            output.writeLong(table.keyAt(i));
+            output.writeVarint(value.getNBT());
+            output.writeVarint(value.size());
+            long last = 0;
+            EntryCursor cursor = value.cursor();
+            while (cursor.next()) {
+                output.writeZigZag(cursor.getI() - last);
+                output.writeVarint(cursor.getNIBT());
+                last = cursor.getI();
+            }
+        }
+        return list.sections;
+    }
+
+    private static List<Section> encodeReverse(String testVector, Map<Long, long[]> reverse) {
+        SectionList list = new SectionList(REVERSE, testVector);
+        for (Map.Entry<Long, long[]> entry : reverse.entrySet()) {
+            Section section = list.next();
+            section.data.writeZigZag(entry.getKey() - section.last);
+            section.last = entry.getKey();
+            //sorted: delta between two visual words is positive (unsigned)
+            long[] keys = entry.getValue().clone();
+            Arrays.sort(keys);
+            section.data.writeVarint(keys.length);
+            long last = 0;
+            for (long key : keys) {
+                section.data.writeVarint(key - last);
+                last = key;
+            }
+        }
+        return list.sections;
+    }
+
+    private static List<Section> encodeProperties(String storage, Map<String, Map<String, String>> properties) {
+        SectionList list = new SectionList(PROPERTIES, "");
+        String prefix = GlobalDatabase.KEY_PROPERTIES_STORE + "#" + storage + "#";
+        for (Map.Entry<String, Map<String, String>> entry : properties.entrySet()) {
+            if (!entry.getKey().startsWith(prefix) && !entry.getKey().equals("COUNT#" + storage)) {
+                continue;
+            }
+            Output output = list.next().data;
+            output.writeString(entry.getKey());
+            output.writeVarint(entry.getValue().size());
+            for (Map.Entry<String, String> property : entry.getValue().entrySet()) {
+                output.writeString(property.getKey());
+                output.writeString(property.getValue());
+            }
+        }
+        return list.sections;
+    }
+
+    private static List<Section> encodeIds(byte type, Map<Long, Integer> ids) {
+        SectionList list = new SectionList(type, "");
+        for (Map.Entry<Long, Integer> entry : ids.entrySet()) {
+            Section section = list.next();
+            section.data.writeZigZag(entry.getKey() - section.last);
+            section.data.writeZigZag(entry.getValue());
+            section.last = entry.getKey();
+        }
+        return list.sections;
+    }
+
+    private static void readPostings(MappedSection section, VisualWordTable table, ConfigServer config) {
+        ByteBuffer input = section.data;
+        long[] keys = new long[section.count];
+        ValueStructure[] values = new ValueStructure[section.count];
+        for (int i = 0; i < section.count; i++) {
+            keys[i] = input.getLong();
+            long nbt = readVarint(input);
+            int size = (int) readVarint(input);
+            ValueStructure value = new ValueStructure(config, size, nbt);
+            long last = 0;
+            for (int j = 0; j < size; j++) {
+                last = last + readZigZag(input);
+                value.addEntryWithoutNBT(last, (int) readVarint(input));
+            }
+            values[i] = value;
+        }
+        //a table has only one writer
+        synchronized (table) {
+            for (int i = 0; i < keys.length; i++) {
+                table.put(keys[i], values[i]);
+            }
+        }
+    }
+
+    private static void readSection(MappedSection section, String storage, MemoryDatabase database) {
+        ByteBuffer input = section.data;
+        long last = 0;
+        if (section.type == REVERSE) {
+            ConcurrentHashMap<Long, long[]> reverse = database.getReverseTable(storage, section.key);
+            for (int i = 0; i < section.count; i++) {
+                last = last + readZigZag(input);
+                long[] keys = new long[(int) readVarint(input)];
+                long key = 0;
+                for (int j = 0; j < keys.length; j++) {
+                    key = key + readVarint(input);
+                    keys[j] = key;
+                }
+                reverse.put(last, keys);
+            }
+        } else if (section.type == COMPRESS) {
+            Map<String, Integer> compress = database.getCompressTable(storage, section.key);
+            for (int i = 0; i < section.count; i++) {
+                compress.put(readString(input), 1);
+            }
+        } else if (section.type == PROPERTIES) {
+            Map<String, Map<String, String>> properties = (Map<String, Map<String, String>>) database.getDatabaseProperties();
+            for (int i = 0; i < section.count; i++) {
+                String key = readString(input);
+                int size = (int) readVarint(input);
+                Map<String, String> values = new HashMap<String, String>(size * 2);
+                for (int j = 0; j < size; j++) {
+                    values.put(readString(input), readString(input));
+                }
+                properties.put(key, values);
+            }
+        } else if (section.type == PATCHS || section.type == PURGE) {
+            Map<Long, Integer> ids = new HashMap<Long, Integer>(section.count * 2);
+            for (int i = 0; i < section.count; i++) {
+                last = last + readZigZag(input);
+                ids.put(last, (int) readZigZag(input));
+            }
+            if (section.type == PATCHS) {
+                database.getPatchsTable(storage).putAll(ids);
+            } else {
+                database.putToPurge(storage, ids);
+            }
+        } else {
+            logger.error("unknown section " + section.type + " in snapshot of " + storage);
+        }
+    }
+
+    /**
+     * Build the reverse index of a test vector with its posting lists
+     */
+    private static void buildReverse(VisualWordTable table, ConcurrentHashMap<Long, long[]> reverse) {
+        Map<Long, int[]> sizes = new HashMap<Long, int[]>();
+        for (int i = 0; i < table.capacity(); i++) {
+            ValueStructure value = table.valueAt(i);
+            if (value != null) {
+                EntryCursor cursor = value.cursor();
+                while (cursor.next()) {
+                    int[] size = sizes.get(cursor.getI());
+                    if (size == null) {
+                        size = new int[1];
+                        sizes.put(cursor.getI(), size);
+                    }
+                    size[0]++;
+                }
+            }
+        }
+        for (Map.Entry<Long, int[]> entry : sizes.entrySet()) {
+            reverse.put(entry.getKey(), new long[entry.getValue()[0]]);
+            entry.getValue()[0] = 0;
+        }
+        for (int i = 0; i < table.capacity(); i++) {
+            ValueStructure value = table.valueAt(i);
+            if (value != null) {
+                EntryCursor cursor = value.cursor();
+                while (cursor.next()) {
+                    int[] size = sizes.get(cursor.getI());
+                    reverse.get(cursor.getI())[size[0]++] = table.keyAt(i);
+                }
+            }
+        }
+    }
+
+    static <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(tasks.size(), Runtime.getRuntime().availableProcessors())));
+        try {
+            List<T> results = new ArrayList<T>(tasks.size());
+            for (Future<T> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    static long readVarint(ByteBuffer input) {
+        long result = 0;
+        for (int shift = 0; ; shift = shift + 7) {
+            byte b = input.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+    }
+
+    static long readZigZag(ByteBuffer input) {
+        long value = readVarint(input);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static String readString(ByteBuffer input) {
+        byte[] bytes = new byte[(int) readVarint(input)];
+        input.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Growable byte array
+     */
+    static final class Output {
+        byte[] buffer = new byte[4096];
+        int size;
+
+        private void ensure(int length) {
+            if (size + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, size + length));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buffer[size++] = (byte) b;
+        }
+
+        void writeInt(int value) {
+            ensure(4);
+            setInt(size, value);
+            size = size + 4;
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            setLong(size, value);
+            size = size + 8;
+        }
+
+        void setInt(int position, int value) {
+            for (int i = 0; i < 4; i++) {
+                buffer[position + i] = (byte) (value >>> (24 - 8 * i));
+            }
+        }
+
+        void setLong(int position, long value) {
+            for (int i = 0; i < 8; i++) {
+                buffer[position + i] = (byte) (value >>> (56 - 8 * i));
+            }
+        }
+
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void writeZigZag(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(UTF8);
+            writeVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size = size + bytes.length;
+        }
+
+        void writeTo(FileChannel channel) throws IOException {
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, size);
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Records of a structure
+     */
+    static final class Section {
+        final byte type;
+        final String key;
+        final Output data = new Output();
+        int count;
+        /**
+         * Last id written (ids are delta in a section)
+         */
+        long last;
+
+        Section(byte type, String key) {
+            this.type = type;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Sections of a structure: a section is started when the current one is bigger than SECTION_SIZE
+     */
+    static final class SectionList {
+        final byte type;
+        final String key;
+        final List<Section> sections = new ArrayList<Section>();
+        private Section current;
+
+        SectionList(byte type, String key) {
+            this.type = type;
+            this.key = key;
+        }
+
+        /**
+         * Get the section for the next record
+         */
+        Section next() {
+            if (current == null || current.data.size >= SECTION_SIZE) {
+                current = new Section(type, key);
+                sections.add(current);
+            }
+            current.count++;
+            return current;
+        }
+    }
+
+    /**
+     * Section read from a snapshot file
+     */
+    static final class MappedSection {
+        byte type;
+        String key;
+        int count;
+        ByteBuffer data;
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.server.globaldatabase;
+
+import org.apache.log4j.Logger;
+import retrieval.server.globaldatabase.MemorySnapshot.Output;
+import retrieval.storage.index.PictureVisualWords;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of a memory storage (MEMORYWAL).
+ * Each modification (picture added, pictures deleted, purge) is written in the log
+ * before being applied in index, so images indexed since the last snapshot are not lost.
+ * Log is cut in segments (file storage.segment.wal): a new segment is started for each
+ * snapshot, and segments older than the snapshot are deleted once it is written.
+ * Record: length, crc32, type and data (see MemorySnapshot for number encoding).
+ * A record cut by a crash (bad length or crc) ends its segment.
+ * @author lrollus
+ */
+public class WriteAheadLog {
+
+    /**
+     * Extension of a log segment
+     */
+    public static final String EXTENSION = ".wal";
+
+    /**
+     * Picture added (properties, number of patchs and visual words of each test vector)
+     */
+    public static final byte ADD = 1;
+    /**
+     * Pictures deleted (ids)
+     */
+    public static final byte DELETE = 2;
+    /**
+     * Index purged
+     */
+    public static final byte PURGE = 3;
+
+    private static Logger logger = Logger.getLogger(WriteAheadLog.class);
+
+    private final File directory;
+    private final String storage;
+    /**
+     * Fsync after each record (true) or after each call (false: a batch of pictures is committed at once)
+     */
+    private final boolean syncEachRecord;
+    private FileOutputStream output;
+    private FileChannel channel;
+    private long segment;
+
+    /**
+     * Constructor for a log (open it before writing)
+     * @param directory Index directory
+     * @param storage Storage id
+     * @param syncEachRecord Fsync after each picture (SYNCAFTERIMAGE) or after each batch
+     */
+    public WriteAheadLog(File directory, String storage, boolean syncEachRecord) {
+        this.directory = directory;
+        this.storage = storage;
+        this.syncEachRecord = syncEachRecord;
+    }
+
+    /**
+     * Start writing in a segment
+     * @param segment Segment number
+     * @throws IOException Error during segment open
+     */
+    public synchronized void open(long segment) throws IOException {
+        close();
+        this.segment = segment;
+        this.output = new FileOutputStream(getFile(directory, storage, segment), true);
+        this.channel = output.getChannel();
+    }
+
+    /**
+     * Close the current segment and start the next one
+     * @return New segment number (first segment not in a snapshot encoded now)
+     * @throws IOException Error during segment open
+     */
+    public synchronized long rotate() throws IOException {
+        open(segment + 1);
+        return segment;
+    }
+
+    /**
+     * Close the current segment
+     * @throws IOException Error during close
+     */
+    public synchronized void close() throws IOException {
+        if (output != null) {
+            output.close();
+            output = null;
+            channel = null;
+        }
+    }
+
+    /**
+     * Log pictures added in index
+     * @param pictures Pictures with visual words
+     * @param N Number of patchs
+     * @throws IOException Error during write
+     */
+    public synchronized void add(List<PictureVisualWords> pictures, int N) throws IOException {
+        Output record = new Output();
+        for (PictureVisualWords picture : pictures) {
+            int start = begin(record, ADD);
+            record.writeZigZag(picture.getId());
+            record.writeVarint(N);
+            Map<String, String> properties = picture.getProperties() != null ? picture.getProperties() : new HashMap<String, String>();
+            record.writeVarint(properties.size());
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                record.writeString(property.getKey());
+                record.writeString(property.getValue());
+            }
+            List<ConcurrentHashMap<Long, Long>> visualWords = picture.getVisualWords();
+            record.writeVarint(visualWords.size());
+            for (ConcurrentHashMap<Long, Long> words : visualWords) {
+                record.writeVarint(words.size());
+                for (Map.Entry<Long, Long> word : words.entrySet()) {
+                    record.writeLong(word.getKey());
+                    record.writeVarint(word.getValue());
+                }
+            }
+            end(record, start);
+            if (syncEachRecord) {
+                commit(record);
+                record.size = 0;
+            }
+        }
+        if (!syncEachRecord) {
+            commit(record);
+        }
+    }
+
+    /**
+     * Log pictures deleted from index
+     * @param ids Pictures id
+     * @throws IOException Error during write
+     */
+    public synchronized void delete(List<Long> ids) throws IOException {
+        Output record = new Output();
+        int start = begin(record, DELETE);
+        record.writeVarint(ids.size());
+        for (Long id : ids) {
+            record.writeZigZag(id);
+        }
+        end(record, start);
+        commit(record);
+    }
+
+    /**
+     * Log an index purge
+     * @throws IOException Error during write
+     */
+    public synchronized void purge() throws IOException {
+        Output record = new Output();
+        end(record, begin(record, PURGE));
+        commit(record);
+    }
+
+    private static int begin(Output record, byte type) {
+        int start = record.size;
+        record.writeInt(0);
+        record.writeInt(0);
+        record.writeByte(type);
+        return start;
+    }
+
+    private static void end(Output record, int start) {
+        CRC32 crc = new CRC32();
+        crc.update(record.buffer, start + 8, record.size - start - 8);
+        record.setInt(start, record.size - start - 8);
+        record.setInt(start + 4, (int) crc.getValue());
+    }
+
+    private void commit(Output record) throws IOException {
+        if (channel == null) {
+            throw new IOException("Log of " + storage + " is not open");
+        }
+        record.writeTo(channel);
+        channel.force(false);
+    }
+
+    /**
+     * Delete the segments of a storage older than a segment
+     * @param directory Index directory
+     * @param storage Storage id
+     * @param before First segment to keep
+     */
+    public static void delete(File directory, String storage, long before) {
+        for (Long segment : getSegments(directory, storage)) {
+            File file = getFile(directory, storage, segment);
+            if (segment < before && !file.delete()) {
+                logger.error("Cannot delete log " + file);
+            }
+        }
+    }
+
+    /**
+     * Get the file of a segment
+     * @param directory Index directory
+     * @param storage Storage id
+     * @param segment Segment number
+     * @return Segment file
+     */
+    public static File getFile(File directory, String storage, long segment) {
+        return new File(directory, storage + "." + segment + EXTENSION);
+    }
+
+    /**
+     * Get the segments of a storage (sorted)
+     * @param directory Index directory
+     * @param storage Storage id
+     * @return Segment numbers
+     */
+    public static List<Long> getSegments(File directory, String storage) {
+        List<Long> segments = new ArrayList<Long>();
+        for (String[] name : getNames(directory)) {
+            if (name[0].equals(storage)) {
+                segments.add(Long.parseLong(name[1]));
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Get storages with a log in directory
+     * @param directory Index directory
+     * @return Storages id
+     */
+    public static Set<String> getStorages(File directory) {
+        Set<String> storages = new TreeSet<String>();
+        for (String[] name : getNames(directory)) {
+            storages.add(name[0]);
+        }
+        return storages;
+    }
+
+    /**
+     * Get the storage and the segment of each log file in directory
+     */
+    private static List<String[]> getNames(File directory) {
+        List<String[]> names = new ArrayList<String[]>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return names;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(EXTENSION)) {
+                name = name.substring(0, name.length() - EXTENSION.length());
+                int dot = name.lastIndexOf('.');
+                if (dot > 0 && name.substring(dot + 1).matches("[0-9]+")) {
+                    names.add(new String[]{name.substring(0, dot), name.substring(dot + 1)});
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Read the records of a storage from a segment.
+     * Segments are mapped in memory and decoded in parallel.
+     * @param directory Index directory
+     * @param storage Storage id
+     * @param first First segment to read
+     * @return Records (in write order)
+     * @throws IOException Error during read
+     */
+    public static List<Record> read(File directory, String storage, long first) throws IOException {
+        List<Callable<List<Record>>> tasks = new ArrayList<Callable<List<Record>>>();
+        for (Long segment : getSegments(directory, storage)) {
+            if (segment >= first) {
+                final File file = getFile(directory, storage, segment);
+                tasks.add(new Callable<List<Record>>() {
+                    public List<Record> call() throws IOException {
+                        return read(file);
+                    }
+                });
+            }
+        }
+        List<Record> records = new ArrayList<Record>();
+        if (tasks.isEmpty()) {
+            return records;
+        }
+        for (List<Record> segment : MemorySnapshot.invokeAll(tasks)) {
+            records.addAll(segment);
+        }
+        return records;
+    }
+
+    private static List<Record> read(File file) throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer data = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+            CRC32 crc = new CRC32();
+            while (data.remaining() >= 8) {
+                int length = data.getInt();
+                int checksum = data.getInt();
+                if (length <= 0 || length > data.remaining()) {
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                data.get(bytes);
+                crc.reset();
+                crc.update(bytes, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                records.add(new Record(ByteBuffer.wrap(bytes)));
+            }
+            if (data.hasRemaining()) {
+                logger.warn("log " + file + " ends with an incomplete record (" + data.remaining() + " bytes ignored)");
+            }
+        } finally {
+            input.close();
+        }
+        return records;
+    }
+
+    /**
+     * A modification read from log
+     */
+    public static final class Record {
+        private final byte type;
+        private PictureVisualWords picture;
+        private int patchs;
+        private List<Long> ids;
+
+        Record(ByteBuffer data) throws IOException {
+            type = data.get();
+            if (type == ADD) {
+                long id = MemorySnapshot.readZigZag(data);
+                patchs = (int) MemorySnapshot.readVarint(data);
+                int size = (int) MemorySnapshot.readVarint(data);
+                Map<String, String> properties = new HashMap<String, String>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    properties.put(MemorySnapshot.readString(data), MemorySnapshot.readString(data));
+                }
+                int testVectors = (int) MemorySnapshot.readVarint(data);
+                List<ConcurrentHashMap<Long, Long>> visualWords = new ArrayList<ConcurrentHashMap<Long, Long>>(testVectors);
+                for (int i = 0; i < testVectors; i++) {
+                    int words = (int) MemorySnapshot.readVarint(data);
+                    ConcurrentHashMap<Long, Long> map = new ConcurrentHashMap<Long, Long>(words * 2);
+                    for (int j = 0; j < words; j++) {
+                        map.put(data.getLong(), MemorySnapshot.readVarint(data));
+                    }
+                    visualWords.add(map);
+                }
+                picture = new PictureVisualWords(id, properties, visualWords);
+            } else if (type == DELETE) {
+                int size = (int) MemorySnapshot.readVarint(data);
+                ids = new ArrayList<Long>(size);
+                for (int i = 0; i < size; i++) {
+                    ids.add(MemorySnapshot.readZigZag(data));
+                }
+            } else if (type != PURGE) {
+                throw new IOException("Unknown log record " + type);
+            }
+        }
+
+        /**
+         * @return Type (ADD, DELETE or PURGE)
+         */
+        public byte getType() {
+            return type;
+        }
+
+        /**
+         * @return Picture with its visual words (ADD)
+         */
+        public PictureVisualWords getPicture() {
+            return picture;
+        }
+
+        /**
+         * @return Number of patchs of the picture (ADD)
+         */
+        public int getPatchs() {
+            return patchs;
+        }
+
+        /**
+         * @return Deleted pictures (DELETE)
+         */
+        public List<Long> getIds() {
+            return ids;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.storage;
+
+import retrieval.storage.exception.PictureNotFoundException;
+import retrieval.utils.FileUtils;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Map;
+
+/**
+ * This class define image data to index.
+ * The picture may be given decoded (image), encoded (bytes of a JPEG, PNG,... file)
+ * or as a file path: it is then decoded by the thread which extracts visual words.
+ * @author lrollus
+ */
+public class PictureInfo {
+
+    public Long id;
+    public BufferedImage image;
+    public Map<String,String> properties;
+    /**
+     * Encoded picture (null if image or path is given)
+     */
+    public byte[] encoded;
+    /**
+     * Picture path on server (null if image or encoded is given).
+     * A path sent by a client is checked first (RetrievalServer.checkPicturePath)
+     */
+    public String path;
+
+    public PictureInfo(BufferedImage image, Long id, Map<String,String> properties) {
+        this.image = image;
+        this.id = id;
+        this.properties = properties;
+    }
+
+    /**
+     * Constructor for a picture decoded later
+     * @param encoded Encoded picture (JPEG, PNG,...) or null
+     * @param path Picture path on server or null
+     * @param id Picture id
+     * @param properties Picture properties
+     */
+    public PictureInfo(byte[] encoded, String path, Long id, Map<String,String> properties) {
+        this.encoded = encoded;
+        this.path = path;
+        this.id = id;
+        this.properties = properties;
+    }
+
+    /**
+     * Get the picture, decode it if picture is encoded or a path
+     * @return Picture
+     * @throws PictureNotFoundException Picture cannot be read or decoded
+     */
+    public BufferedImage readImage() throws PictureNotFoundException {
+        if (image != null) {
+            return image;
+        }
+        BufferedImage decoded;
+        if (encoded != null) {
+            decoded = FileUtils.readPictureFromBytes(encoded);
+        } else if (path != null) {
+            decoded = FileUtils.readPictureFromPath(new File(path));
+            if (decoded == null) {
+                throw new PictureNotFoundException("Cannot read: " + path + ": format not supported");
+            }
+        } else {
+            throw new PictureNotFoundException("No picture for " + id);
+        }
+        return decoded;
+    }
+
+    /**
+     * Free picture data (after visual words extraction)
+     */
+    public void clearPicture() {
+        image = null;
+        encoded = null;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        PictureInfo info = (PictureInfo)o;
+        return (id.equals(info.id));
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 5;
+        hash = 79 * hash + (this.id != null ? this.id.hashCode() : 0);
+        return hash;
+    }
+}
@@ -19,18 +19,26 @@ import org.apache.log4j.Logger;
 import retrieval.config.ConfigServer;
 import retrieval.dist.RequestPictureVisualWord;
 import retrieval.exception.CBIRException;
+import retrieval.server.SearchScheduler;
 import retrieval.server.globaldatabase.GlobalDatabase;
+import retrieval.server.globaldatabase.MemoryDatabase;
+import retrieval.server.globaldatabase.MemorySnapshot;
+import retrieval.server.globaldatabase.WriteAheadLog;
 import retrieval.storage.exception.*;
 import retrieval.storage.index.Index;
 import retrieval.storage.index.IndexMultiThread;
 import retrieval.storage.index.PictureIndex;
+import retrieval.storage.index.PictureVisualWords;
 import retrieval.storage.index.ResultSim;
+import retrieval.storage.index.ValueStructure;
+import retrieval.storage.index.main.MemoryHashTable;
 import retrieval.testvector.TestVectorListServer;
 import retrieval.testvector.generator.TestVectorReading;
 import retrieval.utils.FileUtils;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -66,6 +74,21 @@ public final class Storage {
      */
     private StorageIndexThread threadIndex;
 
+    /**
+     * Snapshot thread (null if not a memory storage or MEMORYSNAPSHOT=0)
+     */
+    private StorageSnapshotThread threadSnapshot;
+
+    /**
+     * Index modifications saved in the last snapshot
+     */
+    private long snapshotUpdates;
+
+    /**
+     * Log of modifications since the last snapshot (null if MEMORYWAL is false)
+     */
+    private WriteAheadLog log;
+
     /**
      * Last picture that was taken from queue but not already
      * mark as indexed (between waited queue and index process)
@@ -103,7 +126,7 @@ public final class Storage {
         this.globalDatabase = globalDatabase;
         try {
         this.config = config;
-        this.threadIndex = StorageIndexThread.getThreadIndex(this, config.getSizeOfIndexQueue());
+        this.threadIndex = StorageIndexThread.getThreadIndex(this, config.getSizeOfIndexQueue(), config.getIndexThreads(), config.getIndexBatchSize());
         logger.info("Store name:" + config.getStoreName());
         logger.info("Server: read tests vectors in " + config.getVectorPath());
         
@@ -117,12 +140,39 @@ public final class Storage {
         logger.info("Purge size = " +index.getPurgeSize());
         index.sync();
         logger.info("There are " + index.getSize() + " images");
+        if (globalDatabase instanceof MemoryDatabase && config.getMemorySnapshot() > 0) {
+            MemoryDatabase memory = (MemoryDatabase) globalDatabase;
+            threadSnapshot = new StorageSnapshotThread(this, config.getMemorySnapshot() * 1000L);
+            //a new storage is saved even if it stays empty
+            snapshotUpdates = memory.getSnapshotFile(idServer).exists() ? 0 : -1;
+            //segment index already writes postings on disk, a replay would add them twice
+            if (config.isMemoryWal() && config.getStoreName().equals(MemoryHashTable.NAME)) {
+                openLog(memory);
+            }
+        }
         } catch(Exception e) {
             logger.error(e);
             throw e;
         }
     } 
   
+    /**
+     * Replay the log written since the last snapshot and open a new segment
+     * @param memory Memory database
+     * @throws IOException Error during log read or open
+     */
+    private void openLog(MemoryDatabase memory) throws IOException {
+        File directory = memory.getIndexDirectory();
+        long start = System.currentTimeMillis();
+        List<WriteAheadLog.Record> records = WriteAheadLog.read(directory, idServer, memory.getSnapshotLog(idServer));
+        index.replay(records);
+        logger.info("Replay " + records.size() + " log records in " + (System.currentTimeMillis() - start) + " ms");
+        List<Long> segments = WriteAheadLog.getSegments(directory, idServer);
+        log = new WriteAheadLog(directory, idServer, config.isSyncAfterImage());
+        log.open(segments.isEmpty() ? memory.getSnapshotLog(idServer) : segments.get(segments.size() - 1) + 1);
+        index.setLog(log);
+    }
+
     /**
      * Start server
      * @throws InternalServerException Error during the server start
@@ -131,18 +181,62 @@ public final class Storage {
         logger.info("start: launch index thread");
         this.threadIndex.start();
         logger.info("start: launch index thread OK");
+        if (threadSnapshot != null) {
+            threadSnapshot.start();
+        }
     }
     
     /**
-     * Stop server
+     * Stop server.
+     * Index thread is stopped first (extracted pictures are written), so the
+     * last snapshot contains all pictures acknowledged to clients.
+     * The log is closed after the index thread and the last snapshot.
      * @throws CloseIndexException Error during the index close
      */
     public void stop() throws CloseIndexException {
+        if (threadSnapshot != null) {
+            try {threadSnapshot.close();}catch(InterruptedException e) { logger.debug("stop snapshot thread:"+e);}
+        }
+        try {this.threadIndex.close();}catch(Exception e) { logger.debug("stop index thread:"+e);}
+        if (threadSnapshot != null) {
+            try {
+                snapshot();
+            } catch (Exception e) {
+                logger.error("Cannot write snapshot: " + e);
+            }
+        }
+        if (log != null) {
+            //log stays attached: a modification after the stop is refused, not written without log
+            try {log.close();}catch(Exception e) { logger.error("Cannot close log: " + e);}
+        }
         try {index.close();}catch(Exception e){ logger.debug("stop index thread:"+e);}
-        try {this.threadIndex.stop();}catch(Exception e) { logger.debug("stop index thread:"+e);}
         logger.debug("all thread stopped...");
     }
     
+    /**
+     * Write a snapshot of the storage if index was modified since the last one (only-memory index).
+     * Index is only locked during the encode in memory, searches are not blocked.
+     * @return True if a snapshot was written
+     * @throws IOException Error during the snapshot
+     */
+    public synchronized boolean snapshot() throws IOException {
+        if (!(globalDatabase instanceof MemoryDatabase) || index.getUpdates() == snapshotUpdates) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        MemoryDatabase memory = (MemoryDatabase) globalDatabase;
+        MemorySnapshot snapshot = index.snapshot(memory);
+        long encode = System.currentTimeMillis() - start;
+        snapshot.write(memory.getSnapshotFile(idServer));
+        snapshotUpdates = snapshot.getUpdates();
+        if (log != null) {
+            //modifications are in snapshot
+            WriteAheadLog.delete(memory.getIndexDirectory(), idServer, snapshot.getLog());
+        }
+        logger.info("snapshot " + idServer + ": " + snapshot.getSize() + " bytes, encode=" + encode + " ms, total=" + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
     /**
      * Get the size of index
      * @return Size of index
@@ -175,6 +269,66 @@ public final class Storage {
                 config.isSyncAfterImage());
     }
     
+    /**
+     * Index a list of pictures and wait until they are in index.
+     * Visual words are extracted by many threads (INDEXTHREADS)
+     * and written in index by batch (INDEXBATCHSIZE).
+     * @param pictures Pictures (if id is null, an id is generated)
+     * @return Map with pictures id and exception (NoException if ok)
+     * @throws InternalServerException Storage is not started or interrupted
+     */
+    public Map<Long, CBIRException> indexPictures(List<PictureInfo> pictures) throws InternalServerException {
+        if (!threadIndex.isAlive()) {
+            throw new InternalServerException("Storage is not started");
+        }
+        List<PictureInfo> infos = new ArrayList<PictureInfo>(pictures.size());
+        for (int i = 0; i < pictures.size(); i++) {
+            PictureInfo picture = pictures.get(i);
+            Long id = picture.id;
+            while(id==null) {
+                id = System.currentTimeMillis() + new Random().nextLong();
+                if(index.isPictureAlreadyIndexed(id)) {
+                    id = null;
+                }
+            }
+            PictureInfo info = new PictureInfo(picture.encoded, picture.path, id, (picture.properties!=null? new HashMap<>(picture.properties) : new HashMap<>()));
+            info.image = picture.image;
+            infos.add(info);
+        }
+        try {
+            return threadIndex.indexPictures(infos);
+        } catch (InterruptedException e) {
+            throw new InternalServerException("indexPictures interrupted");
+        }
+    }
+
+    /**
+     * Extract visual words of a picture (index is not modified)
+     * @param image Picture
+     * @param id Image id
+     * @return Visual words for each test vector
+     * @throws NoValidPictureException Picture is not valid
+     * @throws PictureTooHomogeneous Picture is too homogeneous to be indexed
+     */
+    List<ConcurrentHashMap<Long, Long>> extractVisualWords(BufferedImage image, Long id) throws NoValidPictureException, PictureTooHomogeneous {
+        return index.extractVisualWords(
+                image,
+                id,
+                config.getNumberOfPatch(),
+                config.getResizeMethod(),
+                config.getSizeOfPatchResizeWidth(),
+                config.getSizeOfPatchResizeHeight());
+    }
+
+    /**
+     * Write a batch of pictures with their visual words in index
+     * @param pictures Pictures with visual words
+     * @return Map with pictures id and exception (NoException if ok)
+     */
+    Map<Long, CBIRException> addPictures(List<PictureVisualWords> pictures) {
+        return index.addPictures(pictures, config.getNumberOfPatch(), config.isSyncAfterImage());
+    }
+
      /**
      * Add a single picture file to index queue
      * @param image Picture
@@ -194,6 +348,28 @@ public final class Storage {
         threadIndex.addInIndexPicture(image,id,(properties!=null? new HashMap<>(properties) : new HashMap<>()));
         return id;
     }  
+
+     /**
+     * Add a single picture to index queue.
+     * An encoded picture (or a path) is decoded by the index extract threads.
+     * @param picture Picture (if id is null, an id is generated)
+     * @return Indexed Picture id
+     * @throws TooMuchIndexRequestException Waited queue are full
+     */
+    public Long addToIndexQueue(PictureInfo picture) throws TooMuchIndexRequestException {
+        logger.debug("addToIndexQueue="+picture.id);
+        Long id = picture.id;
+        while(id==null) {
+            id = System.currentTimeMillis() + new Random().nextLong();
+            if(index.isPictureAlreadyIndexed(id)) {
+                id = null;
+            }
+        }
+        PictureInfo info = new PictureInfo(picture.encoded, picture.path, id, (picture.properties!=null? new HashMap<>(picture.properties) : new HashMap<>()));
+        info.image = picture.image;
+        threadIndex.addInIndexPicture(info);
+        return id;
+    }
     
     
     /**
@@ -248,6 +424,7 @@ public final class Storage {
     /**
      * Delete from index, all data from pictures that has been removed
      * VERY HEAVY because you need to browse all index entry
+     * (except with MEMORYREVERSEINDEX: only the visual words of removed pictures)
      */
     public void purgeIndex() {
         logger.info("Purge server!");
@@ -265,6 +442,7 @@ public final class Storage {
     /**
      * Check if picture id data still exist in index
      * VERY HEAVY because you need to browse all index entry
+     * (except with MEMORYREVERSEINDEX or REDIS: a single lookup)
      * @param id Picture id
      * @return True if index doesn't contains data with id
      */
@@ -380,7 +558,7 @@ public final class Storage {
      * @throws WrongNumberOfTestsVectorsException Central server has a different
      * number of tests vectors than server.
      */
-    public List<ConcurrentHashMap<String, Long>> getNBT(List<ConcurrentHashMap<String, Long>> visualWords) throws WrongNumberOfTestsVectorsException {
+    public List<ConcurrentHashMap<Long, Long>> getNBT(List<ConcurrentHashMap<Long, Long>> visualWords) throws WrongNumberOfTestsVectorsException {
         int T = index.getNumberOfTestsVectors();
         if (T != visualWords.size()){
             throw new WrongNumberOfTestsVectorsException("Server has " + T + " tests vectors (T), central server has " + visualWords.size() + " tests vectors (T)");
@@ -396,23 +574,34 @@ public final class Storage {
      * @param k Max similar pictures
      * @return Most similar pictures
      */
-    public List<ResultSim> getPicturesSimilarities(List<ConcurrentHashMap<String, RequestPictureVisualWord>> vw, int Niq, int k) {
-        List<ResultSim> allResults = index.computeSimilarity(vw, Niq);
-        List<ResultSim> firstResults = new ArrayList<ResultSim>(k);
+    public List<ResultSim> getPicturesSimilarities(List<ConcurrentHashMap<Long, RequestPictureVisualWord>> vw, int Niq, int k) {
+        return getPicturesSimilarities(vw, null, Niq, k);
+    }
+
+    /**
+     * Get (maximum) k most similar pictures from server with vw and niq information,
+     * with posting lists already read from the store (see RetrievalServer.getPicturesSimilarities)
+     * SECOND PART OF SEARCH WITH CENTRAL SERVER
+     * @param vw Visual words from Request image Iq
+     * @param postings Posting lists for each test vector name (null: read by each test vector)
+     * @param Niq Number of patches extract from Iq
+     * @param k Max similar pictures
+     * @return Most similar pictures
+     */
+    public List<ResultSim> getPicturesSimilarities(List<ConcurrentHashMap<Long, RequestPictureVisualWord>> vw, Map<String,Map<Long,ValueStructure>> postings, int Niq, int k) {
         if(index.getSize()<1) {
-            return firstResults;
+            return new ArrayList<ResultSim>();
         }
-
-        for (int i = 0; i < allResults.size() && i < k; i++) {
-            ResultSim sim = allResults.get(i);
-            sim.setId(sim.getId());
+        //only the k best are returned, so properties are read k times max
+        List<ResultSim> firstResults = index.computeSimilarity(vw, postings, Niq, k);
+        for (int i = 0; i < firstResults.size(); i++) {
+            ResultSim sim = firstResults.get(i);
             sim.setProperties(index.getProperties(sim.getId()));
-            firstResults.add(sim);
         }
         return firstResults;
     }
 //
-//    public List<ResultSim> getPicturesSimilarities(List<ConcurrentHashMap<String, RequestPictureVisualWord>> vw, int Niq, int k) {
+//    public List<ResultSim> getPicturesSimilarities(List<ConcurrentHashMap<Long, RequestPictureVisualWord>> vw, int Niq, int k) {
 //        List<ResultSim> allResults = null; //index.computeSimilarity(vw,null, Niq); //TODO!!!!!!
 //        List<ResultSim> firstResults = new ArrayList<ResultSim>(k);
 //        if(index.getSize()<1) {
@@ -438,6 +627,14 @@ public final class Storage {
         this.currentIndexedId = currentIndexedId;
     }
     
+    /**
+     * Set the scheduler that runs search tasks of this storage
+     * @param searchScheduler Server scheduler
+     */
+    public void setSearchScheduler(SearchScheduler searchScheduler) {
+        index.setSearchScheduler(searchScheduler);
+    }
+
     /**
      * Get config file user in server
      * @return Config file
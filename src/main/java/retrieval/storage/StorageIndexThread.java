@@ -16,16 +16,29 @@
 package retrieval.storage;
 
 import org.apache.log4j.Logger;
+import retrieval.exception.CBIRException;
+import retrieval.storage.exception.AlreadyIndexedException;
+import retrieval.storage.exception.InternalServerException;
 import retrieval.storage.exception.TooMuchIndexRequestException;
+import retrieval.storage.index.PictureVisualWords;
 
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class in a index thread which will receive picture from indexed and put them on a waiting queue.
- * Until the queue is not empty, it will index picture on server
+ * Pictures are indexed in a pipeline:
+ * -N extract threads take pictures from the queue and extract visual words (multi core)
+ * -this thread (single writer) takes extracted pictures and writes them in index by batch
  * @author lrollus
  */
 final class StorageIndexThread extends Thread {
@@ -37,11 +50,39 @@ final class StorageIndexThread extends Thread {
     /**
      * Queue for Path indexer (heavy indexer)
      */
-    private final BlockingQueue<PictureInfo> indexQueuePicture;
+    private final BlockingQueue<IndexTask> indexQueuePicture;
+    /**
+     * Pictures with visual words, waiting to be written in index
+     */
+    private final BlockingQueue<IndexTask> writeQueuePicture;
     /**
      * Max Size of picture queue
      */
     private final int sizeOfPictureQueue;
+    /**
+     * Max number of pictures written at once
+     */
+    private final int batchSize;
+    /**
+     * Threads which extract visual words
+     */
+    private final StorageExtractThread[] extractThreads;
+    /**
+     * Pictures added to queue and not yet written in index (id and number of requests)
+     */
+    private final Map<Long, Integer> picturesInProgress = new HashMap<Long, Integer>();
+    /**
+     * Number of pictures added to queue and not yet written in index
+     */
+    private int numberInProgress = 0;
+    /**
+     * True when extract threads are stopped: writer stops when all extracted pictures are written
+     */
+    private volatile boolean extractStopped = false;
+    /**
+     * True when this thread is closed: extract threads stop even if an extraction cleared their interrupt flag
+     */
+    private volatile boolean closing = false;
     /**
      * Logger
      */
@@ -53,17 +94,29 @@ final class StorageIndexThread extends Thread {
      * getThreadIndex which check if Thread index will be the only one
      * @param server Server which carry index request
      * @param sizeOfPictureQueue Size of Picture Queue (0 for no limit)
+     * @param numberOfThreads Number of extract threads (0 = number of processors)
+     * @param batchSize Max number of pictures written at once
      */
-    private StorageIndexThread(Storage server, int sizeOfPictureQueue) {
-        logger.info("IndexThread sizeOfPictureQueue="+sizeOfPictureQueue);
+    private StorageIndexThread(Storage server, int sizeOfPictureQueue, int numberOfThreads, int batchSize) {
+        if (numberOfThreads <= 0) {
+            numberOfThreads = Runtime.getRuntime().availableProcessors();
+        }
+        this.batchSize = Math.max(batchSize, 1);
+        logger.info("IndexThread sizeOfPictureQueue=" + sizeOfPictureQueue + " threads=" + numberOfThreads + " batchSize=" + this.batchSize);
         this.storage = server;
         this.sizeOfPictureQueue = sizeOfPictureQueue;
         //for light indexer: put a limit
         if(sizeOfPictureQueue==0) {
-            this.indexQueuePicture = new LinkedBlockingQueue<PictureInfo>();
+            this.indexQueuePicture = new LinkedBlockingQueue<IndexTask>();
         }
         else {
-            this.indexQueuePicture = new LinkedBlockingQueue<PictureInfo>(sizeOfPictureQueue);
+            this.indexQueuePicture = new LinkedBlockingQueue<IndexTask>(sizeOfPictureQueue);
+        }
+        //extract threads wait if the writer is late (no picture with visual words accumulates in memory)
+        this.writeQueuePicture = new LinkedBlockingQueue<IndexTask>(2 * this.batchSize);
+        this.extractThreads = new StorageExtractThread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            extractThreads[i] = new StorageExtractThread(this);
         }
         logger.info("IndexThread init");
     }
@@ -73,107 +126,331 @@ final class StorageIndexThread extends Thread {
      * Thread index must be the one to index pictures.
      * @param server Server which carry index request
      * @param sizeOfPictureQueue Size of Picture Queue (Path queue has no limit)
+     * @param numberOfThreads Number of extract threads (0 = number of processors)
+     * @param batchSize Max number of pictures written at once
      * @return IndexThread (singleton)
      */
-    public synchronized static StorageIndexThread getThreadIndex(Storage server, int sizeOfPictureQueue) {
-        return new StorageIndexThread(server, sizeOfPictureQueue);
+    public synchronized static StorageIndexThread getThreadIndex(Storage server, int sizeOfPictureQueue, int numberOfThreads, int batchSize) {
+        return new StorageIndexThread(server, sizeOfPictureQueue, numberOfThreads, batchSize);
     }
 
     /**
-     * Check if index queue is empty
+     * Start writer and extract threads
+     */
+    @Override
+    public synchronized void start() {
+        for (int i = 0; i < extractThreads.length; i++) {
+            extractThreads[i].start();
+        }
+        super.start();
+    }
+
+    /**
+     * Stop extract threads, wait until the writer has written all extracted pictures and stops.
+     * Pictures still in queue (not extracted) are not indexed: they get an error.
+     * When this method returns, the index is no more modified by this thread.
+     */
+    public void close() {
+        closing = true;
+        for (int i = 0; i < extractThreads.length; i++) {
+            extractThreads[i].interrupt();
+        }
+        join(extractThreads);
+        extractStopped = true;
+        join(new Thread[]{this});
+        IndexTask task;
+        while ((task = indexQueuePicture.poll()) != null) {
+            finish(task, new InternalServerException("Storage is stopped"));
+        }
+    }
+
+    private static void join(Thread[] threads) {
+        boolean interrupted = false;
+        for (int i = 0; i < threads.length; i++) {
+            while (threads[i].isAlive()) {
+                try {
+                    threads[i].join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Check if index queue is empty (no picture waiting or in index process)
      * @return true if index queue is empty
      */
-    public boolean isIndexQueueEmpty() {
-       return indexQueuePicture.isEmpty();
+    public synchronized boolean isIndexQueueEmpty() {
+       return numberInProgress == 0;
     }
     
     /**
-     * Get the size of index queue
+     * Get the size of index queue (pictures waiting or in index process)
      * @return Index queue size
      */
-    public int getIndexQueueSize() {
-       return indexQueuePicture.size();
+    public synchronized int getIndexQueueSize() {
+       return numberInProgress;
     }
     
     /**
-     * Check if picture is in index queue
-     * @param path Picture path
+     * Check if picture is in index queue (or in index process)
+     * @param id Picture id
      * @return TRue if picture is in index queue
      */
-    public boolean isInIndexQueue(Long id) {
-        return indexQueuePicture.contains(new PictureInfo(null,id,null));
+    public synchronized boolean isInIndexQueue(Long id) {
+        return picturesInProgress.containsKey(id);
     }
 
     /**
      * Add picture in index picture queue
-     * @param path Picture path
-     * @param authorization Authorization to access image
+     * @param image Picture
+     * @param id Picture id
+     * @param properties Picture properties
      * @throws TooMuchIndexRequestException Too much
      */
     public synchronized void addInIndexPicture(BufferedImage image, Long id, Map<String,String> properties) throws TooMuchIndexRequestException {
+        addInIndexPicture(new PictureInfo(image,id,properties));
+    }
+
+    /**
+     * Add picture in index picture queue (picture may be encoded, it is decoded by an extract thread)
+     * @param picture Picture (with id)
+     * @throws TooMuchIndexRequestException Too much
+     */
+    public synchronized void addInIndexPicture(PictureInfo picture) throws TooMuchIndexRequestException {
         //A LinkedBlockingQueue is conccurrent collection,
         if (indexQueuePicture.size() >= (sizeOfPictureQueue - 1)) {
             throw new TooMuchIndexRequestException();
         }
-        indexQueuePicture.add(new PictureInfo(image,id,properties));
+        addInProgress(picture.id);
+        indexQueuePicture.add(new IndexTask(picture, null));
     }
-    
+
+    /**
+     * Index a list of pictures with the pipeline and wait until they are written in index.
+     * If the queue is full, wait for a free place.
+     * If an id is many times in the list, only the first picture is indexed
+     * (results are by id, the result of the id is the result of this picture).
+     * @param pictures Pictures (with id)
+     * @return Map with pictures id and exception (NoException if ok)
+     * @throws InterruptedException Interrupted while waiting
+     */
+    public Map<Long, CBIRException> indexPictures(List<PictureInfo> pictures) throws InterruptedException {
+        Map<Long, PictureInfo> distinct = new LinkedHashMap<Long, PictureInfo>();
+        for (int i = 0; i < pictures.size(); i++) {
+            PictureInfo picture = pictures.get(i);
+            if (distinct.containsKey(picture.id)) {
+                logger.warn(picture.id + " is many times in the list, only the first picture is indexed");
+            } else {
+                distinct.put(picture.id, picture);
+            }
+        }
+        IndexBatch batch = new IndexBatch(distinct.size());
+        for (PictureInfo picture : distinct.values()) {
+            addInProgress(picture.id);
+            indexQueuePicture.put(new IndexTask(picture, batch));
+        }
+        batch.await();
+        return batch.results;
+    }
+
+    /**
+     * Extract visual words of a picture from queue (called by extract threads)
+     * @throws InterruptedException Extract thread is stopped
+     */
+    void extractNext() throws InterruptedException {
+        IndexTask task = indexQueuePicture.poll(100, TimeUnit.MILLISECONDS);
+        if (task == null) {
+            if (closing) {
+                throw new InterruptedException("IndexThread is closed");
+            }
+            return;
+        }
+        try {
+            if (storage.isPictureInIndex(task.info.id)) {
+                throw new AlreadyIndexedException(task.info.id + " is already indexed");
+            }
+            //encoded pictures are decoded here, by the extract threads
+            task.visualWords = storage.extractVisualWords(task.info.readImage(), task.info.id);
+        } catch (CBIRException e) {
+            task.error = e;
+        } catch (Throwable e) {
+            //an Error (ex: OutOfMemoryError for a big picture) must not stop this thread and the batch waiting for the picture
+            logger.error(e);
+            task.error = new InternalServerException(e.toString());
+        }
+        task.info.clearPicture();
+        try {
+            writeQueuePicture.put(task);
+        } catch (InterruptedException e) {
+            //storage is stopped, picture will not be written
+            finish(task, new InternalServerException("Storage is stopped"));
+            throw e;
+        }
+    }
+
     /**
      * Run the indexer Thread.
-     * Take a picture path from queue 1 or queue 2 and indexed it
+     * Take extracted pictures (batchSize max) and write them in index,
+     * until extract threads are stopped and all extracted pictures are written
      */
     @Override
     public void run() {
 
-        //Thread safe: only one thread execute this code, no remove function!
+        //Thread safe: only one thread write in index
         while (true) {
+            List<IndexTask> tasks = new ArrayList<IndexTask>(batchSize);
+            IndexTask task;
             try {
-                if (indexQueuePicture.size() > 0) {
-                    PictureInfo info = indexQueuePicture.take();
-                    storage.setCurrentIndexedPicture(info.id);
-                    storage.indexPicture(info.image,info.id,info.properties);
+                task = writeQueuePicture.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                logger.info("IndexThread interrupted");
+                return;
+            }
+            if (task == null) {
+                if (extractStopped && writeQueuePicture.isEmpty()) {
+                    logger.info("IndexThread stopped");
+                    return;
                 }
+                continue;
+            }
+            tasks.add(task);
+            writeQueuePicture.drainTo(tasks, batchSize - 1);
+            write(tasks);
+        }
+    }
 
-                //If two queue are empty, wait some times
-                if (indexQueuePicture.isEmpty()) {
-                    Thread.sleep(100);
-                }
-                
-            } catch (Exception e) {
-                logger.error(e);
-                e.printStackTrace();
+    /**
+     * Write a batch of extracted pictures in index
+     * @param tasks Extracted pictures
+     */
+    private void write(List<IndexTask> tasks) {
+        List<PictureVisualWords> pictures = new ArrayList<PictureVisualWords>(tasks.size());
+        for (int i = 0; i < tasks.size(); i++) {
+            IndexTask task = tasks.get(i);
+            if (task.error == null) {
+                pictures.add(new PictureVisualWords(task.info.id, task.info.properties, task.visualWords));
             }
+        }
 
+        Map<Long, CBIRException> results = null;
+        try {
+            results = storage.addPictures(pictures);
+        } catch (Throwable e) {
+            logger.error(e);
+            e.printStackTrace();
+        }
+
+        for (int i = 0; i < tasks.size(); i++) {
+            IndexTask task = tasks.get(i);
+            CBIRException result = task.error;
+            if (result == null) {
+                result = (results != null ? results.get(task.info.id) : new InternalServerException("Error during index write"));
+            }
+            finish(task, result);
+        }
+    }
+
+    /**
+     * Give the result of a picture to its batch (if any), picture is no more in progress
+     * @param task Picture
+     * @param result Result (NoException if picture is indexed)
+     */
+    private void finish(IndexTask task, CBIRException result) {
+        if (!result.isNotAnException()) {
+            logger.error(task.info.id + " not indexed: " + result);
+        }
+        task.visualWords = null;
+        removeInProgress(task.info.id);
+        if (task.batch != null) {
+            task.batch.done(task.info.id, result);
         }
     }
+
+    private synchronized void addInProgress(Long id) {
+        Integer n = picturesInProgress.get(id);
+        picturesInProgress.put(id, n == null ? 1 : n + 1);
+        numberInProgress++;
+    }
+
+    private synchronized void removeInProgress(Long id) {
+        Integer n = picturesInProgress.get(id);
+        if (n == null || n <= 1) {
+            picturesInProgress.remove(id);
+        } else {
+            picturesInProgress.put(id, n - 1);
+        }
+        numberInProgress--;
+    }
 }
 
 /**
- * This class define image data to index
+ * Thread which takes pictures from index queue and extracts their visual words
  * @author lrollus
  */
-class PictureInfo {
+final class StorageExtractThread extends Thread {
 
-    public Long id;
-    public BufferedImage image;
-    public Map<String,String> properties;
+    private final StorageIndexThread indexThread;
 
-    public PictureInfo(BufferedImage image, Long id, Map<String,String> properties) {
-        this.image = image;
-        this.id = id;
-        this.properties = properties;
+    StorageExtractThread(StorageIndexThread indexThread) {
+        this.indexThread = indexThread;
     }
-    
+
     @Override
-    public boolean equals(Object o) {
-        PictureInfo info = (PictureInfo)o;
-        return (id.equals(info.id));
+    public void run() {
+        while (!isInterrupted()) {
+            try {
+                indexThread.extractNext();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
     }
+}
 
-    @Override
-    public int hashCode() {
-        int hash = 5;
-        hash = 79 * hash + (this.id != null ? this.id.hashCode() : 0);
-        return hash;
+/**
+ * A picture in the index pipeline
+ * @author lrollus
+ */
+class IndexTask {
+
+    PictureInfo info;
+    /**
+     * Batch waiting for this picture (null if picture comes from addInIndexPicture)
+     */
+    IndexBatch batch;
+    List<ConcurrentHashMap<Long, Long>> visualWords;
+    CBIRException error;
+
+    IndexTask(PictureInfo info, IndexBatch batch) {
+        this.info = info;
+        this.batch = batch;
+    }
+}
+
+/**
+ * Pictures from a indexPictures call (results and wait until all pictures are done)
+ * @author lrollus
+ */
+class IndexBatch {
+
+    final Map<Long, CBIRException> results = new ConcurrentHashMap<Long, CBIRException>();
+    private final CountDownLatch done;
+
+    IndexBatch(int size) {
+        done = new CountDownLatch(size);
+    }
+
+    void done(Long id, CBIRException result) {
+        results.put(id, result);
+        done.countDown();
+    }
+
+    void await() throws InterruptedException {
+        done.await();
     }
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.storage;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This thread writes a snapshot of a memory storage every MEMORYSNAPSHOT seconds
+ * (only if pictures were added, deleted or purged since the last one).
+ * @author lrollus
+ */
+final class StorageSnapshotThread extends Thread {
+
+    /**
+     * Storage to save
+     */
+    private final Storage storage;
+    /**
+     * Time between two snapshots (ms)
+     */
+    private final long delay;
+    /**
+     * False when thread must stop
+     */
+    private boolean running = true;
+    /**
+     * Logger
+     */
+    private static final Logger logger = Logger.getLogger(StorageSnapshotThread.class);
+
+    /**
+     * Constructor for a snapshot thread
+     * @param storage Storage to save
+     * @param delay Time between two snapshots (ms)
+     */
+    StorageSnapshotThread(Storage storage, long delay) {
+        super("snapshot-" + storage.getStorageName());
+        this.storage = storage;
+        this.delay = delay;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (waitNextSnapshot()) {
+            try {
+                storage.snapshot();
+            } catch (Exception e) {
+                logger.error("Cannot write snapshot of " + storage.getStorageName() + ": " + e);
+            }
+        }
+    }
+
+    private synchronized boolean waitNextSnapshot() {
+        try {
+            if (running) {
+                wait(delay);
+            }
+        } catch (InterruptedException e) {
+            running = false;
+        }
+        return running;
+    }
+
+    /**
+     * Stop thread (wait for the snapshot in progress)
+     * @throws InterruptedException Interrupted during the wait
+     */
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        if (isAlive()) {
+            join();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.storage.index;
+
+/**
+ * Cursor over the [I,NIBT] entries of a value structure.
+ * Values are returned as primitive so the caller does not box ids and counts.
+ * Usage: while(cursor.next()) { cursor.getI(); cursor.getNIBT(); }
+ * @author Rollus Loic
+ */
+public interface EntryCursor {
+
+    /**
+     * Move to the next entry
+     * @return False if there is no more entry
+     */
+    boolean next();
+
+    /**
+     * Get the image I of the current entry
+     * @return Image id
+     */
+    long getI();
+
+    /**
+     * Get the NIBT of the current entry
+     * @return Number of patchs produced by I for visual word B
+     */
+    int getNIBT();
+}
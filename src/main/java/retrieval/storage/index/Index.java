@@ -18,7 +18,12 @@ package retrieval.storage.index;
 import org.apache.log4j.Logger;
 import retrieval.config.ConfigServer;
 import retrieval.dist.RequestPictureVisualWord;
+import retrieval.exception.CBIRException;
+import retrieval.server.SearchScheduler;
 import retrieval.server.globaldatabase.GlobalDatabase;
+import retrieval.server.globaldatabase.MemoryDatabase;
+import retrieval.server.globaldatabase.MemorySnapshot;
+import retrieval.server.globaldatabase.WriteAheadLog;
 import retrieval.storage.exception.AlreadyIndexedException;
 import retrieval.storage.exception.CloseIndexException;
 import retrieval.storage.exception.NoValidPictureException;
@@ -26,6 +31,7 @@ import retrieval.storage.exception.PictureTooHomogeneous;
 import retrieval.testvector.TestVectorListServer;
 
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -53,6 +59,26 @@ public abstract class Index {
      * Pictures that must be delete from index (already delete from server)
      */
     protected PicturesToPurge picturesToPurge;
+
+    /**
+     * NBT cache for the first part of the search (null if NBTCACHESIZE=0)
+     */
+    protected NBTCache nbtCache;
+
+    /**
+     * Number of modifications (pictures added, deleted or purged) since index start
+     */
+    protected long updates;
+
+    /**
+     * Log of modifications (null if MEMORYWAL is false or during the replay)
+     */
+    protected WriteAheadLog log;
+
+    /**
+     * Scheduler which runs search tasks (one task for each test vector)
+     */
+    private SearchScheduler searchScheduler;
     
     /**
      * Add a picture to index
@@ -78,22 +104,65 @@ public abstract class Index {
             boolean sync)
             throws AlreadyIndexedException, NoValidPictureException, PictureTooHomogeneous;
 
+    /**
+     * Extract visual words of a picture (for each test vector).
+     * Index is not modified, so many threads can extract pictures at the same time.
+     * @param image Image to index
+     * @param id Image id
+     * @param N Number of patches
+     * @param resizeMethod Method for resizing patches
+     * @param sizeOfPatchW Size of patch (w)
+     * @param sizeOfPatchH Size of patch (h)
+     * @return Visual words for each test vector
+     * @throws NoValidPictureException Picture is not valid
+     * @throws PictureTooHomogeneous Picture is too homogeneous to be indexed
+     */
+    public abstract List<ConcurrentHashMap<Long, Long>> extractVisualWords(
+            BufferedImage image,
+            Long id,
+            int N,
+            int resizeMethod,
+            int sizeOfPatchW,
+            int sizeOfPatchH)
+            throws NoValidPictureException, PictureTooHomogeneous;
+
+    /**
+     * Write a batch of pictures (and their visual words) in index.
+     * Only one batch is written at the same time.
+     * @param pictures Pictures with visual words
+     * @param N Number of patches
+     * @param sync Sync index after the batch
+     * @return Map with pictures id and exception (NoException if ok)
+     */
+    public abstract Map<Long, CBIRException> addPictures(List<PictureVisualWords> pictures, int N, boolean sync);
+
     /**
      * Fill structure in argument with nbt an return it
      * Central server will ask NBT for this server during the search process.
      * @param visualWordsByTestVector Map of visual words for each tests vector
      * @return Map of visual words and their NBT for each tests vector
      */
-    public abstract List<ConcurrentHashMap<String, Long>> fillNBT(List<ConcurrentHashMap<String, Long>> visualWordsByTestVector);
+    public abstract List<ConcurrentHashMap<Long, Long>> fillNBT(List<ConcurrentHashMap<Long, Long>> visualWordsByTestVector);
 
     /**
      * Compute similarity thanks to structure in argument and Niq
      * @param visualWordsByTestVector Visual words for request picture IQ
      * @param Niq Number of patch generated by Iq
-     * @return Ordered lists of similar pictures (ordered by similarities with Iq)
+     * @param k Max number of similar pictures
+     * @return Ordered lists of the k most similar pictures (ordered by similarities with Iq)
+     */
+    public abstract List<ResultSim> computeSimilarity(List<ConcurrentHashMap<Long, RequestPictureVisualWord>> visualWordsByTestVector,int Niq,int k);
+
+    /**
+     * Compute similarity with posting lists already read from the store
+     * @param visualWordsByTestVector Visual words for request picture IQ
+     * @param postings Posting lists for each test vector name (if null or missing, read from the test vector)
+     * @param Niq Number of patch generated by Iq
+     * @param k Max number of similar pictures
+     * @return Ordered lists of the k most similar pictures (ordered by similarities with Iq)
      */
-    public abstract List<ResultSim> computeSimilarity(List<ConcurrentHashMap<String, RequestPictureVisualWord>> visualWordsByTestVector,int Niq);
-//    public abstract List<ResultSim> computeSimilarity(Map<String,Map<String,ValueStructure>> vws, List<ConcurrentHashMap<String, RequestPictureVisualWord>> visualWordsByTestVector, int Niq);
+    public abstract List<ResultSim> computeSimilarity(List<ConcurrentHashMap<Long, RequestPictureVisualWord>> visualWordsByTestVector, Map<String,Map<Long,ValueStructure>> postings, int Niq, int k);
+
     /**
      * Get the number of indexed pictures on index
      * @return Size of index
@@ -116,11 +185,19 @@ public abstract class Index {
      * VERY BAD PERFORMANCE (must browse all index!)
      * @param uri ids path to delete
      */
-    public void deletePicture(List<Long> ids) {
+    public synchronized void deletePicture(List<Long> ids) {
         logger.info("deletePicture " + ids.size() +" resources");
+        if (log != null) {
+            try {
+                log.delete(ids);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot write log: " + e);
+            }
+        }
         Map<Long, Integer> picturesID = pictureIndex.delete(ids);
         System.out.println("picturesID="+picturesID);
         picturesToPurge.putToPurge(picturesID); 
+        updates++;
     }
 
     /**
@@ -137,9 +214,21 @@ public abstract class Index {
      */
     public synchronized void purge(ConfigServer config) {
         logger.info("purge " + picturesToPurge.size() +" resources");
+        if (log != null) {
+            try {
+                log.purge();
+            } catch (IOException e) {
+                logger.error("Cannot write log, no purge: " + e);
+                return;
+            }
+        }
         getTestVectors().delete(picturesToPurge.getPicturesToPurge());
+        if (nbtCache != null) {
+            nbtCache.invalidate();
+        }
         logger.info("clear purge index");
         picturesToPurge.clear();
+        updates++;
         logger.info("picture to purge = " + getPurgeSize());
     }
 
@@ -197,6 +286,44 @@ public abstract class Index {
         getTestVectors().sync();
     }
 
+    /**
+     * Get the number of modifications since index start
+     * @return Updates
+     */
+    public synchronized long getUpdates() {
+        return updates;
+    }
+
+    /**
+     * Encode a snapshot of this storage (only-memory index).
+     * Pictures cannot be added, deleted or purged during the encode, searches are not blocked.
+     * Snapshot is written on disk by the caller, without lock.
+     * @param memory Memory database
+     * @return Snapshot
+     * @throws IOException Error during encode
+     */
+    public synchronized MemorySnapshot snapshot(MemoryDatabase memory) throws IOException {
+        //postings of a segment index are written in segments (same pictures as snapshot)
+        sync();
+        //next modifications go in a new log segment
+        long segment = log != null ? log.rotate() : 0;
+        return MemorySnapshot.encode(memory, idStorage, updates, segment);
+    }
+
+    /**
+     * Set the log of modifications (written before each modification)
+     * @param log Log (null: no log)
+     */
+    public synchronized void setLog(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Replay modifications read from log (log must not be set during the replay)
+     * @param records Log records
+     */
+    public abstract void replay(List<WriteAheadLog.Record> records);
+
     /**
      * Print stats on index (not for all database)
      */
@@ -209,28 +336,22 @@ public abstract class Index {
     }
 
     /**
-     * Overriding union between l1 and l2
-     * If l1 doesn't have the element e of l2, put e in l1
-     * If l1 already have the element e of l2, increment e value in l1
-     * @param   l1   HashMap l1
-     * @param   l2   HashMap l2
-     **/
-    protected synchronized static void fusion(Map<Long, Entry> l1, Map<Long, Entry> l2) {
-
-        for (Map.Entry<Long, Entry> entree : l2.entrySet()) {
-
-            Entry e2 = entree.getValue();
-            Entry e1 = l1.get(new Long(e2.getI()));
+     * Set the scheduler for search tasks (server scheduler)
+     * @param searchScheduler Scheduler
+     */
+    public void setSearchScheduler(SearchScheduler searchScheduler) {
+        this.searchScheduler = searchScheduler;
+    }
 
-            if (e1 != null) {
-                //if already exist, increment value
-                e1.incrementNIBT(e2.getNIBT());
-                e1.incrementSimilarities(e2.getSimilarities());
-            } else {
-                //if not exist, add it to l1
-                l1.put(e2.getI(), (Entry) e2.clone());
-            }
+    /**
+     * Get the scheduler for search tasks (default one if no server scheduler)
+     * @return Scheduler
+     */
+    public SearchScheduler getSearchScheduler() {
+        if(searchScheduler==null) {
+            return SearchScheduler.getDefault();
         }
+        return searchScheduler;
     }
 
     /**
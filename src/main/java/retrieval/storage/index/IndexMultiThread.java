@@ -18,8 +18,12 @@ package retrieval.storage.index;
 import org.apache.log4j.Logger;
 import retrieval.config.ConfigServer;
 import retrieval.dist.RequestPictureVisualWord;
+import retrieval.exception.CBIRException;
 import retrieval.server.globaldatabase.GlobalDatabase;
+import retrieval.server.globaldatabase.WriteAheadLog;
 import retrieval.storage.exception.AlreadyIndexedException;
+import retrieval.storage.exception.InternalServerException;
+import retrieval.storage.exception.NoException;
 import retrieval.storage.exception.NoValidPictureException;
 import retrieval.storage.exception.PictureTooHomogeneous;
 import retrieval.storage.exception.ReadIndexException;
@@ -28,6 +32,7 @@ import retrieval.testvector.TestVectorListServer;
 import retrieval.testvector.TestVectorServer;
 
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -54,6 +59,9 @@ public class IndexMultiThread extends Index {
         this.getTestVectors().setPictureIndexForAllTestVectors(pictureIndex);
         this.compress= new CompressIndexPicture(config.getMaxPercentageSimilarWord());
         this.picturesToPurge = new PicturesToPurge(idStorage,database);
+        if (config.getNbtCacheSize() > 0) {
+            this.nbtCache = new NBTCache(config.getNbtCacheSize());
+        }
     }
 
     /**
@@ -77,32 +85,14 @@ public class IndexMultiThread extends Index {
         }
 
         try {
-            if (image == null){
-                throw new NoValidPictureException(id + " is not a valid picture: img = null!");
-            }
-
-            logger.debug("putPictureAsIndexed " + id + " N=" + N);
-            pictureIndex.putPictureAsIndexed(id,properties, N,idStorage);
-
-            //Extract visualword from patch
-            logger.debug("generateVisualWordFromPicture " + id + " N=" + N + " resizeMethod=" + resizeMethod + " sizeOfPatchW=" + sizeOfPatchW + " sizeOfPatchH=" + sizeOfPatchH);
-            List<ConcurrentHashMap<String, Long>> visualWords = getTestVectors().generateVisualWordFromPicture(image, id, N, resizeMethod, sizeOfPatchW, sizeOfPatchH);
-
-            //Check if picture is not too homogennous
-            boolean isPictureTooHomogeneous = compress.isPictureTooHomogeneous(visualWords, N);
-            logger.debug("isPictureTooHomogeneous="+isPictureTooHomogeneous);
-            if(isPictureTooHomogeneous) {
-                throw new PictureTooHomogeneous();
-            }
-                
-            //add visual word on tests vectors index
-            logger.debug("add visualwords into index for imageID=" + id);
-            getTestVectors().addVisualWords(visualWords, id);
+            List<ConcurrentHashMap<Long, Long>> visualWords = extractVisualWords(image, id, N, resizeMethod, sizeOfPatchW, sizeOfPatchH);
             image = null;
 
-            //synchronize memory and disk
-            if (sync) {
-                sync();
+            List<PictureVisualWords> pictures = new ArrayList<PictureVisualWords>(1);
+            pictures.add(new PictureVisualWords(id, properties, visualWords));
+            CBIRException result = addPictures(pictures, N, sync).get(id);
+            if (result instanceof AlreadyIndexedException) {
+                throw (AlreadyIndexedException) result;
             }
             return id;
         }  catch (NoValidPictureException e) {
@@ -120,24 +110,177 @@ public class IndexMultiThread extends Index {
         return null;
     }
 
+    /**
+     * Extract visual words of a picture (for each test vector).
+     * Index is not modified, so many threads can extract pictures at the same time.
+     * @param image Image to index
+     * @param id Image id
+     * @param N Number of patches
+     * @param resizeMethod Method for resizing patches
+     * @param sizeOfPatchW Size of patch (w)
+     * @param sizeOfPatchH Size of patch (h)
+     * @return Visual words for each test vector
+     * @throws NoValidPictureException Picture is not valid
+     * @throws PictureTooHomogeneous Picture is too homogeneous to be indexed
+     */
+    public List<ConcurrentHashMap<Long, Long>> extractVisualWords(BufferedImage image, Long id, int N, int resizeMethod, int sizeOfPatchW, int sizeOfPatchH) throws NoValidPictureException, PictureTooHomogeneous {
+        if (image == null){
+            throw new NoValidPictureException(id + " is not a valid picture: img = null!");
+        }
+
+        //Extract visualword from patch
+        logger.debug("generateVisualWordFromPicture " + id + " N=" + N + " resizeMethod=" + resizeMethod + " sizeOfPatchW=" + sizeOfPatchW + " sizeOfPatchH=" + sizeOfPatchH);
+        List<ConcurrentHashMap<Long, Long>> visualWords;
+        try {
+            visualWords = getTestVectors().generateVisualWordFromPicture(image, id, N, resizeMethod, sizeOfPatchW, sizeOfPatchH);
+        } catch (InterruptedException e) {
+            throw new NoValidPictureException(id + " extraction was interrupted");
+        }
+
+        //Check if picture is not too homogennous
+        boolean isPictureTooHomogeneous = compress.isPictureTooHomogeneous(visualWords, N);
+        logger.debug("isPictureTooHomogeneous="+isPictureTooHomogeneous);
+        if(isPictureTooHomogeneous) {
+            throw new PictureTooHomogeneous();
+        }
+        return visualWords;
+    }
+
+    /**
+     * Write a batch of pictures (and their visual words) in index.
+     * Pictures are marked as indexed, then visual words of all pictures
+     * are added test vector by test vector.
+     * @param pictures Pictures with visual words
+     * @param N Number of patches
+     * @param sync Sync index after the batch
+     * @return Map with pictures id and exception (NoException if ok)
+     */
+    public synchronized Map<Long, CBIRException> addPictures(List<PictureVisualWords> pictures, int N, boolean sync) {
+        Map<Long, CBIRException> results = new HashMap<Long, CBIRException>(pictures.size() * 2);
+        List<PictureVisualWords> picturesToAdd = new ArrayList<PictureVisualWords>(pictures.size());
+
+        //write-ahead: pictures are in log (fsync) before being in index
+        if (log != null) {
+            try {
+                log.add(pictures, N);
+            } catch (IOException e) {
+                logger.error("Cannot write log: " + e);
+                for (int i = 0; i < pictures.size(); i++) {
+                    results.put(pictures.get(i).getId(), new InternalServerException("Cannot write log: " + e));
+                }
+                return results;
+            }
+        }
+
+        for (int i = 0; i < pictures.size(); i++) {
+            PictureVisualWords picture = pictures.get(i);
+            try {
+                logger.debug("putPictureAsIndexed " + picture.getId() + " N=" + N);
+                pictureIndex.putPictureAsIndexed(picture.getId(), picture.getProperties(), N, idStorage);
+                picturesToAdd.add(picture);
+                results.put(picture.getId(), new NoException());
+            } catch (AlreadyIndexedException e) {
+                results.put(picture.getId(), new AlreadyIndexedException(picture.getId() + " is already indexed"));
+            }
+        }
+
+        //add visual word on tests vectors index
+        logger.debug("add visualwords into index for " + picturesToAdd.size() + " pictures");
+        getTestVectors().addVisualWords(picturesToAdd);
+        if (!picturesToAdd.isEmpty()) {
+            updates++;
+            if (nbtCache != null) {
+                nbtCache.invalidate();
+            }
+        }
+
+        //synchronize memory and disk
+        if (sync) {
+            sync();
+        }
+        return results;
+    }
+
+    /**
+     * Replay modifications read from log.
+     * Pictures added between two deletes/purges are written in all test vectors
+     * in parallel (one task for each test vector).
+     * @param records Log records
+     */
+    public synchronized void replay(List<WriteAheadLog.Record> records) {
+        List<PictureVisualWords> picturesToAdd = new ArrayList<PictureVisualWords>();
+        for (WriteAheadLog.Record record : records) {
+            if (record.getType() == WriteAheadLog.ADD) {
+                PictureVisualWords picture = record.getPicture();
+                try {
+                    pictureIndex.putPictureAsIndexed(picture.getId(), picture.getProperties(), record.getPatchs(), idStorage);
+                    picturesToAdd.add(picture);
+                } catch (AlreadyIndexedException e) {
+                    //already in snapshot or refused when logged
+                }
+            } else {
+                replayPictures(picturesToAdd);
+                picturesToAdd.clear();
+                if (record.getType() == WriteAheadLog.DELETE) {
+                    deletePicture(record.getIds());
+                } else {
+                    purge(null);
+                }
+            }
+        }
+        replayPictures(picturesToAdd);
+        if (!records.isEmpty()) {
+            updates++;
+            if (nbtCache != null) {
+                nbtCache.invalidate();
+            }
+        }
+    }
+
+    private void replayPictures(List<PictureVisualWords> pictures) {
+        if (pictures.isEmpty()) {
+            return;
+        }
+        List<AddVisualWordsTask> tasks = new ArrayList<AddVisualWordsTask>(getTestVectors().size());
+        for (int i = 0; i < getTestVectors().size(); i++) {
+            tasks.add(new AddVisualWordsTask(getTestVectors().get(i), i, pictures));
+        }
+        getSearchScheduler().invokeAll(tasks);
+    }
+
     /**
      * Fill structure in argument with nbt an return it
      * Central server will ask NBT for this server during the search process.
+     * With a NBT cache, only visual words not in cache are read from the index.
+     * Like computeSimilarity, it may run while pictures are added (or a snapshot encoded).
      * @param visualWordsByTestVector Map of visual words for each tests vector
      * @return Map of visual words and their NBT for each tests vector
      */
-    public synchronized List<ConcurrentHashMap<String, Long>> fillNBT(List<ConcurrentHashMap<String, Long>> visualWordsByTestVector) {
+    public List<ConcurrentHashMap<Long, Long>> fillNBT(List<ConcurrentHashMap<Long, Long>> visualWordsByTestVector) {
         
         try {
-            FillNBTThread[] threads = new FillNBTThread[visualWordsByTestVector.size()];
+            List<ConcurrentHashMap<Long, Long>> toRead = visualWordsByTestVector;
+            long version = 0;
+            if (nbtCache != null) {
+                version = nbtCache.getVersion();
+                toRead = nbtCache.fill(visualWordsByTestVector);
+            }
 
-            for (int i = 0; i < visualWordsByTestVector.size(); i++) {
-                threads[i] = new FillNBTThread(this.getTestVectors().get(i), visualWordsByTestVector.get(i));
-                threads[i].start();
+            List<FillNBTTask> tasks = new ArrayList<FillNBTTask>(toRead.size());
+            for (int i = 0; i < toRead.size(); i++) {
+                if (!toRead.get(i).isEmpty()) {
+                    tasks.add(new FillNBTTask(this.getTestVectors().get(i), toRead.get(i)));
+                }
+            }
+            if (!tasks.isEmpty()) {
+                getSearchScheduler().invokeAll(tasks);
             }
 
-            for (int i = 0; i < threads.length; i++) {
-                threads[i].join();
+            if (nbtCache != null) {
+                nbtCache.putAll(toRead, version);
+                for (int i = 0; i < toRead.size(); i++) {
+                    visualWordsByTestVector.get(i).putAll(toRead.get(i));
+                }
             }
             return visualWordsByTestVector;
 
@@ -149,45 +292,62 @@ public class IndexMultiThread extends Index {
 
     /**
      * Compute similarity thanks to structure in argument and Niq
+     * Only the k most similar pictures are kept (bounded heap, no full sort)
      * @param visualWordsByTestVector Visual words for request picture IQ
      * @param Niq Number of patch generated by Iq
+     * @param k Max number of similar pictures
      * @return Ordered lists of similar pictures (ordered by similarities with Iq)
      */
     public  List<ResultSim> computeSimilarity(
-            List<ConcurrentHashMap<String, RequestPictureVisualWord>> visualWordsByTestVector,
-            int Niq) {
+            List<ConcurrentHashMap<Long, RequestPictureVisualWord>> visualWordsByTestVector,
+            int Niq, int k) {
+        return computeSimilarity(visualWordsByTestVector, null, Niq, k);
+    }
+
+    /**
+     * Compute similarity with posting lists already read from the store
+     * (a test vector without posting lists reads them from its index)
+     * @param visualWordsByTestVector Visual words for request picture IQ
+     * @param postings Posting lists for each test vector name (may be null)
+     * @param Niq Number of patch generated by Iq
+     * @param k Max number of similar pictures
+     * @return Ordered lists of similar pictures (ordered by similarities with Iq)
+     */
+    public  List<ResultSim> computeSimilarity(
+            List<ConcurrentHashMap<Long, RequestPictureVisualWord>> visualWordsByTestVector,
+            Map<String,Map<Long,ValueStructure>> postings,
+            int Niq, int k) {
 
         try {
-            //map with all pictures with at least one visual word similar
-            ConcurrentHashMap<Long, Entry> resultsForAllTV = new ConcurrentHashMap<Long, Entry>(this.getSize());
+            List<ComputeSimilaritiesTask> tasks = new ArrayList<ComputeSimilaritiesTask>(visualWordsByTestVector.size());
 
-            ComputeSimilaritiesThread[] threads = new ComputeSimilaritiesThread[visualWordsByTestVector.size()];
+            //compute similarities for each test vector (and wait for all)
+            //each task has its own accumulator: no lock between test vectors or between queries
+            for (int i = 0; i < visualWordsByTestVector.size(); i++) {
+                TestVectorServer tv = getTestVectors().get(i);
+                tasks.add(new ComputeSimilaritiesTask(visualWordsByTestVector.get(i), postings != null ? postings.get(tv.getName()) : null, tv, Niq));
+            }
+            getSearchScheduler().invokeAll(tasks);
 
-            //compute similarities for each visual word
-            for (int i = 0; i < threads.length; i++) {
-                threads[i] = new ComputeSimilaritiesThread(visualWordsByTestVector.get(i), resultsForAllTV, getTestVectors().get(i), Niq);
-                threads[i].start();
+            //fuse accumulators: all pictures with at least one visual word similar
+            int candidates = 0;
+            for (int i = 0; i < tasks.size(); i++) {
+                candidates = Math.max(candidates, tasks.get(i).getScores().size());
             }
-            //wait for all thread
-            for (int i = 0; i < threads.length; i++) {
-                threads[i].join();
+            ScoreAccumulator resultsForAllTV = new ScoreAccumulator(candidates);
+            for (int i = 0; i < tasks.size(); i++) {
+                resultsForAllTV.addAll(tasks.get(i).getScores());
             }
 
-            //sort results
-            List<ResultSim> resultsList = new ArrayList<ResultSim>(this.getSize());
-            for (Map.Entry<Long, Entry> entry : resultsForAllTV.entrySet()) {
-//                Map<String,String> properties = pictureIndex.getProperties(entry.getKey());
-                if(entry.getKey()!=-1) {
-                    resultsList.add(new ResultSim(entry.getKey(), null, entry.getValue().getSimilarities()));
+            //keep k best results
+            double T = visualWordsByTestVector.size();
+            TopKSelector best = new TopKSelector(k, resultsForAllTV.size());
+            for (int i = 0; i < resultsForAllTV.size(); i++) {
+                if(resultsForAllTV.getI(i)!=-1) {
+                    best.offer(resultsForAllTV.getI(i), resultsForAllTV.getSimilarity(i) / T);
                 }
-
             }
-
-            for (int i = 0; i < resultsList.size(); i++) {
-                resultsList.get(i).divideSimilarities(visualWordsByTestVector.size());
-            }
-            Collections.sort(resultsList);
-            return resultsList;
+            return best.toResults();
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -198,16 +358,44 @@ public class IndexMultiThread extends Index {
 
 }
 
+/**
+ * Add visual words of pictures in one test vector index
+ * @author Rollus Loic
+ */
+class AddVisualWordsTask implements Runnable {
+
+    private final TestVectorServer tv;
+    private final int position;
+    private final List<PictureVisualWords> pictures;
+
+    AddVisualWordsTask(TestVectorServer tv, int position, List<PictureVisualWords> pictures) {
+        this.tv = tv;
+        this.position = position;
+        this.pictures = pictures;
+    }
+
+    @Override
+    public void run() {
+        List<ConcurrentHashMap<Long, Long>> visualWords = new ArrayList<ConcurrentHashMap<Long, Long>>(pictures.size());
+        List<Long> imagesID = new ArrayList<Long>(pictures.size());
+        for (int i = 0; i < pictures.size(); i++) {
+            visualWords.add(pictures.get(i).getVisualWords().get(position));
+            imagesID.add(pictures.get(i).getId());
+        }
+        tv.addVisualWordsToIndex(visualWords, imagesID);
+    }
+}
+
 /**
  * Get all NBT on a test vector for each visual word in visualwords
  * @author Rollus Loic
  */
-class FillNBTThread extends Thread {
+class FillNBTTask implements Runnable {
 
     private final TestVectorServer tv;
-    private ConcurrentHashMap<String, Long> visualWords;
+    private ConcurrentHashMap<Long, Long> visualWords;
 
-    FillNBTThread(TestVectorServer tv, ConcurrentHashMap<String, Long> visualWords) {
+    FillNBTTask(TestVectorServer tv, ConcurrentHashMap<Long, Long> visualWords) {
         this.tv = tv;
         this.visualWords = visualWords;
     }
@@ -220,35 +408,49 @@ class FillNBTThread extends Thread {
 
 /**
  * Compute similarities for on test vector for each visual word visualwords
+ * Posting lists are read from the test vector index if not given
+ * Results are kept in the task (fused by the caller when all tasks are done)
  * @author Rollus Loic
  */
-class ComputeSimilaritiesThread extends Thread {
+class ComputeSimilaritiesTask implements Runnable {
 
-    private final ConcurrentHashMap<Long, Entry> resultsForAllTV;
-    private final ConcurrentHashMap<String, RequestPictureVisualWord> visualWords;
+    private final ConcurrentHashMap<Long, RequestPictureVisualWord> visualWords;
+    private final Map<Long, ValueStructure> postings;
     private final TestVectorServer tv;
     private final int Niq;
+    private ScoreAccumulator scores = new ScoreAccumulator(0);
     
-    private static Logger logger = Logger.getLogger(ComputeSimilaritiesThread.class);
+    private static Logger logger = Logger.getLogger(ComputeSimilaritiesTask.class);
 
-    ComputeSimilaritiesThread(
-            ConcurrentHashMap<String, RequestPictureVisualWord> visualWords,
-            ConcurrentHashMap<Long, Entry> resultsForAllTV,
+    ComputeSimilaritiesTask(
+            ConcurrentHashMap<Long, RequestPictureVisualWord> visualWords,
+            Map<Long, ValueStructure> postings,
             TestVectorServer tv, int Niq) {
-        this.resultsForAllTV = resultsForAllTV;
         this.tv = tv;
         this.visualWords = visualWords;
+        this.postings = postings;
         this.Niq = Niq;
     }
 
     @Override
     public void run() {
         try {
-        ConcurrentHashMap<Long, Entry> results = tv.completeSimilarityPictures(visualWords, Niq);
-        Index.fusion(resultsForAllTV, results);
+        if (postings != null) {
+            scores = tv.computeScores(postings, visualWords, Niq);
+        } else {
+            scores = tv.computeScores(visualWords, Niq);
+        }
         } catch(Exception e) {
             //e.printStackTrace();
             logger.error(e.toString());
         }
     }
+
+    /**
+     * Get similarities for this test vector (empty if task failed)
+     * @return Similarity accumulator
+     */
+    ScoreAccumulator getScores() {
+        return scores;
+    }
 }
@@ -67,21 +67,21 @@ public abstract class IndexStructAbs {
      * @param visualWords Visual words build with I
      * @param I Image id
      */
-    public abstract void put(ConcurrentHashMap<String, Long> visualWords, Long I);
+    public abstract void put(ConcurrentHashMap<Long, Long> visualWords, Long I);
     
     /**
      * Get NBT from index for these visualWord
      * @param visualWord Visual words
      * @return NBT
      */
-    public abstract ConcurrentHashMap<String, Long> getNBT(ConcurrentHashMap<String, Long> visualWord);
+    public abstract ConcurrentHashMap<Long, Long> getNBT(ConcurrentHashMap<Long, Long> visualWord);
 
     /**
      * Get all entry from index for these visualwords B
      * @param visualWord Visualwords to retrieve
      * @return Map with each VW as key and its value as value
      */
-    public abstract Map<String,ValueStructure> getAll(List<String> visualWord);
+    public abstract Map<Long,ValueStructure> getAll(List<Long> visualWord);
     
     /**
      * Close index database
@@ -106,5 +106,11 @@ public abstract class IndexStructAbs {
      */
     public abstract void printStat();
 
-    public abstract Map<String,Map<String,ValueStructure>> getAll(Map<String,List<String>> keysForTV);
+    /**
+     * Get all entries for the visual words of many storages and test vectors
+     * in a single request to the store (null if the store does not support it)
+     * @param keysByStorage For each storage, for each test vector: visual words
+     * @return For each storage, for each test vector: map with each VW as key and its value as value
+     */
+    public abstract Map<String,Map<String,Map<Long,ValueStructure>>> getAll(Map<String,Map<String,List<Long>>> keysByStorage);
 }
@@ -26,6 +26,7 @@ import retrieval.storage.index.compress.compressNBT.CompressIndexNBT;
 import retrieval.storage.index.main.HashTableIndex;
 import retrieval.storage.index.main.MemoryHashTable;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -104,9 +105,11 @@ public final class IndexStructClassic extends IndexStructAbs {
      * @param I Request picture
      * @param NIBT
      */
-    public void put(ConcurrentHashMap<String, Long> visualWords, Long I) {
+    public void put(ConcurrentHashMap<Long, Long> visualWords, Long I) {
 
-        for (Map.Entry<String, Long> entry : visualWords.entrySet()) {
+        long[] added = new long[visualWords.size()];
+        int numberOfAdded = 0;
+        for (Map.Entry<Long, Long> entry : visualWords.entrySet()) {
 
             ValueStructure valueStruct = map.get(entry.getKey());
             if(!isCompressIndexEnabled() || (isCompressIndexEnabled() && !compressIndex.isBlackListed(entry.getKey()))) {
@@ -123,6 +126,7 @@ public final class IndexStructClassic extends IndexStructAbs {
                     //replace collection map with key
                     if(!isCompressIndexEnabled() || !compressIndex.isNBTTooBig(valueStruct.getNBT())) {
                         map.put(entry.getKey(), valueStruct);
+                        added[numberOfAdded++] = entry.getKey();
                     }
                     else {
                         //logger.info("#############BLACKLIST:"+entry.getKey());
@@ -133,7 +137,7 @@ public final class IndexStructClassic extends IndexStructAbs {
                 }
             }
         }
-   
+        map.putPicture(I, numberOfAdded==added.length ? added : Arrays.copyOf(added, numberOfAdded));
     }
 
     /**
@@ -141,7 +145,7 @@ public final class IndexStructClassic extends IndexStructAbs {
      * @param visualWord Visual Words
      * @return NBT for each Visual Words
      */
-    public ConcurrentHashMap<String, Long> getNBT(ConcurrentHashMap<String, Long> visualWord) {
+    public ConcurrentHashMap<Long, Long> getNBT(ConcurrentHashMap<Long, Long> visualWord) {
          return map.fillAllEntry(visualWord);
     }
 
@@ -151,7 +155,7 @@ public final class IndexStructClassic extends IndexStructAbs {
      * @return Map with each VW as key and its value as value
      */
     @Override
-    public Map<String, ValueStructure> getAll(List<String> B) {
+    public Map<Long,ValueStructure> getAll(List<Long> B) {
         return map.getAll(B);
     }
 
@@ -197,7 +201,12 @@ public final class IndexStructClassic extends IndexStructAbs {
     }
 
 
-    public Map<String,Map<String,ValueStructure>> getAll(Map<String,List<String>> keysForTV) {
+    /**
+     * Not needed for memory store: entries are read by each test vector
+     * @param keysByStorage For each storage, for each test vector: visual words
+     * @return null
+     */
+    public Map<String,Map<String,Map<Long,ValueStructure>>> getAll(Map<String,Map<String,List<Long>>> keysByStorage) {
         return null;
     }
 }
@@ -17,12 +17,15 @@ package retrieval.storage.index;
 
 import org.apache.log4j.Logger;
 import retrieval.config.ConfigServer;
+import retrieval.server.globaldatabase.MemoryDatabase;
 import retrieval.storage.exception.CloseIndexException;
 import retrieval.storage.exception.ReadIndexException;
 import retrieval.storage.exception.StartIndexException;
 import retrieval.storage.index.compress.compressNBT.CompressIndexNBT;
 import retrieval.storage.index.main.HashTableIndexOptim;
+import retrieval.storage.index.main.MappedHashTable;
 import retrieval.storage.index.main.RedisHashTable;
+import retrieval.storage.index.main.SegmentHashTable;
 
 import java.util.List;
 import java.util.Map;
@@ -38,6 +41,8 @@ import java.util.concurrent.ConcurrentHashMap;
  * ...
  * Redis provide method to do this without retrieving. So we dont need to retrieve the main value
  * jedis.hincr(key,key2,n)
+ * SEGMENT also adds postings without reading the posting list (appended in a buffer).
+ * MAPPED appends postings in place in a memory-mapped file.
  * @author Rollus Loic
  */
 public class IndexStructOptim extends IndexStructAbs {
@@ -61,6 +66,10 @@ public class IndexStructOptim extends IndexStructAbs {
          */
         if (configStore.getStoreName().equals(RedisHashTable.NAME)) {
             map = new RedisHashTable(database,idStorage,idTestVector,configStore);
+        } else if (configStore.getStoreName().equals(SegmentHashTable.NAME)) {
+            map = new SegmentHashTable((MemoryDatabase)database,idStorage,idTestVector,configStore);
+        } else if (configStore.getStoreName().equals(MappedHashTable.NAME)) {
+            map = new MappedHashTable(database,idStorage,idTestVector,configStore);
         } else {
             throw new StartIndexException(configStore.getStoreName() + " is not implemented");
         }
@@ -80,7 +89,7 @@ public class IndexStructOptim extends IndexStructAbs {
      * @param I Request picture
      * @param NIBT
      */
-    public void put(ConcurrentHashMap<String, Long> visualWords, Long I) {
+    public void put(ConcurrentHashMap<Long, Long> visualWords, Long I) {
         map.incrementHashValue(visualWords, I,compressIndex);
     }
 
@@ -89,7 +98,7 @@ public class IndexStructOptim extends IndexStructAbs {
      * @param visualWord Visual word B
      * @return Number of patchs map with B in index
      */
-    public ConcurrentHashMap<String, Long> getNBT(ConcurrentHashMap<String, Long> visualWord) {
+    public ConcurrentHashMap<Long, Long> getNBT(ConcurrentHashMap<Long, Long> visualWord) {
         return map.getAllValues(visualWord);
     }
 
@@ -99,7 +108,7 @@ public class IndexStructOptim extends IndexStructAbs {
      * @return Map with each VW as key and its value as value
      */
     @Override
-    public Map<String, ValueStructure> getAll(List<String> visualWord) {
+    public Map<Long,ValueStructure> getAll(List<Long> visualWord) {
         return map.getAll(visualWord);
     }
 
@@ -145,7 +154,12 @@ public class IndexStructOptim extends IndexStructAbs {
     }
 
 
-    public Map<String,Map<String,ValueStructure>> getAll(Map<String,List<String>> keysForTV) {
-        return map.getAll(keysForTV);
+    /**
+     * Get all entries for the visual words of many storages and test vectors (single request)
+     * @param keysByStorage For each storage, for each test vector: visual words
+     * @return For each storage, for each test vector: map with each VW as key and its value as value
+     */
+    public Map<String,Map<String,Map<Long,ValueStructure>>> getAll(Map<String,Map<String,List<Long>>> keysByStorage) {
+        return map.getAll(keysByStorage);
     }
 }
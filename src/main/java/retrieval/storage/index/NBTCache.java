@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.storage.index;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of NBT (number of patches map with a visual word B) for each
+ * test vector of a storage, for the first part of the search.
+ * Least recently used NBT are removed when the cache is full.
+ * Each write on the index (pictures added or purged) increments the version
+ * of the cache: NBT read from the index with an older version are not kept.
+ * @author Rollus Loic
+ */
+public class NBTCache {
+
+    /**
+     * NBT for each (test vector, visual word), in access order
+     */
+    private final LinkedHashMap<Key, Long> cache;
+    /**
+     * Version of the index (incremented by each write)
+     */
+    private long version = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Construct a cache
+     * @param maxSize Max number of NBT
+     */
+    public NBTCache(final int maxSize) {
+        this.cache = new LinkedHashMap<Key, Long>(Math.min(maxSize, 1024) * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the version to give with NBT read from the index (see putAll)
+     * @return Current version
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Index has been modified: all NBT are removed
+     */
+    public synchronized void invalidate() {
+        version++;
+        cache.clear();
+    }
+
+    /**
+     * Fill NBT of visual words from the cache
+     * @param visualWordsByTestVector Visual words for each test vector (NBT are set for cached visual words)
+     * @return Visual words not in cache for each test vector (value is the value of the request)
+     */
+    public synchronized List<ConcurrentHashMap<Long, Long>> fill(List<ConcurrentHashMap<Long, Long>> visualWordsByTestVector) {
+        List<ConcurrentHashMap<Long, Long>> missing = new ArrayList<ConcurrentHashMap<Long, Long>>(visualWordsByTestVector.size());
+        for (int i = 0; i < visualWordsByTestVector.size(); i++) {
+            ConcurrentHashMap<Long, Long> notCached = new ConcurrentHashMap<Long, Long>();
+            for (Map.Entry<Long, Long> entry : visualWordsByTestVector.get(i).entrySet()) {
+                Long nbt = cache.get(new Key(i, entry.getKey()));
+                if (nbt != null) {
+                    entry.setValue(nbt);
+                    hits++;
+                } else {
+                    notCached.put(entry.getKey(), entry.getValue());
+                    misses++;
+                }
+            }
+            missing.add(notCached);
+        }
+        return missing;
+    }
+
+    /**
+     * Add NBT read from the index (ignored if index has been modified since version)
+     * @param nbtByTestVector NBT for each test vector
+     * @param version Version of the cache when NBT were read
+     */
+    public synchronized void putAll(List<ConcurrentHashMap<Long, Long>> nbtByTestVector, long version) {
+        if (version != this.version) {
+            return;
+        }
+        for (int i = 0; i < nbtByTestVector.size(); i++) {
+            for (Map.Entry<Long, Long> entry : nbtByTestVector.get(i).entrySet()) {
+                cache.put(new Key(i, entry.getKey()), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Get the number of NBT in cache
+     * @return Size of cache
+     */
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    /**
+     * Get the number of visual words found in cache
+     * @return Hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of visual words not found in cache
+     * @return Misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Key of a NBT: test vector and visual word
+     */
+    private static class Key {
+
+        private final int testVector;
+        private final long visualWord;
+
+        Key(int testVector, long visualWord) {
+            this.testVector = testVector;
+            this.visualWord = visualWord;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return testVector == key.testVector && visualWord == key.visualWord;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * testVector + (int) (visualWord ^ (visualWord >>> 32));
+        }
+    }
+}
@@ -22,9 +22,13 @@ import retrieval.storage.exception.AlreadyIndexedException;
 import retrieval.storage.exception.CloseIndexException;
 import retrieval.storage.exception.ReadIndexException;
 import retrieval.storage.exception.StartIndexException;
+import retrieval.storage.index.main.MappedHashTable;
+import retrieval.storage.index.main.SegmentHashTable;
+import retrieval.storage.index.patchs.MappedPatchsIndex;
 import retrieval.storage.index.patchs.PicturePatchsIndex;
 import retrieval.storage.index.patchs.RedisPatchsIndex;
 import retrieval.storage.index.patchs.SimpleHashMapPatchsIndex;
+import retrieval.storage.index.properties.MappedPropertiesIndex;
 import retrieval.storage.index.properties.PicturePropertiesIndex;
 import retrieval.storage.index.properties.RedisPropertiesIndex;
 import retrieval.storage.index.properties.SimpleHashMapPropertiesIndex;
@@ -86,12 +90,15 @@ public final class PictureIndex implements Serializable {
      */
     private PictureIndex(String idServer,ConfigServer configStore, GlobalDatabase globalDatabase) throws StartIndexException, ReadIndexException {
         this.configStore = configStore;
-        if (configStore.getStoreName().equals("MEMORY")) {
+        if (configStore.getStoreName().equals("MEMORY") || configStore.getStoreName().equals(SegmentHashTable.NAME)) {
             picturePathIndex = new SimpleHashMapPropertiesIndex(globalDatabase,idServer);
-            picturePatchsIndex =  new SimpleHashMapPatchsIndex(false);
+            picturePatchsIndex =  new SimpleHashMapPatchsIndex(globalDatabase,idServer);
        }else if (configStore.getStoreName().equals("REDIS")){
             picturePathIndex = new RedisPropertiesIndex(globalDatabase,idServer);
             picturePatchsIndex = new RedisPatchsIndex(globalDatabase,idServer);
+        }else if (configStore.getStoreName().equals(MappedHashTable.NAME)){
+            picturePathIndex = new MappedPropertiesIndex(globalDatabase,idServer);
+            picturePatchsIndex = new MappedPatchsIndex(globalDatabase,idServer);
         }else
             throw new StartIndexException(configStore.getStoreName() + " is not implemented for metadata index");
     }
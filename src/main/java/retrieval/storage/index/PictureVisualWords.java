@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.storage.index;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picture with its visual words (for each test vector), ready to be
+ * written in index
+ * @author Rollus Loic
+ */
+public class PictureVisualWords {
+
+    private final Long id;
+    private final Map<String,String> properties;
+    private final List<ConcurrentHashMap<Long, Long>> visualWords;
+
+    /**
+     * Construct a picture with its visual words
+     * @param id Picture id
+     * @param properties Picture properties
+     * @param visualWords Visual words for each test vector
+     */
+    public PictureVisualWords(Long id, Map<String,String> properties, List<ConcurrentHashMap<Long, Long>> visualWords) {
+        this.id = id;
+        this.properties = properties;
+        this.visualWords = visualWords;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Map<String,String> getProperties() {
+        return properties;
+    }
+
+    public List<ConcurrentHashMap<Long, Long>> getVisualWords() {
+        return visualWords;
+    }
+}
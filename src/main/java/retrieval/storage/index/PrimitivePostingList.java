@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.storage.index;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Posting list for a visual word B stored in two parallel primitive arrays:
+ * ids[i] is an image I and counts[i] its NIBT.
+ * Ids are kept sorted so a lookup is a binary search and an insert of a new
+ * (usually bigger) id is an append.
+ * Cost is 12 bytes per posting instead of a boxed HashMap entry.
+ * @author Rollus Loic
+ */
+public class PrimitivePostingList implements Serializable {
+
+    /**
+     * Sorted images id
+     */
+    private long[] ids;
+    /**
+     * NIBT for each image (same position as ids)
+     */
+    private int[] counts;
+    /**
+     * Number of postings used in arrays
+     */
+    private int size;
+
+    /**
+     * Construct an empty posting list
+     * @param capacity Start capacity of arrays
+     */
+    public PrimitivePostingList(int capacity) {
+        capacity = Math.max(capacity, 1);
+        this.ids = new long[capacity];
+        this.counts = new int[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * Increment NIBT of image I by n (insert I if not present)
+     * @param I Image I
+     * @param n Number to add
+     */
+    public void increment(long I, int n) {
+        int pos = indexOf(I);
+        if (pos >= 0) {
+            counts[pos] = counts[pos] + n;
+        } else {
+            insertAt(-(pos + 1), I, n);
+        }
+    }
+
+    /**
+     * Set NIBT of image I (insert I if not present)
+     * @param I Image I
+     * @param n NIBT
+     */
+    public void set(long I, int n) {
+        int pos = indexOf(I);
+        if (pos >= 0) {
+            counts[pos] = n;
+        } else {
+            insertAt(-(pos + 1), I, n);
+        }
+    }
+
+    /**
+     * Get NIBT of image I
+     * @param I Image I
+     * @return NIBT or 0 if I is not in the list
+     */
+    public int get(long I) {
+        int pos = indexOf(I);
+        return pos >= 0 ? counts[pos] : 0;
+    }
+
+    /**
+     * Check if image I is in the list
+     * @param I Image I
+     * @return True if I has a posting
+     */
+    public boolean contains(long I) {
+        return indexOf(I) >= 0;
+    }
+
+    /**
+     * Remove all images with id in mapID (just key are used)
+     * @param mapID Map with picture id as key
+     * @return Sum of NIBT removed
+     */
+    public long removeAll(Map<Long, Integer> mapID) {
+        long removed = 0;
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            if (mapID.containsKey(ids[i])) {
+                removed = removed + counts[i];
+            } else {
+                ids[j] = ids[i];
+                counts[j] = counts[i];
+                j++;
+            }
+        }
+        size = j;
+        return removed;
+    }
+
+    /**
+     * Get the number of postings
+     * @return Number of images in the list
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get image id at position i (0 &lt;= i &lt; size)
+     * @param i Position
+     * @return Image id
+     */
+    public long getId(int i) {
+        return ids[i];
+    }
+
+    /**
+     * Get NIBT at position i (0 &lt;= i &lt; size)
+     * @param i Position
+     * @return NIBT
+     */
+    public int getCount(int i) {
+        return counts[i];
+    }
+
+    /**
+     * Build a boxed map with all postings (compatibility only, allocates)
+     * @return Map with image I as key and NIBT as value
+     */
+    public Map<Long, Integer> toMap() {
+        Map<Long, Integer> map = new HashMap<Long, Integer>(size * 2);
+        for (int i = 0; i < size; i++) {
+            map.put(ids[i], counts[i]);
+        }
+        return map;
+    }
+
+    /**
+     * Binary search of I in ids
+     * @param I Image I
+     * @return Position of I or (-(insertion point) - 1)
+     */
+    private int indexOf(long I) {
+        //fast path: ids are usually inserted in increasing order
+        if (size == 0 || ids[size - 1] < I) {
+            return -(size + 1);
+        }
+        return Arrays.binarySearch(ids, 0, size, I);
+    }
+
+    private void insertAt(int pos, long I, int n) {
+        if (size == ids.length) {
+            int newCapacity = ids.length + (ids.length >> 1) + 1;
+            ids = Arrays.copyOf(ids, newCapacity);
+            counts = Arrays.copyOf(counts, newCapacity);
+        }
+        if (pos < size) {
+            System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+            System.arraycopy(counts, pos, counts, pos + 1, size - pos);
+        }
+        ids[pos] = I;
+        counts[pos] = n;
+        size++;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(ids[i]).append('=').append(counts[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
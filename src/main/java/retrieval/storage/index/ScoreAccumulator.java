@@ -0,0 +1,205 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.storage.index;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Similarity accumulator for a search on a test vector
+ * (or for all test vectors once their accumulators are fused).
+ * Each candidate image I has a position in dense primitive arrays
+ * (similarity, NIBT sum and NI) and a small open addressing table maps
+ * I to its position. Nothing is allocated for each posting.
+ * @author Rollus Loic
+ */
+public class ScoreAccumulator {
+
+    /**
+     * Position not found
+     */
+    public static final int ABSENT = -1;
+
+    private long[] ids;
+    private double[] similarities;
+    private int[] nibt;
+    private int[] ni;
+    private int size;
+    /**
+     * Hash table with (position + 1) for each image (0 = free slot)
+     */
+    private int[] table;
+
+    /**
+     * Construct an accumulator
+     * @param expectedSize Expected number of candidates images
+     */
+    public ScoreAccumulator(int expectedSize) {
+        int capacity = Math.max(expectedSize, 16);
+        ids = new long[capacity];
+        similarities = new double[capacity];
+        nibt = new int[capacity];
+        ni = new int[capacity];
+        table = new int[tableSize(capacity)];
+        size = 0;
+    }
+
+    /**
+     * Get position of image I
+     * @param I Image I
+     * @return Position or ABSENT
+     */
+    public int indexOf(long I) {
+        int mask = table.length - 1;
+        int i = hash(I) & mask;
+        int pos;
+        while ((pos = table[i]) != 0) {
+            if (ids[pos - 1] == I) {
+                return pos - 1;
+            }
+            i = (i + 1) & mask;
+        }
+        return ABSENT;
+    }
+
+    /**
+     * Add a new candidate image (must not be already in accumulator)
+     * @param I Image I
+     * @param NI Number of patchs of I (-1 if I is not in picture index)
+     * @return Position of I
+     */
+    public int add(long I, int NI) {
+        if (size == ids.length) {
+            grow();
+        }
+        int pos = size++;
+        ids[pos] = I;
+        ni[pos] = NI;
+        similarities[pos] = 0;
+        nibt[pos] = 0;
+        insert(I, pos);
+        return pos;
+    }
+
+    /**
+     * Add a similarity to the image at position pos
+     * @param pos Position
+     * @param similarity Similarity to add
+     */
+    public void addSimilarity(int pos, double similarity) {
+        similarities[pos] = similarities[pos] + similarity;
+    }
+
+    /**
+     * Increment NIBT of image at position pos
+     * @param pos Position
+     * @param n Number to add
+     */
+    public void incrementNIBT(int pos, int n) {
+        nibt[pos] = nibt[pos] + n;
+    }
+
+    /**
+     * Get the number of candidates (with the ones that are not in picture index)
+     * @return Number of candidates
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getI(int pos) {
+        return ids[pos];
+    }
+
+    public double getSimilarity(int pos) {
+        return similarities[pos];
+    }
+
+    public int getNIBT(int pos) {
+        return nibt[pos];
+    }
+
+    public int getNumberOfPatch(int pos) {
+        return ni[pos];
+    }
+
+    /**
+     * Add similarities and NIBT of each valid candidate from other
+     * (used to fuse the accumulators of each test vector once they are done)
+     * @param other Accumulator of a test vector
+     */
+    public void addAll(ScoreAccumulator other) {
+        for (int i = 0; i < other.size; i++) {
+            if (other.ni[i] != -1) {
+                int pos = indexOf(other.ids[i]);
+                if (pos == ABSENT) {
+                    pos = add(other.ids[i], other.ni[i]);
+                }
+                similarities[pos] = similarities[pos] + other.similarities[i];
+                nibt[pos] = nibt[pos] + other.nibt[i];
+            }
+        }
+    }
+
+    /**
+     * Build the Entry map (image id / entry) for each valid candidate
+     * (candidates with NI=-1 are skipped)
+     * @return Map with image I as key and its entry
+     */
+    public ConcurrentHashMap<Long, Entry> toEntries() {
+        ConcurrentHashMap<Long, Entry> map = new ConcurrentHashMap<Long, Entry>(2 * size);
+        for (int i = 0; i < size; i++) {
+            if (ni[i] != -1) {
+                Entry e = new Entry(ids[i], nibt[i]);
+                e.setNumberOfPatch(ni[i]);
+                e.incrementSimilarities(similarities[i]);
+                map.put(ids[i], e);
+            }
+        }
+        return map;
+    }
+
+    private void grow() {
+        int capacity = ids.length + (ids.length >> 1);
+        ids = Arrays.copyOf(ids, capacity);
+        similarities = Arrays.copyOf(similarities, capacity);
+        nibt = Arrays.copyOf(nibt, capacity);
+        ni = Arrays.copyOf(ni, capacity);
+        table = new int[tableSize(capacity)];
+        for (int i = 0; i < size; i++) {
+            insert(ids[i], i);
+        }
+    }
+
+    private void insert(long I, int pos) {
+        int mask = table.length - 1;
+        int i = hash(I) & mask;
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = pos + 1;
+    }
+
+    private static int tableSize(int capacity) {
+        //load factor <= 0.5
+        return Integer.highestOneBit(capacity * 2 - 1) << 1;
+    }
+
+    private static int hash(long I) {
+        long h = I * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.storage.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keep the k most similar pictures from a stream of (id, similarity).
+ * It's a bounded min-heap on primitive arrays: the root is the worst
+ * picture kept, so a new picture is just compared with the root.
+ * With same similarity, the first offered picture is better
+ * (same order as a stable sort of all pictures).
+ * @author Rollus Loic
+ */
+public class TopKSelector {
+
+    private final int k;
+    private long[] ids;
+    private double[] similarities;
+    private long[] order;
+    private int size;
+    private long offered;
+
+    /**
+     * Construct a selector
+     * @param k Max number of pictures to keep
+     * @param expectedSize Number of pictures that will be offered (arrays grow if needed)
+     */
+    public TopKSelector(int k, int expectedSize) {
+        this.k = Math.max(k, 0);
+        int capacity = Math.max(Math.min(this.k, expectedSize), 1);
+        this.ids = new long[capacity];
+        this.similarities = new double[capacity];
+        this.order = new long[capacity];
+        this.size = 0;
+        this.offered = 0;
+    }
+
+    /**
+     * Offer a picture
+     * @param id Picture id
+     * @param similarity Similarity with request picture
+     */
+    public void offer(long id, double similarity) {
+        long rank = offered++;
+        if (k == 0) {
+            return;
+        }
+        if (size < k) {
+            if (size == ids.length) {
+                grow();
+            }
+            ids[size] = id;
+            similarities[size] = similarity;
+            order[size] = rank;
+            siftUp(size++);
+        } else if (similarity > similarities[0]) {
+            //root is the worst picture kept and the new one is strictly better
+            ids[0] = id;
+            similarities[0] = similarity;
+            order[0] = rank;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Get the number of pictures kept
+     * @return Size (&lt;= k)
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Build results (most similar first).
+     * Only these pictures have a ResultSim object.
+     * @return Most similar pictures
+     */
+    public List<ResultSim> toResults() {
+        ResultSim[] results = new ResultSim[size];
+        //pop the worst until heap is empty
+        for (int i = size - 1; i >= 0; i--) {
+            results[i] = new ResultSim(ids[0], null, similarities[0]);
+            size--;
+            if (size > 0) {
+                swap(0, size);
+                siftDown(0);
+            }
+        }
+        List<ResultSim> list = new ArrayList<ResultSim>(results.length);
+        for (int i = 0; i < results.length; i++) {
+            list.add(results[i]);
+        }
+        return list;
+    }
+
+    /**
+     * Check if picture at i is worse than picture at j
+     */
+    private boolean isWorse(int i, int j) {
+        if (similarities[i] != similarities[j]) {
+            return similarities[i] < similarities[j];
+        }
+        return order[i] > order[j];
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!isWorse(i, parent)) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) {
+                break;
+            }
+            int worst = left;
+            int right = left + 1;
+            if (right < size && isWorse(right, left)) {
+                worst = right;
+            }
+            if (!isWorse(worst, i)) {
+                break;
+            }
+            swap(i, worst);
+            i = worst;
+        }
+    }
+
+    private void grow() {
+        int capacity = (int) Math.min((long) k, ids.length + (ids.length >> 1) + 1L);
+        ids = Arrays.copyOf(ids, capacity);
+        similarities = Arrays.copyOf(similarities, capacity);
+        order = Arrays.copyOf(order, capacity);
+    }
+
+    private void swap(int i, int j) {
+        long id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        double similarity = similarities[i];
+        similarities[i] = similarities[j];
+        similarities[j] = similarity;
+        long rank = order[i];
+        order[i] = order[j];
+        order[j] = rank;
+    }
+}
@@ -24,69 +24,82 @@ import java.util.*;
  * This class implements a value structure for the index
  * A value structure is map with a visual word B and contains entry
  * [I,NIBT] for each image I that generate NIBT (!=0) patchs which produced B
+ * Depending on STRUCTYPE, entries are stored in a HashMap (0), a TreeMap (1)
+ * or in sorted primitive arrays (2, see PrimitivePostingList)
  * @author Rollus Loic
  **/
 public class ValueStructure implements Serializable {
 
+    /**
+     * STRUCTYPE value for a HashMap structure
+     */
+    public static final int HASHMAP = 0;
+    /**
+     * STRUCTYPE value for a TreeMap structure
+     */
+    public static final int TREEMAP = 1;
+    /**
+     * STRUCTYPE value for primitive arrays structure
+     */
+    public static final int PRIMITIVE = 2;
+
     /**
      * Total NBT (sum of all NIBT for each I)
      */
     private long Nbt;
     /**
-     * Struct with map I and NIBT
+     * Struct with map I and NIBT (STRUCTYPE 0 or 1, null otherwise)
      */
     private Map<Long, Integer> valList;
+    /**
+     * Struct with sorted I and NIBT arrays (STRUCTYPE 2, null otherwise)
+     */
+    private PrimitivePostingList postings;
     /**
      * ONLY USED IN COMPRESSION MODE
      * Indicated that structure is full
      */
     boolean flagFull = false;
 
-    /**
-     * Configuration object
-     */
     /**
      * Construct a value structure
      * @param config Configuration object
      **/
     public ValueStructure(ConfigServer config) {
         Nbt = 0;
-
-        if (config.getStrucType() == 0) {
-            valList = new HashMap<Long, Integer>(config.getHashMapStartSize());
-        } else {
-            valList = new TreeMap<Long, Integer>();
-        }
+        initStructure(config.getStrucType(), config.getHashMapStartSize());
     }
 
     public ValueStructure(ConfigServer config, int numberOfItemPrevision, long NBT) {
-
-        if (config.getStrucType() == 0) {
-            this.valList = new HashMap<Long, Integer>(numberOfItemPrevision * 3);
-        }
-        else {
-            this.valList = new TreeMap<Long, Integer>();
-        }
-
+        initStructure(config.getStrucType(), numberOfItemPrevision * 3);
         Nbt = NBT;
     }
 
     public ValueStructure(ConfigServer config, Map<String, String> mapList, long NBT) {
-
-        if (config.getStrucType() == 0) {
-            this.valList = new HashMap<Long, Integer>(mapList.size() * 3);
-        }
-        else {
-            this.valList = new TreeMap<Long, Integer>();
-        }
-
+        initStructure(config.getStrucType(), mapList.size() * 3);
         Nbt = NBT;
         Set<Map.Entry<String, String>> set = mapList.entrySet();
 
         Iterator<java.util.Map.Entry<String, String>> iterator = set.iterator();
         while (iterator.hasNext()) {
             java.util.Map.Entry<String, String> entry = iterator.next();
-            this.valList.put(Long.parseLong(entry.getKey()), (int) Long.parseLong((entry.getValue())));
+            addEntryWithoutNBT(Long.parseLong(entry.getKey()), (int) Long.parseLong((entry.getValue())));
+        }
+    }
+
+    /**
+     * Build the structure that will contains entries
+     * @param strucType STRUCTYPE option
+     * @param startSize Start size of the structure
+     */
+    private void initStructure(int strucType, int startSize) {
+        if (strucType == HASHMAP) {
+            valList = new HashMap<Long, Integer>(startSize);
+        } else if (strucType == PRIMITIVE) {
+            //arrays are not rehashed, no need to keep free space
+            postings = new PrimitivePostingList(Math.max(startSize / 3, 1));
+        } else {
+            valList = new TreeMap<Long, Integer>();
         }
     }
 
@@ -95,6 +108,10 @@ public class ValueStructure implements Serializable {
      * @param mapID Map with picture id as key
      */
     public void deleteValue(Map<Long, Integer> mapID) {
+        if (postings != null) {
+            Nbt = Nbt - postings.removeAll(mapID);
+            return;
+        }
         List<Long> emptyKey = new ArrayList<Long>();
         for (Map.Entry<Long, Integer> entry : valList.entrySet()) {
             Long key = entry.getKey();
@@ -118,7 +135,7 @@ public class ValueStructure implements Serializable {
      **/
     @Override
     public String toString() {
-        return "NBT= " + Nbt + " valList=" + valList;
+        return "NBT= " + Nbt + " valList=" + (postings != null ? postings : valList);
     }
 
     /**
@@ -129,22 +146,32 @@ public class ValueStructure implements Serializable {
      * @param NIBT Number of patchs produced by I for visual word B
      **/
     public boolean addEntry(long I, int NIBT) {
+        Nbt = Nbt + NIBT;
+        if (postings != null) {
+            postings.increment(I, NIBT);
+            return true;
+        }
         Integer i = valList.get(I);
         if (i != null) {
-            Nbt = Nbt + NIBT;
-            valList.put(I, new Integer(i.intValue() + NIBT));
+            valList.put(I, i.intValue() + NIBT);
         } else {
-            Nbt = Nbt + NIBT;
-            valList.put(I, new Integer(NIBT));
+            valList.put(I, NIBT);
         }
         return true;
     }
 
     public void addEntryWithoutNBT(long I, int NIBT) {
-        valList.put(I, new Integer(NIBT));
+        if (postings != null) {
+            postings.set(I, NIBT);
+        } else {
+            valList.put(I, NIBT);
+        }
     }
 
-    public boolean isPicturePresent(Long id) {
+    public boolean isPicturePresent(long id) {
+        if (postings != null) {
+            return postings.contains(id);
+        }
         return valList.containsKey(id);
     }
 
@@ -153,7 +180,10 @@ public class ValueStructure implements Serializable {
      * @param I Image I
      * @return Occurence number
      **/
-    public int getNBIT(Long I) {
+    public int getNBIT(long I) {
+        if (postings != null) {
+            return postings.get(I);
+        }
         Integer l = valList.get(I);
         if (l != null) {
             return l.intValue();
@@ -164,12 +194,47 @@ public class ValueStructure implements Serializable {
 
     /**
      * Get the ValList structure
+     * With primitive structure, this build a new map (prefer cursor())
      * @return Val List
      **/
     public Map<Long, Integer> getEntries() {
+        if (postings != null) {
+            return postings.toMap();
+        }
         return valList;
     }
 
+    /**
+     * Get a cursor over all entries [I,NIBT] without boxing them
+     * (for primitive structure)
+     * @return Cursor on entries
+     */
+    public EntryCursor cursor() {
+        if (postings != null) {
+            return new PrimitiveCursor(postings);
+        }
+        return new MapCursor(valList.entrySet().iterator());
+    }
+
+    /**
+     * Get the number of images I in this structure
+     * @return Number of entries
+     */
+    public int size() {
+        if (postings != null) {
+            return postings.size();
+        }
+        return valList.size();
+    }
+
+    /**
+     * Check if there is no entry in this structure
+     * @return True if empty
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
     /**
      * Get the total number of VisualWord map with this structure
      * @return NUmber of VisualWord
@@ -177,4 +242,59 @@ public class ValueStructure implements Serializable {
     public long getNBT() {
         return Nbt;
     }
+
+    /**
+     * Cursor on a primitive posting list
+     */
+    private static class PrimitiveCursor implements EntryCursor {
+
+        private final PrimitivePostingList postings;
+        private int position = -1;
+
+        PrimitiveCursor(PrimitivePostingList postings) {
+            this.postings = postings;
+        }
+
+        public boolean next() {
+            position++;
+            return position < postings.size();
+        }
+
+        public long getI() {
+            return postings.getId(position);
+        }
+
+        public int getNIBT() {
+            return postings.getCount(position);
+        }
+    }
+
+    /**
+     * Cursor on a map (HashMap or TreeMap) of entries
+     */
+    private static class MapCursor implements EntryCursor {
+
+        private final Iterator<Map.Entry<Long, Integer>> iterator;
+        private Map.Entry<Long, Integer> current;
+
+        MapCursor(Iterator<Map.Entry<Long, Integer>> iterator) {
+            this.iterator = iterator;
+        }
+
+        public boolean next() {
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            current = iterator.next();
+            return true;
+        }
+
+        public long getI() {
+            return current.getKey();
+        }
+
+        public int getNIBT() {
+            return current.getValue();
+        }
+    }
 }
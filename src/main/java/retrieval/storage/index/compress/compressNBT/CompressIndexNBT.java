@@ -18,6 +18,8 @@ package retrieval.storage.index.compress.compressNBT;
 import retrieval.config.ConfigServer;
 import retrieval.server.globaldatabase.GlobalDatabase;
 import retrieval.storage.exception.StartIndexException;
+import retrieval.storage.index.main.MappedHashTable;
+import retrieval.storage.index.main.SegmentHashTable;
 
 import java.util.Map;
 
@@ -35,10 +37,12 @@ public abstract class CompressIndexNBT {
     long thresholdNBT;
 
     public static CompressIndexNBT getCompressIndexFactory(ConfigServer config, String idStorage, String idTV,Object globalDatabase) throws StartIndexException {
-        if(config.getStoreName().equals("MEMORY")) {
+        if(config.getStoreName().equals("MEMORY") || config.getStoreName().equals(SegmentHashTable.NAME)) {
             return new HashMapCompressIndex((GlobalDatabase)globalDatabase,config,idStorage,idTV);
         }else if(config.getStoreName().equals("REDIS")) {
             return new RedisCompressIndex((GlobalDatabase)globalDatabase,config,idStorage,idTV);
+        }else if(config.getStoreName().equals(MappedHashTable.NAME)) {
+            return new MappedCompressIndex((GlobalDatabase)globalDatabase,config,idStorage,idTV);
         }
         throw new StartIndexException(config.getStoreName() + " is not implemented for compress index");
     }
@@ -63,7 +67,7 @@ public abstract class CompressIndexNBT {
      * Blacklist a visualword
      * @param b visualword
      */
-    public abstract void blacklistVW(String b);
+    public abstract void blacklistVW(long b);
     
     /**
      * Retrieve all blacklisted VW
@@ -75,7 +79,7 @@ public abstract class CompressIndexNBT {
      * @param b visualword
      * @return true if b is blacklisted
      */
-    public abstract boolean isBlackListed(String b);
+    public abstract boolean isBlackListed(long b);
     
     /**
      * Check if the NBT compression is enabled
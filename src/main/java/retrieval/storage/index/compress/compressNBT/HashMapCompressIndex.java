@@ -17,8 +17,9 @@ package retrieval.storage.index.compress.compressNBT;
 
 import retrieval.config.ConfigServer;
 import retrieval.server.globaldatabase.GlobalDatabase;
+import retrieval.server.globaldatabase.MemoryDatabase;
+import retrieval.utils.ConvertUtils;
 
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -33,15 +34,15 @@ public class HashMapCompressIndex extends CompressIndexNBT {
     public HashMapCompressIndex(GlobalDatabase global,ConfigServer config,String idStorage, String idTV) {
         super(config.getIndexCompressThreshold());
         this.prefix = GlobalDatabase.KEY_COMPRESS_STORE + "#"+idStorage+"#"+idTV+"#";
-        blacklistedVW = (Map<String,Integer>)global.getDatabaseCompress();
+        blacklistedVW = ((MemoryDatabase)global).getCompressTable(idStorage, idTV);
     }
 
     /**
      * Blacklist a visualword
      * @param b visualword
      */    
-    public void blacklistVW(String b) {
-        blacklistedVW.put(b, 1);
+    public void blacklistVW(long b) {
+        blacklistedVW.put(ConvertUtils.convertVisualWordToHexa(b), 1);
     }
 
     /**
@@ -56,8 +57,8 @@ public class HashMapCompressIndex extends CompressIndexNBT {
      * @param b visualword
      * @return true if b is blacklisted
      */    
-    public boolean isBlackListed(String b) {
-        return blacklistedVW.containsKey(b);
+    public boolean isBlackListed(long b) {
+        return blacklistedVW.containsKey(ConvertUtils.convertVisualWordToHexa(b));
     }
 
 
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.storage.index.compress.compressNBT;
+
+import org.apache.log4j.Logger;
+import retrieval.config.ConfigServer;
+import retrieval.server.globaldatabase.GlobalDatabase;
+import retrieval.server.globaldatabase.MappedDatabase;
+import retrieval.server.globaldatabase.MappedStore;
+import retrieval.storage.exception.StartIndexException;
+import retrieval.utils.ConvertUtils;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Blacklisted visual words in a memory-mapped store (STORENAME=MAPPED)
+ * @author Rollus Loic
+ */
+public class MappedCompressIndex extends CompressIndexNBT {
+
+    private MappedStore store;
+
+    private static Logger logger = Logger.getLogger(MappedCompressIndex.class);
+
+    /**
+     * Create a compress NBT index in a mapped store
+     * @param global Mapped database
+     * @param config Config server
+     * @param idStorage Storage name
+     * @param idTV Test vector id
+     * @throws StartIndexException Error during store open
+     */
+    public MappedCompressIndex(GlobalDatabase global, ConfigServer config, String idStorage, String idTV) throws StartIndexException {
+        super(config.getIndexCompressThreshold());
+        try {
+            store = ((MappedDatabase) global.getDatabaseCompress()).getStore(idStorage, idTV, MappedDatabase.COMPRESS);
+        } catch (IOException e) {
+            throw new StartIndexException(e.toString());
+        }
+    }
+
+    /**
+     * Blacklist a visualword
+     * @param b visualword
+     */
+    public void blacklistVW(long b) {
+        try {
+            store.put(b, new byte[0]);
+        } catch (IOException e) {
+            logger.error("blacklistVW: " + e);
+        }
+    }
+
+    /**
+     * Retrieve all blacklisted VW
+     */
+    public Map<String, Integer> getBlacklistedVW() {
+        Map<String, Integer> blacklistedVW = new HashMap<String, Integer>();
+        for (long b : store.keys()) {
+            blacklistedVW.put(ConvertUtils.convertVisualWordToHexa(b), 1);
+        }
+        return blacklistedVW;
+    }
+
+    /**
+     * Check if a visualword is blacklisted in the storage for this test vector
+     * @param b visualword
+     * @return true if b is blacklisted
+     */
+    public boolean isBlackListed(long b) {
+        return store.contains(b);
+    }
+}
@@ -20,6 +20,7 @@ import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import retrieval.config.ConfigServer;
 import retrieval.server.globaldatabase.GlobalDatabase;
+import retrieval.utils.ConvertUtils;
 
 import java.util.HashMap;
 import java.util.Iterator;
@@ -57,9 +58,9 @@ public class RedisCompressIndex extends CompressIndexNBT {
      * Blacklist a visualword
      * @param b visualword
      */    
-    public void blacklistVW(String b) {
+    public void blacklistVW(long b) {
         try (Jedis redis = this.redis.getResource()) {
-            redis.sadd(prefix, b);
+            redis.sadd(prefix, ConvertUtils.convertVisualWordToHexa(b));
         }
     }
 
@@ -87,9 +88,9 @@ public class RedisCompressIndex extends CompressIndexNBT {
      * @param b visualword
      * @return true if b is blacklisted
      */    
-    public boolean isBlackListed(String b) {
+    public boolean isBlackListed(long b) {
         try (Jedis redis = this.redis.getResource()) {
-            return redis.sismember(prefix, b);
+            return redis.sismember(prefix, ConvertUtils.convertVisualWordToHexa(b));
         }
     }
 
@@ -45,7 +45,7 @@ public class CompressIndexPicture {
      * @param N
      * @return 
      */
-    public boolean isPictureTooHomogeneous(List<ConcurrentHashMap<String, Long>> visualwords, int N) {
+    public boolean isPictureTooHomogeneous(List<ConcurrentHashMap<Long, Long>> visualwords, int N) {
         if(!isCompessEnabled()) {
             return false;
         }
@@ -87,7 +87,7 @@ public class CompressIndexPicture {
      * @param visualWords
      * @return 
      */
-    public long[] getOccurrenceOfBiggestVisualWordForEachVector(List<ConcurrentHashMap<String, Long>> visualWords) {
+    public long[] getOccurrenceOfBiggestVisualWordForEachVector(List<ConcurrentHashMap<Long, Long>> visualWords) {
         long[] result = new long[visualWords.size()];
         for(int i=0;i<visualWords.size();i++) {
             result[i]=getOccurrenceOfBiggestVisualWord(visualWords.get(i));
@@ -95,11 +95,11 @@ public class CompressIndexPicture {
         return result;
     }
     
-    private long getOccurrenceOfBiggestVisualWord(ConcurrentHashMap<String, Long> visualWords) {
+    private long getOccurrenceOfBiggestVisualWord(ConcurrentHashMap<Long, Long> visualWords) {
         long max=Long.MIN_VALUE;
-        Iterator<Map.Entry<String,Long>> it = visualWords.entrySet().iterator();
+        Iterator<Map.Entry<Long, Long>> it = visualWords.entrySet().iterator();
         while(it.hasNext()) {
-            Map.Entry<String,Long> entry = it.next();
+            Map.Entry<Long, Long> entry = it.next();
             if(entry.getValue()>max){
                 max = entry.getValue();
             }
@@ -32,24 +32,32 @@ public abstract class HashTableIndex {
      * @param key Key
      * @param value Value
      */
-    public abstract void put(String key, ValueStructure value);
+    public abstract void put(long key, ValueStructure value);
     /**
      * Delete a key and it's value in the store
      * @param key Key
      */
-    public abstract void delete(String key);
+    public abstract void delete(long key);
     /**
      * Get the value for a key
      * @param key Key
      * @return Value
      */
-    public abstract ValueStructure get(String key);
+    public abstract ValueStructure get(long key);
     /**
      * Get each value map with each key from keys list
      * @param keys Key list
      * @return Map with key-value
      */
-     public abstract Map<String,ValueStructure> getAll(List<String> keys);
+     public abstract Map<Long,ValueStructure> getAll(List<Long> keys);
+
+    /**
+     * Keep the visual words where a picture has been added (reverse index).
+     * Store without reverse index does nothing.
+     * @param id Picture id
+     * @param keys Keys where the picture has been added
+     */
+    public abstract void putPicture(long id, long[] keys);
 
     /**
      * Delete all key from mapID on the store
@@ -80,7 +88,7 @@ public abstract class HashTableIndex {
      * @param entires that must be looked on the store
      * @return A map with each value from the store
      */
-    public abstract ConcurrentHashMap<String, Long> fillAllEntry(ConcurrentHashMap<String, Long> entires);
+    public abstract ConcurrentHashMap<Long, Long> fillAllEntry(ConcurrentHashMap<Long, Long> entires);
     /**
      * Print some information over HashTable
      */
@@ -33,25 +33,25 @@ public abstract class HashTableIndexOptim {
      * Delete a key and it's value in the store
      * @param key Key
      */
-    public abstract void delete(String key);
+    public abstract void delete(long key);
 
-    public abstract void incrementHashValue(String mainkey, String haskey, long value);
-    public abstract void incrementHashValue(ConcurrentHashMap<String, Long> visualWords, Long I, CompressIndexNBT compress);
-    public abstract String getHashValue(String mainkey, String haskey);
+    public abstract void incrementHashValue(long mainkey, String haskey, long value);
+    public abstract void incrementHashValue(ConcurrentHashMap<Long, Long> visualWords, Long I, CompressIndexNBT compress);
+    public abstract String getHashValue(long mainkey, String haskey);
     
         /**
      * Get the value for a key
      * @param mainkey Key
      * @return Value
      */
-    public abstract Map<String,String> getValue(String mainkey);
+    public abstract Map<String,String> getValue(long mainkey);
 
     /**
      * Get each value map with each key from keys list
      * @param keys Key list
      * @return Map with key-value
      */
-     public abstract Map<String,ValueStructure> getAll(List<String> keys);
+     public abstract Map<Long,ValueStructure> getAll(List<Long> keys);
 
     /**
      * Delete all key from mapID on the store
@@ -75,13 +75,17 @@ public abstract class HashTableIndexOptim {
      * @param result that must be looked on the store
      * @return A map with each value from the store
      */
-    public abstract ConcurrentHashMap<String, Long> getAllValues(ConcurrentHashMap<String, Long> result);
+    public abstract ConcurrentHashMap<Long, Long> getAllValues(ConcurrentHashMap<Long, Long> result);
     /**
      * Print some information over HashTable
      */
     public abstract void printStat();
 
-
-    public abstract Map<String,Map<String,ValueStructure>> getAll(Map<String,List<String>> keysForTVAndForStorage);
+    /**
+     * Get the value of each key for many storages and test vectors at once
+     * @param keysByStorage For each storage, for each test vector: keys
+     * @return For each storage, for each test vector: map with key-value
+     */
+    public abstract Map<String,Map<String,Map<Long,ValueStructure>>> getAll(Map<String,Map<String,List<Long>>> keysByStorage);
 
 }
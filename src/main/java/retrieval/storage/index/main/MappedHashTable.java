@@ -0,0 +1,304 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.storage.index.main;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import org.apache.log4j.Logger;
+import retrieval.config.ConfigServer;
+import retrieval.server.globaldatabase.MappedDatabase;
+import retrieval.server.globaldatabase.MappedStore;
+import retrieval.storage.exception.StartIndexException;
+import retrieval.storage.index.ValueStructure;
+import retrieval.storage.index.compress.compressNBT.CompressIndexNBT;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of a test vector in memory-mapped files (STORENAME=MAPPED), for indexes bigger than memory.
+ * Each visual word is a binary posting list in a MappedStore, same layout as REDISPOSTINGS=BINARY:
+ * [NBT (8 bytes)][last image id (8 bytes)] then for each posting
+ * [zigzag varint (image id - previous image id)][varint number of patchs].
+ * Postings are appended in place, NBT is read without decoding postings.
+ * A reverse store keeps the visual words of each image ([zigzag varint visual word][varint number of patchs] for each),
+ * so an image is deleted without scanning the visual words.
+ * @author Rollus Loic
+ */
+public class MappedHashTable extends HashTableIndexOptim {
+
+    public static String NAME = "MAPPED";
+
+    private static Logger logger = Logger.getLogger(MappedHashTable.class);
+
+    private ConfigServer config;
+    private MappedStore postings;
+    private MappedStore reverse;
+
+    public MappedHashTable(Object database, String idServer, String idTestVector, ConfigServer config) throws StartIndexException {
+        try {
+            this.config = config;
+            postings = ((MappedDatabase) database).getStore(idServer, idTestVector, MappedDatabase.POSTINGS);
+            reverse = ((MappedDatabase) database).getStore(idServer, idTestVector, MappedDatabase.REVERSE);
+        } catch (Exception e) {
+            logger.fatal(e.toString());
+            throw new StartIndexException(e.toString());
+        }
+    }
+
+    public synchronized void incrementHashValue(ConcurrentHashMap<Long, Long> visualWords, Long I, CompressIndexNBT compress) {
+        byte[] words = new byte[visualWords.size() * 15];
+        CodedOutputStream reverseWords = CodedOutputStream.newInstance(words);
+        try {
+            for (Map.Entry<Long, Long> entry : visualWords.entrySet()) {
+                long key = entry.getKey();
+                if (compress.isCompessEnabled()) {
+                    if (compress.isBlackListed(key)) {
+                        continue;
+                    }
+                    if (compress.isNBTTooBig(getNBT(key) + entry.getValue())) {
+                        compress.blacklistVW(key);
+                        delete(key);
+                        continue;
+                    }
+                }
+                try {
+                    add(key, I, entry.getValue().intValue());
+                } catch (IOException e) {
+                    //posting list of this visual word is full (MAPPEDCHUNK), other visual words are added
+                    logger.error("incrementHashValue: cannot add image " + I + " to visual word " + key + ": " + e);
+                    continue;
+                }
+                writeWord(reverseWords, key, entry.getValue().intValue());
+            }
+            if (reverseWords.spaceLeft() < words.length) {
+                reverse.append(I, new byte[0], Arrays.copyOf(words, words.length - reverseWords.spaceLeft()));
+            }
+        } catch (IOException e) {
+            logger.error("incrementHashValue: " + e);
+        }
+    }
+
+    public synchronized void incrementHashValue(long mainkey, String haskey, long value) {
+        if (haskey.equals("-1")) {
+            //NBT of a visual word is the sum of its postings
+            logger.warn("incrementHashValue: NBT cannot be incremented alone with mapped postings");
+            return;
+        }
+        try {
+            add(mainkey, Long.parseLong(haskey), (int) value);
+            byte[] word = new byte[15];
+            CodedOutputStream output = CodedOutputStream.newInstance(word);
+            writeWord(output, mainkey, (int) value);
+            reverse.append(Long.parseLong(haskey), new byte[0], Arrays.copyOf(word, word.length - output.spaceLeft()));
+        } catch (IOException e) {
+            logger.error("incrementHashValue: " + e);
+        }
+    }
+
+    private static void writeWord(CodedOutputStream output, long key, int NIBT) throws IOException {
+        output.writeUInt64NoTag(CodedOutputStream.encodeZigZag64(key));
+        output.writeUInt32NoTag(NIBT);
+    }
+
+    /**
+     * Append a posting to a visual word (header is rewritten)
+     */
+    private void add(long key, long I, int NIBT) throws IOException {
+        long nbt = 0;
+        long last = 0;
+        byte[] head = postings.get(key, 0, RedisHashTable.HEADER_SIZE);
+        if (head != null && head.length == RedisHashTable.HEADER_SIZE) {
+            ByteBuffer buffer = ByteBuffer.wrap(head);
+            nbt = buffer.getLong();
+            last = buffer.getLong();
+        }
+        byte[] posting = new byte[15];
+        CodedOutputStream output = CodedOutputStream.newInstance(posting);
+        output.writeUInt64NoTag(CodedOutputStream.encodeZigZag64(I - last));
+        output.writeUInt32NoTag(NIBT);
+        head = ByteBuffer.allocate(RedisHashTable.HEADER_SIZE).putLong(nbt + NIBT).putLong(I).array();
+        postings.append(key, head, Arrays.copyOf(posting, posting.length - output.spaceLeft()));
+    }
+
+    public String getHashValue(long mainkey, String haskey) {
+        return getValue(mainkey).get(haskey);
+    }
+
+    public Map<String, String> getValue(long mainkey) {
+        Map<String, String> map = new HashMap<String, String>();
+        ValueStructure value = RedisHashTable.readPostings(config, postings.get(mainkey));
+        if (value != null) {
+            for (Map.Entry<Long, Integer> entry : value.getEntries().entrySet()) {
+                map.put(entry.getKey() + "", entry.getValue() + "");
+            }
+            map.put("-1", value.getNBT() + "");
+        }
+        return map;
+    }
+
+    public Map<Long, ValueStructure> getAll(List<Long> keys) {
+        Map<Long, ValueStructure> map = new HashMap<Long, ValueStructure>(keys.size() * 2);
+        for (Long key : keys) {
+            ValueStructure value = RedisHashTable.readPostings(config, postings.get(key));
+            if (value != null) {
+                map.put(key, value);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Not needed: entries are read by each test vector
+     * @param keysByStorage For each storage, for each test vector: keys
+     * @return null
+     */
+    public Map<String, Map<String, Map<Long, ValueStructure>>> getAll(Map<String, Map<String, List<Long>>> keysByStorage) {
+        return null;
+    }
+
+    /**
+     * Fill NBT of each visual word (only the header of the posting list is read)
+     * @param result Visual words
+     * @return Visual words and their NBT (0 if not in index)
+     */
+    public ConcurrentHashMap<Long, Long> getAllValues(ConcurrentHashMap<Long, Long> result) {
+        for (Map.Entry<Long, Long> entry : result.entrySet()) {
+            entry.setValue(getNBT(entry.getKey()));
+        }
+        return result;
+    }
+
+    private long getNBT(long key) {
+        byte[] head = postings.get(key, 0, 8);
+        return head != null && head.length == 8 ? ByteBuffer.wrap(head).getLong() : 0;
+    }
+
+    public synchronized void delete(long key) {
+        postings.remove(key);
+    }
+
+    /**
+     * Delete images from index: only the visual words of the images (reverse store) are rewritten
+     * @param mapID Image ID to delete as key (don't care of value)
+     */
+    public synchronized void deleteAll(Map<Long, Integer> mapID) {
+        logger.info("deleteAll:" + mapID.size());
+        try {
+            for (Long id : mapID.keySet()) {
+                byte[] words = reverse.get(id);
+                if (words == null) {
+                    continue;
+                }
+                Set<Long> keys = new HashSet<Long>();
+                CodedInputStream input = CodedInputStream.newInstance(words);
+                while (!input.isAtEnd()) {
+                    keys.add(CodedInputStream.decodeZigZag64(input.readRawVarint64()));
+                    input.readRawVarint32();
+                }
+                for (Long key : keys) {
+                    byte[] value = postings.get(key);
+                    if (value != null) {
+                        byte[] kept = removePosting(value, id);
+                        if (kept == null) {
+                            postings.remove(key);
+                        } else if (kept != value) {
+                            postings.put(key, kept);
+                        }
+                    }
+                }
+                reverse.remove(id);
+            }
+        } catch (IOException e) {
+            logger.error("deleteAll: " + e);
+        }
+    }
+
+    /**
+     * Remove the postings of an image from a binary posting list
+     * (delta of the next posting and header are recomputed)
+     * @param bytes Binary posting list
+     * @param id Image id
+     * @return New posting list, same bytes if image is not in the list, null if no posting is kept
+     * @throws IOException Bad binary posting list
+     */
+    static byte[] removePosting(byte[] bytes, long id) throws IOException {
+        ByteArrayOutputStream kept = new ByteArrayOutputStream(bytes.length);
+        CodedOutputStream output = CodedOutputStream.newInstance(kept);
+        CodedInputStream input = CodedInputStream.newInstance(bytes, RedisHashTable.HEADER_SIZE, bytes.length - RedisHashTable.HEADER_SIZE);
+        long current = 0;
+        long previous = 0;
+        long nbt = 0;
+        boolean removed = false;
+        while (!input.isAtEnd()) {
+            current = current + CodedInputStream.decodeZigZag64(input.readRawVarint64());
+            int NIBT = input.readRawVarint32();
+            if (current == id) {
+                removed = true;
+            } else {
+                output.writeUInt64NoTag(CodedOutputStream.encodeZigZag64(current - previous));
+                output.writeUInt32NoTag(NIBT);
+                previous = current;
+                nbt = nbt + NIBT;
+            }
+        }
+        if (!removed) {
+            return bytes;
+        }
+        output.flush();
+        if (kept.size() == 0) {
+            return null;
+        }
+        ByteBuffer value = ByteBuffer.allocate(RedisHashTable.HEADER_SIZE + kept.size());
+        value.putLong(nbt).putLong(previous).put(kept.toByteArray());
+        return value.array();
+    }
+
+    public boolean isRessourcePresent(Long id) {
+        return reverse.contains(id);
+    }
+
+    /**
+     * Write pages of posting lists on disk (space of moved posting lists is reclaimed if needed)
+     */
+    public void sync() {
+        try {
+            postings.sync();
+            reverse.sync();
+        } catch (IOException e) {
+            logger.error("sync: " + e);
+        }
+    }
+
+    public void closeIndex() throws Exception {
+        postings.sync();
+        reverse.sync();
+    }
+
+    public void printStat() {
+        long[] space = postings.getSpace();
+        logger.info("INDEX MAPPED: visual words=" + postings.size() + " images=" + reverse.size()
+                + " used=" + (space[0] / 1024) + " KB garbage=" + (space[1] / 1024) + " KB file=" + (space[2] / 1024) + " KB");
+    }
+}
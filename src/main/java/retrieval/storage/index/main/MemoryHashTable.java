@@ -16,33 +16,38 @@
 package retrieval.storage.index.main;
 
 import org.apache.log4j.Logger;
-import redis.clients.jedis.JedisPool;
 import retrieval.config.ConfigServer;
-import retrieval.server.globaldatabase.GlobalDatabase;
 import retrieval.server.globaldatabase.MemoryDatabase;
-import retrieval.server.globaldatabase.RedisDatabase;
 import retrieval.storage.exception.ReadIndexException;
 import retrieval.storage.index.ValueStructure;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A simple hash table in memory
+ * Each test vector has its own table with the visual word bit pattern as key
  * @author Rollus Loic
  */
 public class MemoryHashTable extends HashTableIndex {
 
-    protected String prefix = "";
-    protected String subPrefix = "";
     /**
      * Name of Hashtable
      */
     public static String NAME = "MEMORY";
     /**
-     * HashTable
+     * HashTable for this test vector
      */
-    protected Map<String, ValueStructure> hashmap;
+    protected VisualWordTable hashmap;
+    /**
+     * Visual words of each picture for this test vector (null if MEMORYREVERSEINDEX is false)
+     */
+    protected ConcurrentHashMap<Long,long[]> reverse;
     /**
      * Configuration object
      */
@@ -54,7 +59,9 @@ public class MemoryHashTable extends HashTableIndex {
 
     /**
      * Constructor for a memory Hash Table
-     * @param file Name of file which will contain store
+     * @param database Memory database which keep the table of each test vector
+     * @param idServer Storage id
+     * @param idTestVector Test vector id
      * @param configStore Configuration object
      * @param read If true, read index (if already exist), else create new index
      * @throws ReadIndexException Error during the read of index
@@ -65,9 +72,10 @@ public class MemoryHashTable extends HashTableIndex {
         try {
             logger.debug("SimpleHashMap: read old index");
              if(!read) {
-                 hashmap = (Map<String, ValueStructure>)(database.getDatabase());
-                 this.prefix = GlobalDatabase.KEY_INDEX_STORE + "#"+idServer+"#"+idTestVector+"#";
-                 this.subPrefix = GlobalDatabase.KEY_INDEX_STORE + "#"+idServer+ "#";
+                 hashmap = database.getIndexTable(idServer, idTestVector);
+                 if(configStore.isMemoryReverseIndex()) {
+                     reverse = database.getReverseTable(idServer, idTestVector);
+                 }
              } 
                  
         } catch (Exception e) {
@@ -80,8 +88,8 @@ public class MemoryHashTable extends HashTableIndex {
      * @param key Key
      * @param Value Value
      */
-    public void put(String key, ValueStructure Value) {
-        hashmap.put(this.prefix+key, Value);
+    public void put(long key, ValueStructure Value) {
+        hashmap.put(key, Value);
     }
 
     /**
@@ -89,66 +97,88 @@ public class MemoryHashTable extends HashTableIndex {
      * @param key Key
      * @return Value
      */
-    public ValueStructure get(String key) {
-        return hashmap.get(this.prefix+key);
+    public ValueStructure get(long key) {
+        return hashmap.get(key);
     }
 
-    public Map<String,ValueStructure> getAll(List<String> key) {
-        Map<String,ValueStructure> list = new HashMap<String,ValueStructure> ();
-        Iterator<String> it = key.iterator();
-        while(it.hasNext()) {
-            String strkey = it.next();
-            ValueStructure v = get(strkey);
+    public Map<Long,ValueStructure> getAll(List<Long> key) {
+        Map<Long,ValueStructure> list = new HashMap<Long,ValueStructure> (key.size()*2);
+        for(int i=0;i<key.size();i++) {
+            Long vwkey = key.get(i);
+            ValueStructure v = get(vwkey);
             if(v!=null) {
-                list.put(strkey, v);
+                list.put(vwkey, v);
             }
         }
         return list;
     }
 
     @Override
-    public ConcurrentHashMap<String, Long> fillAllEntry(ConcurrentHashMap<String, Long> visualWord) {
-        Iterator<String> it = visualWord.keySet().iterator();
-        while(it.hasNext()) {
-            String key = it.next();
-            ValueStructure value = this.get(key);
-            visualWord.put(key, value!=null?value.getNBT():0);
+    public ConcurrentHashMap<Long, Long> fillAllEntry(ConcurrentHashMap<Long, Long> visualWord) {
+        for (Map.Entry<Long, Long> entry : visualWord.entrySet()) {
+            ValueStructure value = this.get(entry.getKey());
+            entry.setValue(value!=null?value.getNBT():0L);
         }
         return visualWord;
     }
 
+    public void putPicture(long id, long[] keys) {
+        if(reverse!=null) {
+            reverse.put(id, keys);
+        }
+    }
+
     /**
-     * Delete a map of key on the concurrent store
+     * Delete a map of key on the concurrent store.
+     * With reverse index, only the visual words of the pictures are read,
+     * else all visual words of the test vector
      * @param mapID Key that must be deleted
      */
     public void deleteAll(Map<Long, Integer> mapID) {
         logger.info("deleteAll:" + mapID.size());
-        List<String> emptyKeys = new ArrayList<String>();
-        //for each element in the main map
-        for (Map.Entry<String, ValueStructure> entry : hashmap.entrySet()) {
-            //take the value
-            ValueStructure value = entry.getValue();
-            //and erase all item of mapID in the value
-            value.deleteValue(mapID);
-
-            if(value.getEntries().isEmpty()) {
-                emptyKeys.add(entry.getKey());
+        if(reverse!=null) {
+            //visual words of all pictures: a visual word is cleaned once
+            Set<Long> keys = new HashSet<Long>();
+            for (Long id : mapID.keySet()) {
+                long[] pictureKeys = reverse.remove(id);
+                if (pictureKeys != null) {
+                    for (long key : pictureKeys) {
+                        keys.add(key);
+                    }
+                }
+            }
+            List<Long> empty = new ArrayList<Long>();
+            for (Long key : keys) {
+                ValueStructure value = hashmap.get(key);
+                if (value != null) {
+                    value.deleteValue(mapID);
+                    if (value.isEmpty()) {
+                        empty.add(key);
+                    }
+                }
             }
+            //a single copy of the table for all removed visual words
+            hashmap.removeAll(empty);
+            return;
         }
-
-        for(int i=0;i<emptyKeys.size();i++) {
-             hashmap.remove(this.prefix+emptyKeys.get(i));
+        //for each element in the test vector table
+        for (int i = 0; i < hashmap.capacity(); i++) {
+            ValueStructure value = hashmap.valueAt(i);
+            if (value != null) {
+                //erase all item of mapID in the value
+                value.deleteValue(mapID);
+            }
         }
-
-        
+        hashmap.removeEmpty();
     }
 
     public boolean isRessourcePresent(Long id) {
-        for (Map.Entry<String, ValueStructure> entry : hashmap.entrySet()) {
-            //take the value
-            ValueStructure value = entry.getValue();
-            //and erase all item of mapID in the value
-            if(value.isPicturePresent(id)) {
+        if(reverse!=null) {
+            return reverse.containsKey(id);
+        }
+        for (int i = 0; i < hashmap.capacity(); i++) {
+            ValueStructure value = hashmap.valueAt(i);
+            if(value!=null && value.isPicturePresent(id)) {
                 return true;
             }
         }
@@ -156,11 +186,19 @@ public class MemoryHashTable extends HashTableIndex {
     }
 
     /**
-     * Print map stat
+     * Print map stat (and memory used by reverse index)
      */
     public void printStat() {
         logger.info("INDEX TOTAL SIZE:"+hashmap.size());
-
+        if(reverse!=null) {
+            long postings = 0;
+            for (long[] keys : reverse.values()) {
+                postings = postings + keys.length;
+            }
+            //map node + Long key + array header for each picture, 8 bytes for each visual word
+            long bytes = reverse.size() * 64L + postings * 8L;
+            logger.info("REVERSE INDEX: pictures=" + reverse.size() + " postings=" + postings + " memory=" + (bytes / 1024) + " KB");
+        }
     }
 
     /**
@@ -176,7 +214,7 @@ public class MemoryHashTable extends HashTableIndex {
     }
 
     @Override
-    public void delete(String key) {
-        hashmap.remove(this.prefix+key);
+    public void delete(long key) {
+        hashmap.remove(key);
     }
 }
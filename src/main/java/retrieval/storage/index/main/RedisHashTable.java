@@ -15,30 +15,210 @@
  */
 package retrieval.storage.index.main;
 
+import com.google.protobuf.CodedInputStream;
 import org.apache.log4j.Logger;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.util.SafeEncoder;
 import retrieval.config.ConfigServer;
 import retrieval.server.globaldatabase.GlobalDatabase;
 import retrieval.server.globaldatabase.RedisDatabase;
 import retrieval.storage.exception.StartIndexException;
 import retrieval.storage.index.ValueStructure;
 import retrieval.storage.index.compress.compressNBT.CompressIndexNBT;
+import retrieval.utils.ConvertUtils;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by lrollus on 14/01/15.
+ * Each visual word is a hash (image id => number of patchs, "-1" => NBT).
+ * A reverse index keeps the visual words of each image (REVERSE#storage#testvector#id:
+ * hash visual word => number of patchs), so an image is deleted without scanning the keys.
+ * With REDISPOSTINGS=BINARY, each visual word is a single string value:
+ * [NBT (8 bytes)][last image id (8 bytes)] then for each posting
+ * [zigzag varint (image id - previous image id)][varint number of patchs].
+ * Postings are appended by a script, a search reads a visual word with GET and no string parsing.
  */
 public class RedisHashTable extends HashTableIndexOptim{
     private JedisPool redis;
     protected String prefix = "";
-    protected String subPrefix = "";
+    /**
+     * Prefix for the reverse index of this test vector (image id => visual words)
+     */
+    protected String reversePrefix = "";
     ConfigServer config;
     public static String NAME = "REDIS";
+    /**
+     * Visual words are stored as binary posting lists (REDISPOSTINGS=BINARY)
+     */
+    private boolean binary;
+    /**
+     * Size of the header of a binary posting list (NBT and last image id)
+     */
+    static final int HEADER_SIZE = 16;
+
+    /**
+     * Delete an image with its reverse index (KEYS[1]) and its visual words (KEYS[2..n]),
+     * in a single atomic call. ARGV[1] = image id.
+     * For each visual word, the image field is removed and NBT is decreased;
+     * a visual word without image (only NBT) is removed.
+     */
+    private static final String DELETE_SCRIPT =
+            "for i = 2, #KEYS do "
+            + "  local count = redis.call('HGET', KEYS[i], ARGV[1]) "
+            + "  if count then "
+            + "    redis.call('HDEL', KEYS[i], ARGV[1]) "
+            + "    redis.call('HINCRBY', KEYS[i], '-1', -tonumber(count)) "
+            + "    if redis.call('HLEN', KEYS[i]) <= 1 then "
+            + "      redis.call('DEL', KEYS[i]) "
+            + "    end "
+            + "  end "
+            + "end "
+            + "redis.call('DEL', KEYS[1]) "
+            + "return #KEYS - 1";
+
+    /**
+     * Varint and zigzag functions of the binary posting scripts (same encoding as protobuf).
+     * Lua numbers are doubles (exact up to 2^53): a 64 bits image id is kept as two
+     * 32 bits words (h, l), read from its hexa value (16 digits, two's complement).
+     */
+    private static final String VARINT_FUNCTIONS =
+            "local W = 4294967296 "
+            + "local function varint(n) "
+            + "  local s = '' "
+            + "  while n >= 128 do "
+            + "    s = s .. string.char(n % 128 + 128) "
+            + "    n = math.floor(n / 128) "
+            + "  end "
+            + "  return s .. string.char(n) "
+            + "end "
+            + "local function readvarint(s, pos) "
+            + "  local n, shift, b = 0, 1, 128 "
+            + "  while b >= 128 do "
+            + "    b = string.byte(s, pos) "
+            + "    n = n + (b % 128) * shift "
+            + "    shift = shift * 128 "
+            + "    pos = pos + 1 "
+            + "  end "
+            + "  return n, pos "
+            + "end "
+            + "local function hexid(s) "
+            + "  return tonumber(string.sub(s, 1, 8), 16), tonumber(string.sub(s, 9, 16), 16) "
+            + "end "
+            + "local function sub64(ah, al, bh, bl) "
+            + "  local h, l = ah - bh, al - bl "
+            + "  if l < 0 then l = l + W; h = h - 1 end "
+            + "  return h % W, l "
+            + "end "
+            + "local function add64(ah, al, bh, bl) "
+            + "  local h, l = ah + bh, al + bl "
+            + "  if l >= W then l = l - W; h = h + 1 end "
+            + "  return h % W, l "
+            + "end "
+            + "local function zigzag64(h, l) "
+            + "  local zh, zl = (h * 2) % W + math.floor(l / 2147483648), (l * 2) % W "
+            + "  if h >= 2147483648 then return W - 1 - zh, W - 1 - zl end "
+            + "  return zh, zl "
+            + "end "
+            + "local function unzigzag64(h, l) "
+            + "  local vh, vl = math.floor(h / 2), math.floor(l / 2) + (h % 2) * 2147483648 "
+            + "  if l % 2 == 1 then return W - 1 - vh, W - 1 - vl end "
+            + "  return vh, vl "
+            + "end "
+            + "local function varint64(h, l) "
+            + "  local s = '' "
+            + "  while h > 0 or l >= 128 do "
+            + "    s = s .. string.char(l % 128 + 128) "
+            + "    l = math.floor(l / 128) + (h % 128) * 33554432 "
+            + "    h = math.floor(h / 128) "
+            + "  end "
+            + "  return s .. string.char(l) "
+            + "end "
+            + "local function readvarint64(s, pos) "
+            + "  local h, l, shift, b = 0, 0, 0, 128 "
+            + "  while b >= 128 do "
+            + "    b = string.byte(s, pos) "
+            + "    local v = b % 128 "
+            + "    if shift < 28 then l = l + v * 2 ^ shift "
+            + "    elseif shift == 28 then l = l + (v % 16) * 268435456; h = h + math.floor(v / 16) "
+            + "    else h = h + v * 2 ^ (shift - 32) end "
+            + "    shift = shift + 7 "
+            + "    pos = pos + 1 "
+            + "  end "
+            + "  return h % W, l, pos "
+            + "end ";
+
+    /**
+     * Append a posting of an image to binary visual words (KEYS) in a single atomic call.
+     * ARGV[1] = image id (hexa, see hexId), ARGV[i + 1] = number of patchs for KEYS[i].
+     * The header (NBT, last image id) is rewritten and the posting is appended.
+     */
+    private static final String APPEND_SCRIPT = VARINT_FUNCTIONS
+            + "local idh, idl = hexid(ARGV[1]) "
+            + "for i = 1, #KEYS do "
+            + "  local count = tonumber(ARGV[i + 1]) "
+            + "  local nbt, lasth, lastl = 0, 0, 0 "
+            + "  local head = redis.call('GETRANGE', KEYS[i], 0, 15) "
+            + "  if #head == 16 then nbt, lasth, lastl = struct.unpack('>i8I4I4', head) end "
+            + "  redis.call('SETRANGE', KEYS[i], 0, struct.pack('>i8I4I4', nbt + count, idh, idl)) "
+            + "  redis.call('APPEND', KEYS[i], varint64(zigzag64(sub64(idh, idl, lasth, lastl))) .. varint(count)) "
+            + "end "
+            + "return #KEYS";
+
+    /**
+     * Get the NBT of binary visual words (KEYS), -1 if a visual word is not in the index
+     */
+    private static final String NBT_SCRIPT =
+            "local nbt = {} "
+            + "for i = 1, #KEYS do "
+            + "  local head = redis.call('GETRANGE', KEYS[i], 0, 7) "
+            + "  if #head == 8 then nbt[i] = struct.unpack('>i8', head) else nbt[i] = -1 end "
+            + "end "
+            + "return nbt";
+
+    /**
+     * Same as DELETE_SCRIPT for binary visual words: the postings of the other images are
+     * copied (with new delta for the posting after the image), the header is recomputed.
+     */
+    private static final String DELETE_BINARY_SCRIPT = VARINT_FUNCTIONS
+            + "local idh, idl = hexid(ARGV[1]) "
+            + "for i = 2, #KEYS do "
+            + "  local key = KEYS[i] "
+            + "  local value = redis.call('GET', key) "
+            + "  if value then "
+            + "    local pos, nbt, removed, kept = 17, 0, false, {} "
+            + "    local currenth, currentl, previoush, previousl = 0, 0, 0, 0 "
+            + "    while pos <= #value do "
+            + "      local deltah, deltal, count "
+            + "      deltah, deltal, pos = readvarint64(value, pos) "
+            + "      count, pos = readvarint(value, pos) "
+            + "      currenth, currentl = add64(currenth, currentl, unzigzag64(deltah, deltal)) "
+            + "      if currenth == idh and currentl == idl then "
+            + "        removed = true "
+            + "      else "
+            + "        kept[#kept + 1] = varint64(zigzag64(sub64(currenth, currentl, previoush, previousl))) .. varint(count) "
+            + "        previoush, previousl = currenth, currentl "
+            + "        nbt = nbt + count "
+            + "      end "
+            + "    end "
+            + "    if removed then "
+            + "      if #kept == 0 then "
+            + "        redis.call('DEL', key) "
+            + "      else "
+            + "        redis.call('SET', key, struct.pack('>i8I4I4', nbt, previoush, previousl) .. table.concat(kept)) "
+            + "      end "
+            + "    end "
+            + "  end "
+            + "end "
+            + "redis.call('DEL', KEYS[1]) "
+            + "return #KEYS - 1";
 
 
 
@@ -47,9 +227,11 @@ public class RedisHashTable extends HashTableIndexOptim{
     public RedisHashTable(Object database,String idServer, String idTestVector, ConfigServer config) throws StartIndexException {
         try {
             this.config = config;
+            this.binary = "BINARY".equals(config.getRedisPostings());
             redis = (JedisPool)((RedisDatabase)database).getDatabase();
             this.prefix = GlobalDatabase.KEY_INDEX_STORE + "#"+idServer+"#"+idTestVector+"#";
-            this.subPrefix = GlobalDatabase.KEY_INDEX_STORE + "#"+idServer+ "#";
+            this.reversePrefix = GlobalDatabase.KEY_REVERSE_STORE + "#"+idServer+"#"+idTestVector+"#";
+            buildReverseIndex();
         }
         catch(Exception e){
             logger.fatal(e.toString());
@@ -62,24 +244,110 @@ public class RedisHashTable extends HashTableIndexOptim{
         }
     }
 
-    public void incrementHashValue(String mainkey, String haskey, long value) {
+    /**
+     * Get the Redis key of visual word b (visual words are stored as hexa)
+     * @param prefix Prefix for the storage and test vector
+     * @param b Visual word
+     * @return Redis key
+     */
+    private static String key(String prefix, long b) {
+        return prefix + ConvertUtils.convertVisualWordToHexa(b);
+    }
+
+    /**
+     * Get the Redis key of the reverse index of an image
+     * @param id Image id
+     * @return Redis key
+     */
+    private String reverseKey(String id) {
+        return reversePrefix + id;
+    }
+
+    /**
+     * Get an image id as a script argument of binary postings:
+     * 16 hexa digits of its 64 bits (two's complement), so the script keeps it exact
+     * @param id Image id
+     * @return Hexa id
+     */
+    static String hexId(long id) {
+        return String.format("%016x", id);
+    }
+
+    /**
+     * Build the reverse index of an index written without reverse index (older version).
+     * Visual words are read with SCAN (Redis is not blocked), only once:
+     * the reverse prefix key is set (with the postings layout) when the reverse index is built.
+     * @throws StartIndexException Index was written with another postings layout
+     */
+    private void buildReverseIndex() throws StartIndexException {
+        try (Jedis redis = this.redis.getResource()) {
+            String layout = redis.get(reversePrefix);
+            if(layout != null) {
+                //index written before REDISPOSTINGS is a hash index
+                if(!config.getRedisPostings().equals(layout.equals("1") ? "HASH" : layout)) {
+                    throw new StartIndexException(prefix + " was written with REDISPOSTINGS=" + layout);
+                }
+                return;
+            }
+            logger.info("buildReverseIndex: build reverse index for " + prefix);
+            ScanParams params = new ScanParams().match(prefix + "*").count(1000);
+            String cursor = ScanParams.SCAN_POINTER_START;
+            long words = 0;
+            do {
+                ScanResult<String> scan = redis.scan(cursor, params);
+                Pipeline p = redis.pipelined();
+                for (String key : scan.getResult()) {
+                    String word = key.substring(prefix.length());
+                    for (Map.Entry<String, String> entry : getValue(redis, key).entrySet()) {
+                        if (!entry.getKey().equals("-1")) {
+                            p.hincrBy(reverseKey(entry.getKey()), word, Long.parseLong(entry.getValue()));
+                        }
+                    }
+                    words++;
+                }
+                p.sync();
+                cursor = scan.getStringCursor();
+            } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+            redis.set(reversePrefix, config.getRedisPostings());
+            logger.info("buildReverseIndex: " + words + " visual words");
+        }
+    }
+
+    public void incrementHashValue(long mainkey, String haskey, long value) {
+        if(binary && haskey.equals("-1")) {
+            //NBT of a binary visual word is the sum of its postings
+            logger.warn("incrementHashValue: NBT cannot be incremented alone with binary postings");
+            return;
+        }
         try (Jedis redis = this.redis.getResource()) {
-            redis.hincrBy(this.prefix + mainkey, haskey, value);
+            Pipeline p = redis.pipelined();
+            if(binary) {
+                p.eval(APPEND_SCRIPT, Collections.singletonList(key(this.prefix, mainkey)), Arrays.asList(hexId(Long.parseLong(haskey)), value + ""));
+            } else {
+                p.hincrBy(key(this.prefix, mainkey), haskey, value);
+            }
+            if(!haskey.equals("-1")) {
+                p.hincrBy(reverseKey(haskey), ConvertUtils.convertVisualWordToHexa(mainkey), value);
+            }
+            p.sync();
         }
 
     }
 
-    public void incrementHashValue(ConcurrentHashMap<String, Long> visualWords, Long I, CompressIndexNBT compress) {
+    public void incrementHashValue(ConcurrentHashMap<Long, Long> visualWords, Long I, CompressIndexNBT compress) {
         try (Jedis redis = this.redis.getResource()) {
             Pipeline p = redis.pipelined();
-            ConcurrentHashMap<String, Long> visualWordsWithNBT=null;
+            List<String> appendKeys = new ArrayList<String>();
+            List<String> appendArgs = new ArrayList<String>();
+            appendArgs.add(hexId(I));
+            ConcurrentHashMap<Long, Long> visualWordsWithNBT=null;
             if(compress.isCompessEnabled()) {
-                visualWordsWithNBT = new ConcurrentHashMap<String, Long>(500);
+                visualWordsWithNBT = new ConcurrentHashMap<Long, Long>(500);
                 visualWordsWithNBT.putAll(visualWords);
                 visualWordsWithNBT = getAllValues(visualWordsWithNBT);
             }
 
-            for (Map.Entry<String, Long> entry : visualWords.entrySet()) {
+            for (Map.Entry<Long, Long> entry : visualWords.entrySet()) {
 
                 if(!compress.isCompessEnabled() || (compress.isCompessEnabled() && !compress.isBlackListed(entry.getKey()))) {
                     Long oldNBTValue=null;
@@ -89,43 +357,105 @@ public class RedisHashTable extends HashTableIndexOptim{
                     }
                     if(oldNBTValue!=null && compress.isNBTTooBig(oldNBTValue+entry.getValue())) {
                         compress.blacklistVW(entry.getKey());
-                        p.del(this.prefix +entry.getKey());
+                        p.del(key(this.prefix, entry.getKey()));
                     } else {
-                        p.hincrBy(this.prefix + entry.getKey(), String.valueOf(I), entry.getValue());
-                        p.hincrBy(this.prefix +entry.getKey(),"-1",entry.getValue());
+                        String key = key(this.prefix, entry.getKey());
+                        if(binary) {
+                            appendKeys.add(key);
+                            appendArgs.add(String.valueOf(entry.getValue()));
+                        } else {
+                            p.hincrBy(key, String.valueOf(I), entry.getValue());
+                            p.hincrBy(key,"-1",entry.getValue());
+                        }
+                        p.hincrBy(reverseKey(String.valueOf(I)), ConvertUtils.convertVisualWordToHexa(entry.getKey()), entry.getValue());
                     }
                 }
             }
+            if(!appendKeys.isEmpty()) {
+                p.eval(APPEND_SCRIPT, appendKeys, appendArgs);
+            }
             p.sync();
         }
     }
 
-    public String getHashValue(String mainkey, String haskey) {
+    public String getHashValue(long mainkey, String haskey) {
         try (Jedis redis = this.redis.getResource()) {
-            return redis.hget(this.prefix + mainkey, haskey);
+            if(!binary) {
+                return redis.hget(key(this.prefix, mainkey), haskey);
+            }
+            return getValue(redis, key(this.prefix, mainkey)).get(haskey);
         }
     }
-    public Map<String,String> getValue(String mainkey) {
+    public Map<String,String> getValue(long mainkey) {
         try (Jedis redis = this.redis.getResource()) {
-            return redis.hgetAll(this.prefix + mainkey);
+            return getValue(redis, key(this.prefix, mainkey));
         }
 
     }
 
-    public ConcurrentHashMap<String, Long> getAllValues(ConcurrentHashMap<String, Long> result) {
+    /**
+     * Get a visual word as a map (image id => number of patchs, "-1" => NBT), for both layouts
+     * @param redis Redis connection
+     * @param key Redis key of the visual word
+     * @return Map of the visual word (empty if not in index)
+     */
+    private Map<String,String> getValue(Jedis redis, String key) {
+        if(!binary) {
+            return redis.hgetAll(key);
+        }
+        Map<String,String> map = new HashMap<String,String>();
+        ValueStructure value = readPostings(config, redis.get(SafeEncoder.encode(key)));
+        if(value != null) {
+            for(Map.Entry<Long,Integer> entry : value.getEntries().entrySet()) {
+                map.put(entry.getKey() + "", entry.getValue() + "");
+            }
+            map.put("-1", value.getNBT() + "");
+        }
+        return map;
+    }
+
+    /**
+     * Read a binary posting list
+     * @param config Configuration (structure of the value)
+     * @param bytes Binary visual word (header and postings)
+     * @return Value structure or null if bytes is null or has no posting
+     */
+    static ValueStructure readPostings(ConfigServer config, byte[] bytes) {
+        if(bytes == null || bytes.length <= HEADER_SIZE) {
+            return null;
+        }
+        //at least 2 bytes by posting
+        ValueStructure value = new ValueStructure(config, (bytes.length - HEADER_SIZE) / 2, 0);
+        CodedInputStream input = CodedInputStream.newInstance(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE);
+        try {
+            long id = 0;
+            while (!input.isAtEnd()) {
+                id = id + CodedInputStream.decodeZigZag64(input.readRawVarint64());
+                //an image may have more than one posting (NBT is the sum of all postings)
+                value.addEntry(id, input.readRawVarint32());
+            }
+        } catch(IOException e) {
+            throw new IllegalStateException("Bad binary posting list: " + e);
+        }
+        return value;
+    }
+
+    public ConcurrentHashMap<Long, Long> getAllValues(ConcurrentHashMap<Long, Long> result) {
 
         try (Jedis redis = this.redis.getResource()) {
+            if(binary) {
+                return getAllBinaryValues(redis, result);
+            }
             Pipeline p = redis.pipelined();
             List<Response<String>> hgetsR = new ArrayList<Response<String>>(500);
-            List<String> keys = new ArrayList<String>(500);
-            Iterator<String> searchKey = result.keySet().iterator();
+            List<Long> keys = new ArrayList<Long>(500);
+            Iterator<Long> searchKey = result.keySet().iterator();
             int j=0;
             while (searchKey.hasNext()) {
-                String k = searchKey.next();
-                k=prefix+k;
+                Long k = searchKey.next();
                 keys.add(k);
                 try {
-                    hgetsR.add(p.hget(k, "-1"));
+                    hgetsR.add(p.hget(key(prefix, k), "-1"));
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -137,10 +467,8 @@ public class RedisHashTable extends HashTableIndexOptim{
             for(int i=0;i<keys.size();i++) {
                 Response<String> value = hgetsR.get(i);
                 try {
-                    if(value.get()!=null) {
-                        String[] keyParts =  keys.get(i).split("#");
-                        result.put(keyParts[3], Long.parseLong(value.get()));
-                    }
+                    //visual word not in index: NBT = 0 (as memory index)
+                    result.put(keys.get(i), value.get()!=null ? Long.parseLong(value.get()) : 0L);
 
                 } catch(NullPointerException e) {
                     //TODO: very bad code => bug in jedis
@@ -150,143 +478,197 @@ public class RedisHashTable extends HashTableIndexOptim{
             }
             return result;
         }
+    }
 
+    /**
+     * Same as getAllValues for binary visual words: NBT of all visual words are read with a single script
+     */
+    private ConcurrentHashMap<Long, Long> getAllBinaryValues(Jedis redis, ConcurrentHashMap<Long, Long> result) {
+        List<Long> keys = new ArrayList<Long>(result.keySet());
+        List<String> redisKeys = new ArrayList<String>(keys.size());
+        for(Long k : keys) {
+            redisKeys.add(key(prefix, k));
+        }
+        List<Long> nbt = (List<Long>) redis.eval(NBT_SCRIPT, redisKeys, Collections.<String>emptyList());
+        for(int i=0;i<keys.size();i++) {
+            result.put(keys.get(i), Math.max(nbt.get(i), 0L));
+        }
+        return result;
+    }
 
+    /**
+     * Get binary visual words with a single MGET
+     * @param p Pipeline
+     * @param prefixForTV Prefix of the storage and test vector
+     * @param keys Visual words
+     * @return Response with a value for each visual word (null if not in index), null if no visual word
+     */
+    private static Response<List<byte[]>> mget(Pipeline p, String prefixForTV, List<Long> keys) {
+        if(keys.isEmpty()) {
+            //MGET needs at least one key
+            return null;
+        }
+        byte[][] redisKeys = new byte[keys.size()][];
+        for(int i=0;i<keys.size();i++) {
+            redisKeys[i] = SafeEncoder.encode(key(prefixForTV, keys.get(i)));
+        }
+        return p.mget(redisKeys);
+    }
 
-
-
+    /**
+     * Read binary visual words from a MGET response
+     * @param keys Visual words
+     * @param values MGET response (null if no visual word)
+     * @return Map with each visual word in index and its value
+     */
+    private Map<Long,ValueStructure> readAll(List<Long> keys, Response<List<byte[]>> values) {
+        Map<Long,ValueStructure> map = new HashMap<Long,ValueStructure>(keys.size()*2);
+        if(values == null) {
+            return map;
+        }
+        List<byte[]> bytes = values.get();
+        for(int i=0;i<bytes.size();i++) {
+            ValueStructure value = readPostings(config, bytes.get(i));
+            if(value != null) {
+                map.put(keys.get(i), value);
+            }
+        }
+        return map;
     }
 
-    public Map<String,ValueStructure> getAll(List<String> key) {
+    public Map<Long,ValueStructure> getAll(List<Long> key) {
 
+        if(binary) {
+            Response<List<byte[]>> values;
+            try (Jedis redis = this.redis.getResource()) {
+                Pipeline p = redis.pipelined();
+                values = mget(p, this.prefix, key);
+                p.sync();
+            }
+            return readAll(key, values);
+        }
         List<Response<Map<String, String>>> hgetAllsR = new  ArrayList<Response<Map<String, String>>> (key.size());
 
         try (Jedis redis = this.redis.getResource()) {
             Pipeline p = redis.pipelined();
 
-            Iterator<String> searchKey = key.iterator();
+            Iterator<Long> searchKey = key.iterator();
             while (searchKey.hasNext()) {
-                String k = searchKey.next();
-                hgetAllsR.add(p.hgetAll(this.prefix +k));
+                Long k = searchKey.next();
+                hgetAllsR.add(p.hgetAll(key(this.prefix, k)));
 
             }
             p.sync();
         }
-
-            Map<String,ValueStructure> map = new HashMap<String,ValueStructure>(key.size()*2);
-            int k=0;
-            for(int i=0;i<hgetAllsR.size();i++) {
-                Map<String, String> submap = hgetAllsR.get(i).get();
-                if(submap!=null) {
-                    String nbt = submap.get("-1");
-                    if(nbt!=null)
-                        map.put(key.get(k), new ValueStructure(config, submap, Long.parseLong(nbt)));
-                }
-                k++;
-            }
-
-            return map;
-
-
+        return readAllHashes(key, hgetAllsR);
     }
 
-    public Map<String,Map<String,ValueStructure>> getAll(Map<String,List<String>> keysForTV) {
-        Long start = System.currentTimeMillis();
-
-        TreeMap<String,List<Response<Map<String, String>>>> hgetAllsR = new  TreeMap<String,List<Response<Map<String, String>>>>();
+    /**
+     * Get the posting lists of the visual words of many storages and test vectors
+     * with a single pipeline (one round-trip for a search on all storages of the server)
+     * @param keysByStorage For each storage, for each test vector: visual words
+     * @return For each storage, for each test vector: visual words found and their posting list
+     */
+    public Map<String,Map<String,Map<Long,ValueStructure>>> getAll(Map<String,Map<String,List<Long>>> keysByStorage) {
+        Map<String,Map<String,Response<List<byte[]>>>> values = new HashMap<String,Map<String,Response<List<byte[]>>>>();
+        Map<String,Map<String,List<Response<Map<String, String>>>>> hgetAllsR = new HashMap<String,Map<String,List<Response<Map<String, String>>>>>();
         try (Jedis redis = this.redis.getResource()) {
             Pipeline p = redis.pipelined();
-
-            for(Map.Entry<String,List<String>> entry : keysForTV.entrySet()) {
-                List<Response<Map<String, String>>> req = new ArrayList<>();
-                String prefixForTV = this.subPrefix+entry.getKey()+"#";
-                Iterator<String> searchKey = entry.getValue().iterator();
-                while (searchKey.hasNext()) {
-                    String k = searchKey.next();
-                    req.add(p.hgetAll(prefixForTV+k));
-
+            for(Map.Entry<String,Map<String,List<Long>>> storage : keysByStorage.entrySet()) {
+                Map<String,Response<List<byte[]>>> valuesByTV = new HashMap<String,Response<List<byte[]>>>();
+                Map<String,List<Response<Map<String, String>>>> hgetAllsByTV = new HashMap<String,List<Response<Map<String, String>>>>();
+                for(Map.Entry<String,List<Long>> entry : storage.getValue().entrySet()) {
+                    String prefixForTV = GlobalDatabase.KEY_INDEX_STORE + "#" + storage.getKey() + "#" + entry.getKey() + "#";
+                    if(binary) {
+                        valuesByTV.put(entry.getKey(), mget(p, prefixForTV, entry.getValue()));
+                    } else {
+                        List<Response<Map<String, String>>> req = new ArrayList<Response<Map<String, String>>>(entry.getValue().size());
+                        for(Long k : entry.getValue()) {
+                            req.add(p.hgetAll(key(prefixForTV, k)));
+                        }
+                        hgetAllsByTV.put(entry.getKey(), req);
+                    }
                 }
-                hgetAllsR.put(entry.getKey(),req);
+                values.put(storage.getKey(), valuesByTV);
+                hgetAllsR.put(storage.getKey(), hgetAllsByTV);
             }
-
             p.sync();
         }
 
-        TreeMap<String,Map<String,ValueStructure>> map = new TreeMap<String,Map<String,ValueStructure>>();
-
-
-
-        for(Map.Entry<String,List<Response<Map<String, String>>>> entry : hgetAllsR.entrySet()) {
-
-            List<Response<Map<String, String>>> value = entry.getValue();
-            List<String> visualwords = keysForTV.get(entry.getKey());
-            Map<String,ValueStructure> subMap = new HashMap<String,ValueStructure>();
-            int k=0;
-            for(int i=0;i<value.size();i++) {
-                Map<String, String> submap = value.get(i).get();
-                if(submap!=null) {
-                    String nbt = submap.get("-1");
-                    if(nbt!=null)
-                        subMap.put(visualwords.get(k), new ValueStructure(config, submap, Long.parseLong(nbt)));
+        Map<String,Map<String,Map<Long,ValueStructure>>> map = new HashMap<String,Map<String,Map<Long,ValueStructure>>>();
+        for(Map.Entry<String,Map<String,List<Long>>> storage : keysByStorage.entrySet()) {
+            Map<String,Map<Long,ValueStructure>> mapByTV = new HashMap<String,Map<Long,ValueStructure>>();
+            for(Map.Entry<String,List<Long>> entry : storage.getValue().entrySet()) {
+                if(binary) {
+                    mapByTV.put(entry.getKey(), readAll(entry.getValue(), values.get(storage.getKey()).get(entry.getKey())));
+                } else {
+                    mapByTV.put(entry.getKey(), readAllHashes(entry.getValue(), hgetAllsR.get(storage.getKey()).get(entry.getKey())));
                 }
-                k++;
             }
-            map.put(entry.getKey(),subMap);
-
+            map.put(storage.getKey(), mapByTV);
         }
         return map;
+    }
 
-
+    /**
+     * Read hash visual words from HGETALL responses
+     * @param keys Visual words
+     * @param values HGETALL response for each visual word
+     * @return Map with each visual word in index and its value
+     */
+    private Map<Long,ValueStructure> readAllHashes(List<Long> keys, List<Response<Map<String, String>>> values) {
+        Map<Long,ValueStructure> map = new HashMap<Long,ValueStructure>(keys.size()*2);
+        for(int i=0;i<values.size();i++) {
+            Map<String, String> submap = values.get(i).get();
+            if(submap!=null) {
+                String nbt = submap.get("-1");
+                if(nbt!=null)
+                    map.put(keys.get(i), new ValueStructure(config, submap, Long.parseLong(nbt)));
+            }
+        }
+        return map;
     }
 
-    public void delete(String key) {
+    public void delete(long key) {
         try (Jedis redis = this.redis.getResource()) {
-            redis.del(this.prefix + key);
+            redis.del(key(this.prefix, key));
         }
     }
 
+    /**
+     * Delete images from index: the reverse index of all images is read (pipelined),
+     * then a script call for each image with its visual words as keys (pipelined),
+     * only the visual words of the images are modified
+     * @param mapID Image ID to delete as key (don't care of value)
+     */
     public void deleteAll(Map<Long, Integer> mapID)  {
 
         try (Jedis redis = this.redis.getResource()) {
-            Set<String> keys = redis.keys(this.subPrefix+"*");
-            Iterator<String> it = keys.iterator();
-
-            while(it.hasNext()) {
-                String key = it.next();
-                Map<String, String> submap = redis.hgetAll(key);
-                Set<String> keys2 = submap.keySet();
-                Iterator<String> it2 = keys2.iterator();
-
-                while(it2.hasNext()) {
-                    String subkeys = it2.next();
-                    if(mapID.containsKey(Long.parseLong(subkeys))) {
-                        Long value = redis.hdel(key, subkeys);
-                        redis.hincrBy(key, "-1", -value);
-                        if(redis.hlen(key)<=1) {
-                            //1 because nbt is store there
-                            redis.del(key);
-                        }
-                    }
+            Pipeline p = redis.pipelined();
+            Map<Long, Response<Map<String, String>>> words = new HashMap<Long, Response<Map<String, String>>>(mapID.size() * 2);
+            for(Long id : mapID.keySet()) {
+                words.put(id, p.hgetAll(reverseKey(id + "")));
+            }
+            p.sync();
+            p = redis.pipelined();
+            for(Map.Entry<Long, Response<Map<String, String>>> entry : words.entrySet()) {
+                //all keys written by the script are in KEYS
+                List<String> keys = new ArrayList<String>(entry.getValue().get().size() + 1);
+                keys.add(reverseKey(entry.getKey() + ""));
+                for(String word : entry.getValue().get().keySet()) {
+                    keys.add(this.prefix + word);
                 }
+                p.eval(binary ? DELETE_BINARY_SCRIPT : DELETE_SCRIPT, keys, Collections.singletonList(binary ? hexId(entry.getKey()) : entry.getKey() + ""));
             }
+            p.sync();
         }
     }
 
 
     public boolean isRessourcePresent(Long id) {
         try (Jedis redis = this.redis.getResource()) {
-            Set<String> keys = redis.keys(this.subPrefix+"*");
-            Iterator<String> it = keys.iterator();
-
-            while(it.hasNext()) {
-                String key = it.next();
-                Map<String, String> submap = redis.hgetAll(key);
-                if(submap.containsKey(id+"")) return true;
-            }
+            return redis.exists(reverseKey(id + ""));
         }
-
-
-        return false;
     }
 
     public void sync()  {
@@ -302,7 +684,7 @@ public class RedisHashTable extends HashTableIndexOptim{
     public void printStat() {
 
         try (Jedis redis = this.redis.getResource()) {
-            System.out.println("INDEX TOTAL SIZE:" + redis.dbSize());
+            System.out.println("INDEX TOTAL SIZE:" + redis.dbSize() + " POSTINGS:" + config.getRedisPostings());
         }
     }
 }
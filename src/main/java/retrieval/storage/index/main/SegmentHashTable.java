@@ -0,0 +1,1350 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.storage.index.main;
+
+import org.apache.log4j.Logger;
+import retrieval.config.ConfigServer;
+import retrieval.server.globaldatabase.MemoryDatabase;
+import retrieval.storage.exception.StartIndexException;
+import retrieval.storage.index.EntryCursor;
+import retrieval.storage.index.ValueStructure;
+import retrieval.storage.index.compress.compressNBT.CompressIndexNBT;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Log-structured index of a test vector (STORENAME=SEGMENT).
+ * New postings go in a small table in memory (SEGMENTBUFFER postings), which is then
+ * written in an immutable segment file in INDEXPATH (storage.testvector.number.segment).
+ * A segment is read through a MappedByteBuffer, so the index may be bigger than the heap:
+ * header, postings of each visual word (varint delta of sorted image ids, varint number of patchs)
+ * then a directory sorted by visual word (visual word, NBT, offset, number of postings).
+ * Deleted images and visual words are filtered at read time and physically dropped when
+ * segments are merged in background (SEGMENTMERGE segments of the same size, or all segments
+ * after a delete). Each delete of images has a generation number and each segment the generation
+ * of its postings: a deleted image is only filtered in postings older than its delete, so an image
+ * indexed again after a delete is found. The live segments and deletions are kept in a manifest file
+ * (storage.testvector.manifest) which is replaced at each change.
+ * A deleted visual word is never indexed again (it is blacklisted by the compress index).
+ * Pictures properties, patchs and compress index stay in the memory database.
+ * @author Rollus Loic
+ */
+public class SegmentHashTable extends HashTableIndexOptim {
+
+    /**
+     * Name of Hashtable
+     */
+    public static String NAME = "SEGMENT";
+    /**
+     * Extension of a segment file
+     */
+    public static final String EXTENSION = ".segment";
+    /**
+     * Extension of a manifest file
+     */
+    public static final String MANIFEST = ".manifest";
+
+    static final long MAGIC = 0x4342495253454731L;
+    static final int VERSION = 1;
+    /**
+     * Version of manifest (1: without generations)
+     */
+    static final int MANIFEST_VERSION = 2;
+    /**
+     * Magic, version, number of visual words, directory offset, number of postings
+     */
+    static final int HEADER_SIZE = 32;
+    /**
+     * Visual word, NBT, offset of postings, number of postings
+     */
+    static final int ENTRY_SIZE = 24;
+    /**
+     * A merge starts a new segment once this size is reached (a mapped buffer is limited to 2 GB)
+     */
+    static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+    /**
+     * Threads which write and merge segments of all test vectors
+     */
+    private static final ExecutorService MERGES = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "segment-merge");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static Logger logger = Logger.getLogger(SegmentHashTable.class);
+
+    /**
+     * Tables and segments read by a search: a new state is published for each change
+     */
+    private static final class State {
+        /**
+         * Table which receives new postings
+         */
+        final VisualWordTable buffer;
+        /**
+         * Full table being written in a segment (null if none)
+         */
+        final VisualWordTable flushing;
+        /**
+         * Generation of the flushing table (generation when it stopped receiving postings)
+         */
+        final long flushingGeneration;
+        /**
+         * Segments (oldest first)
+         */
+        final Segment[] segments;
+        /**
+         * Deleted images still in segments or flushing table (sorted)
+         */
+        final long[] ids;
+        /**
+         * Generation of the last delete of each image of ids
+         */
+        final long[] deletes;
+        /**
+         * Deleted visual words still in segments or flushing table (sorted)
+         */
+        final long[] keys;
+
+        State(VisualWordTable buffer, VisualWordTable flushing, long flushingGeneration, Segment[] segments, long[] ids, long[] deletes, long[] keys) {
+            this.buffer = buffer;
+            this.flushing = flushing;
+            this.flushingGeneration = flushingGeneration;
+            this.segments = segments;
+            this.ids = ids;
+            this.deletes = deletes;
+            this.keys = keys;
+        }
+
+        /**
+         * Check if the postings of an image are deleted in a table or segment
+         * @param id Image
+         * @param generation Generation of the postings (Long.MAX_VALUE: buffer, never filtered)
+         * @return True if the image was deleted after these postings
+         */
+        boolean isDeleted(long id, long generation) {
+            if (ids.length == 0) {
+                return false;
+            }
+            int i = Arrays.binarySearch(ids, id);
+            return i >= 0 && generation < deletes[i];
+        }
+    }
+
+    private final ConfigServer config;
+    private final File directory;
+    private final String prefix;
+    private final int bufferSize;
+    private final int mergeSize;
+
+    private volatile State state;
+    /**
+     * Postings added in buffer since last swap (guarded by this)
+     */
+    private int bufferPostings;
+    /**
+     * Next segment number (guarded by this)
+     */
+    private long nextSegment;
+    /**
+     * Number of image deletes (guarded by this): generation of the postings of buffer
+     */
+    private long generation;
+    private final Object flushLock = new Object();
+    private final Object mergeLock = new Object();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+
+    /**
+     * Open the index of a test vector (segments of the manifest are mapped)
+     * @param database Memory database (index directory)
+     * @param idServer Storage id
+     * @param idTestVector Test vector id
+     * @param config Configuration object
+     * @throws StartIndexException Error during the read of segments
+     */
+    public SegmentHashTable(MemoryDatabase database, String idServer, String idTestVector, ConfigServer config) throws StartIndexException {
+        this.config = config;
+        this.directory = database.getIndexDirectory();
+        this.prefix = idServer + "." + idTestVector + ".";
+        this.bufferSize = Math.max(1, config.getSegmentBuffer());
+        this.mergeSize = Math.max(2, config.getSegmentMerge());
+        try {
+            directory.mkdirs();
+            this.state = readManifest();
+        } catch (IOException e) {
+            logger.fatal(e.toString());
+            throw new StartIndexException(e.toString());
+        }
+    }
+
+    /**
+     * Add postings of image I in buffer (a full buffer is written in background)
+     * @param visualWords Visual words of I and their NIBT
+     * @param I Image id
+     * @param compress Compress index (blacklisted visual words)
+     */
+    public void incrementHashValue(ConcurrentHashMap<Long, Long> visualWords, Long I, CompressIndexNBT compress) {
+        synchronized (this) {
+            for (Map.Entry<Long, Long> entry : visualWords.entrySet()) {
+                long key = entry.getKey();
+                if (compress.isCompessEnabled()) {
+                    if (compress.isBlackListed(key)) {
+                        continue;
+                    }
+                    if (compress.isNBTTooBig(getNBT(state, key) + entry.getValue())) {
+                        compress.blacklistVW(key);
+                        delete(key);
+                        continue;
+                    }
+                }
+                add(key, I, entry.getValue().intValue());
+            }
+        }
+        swapIfFull();
+    }
+
+    public void incrementHashValue(long mainkey, String haskey, long value) {
+        if (haskey.equals("-1")) {
+            //NBT of a visual word is the sum of its postings
+            logger.warn("incrementHashValue: NBT cannot be incremented alone with segments");
+            return;
+        }
+        synchronized (this) {
+            add(mainkey, Long.parseLong(haskey), (int) value);
+        }
+        swapIfFull();
+    }
+
+    private void add(long key, long I, int NIBT) {
+        VisualWordTable buffer = state.buffer;
+        ValueStructure value = buffer.get(key);
+        if (value == null) {
+            value = new ValueStructure(config);
+            value.addEntry(I, NIBT);
+            buffer.put(key, value);
+        } else {
+            value.addEntry(I, NIBT);
+        }
+        bufferPostings++;
+    }
+
+    public String getHashValue(long mainkey, String haskey) {
+        ValueStructure value = get(mainkey);
+        if (value == null) {
+            return null;
+        }
+        if (haskey.equals("-1")) {
+            return String.valueOf(value.getNBT());
+        }
+        int NIBT = value.getNBIT(Long.parseLong(haskey));
+        return NIBT != 0 ? String.valueOf(NIBT) : null;
+    }
+
+    public Map<String, String> getValue(long mainkey) {
+        Map<String, String> map = new HashMap<String, String>();
+        ValueStructure value = get(mainkey);
+        if (value != null) {
+            EntryCursor cursor = value.cursor();
+            while (cursor.next()) {
+                map.put(String.valueOf(cursor.getI()), String.valueOf(cursor.getNIBT()));
+            }
+            map.put("-1", String.valueOf(value.getNBT()));
+        }
+        return map;
+    }
+
+    /**
+     * Get the posting list of a visual word (merged from buffer, flushing table and segments)
+     * @param key Visual word
+     * @return Posting list or null if visual word is not in index
+     */
+    public ValueStructure get(long key) {
+        State s = state;
+        boolean keyDeleted = contains(s.keys, key);
+        int size = 0;
+        int[] positions = new int[s.segments.length];
+        for (int i = 0; i < s.segments.length; i++) {
+            positions[i] = keyDeleted ? -1 : s.segments[i].find(key);
+            if (positions[i] >= 0) {
+                size = size + s.segments[i].size(positions[i]);
+            }
+        }
+        ValueStructure flushing = keyDeleted || s.flushing == null ? null : s.flushing.get(key);
+        ValueStructure buffer = s.buffer.get(key);
+        size = size + (flushing != null ? flushing.size() : 0) + (buffer != null ? buffer.size() : 0);
+        if (size == 0) {
+            return null;
+        }
+        ValueStructure value = new ValueStructure(config, size, 0);
+        for (int i = 0; i < s.segments.length; i++) {
+            if (positions[i] >= 0) {
+                addAll(value, s.segments[i].cursor(positions[i]), s, s.segments[i].generation);
+            }
+        }
+        if (flushing != null) {
+            addAll(value, flushing.cursor(), s, s.flushingGeneration);
+        }
+        if (buffer != null) {
+            //images deleted from buffer are removed at delete time
+            addAll(value, buffer.cursor(), s, Long.MAX_VALUE);
+        }
+        return value.isEmpty() ? null : value;
+    }
+
+    private static void addAll(ValueStructure value, EntryCursor cursor, State s, long generation) {
+        while (cursor.next()) {
+            if (!s.isDeleted(cursor.getI(), generation)) {
+                value.addEntry(cursor.getI(), cursor.getNIBT());
+            }
+        }
+    }
+
+    public Map<Long, ValueStructure> getAll(List<Long> keys) {
+        Map<Long, ValueStructure> map = new HashMap<Long, ValueStructure>(keys.size() * 2);
+        for (Long key : keys) {
+            ValueStructure value = get(key);
+            if (value != null) {
+                map.put(key, value);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Not needed: entries are read by each test vector
+     * @param keysByStorage For each storage, for each test vector: keys
+     * @return null
+     */
+    public Map<String, Map<String, Map<Long, ValueStructure>>> getAll(Map<String, Map<String, List<Long>>> keysByStorage) {
+        return null;
+    }
+
+    /**
+     * Fill NBT of each visual word: NBT of segment directories are read without
+     * decoding postings (unless some images are deleted)
+     * @param result Visual words
+     * @return Visual words and their NBT
+     */
+    public ConcurrentHashMap<Long, Long> getAllValues(ConcurrentHashMap<Long, Long> result) {
+        State s = state;
+        for (Map.Entry<Long, Long> entry : result.entrySet()) {
+            entry.setValue(getNBT(s, entry.getKey()));
+        }
+        return result;
+    }
+
+    private static long getNBT(State s, long key) {
+        long nbt = 0;
+        if (!contains(s.keys, key)) {
+            for (Segment segment : s.segments) {
+                int position = segment.find(key);
+                if (position >= 0) {
+                    nbt = nbt + (s.ids.length == 0 ? segment.nbt(position) : sum(segment.cursor(position), s, segment.generation));
+                }
+            }
+            if (s.flushing != null) {
+                nbt = nbt + getNBT(s.flushing.get(key), s, s.flushingGeneration);
+            }
+        }
+        return nbt + getNBT(s.buffer.get(key), s, Long.MAX_VALUE);
+    }
+
+    private static long getNBT(ValueStructure value, State s, long generation) {
+        if (value == null) {
+            return 0;
+        }
+        return s.ids.length == 0 || generation == Long.MAX_VALUE ? value.getNBT() : sum(value.cursor(), s, generation);
+    }
+
+    private static long sum(EntryCursor cursor, State s, long generation) {
+        long nbt = 0;
+        while (cursor.next()) {
+            if (!s.isDeleted(cursor.getI(), generation)) {
+                nbt = nbt + cursor.getNIBT();
+            }
+        }
+        return nbt;
+    }
+
+    /**
+     * Delete a visual word (removed from buffer, filtered in segments until next merge)
+     * @param key Visual word
+     */
+    public synchronized void delete(long key) {
+        State s = state;
+        s.buffer.remove(key);
+        if (s.segments.length > 0 || s.flushing != null) {
+            publish(new State(s.buffer, s.flushing, s.flushingGeneration, s.segments, s.ids, s.deletes, union(s.keys, Arrays.asList(key))));
+        }
+    }
+
+    /**
+     * Delete images: postings are removed from buffer, filtered in segments
+     * (postings older than this delete) and physically dropped by a merge of all segments (in background)
+     * @param mapID Image ID to delete as key (don't care of value)
+     */
+    public void deleteAll(Map<Long, Integer> mapID) {
+        logger.info("deleteAll:" + mapID.size());
+        synchronized (this) {
+            State s = state;
+            VisualWordTable buffer = s.buffer;
+            for (int i = 0; i < buffer.capacity(); i++) {
+                ValueStructure value = buffer.valueAt(i);
+                if (value != null) {
+                    value.deleteValue(mapID);
+                }
+            }
+            buffer.removeEmpty();
+            if (s.segments.length == 0 && s.flushing == null) {
+                return;
+            }
+            //next postings of buffer are newer than this delete
+            generation++;
+            publish(deleteImages(s, mapID.keySet(), generation));
+        }
+        schedule();
+    }
+
+    public boolean isRessourcePresent(Long id) {
+        State s = state;
+        if (isPresent(s.buffer, id) || (s.flushing != null && !s.isDeleted(id, s.flushingGeneration) && isPresent(s.flushing, id))) {
+            return true;
+        }
+        for (Segment segment : s.segments) {
+            if (s.isDeleted(id, segment.generation)) {
+                continue;
+            }
+            for (int i = 0; i < segment.count; i++) {
+                if (!contains(s.keys, segment.key(i))) {
+                    EntryCursor cursor = segment.cursor(i);
+                    while (cursor.next()) {
+                        if (cursor.getI() == id) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isPresent(VisualWordTable table, long id) {
+        for (int i = 0; i < table.capacity(); i++) {
+            ValueStructure value = table.valueAt(i);
+            if (value != null && value.isPicturePresent(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write buffer in a segment (segments are merged in background)
+     */
+    public void sync() {
+        while (true) {
+            synchronized (this) {
+                State s = state;
+                if (s.buffer.size() == 0) {
+                    break;
+                }
+                if (s.flushing == null) {
+                    swap();
+                }
+            }
+            if (!flush()) {
+                break;
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Write buffer in a segment and wait the end of the running merge
+     * @throws Exception Error during close
+     */
+    public void closeIndex() throws Exception {
+        sync();
+        synchronized (mergeLock) {
+            closed = true;
+        }
+    }
+
+    public void printStat() {
+        State s = state;
+        long keys = 0;
+        long postings = 0;
+        long bytes = 0;
+        for (Segment segment : s.segments) {
+            keys = keys + segment.count;
+            postings = postings + segment.postings;
+            bytes = bytes + segment.buffer.capacity();
+        }
+        logger.info("INDEX SEGMENTS:" + s.segments.length + " visual words=" + keys + " postings=" + postings
+                + " size=" + (bytes / 1024) + " KB buffer=" + s.buffer.size() + " deleted images=" + s.ids.length);
+    }
+
+    /**
+     * Swap buffer with an empty table if it is full and no table is being written
+     */
+    private void swapIfFull() {
+        synchronized (this) {
+            if (bufferPostings < bufferSize || state.flushing != null) {
+                return;
+            }
+            swap();
+        }
+        schedule();
+    }
+
+    private void swap() {
+        State s = state;
+        bufferPostings = 0;
+        state = new State(new VisualWordTable(1024), s.buffer, generation, s.segments, s.ids, s.deletes, s.keys);
+    }
+
+    /**
+     * Write and merge segments in background (once for many requests)
+     */
+    private void schedule() {
+        if (!closed && scheduled.compareAndSet(false, true)) {
+            MERGES.execute(new Runnable() {
+                public void run() {
+                    scheduled.set(false);
+                    maintain();
+                }
+            });
+        }
+    }
+
+    /**
+     * Write the full table and merge segments (in caller thread)
+     */
+    void maintain() {
+        flush();
+        merge();
+    }
+
+    /**
+     * Get the number of segments
+     * @return Segments
+     */
+    int getSegmentCount() {
+        return state.segments.length;
+    }
+
+    /**
+     * Get the number of deleted images still in segments
+     * @return Deleted images
+     */
+    int getDeletedCount() {
+        return state.ids.length;
+    }
+
+    /**
+     * Write the flushing table in a new segment
+     * @return False if segment cannot be written
+     */
+    private boolean flush() {
+        synchronized (flushLock) {
+            State s = state;
+            if (s.flushing == null) {
+                return true;
+            }
+            try {
+                Segment segment = write(s.flushing, s.flushingGeneration, s);
+                synchronized (this) {
+                    State current = state;
+                    Segment[] segments = current.segments;
+                    if (segment != null) {
+                        segments = Arrays.copyOf(segments, segments.length + 1);
+                        segments[segments.length - 1] = segment;
+                    }
+                    publish(new State(current.buffer, null, 0, segments, current.ids, current.deletes, current.keys));
+                    if (bufferPostings >= bufferSize) {
+                        swap();
+                        schedule();
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                logger.error("Cannot write segment " + prefix + ": " + e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Merge segments while a merge is needed: all segments if images or visual words are deleted,
+     * else the last segments of the smallest size with at least SEGMENTMERGE segments
+     */
+    private void merge() {
+        synchronized (mergeLock) {
+            try {
+                while (!closed) {
+                    State s;
+                    Segment[] inputs;
+                    synchronized (this) {
+                        s = state;
+                        inputs = select(s);
+                    }
+                    if (inputs == null) {
+                        return;
+                    }
+                    //deletions are dropped from the index only if all postings are merged
+                    boolean all = inputs.length == s.segments.length && s.flushing == null;
+                    long start = System.currentTimeMillis();
+                    List<Segment> outputs = merge(inputs, s);
+                    synchronized (this) {
+                        State current = state;
+                        List<Segment> segments = new ArrayList<Segment>();
+                        for (Segment segment : current.segments) {
+                            if (inputs.length > 0 && segment == inputs[0]) {
+                                segments.addAll(outputs);
+                            }
+                            if (!Arrays.asList(inputs).contains(segment)) {
+                                segments.add(segment);
+                            }
+                        }
+                        State merged = new State(current.buffer, current.flushing, current.flushingGeneration, segments.toArray(new Segment[segments.size()]),
+                                current.ids, current.deletes, all ? minus(current.keys, s.keys) : current.keys);
+                        publish(all ? minusDeletes(merged, s) : merged);
+                    }
+                    for (Segment segment : inputs) {
+                        if (!segment.file.delete()) {
+                            logger.error("Cannot delete segment " + segment.file);
+                        }
+                    }
+                    logger.info("merge " + prefix + ": " + inputs.length + " segments in " + outputs.size() + " (" + (System.currentTimeMillis() - start) + " ms)");
+                }
+            } catch (IOException e) {
+                logger.error("Cannot merge segments " + prefix + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Select the segments to merge
+     * @param s Current state
+     * @return Segments (oldest first) or null if no merge is needed
+     */
+    private Segment[] select(State s) {
+        Segment[] segments = s.segments;
+        if (s.ids.length > 0 || s.keys.length > 0) {
+            //wait for the table being written: its postings must be merged too
+            return s.flushing == null ? segments : null;
+        }
+        //level of a segment: log(postings / SEGMENTBUFFER) in base SEGMENTMERGE
+        for (int level = 0; segments.length >= mergeSize; level++) {
+            int first = segments.length;
+            while (first > 0 && level(segments[first - 1]) <= level) {
+                first--;
+            }
+            if (segments.length - first >= mergeSize) {
+                return Arrays.copyOfRange(segments, first, segments.length);
+            }
+            if (first == 0) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    private int level(Segment segment) {
+        long n = Math.max(1, segment.postings / bufferSize);
+        int level = 0;
+        while (n >= mergeSize) {
+            n = n / mergeSize;
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Merge segments: visual words and postings are read in order from each segment,
+     * deleted images (postings older than their delete) and visual words are dropped
+     * @param inputs Segments to merge
+     * @param s State with deleted images and visual words
+     * @return New segments (generation of the newest input)
+     * @throws IOException Error during write
+     */
+    private List<Segment> merge(Segment[] inputs, State s) throws IOException {
+        List<Segment> outputs = new ArrayList<Segment>();
+        int[] positions = new int[inputs.length];
+        SegmentCursor[] cursors = new SegmentCursor[inputs.length];
+        long[] generations = new long[inputs.length];
+        boolean[] valid = new boolean[inputs.length];
+        long outputGeneration = 0;
+        for (Segment input : inputs) {
+            outputGeneration = Math.max(outputGeneration, input.generation);
+        }
+        long[] keys = s.keys;
+        SegmentWriter output = null;
+        try {
+            while (true) {
+                //next visual word
+                long key = 0;
+                boolean found = false;
+                for (int i = 0; i < inputs.length; i++) {
+                    if (positions[i] < inputs[i].count && (!found || inputs[i].key(positions[i]) < key)) {
+                        key = inputs[i].key(positions[i]);
+                        found = true;
+                    }
+                }
+                if (!found) {
+                    break;
+                }
+                int n = 0;
+                for (int i = 0; i < inputs.length; i++) {
+                    if (positions[i] < inputs[i].count && inputs[i].key(positions[i]) == key) {
+                        cursors[n] = inputs[i].cursor(positions[i]);
+                        generations[n] = inputs[i].generation;
+                        valid[n] = cursors[n].next();
+                        n++;
+                        positions[i]++;
+                    }
+                }
+                if (contains(keys, key)) {
+                    continue;
+                }
+                if (output == null) {
+                    output = new SegmentWriter(nextSegment(), outputGeneration);
+                }
+                //postings of the visual word in image order
+                output.begin(key);
+                while (true) {
+                    long id = 0;
+                    boolean next = false;
+                    for (int i = 0; i < n; i++) {
+                        if (valid[i] && (!next || cursors[i].getI() < id)) {
+                            id = cursors[i].getI();
+                            next = true;
+                        }
+                    }
+                    if (!next) {
+                        break;
+                    }
+                    int NIBT = 0;
+                    boolean kept = false;
+                    for (int i = 0; i < n; i++) {
+                        if (valid[i] && cursors[i].getI() == id) {
+                            if (!s.isDeleted(id, generations[i])) {
+                                NIBT = NIBT + cursors[i].getNIBT();
+                                kept = true;
+                            }
+                            valid[i] = cursors[i].next();
+                        }
+                    }
+                    if (kept) {
+                        output.add(id, NIBT);
+                    }
+                }
+                output.end();
+                if (output.size() >= MAX_SEGMENT_SIZE) {
+                    add(outputs, output.finish());
+                    output = null;
+                }
+            }
+            if (output != null) {
+                add(outputs, output.finish());
+                output = null;
+            }
+            return outputs;
+        } finally {
+            if (output != null) {
+                output.abort();
+            }
+        }
+    }
+
+    private static void add(List<Segment> segments, Segment segment) {
+        if (segment.count > 0) {
+            segments.add(segment);
+        } else if (!segment.file.delete()) {
+            logger.error("Cannot delete segment " + segment.file);
+        }
+    }
+
+    /**
+     * Write a table in a new segment (visual words and images sorted)
+     * @param table Table
+     * @param generation Generation of the table postings
+     * @param s State with deleted images and visual words
+     * @return Segment or null if table has no posting
+     * @throws IOException Error during write
+     */
+    private Segment write(VisualWordTable table, long generation, State s) throws IOException {
+        long[] keys = s.keys;
+        long[] words = new long[table.size()];
+        int n = 0;
+        for (int i = 0; i < table.capacity() && n < words.length; i++) {
+            ValueStructure value = table.valueAt(i);
+            if (value != null && !contains(keys, table.keyAt(i))) {
+                words[n++] = table.keyAt(i);
+            }
+        }
+        Arrays.sort(words, 0, n);
+        SegmentWriter output = new SegmentWriter(nextSegment(), generation);
+        try {
+            for (int i = 0; i < n; i++) {
+                ValueStructure value = table.get(words[i]);
+                output.begin(words[i]);
+                EntryCursor cursor = value.cursor();
+                if (config.getStrucType() != ValueStructure.PRIMITIVE) {
+                    //hashmap entries are not sorted
+                    cursor = new SortedCursor(new TreeMap<Long, Integer>(value.getEntries()));
+                }
+                while (cursor.next()) {
+                    if (!s.isDeleted(cursor.getI(), generation)) {
+                        output.add(cursor.getI(), cursor.getNIBT());
+                    }
+                }
+                output.end();
+            }
+            Segment segment = output.finish();
+            output = null;
+            if (segment.count == 0) {
+                if (!segment.file.delete()) {
+                    logger.error("Cannot delete segment " + segment.file);
+                }
+                return null;
+            }
+            return segment;
+        } finally {
+            if (output != null) {
+                output.abort();
+            }
+        }
+    }
+
+    private synchronized long nextSegment() {
+        return nextSegment++;
+    }
+
+    /**
+     * Publish a new state and write it in manifest (guarded by this)
+     */
+    private void publish(State s) {
+        state = s;
+        try {
+            writeManifest(s);
+        } catch (IOException e) {
+            logger.error("Cannot write manifest " + prefix + ": " + e);
+        }
+    }
+
+    private File getSegmentFile(long segment) {
+        return new File(directory, prefix + segment + EXTENSION);
+    }
+
+    private File getManifestFile() {
+        return new File(directory, prefix.substring(0, prefix.length() - 1) + MANIFEST);
+    }
+
+    /**
+     * Manifest: magic, version, live segments (number, generation), deleted images (id, generation),
+     * deleted visual words and current generation
+     */
+    private void writeManifest(State s) throws IOException {
+        File file = getManifestFile();
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+            output.writeLong(MAGIC);
+            output.writeInt(MANIFEST_VERSION);
+            output.writeInt(s.segments.length);
+            for (Segment segment : s.segments) {
+                output.writeLong(segment.number);
+                output.writeLong(segment.generation);
+            }
+            writeLongs(output, s.ids);
+            writeLongs(output, s.deletes);
+            writeLongs(output, s.keys);
+            output.writeLong(generation);
+            output.flush();
+            stream.getChannel().force(true);
+        } finally {
+            stream.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeLongs(DataOutputStream output, long[] values) throws IOException {
+        output.writeInt(values.length);
+        for (long value : values) {
+            output.writeLong(value);
+        }
+    }
+
+    /**
+     * Read manifest and map its segments, other segment files (merge or write not finished) are deleted
+     */
+    private State readManifest() throws IOException {
+        Segment[] segments = new Segment[0];
+        long[] ids = new long[0];
+        long[] deletes = new long[0];
+        long[] keys = new long[0];
+        Set<Long> live = new HashSet<Long>();
+        File file = getManifestFile();
+        if (file.exists()) {
+            DataInputStream input = new DataInputStream(new FileInputStream(file));
+            try {
+                int version = input.readLong() == MAGIC ? input.readInt() : -1;
+                if (version != VERSION && version != MANIFEST_VERSION) {
+                    throw new IOException(file + " is not a segment manifest");
+                }
+                segments = new Segment[input.readInt()];
+                for (int i = 0; i < segments.length; i++) {
+                    long number = input.readLong();
+                    //first version: all segments are older than the deletes
+                    long segmentGeneration = version == VERSION ? 0 : input.readLong();
+                    segments[i] = new Segment(number, segmentGeneration, getSegmentFile(number));
+                    live.add(number);
+                }
+                ids = readLongs(input);
+                if (version == VERSION) {
+                    deletes = new long[ids.length];
+                    Arrays.fill(deletes, 1);
+                    generation = 1;
+                } else {
+                    deletes = readLongs(input);
+                }
+                keys = readLongs(input);
+                if (version != VERSION) {
+                    generation = input.readLong();
+                }
+            } finally {
+                input.close();
+            }
+        }
+        for (Long number : getSegments(directory, prefix)) {
+            nextSegment = Math.max(nextSegment, number + 1);
+            if (!live.contains(number) && !getSegmentFile(number).delete()) {
+                logger.error("Cannot delete segment " + getSegmentFile(number));
+            }
+        }
+        logger.info("SegmentHashTable " + prefix + ": " + segments.length + " segments");
+        return new State(new VisualWordTable(1024), null, 0, segments, ids, deletes, keys);
+    }
+
+    private static long[] readLongs(DataInputStream input) throws IOException {
+        long[] values = new long[input.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = input.readLong();
+        }
+        return values;
+    }
+
+    /**
+     * Get the segment numbers of files starting with prefix in directory
+     */
+    private static List<Long> getSegments(File directory, String prefix) {
+        List<Long> segments = new ArrayList<Long>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(prefix) && name.endsWith(EXTENSION)) {
+                    String number = name.substring(prefix.length(), name.length() - EXTENSION.length());
+                    if (number.matches("[0-9]+")) {
+                        segments.add(Long.parseLong(number));
+                    }
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Delete segments and manifests of all test vectors of a storage
+     * @param directory Index directory
+     * @param storage Storage id
+     */
+    public static void delete(File directory, String storage) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(storage + ".") && name.substring(storage.length() + 1).matches("[0-9]+(\\.[0-9]+" + EXTENSION.replace(".", "\\.") + "|" + MANIFEST.replace(".", "\\.") + ")")
+                    && !file.delete()) {
+                logger.error("Cannot delete " + file);
+            }
+        }
+    }
+
+    private static boolean contains(long[] sorted, long value) {
+        return sorted.length > 0 && Arrays.binarySearch(sorted, value) >= 0;
+    }
+
+    private static long[] union(long[] sorted, Collection<Long> values) {
+        long[] result = Arrays.copyOf(sorted, sorted.length + values.size());
+        int n = sorted.length;
+        for (Long value : values) {
+            result[n++] = value;
+        }
+        Arrays.sort(result);
+        int size = 0;
+        for (int i = 0; i < result.length; i++) {
+            if (size == 0 || result[size - 1] != result[i]) {
+                result[size++] = result[i];
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Add deleted images to a state (generation of an image deleted again is replaced)
+     * @param s State
+     * @param values Images
+     * @param generation Generation of the delete
+     * @return New state
+     */
+    private static State deleteImages(State s, Collection<Long> values, long generation) {
+        long[] ids = union(s.ids, values);
+        long[] deletes = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            int j = Arrays.binarySearch(s.ids, ids[i]);
+            deletes[i] = values.contains(ids[i]) || j < 0 ? generation : s.deletes[j];
+        }
+        return new State(s.buffer, s.flushing, s.flushingGeneration, s.segments, ids, deletes, s.keys);
+    }
+
+    /**
+     * Remove from a state the deleted images dropped by a merge (same image and generation)
+     * @param s State
+     * @param merged State used by the merge
+     * @return New state
+     */
+    private static State minusDeletes(State s, State merged) {
+        long[] ids = new long[s.ids.length];
+        long[] deletes = new long[s.ids.length];
+        int size = 0;
+        for (int i = 0; i < s.ids.length; i++) {
+            int j = merged.ids.length > 0 ? Arrays.binarySearch(merged.ids, s.ids[i]) : -1;
+            if (j < 0 || merged.deletes[j] != s.deletes[i]) {
+                ids[size] = s.ids[i];
+                deletes[size] = s.deletes[i];
+                size++;
+            }
+        }
+        return new State(s.buffer, s.flushing, s.flushingGeneration, s.segments, Arrays.copyOf(ids, size), Arrays.copyOf(deletes, size), s.keys);
+    }
+
+    private static long[] minus(long[] sorted, long[] removed) {
+        long[] result = new long[sorted.length];
+        int size = 0;
+        for (long value : sorted) {
+            if (!contains(removed, value)) {
+                result[size++] = value;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Immutable segment mapped in memory
+     */
+    static final class Segment {
+        final long number;
+        /**
+         * Generation of the postings (a delete of a newer generation filters them)
+         */
+        final long generation;
+        final File file;
+        final MappedByteBuffer buffer;
+        /**
+         * Number of visual words
+         */
+        final int count;
+        final int directory;
+        final long postings;
+
+        Segment(long number, long generation, File file) throws IOException {
+            this.number = number;
+            this.generation = generation;
+            this.file = file;
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                //mapping stays valid once the file is closed
+                buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+            } finally {
+                input.close();
+            }
+            if (buffer.capacity() < HEADER_SIZE || buffer.getLong(0) != MAGIC || buffer.getInt(8) != VERSION) {
+                throw new IOException(file + " is not a segment");
+            }
+            count = buffer.getInt(12);
+            directory = (int) buffer.getLong(16);
+            postings = buffer.getLong(24);
+        }
+
+        long key(int i) {
+            return buffer.getLong(directory + i * ENTRY_SIZE);
+        }
+
+        long nbt(int i) {
+            return buffer.getLong(directory + i * ENTRY_SIZE + 8);
+        }
+
+        int size(int i) {
+            return buffer.getInt(directory + i * ENTRY_SIZE + 20);
+        }
+
+        SegmentCursor cursor(int i) {
+            return new SegmentCursor(buffer, buffer.getInt(directory + i * ENTRY_SIZE + 16), size(i));
+        }
+
+        /**
+         * Binary search of a visual word in directory
+         * @param key Visual word
+         * @return Position in directory or -1
+         */
+        int find(long key) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                long value = key(middle);
+                if (value < key) {
+                    low = middle + 1;
+                } else if (value > key) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Cursor on the postings of a visual word in a segment
+     */
+    static final class SegmentCursor implements EntryCursor {
+        private final ByteBuffer buffer;
+        private int position;
+        private int remaining;
+        private long id;
+        private int NIBT;
+
+        SegmentCursor(ByteBuffer buffer, int position, int size) {
+            this.buffer = buffer;
+            this.position = position;
+            this.remaining = size;
+        }
+
+        public boolean next() {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            id = id + readVarint();
+            NIBT = (int) readVarint();
+            return true;
+        }
+
+        private long readVarint() {
+            long result = 0;
+            for (int shift = 0; ; shift = shift + 7) {
+                byte b = buffer.get(position++);
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+        }
+
+        public long getI() {
+            return id;
+        }
+
+        public int getNIBT() {
+            return NIBT;
+        }
+    }
+
+    /**
+     * Cursor on postings sorted by image
+     */
+    private static final class SortedCursor implements EntryCursor {
+        private final Iterator<Map.Entry<Long, Integer>> iterator;
+        private Map.Entry<Long, Integer> current;
+
+        SortedCursor(TreeMap<Long, Integer> entries) {
+            this.iterator = entries.entrySet().iterator();
+        }
+
+        public boolean next() {
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            current = iterator.next();
+            return true;
+        }
+
+        public long getI() {
+            return current.getKey();
+        }
+
+        public int getNIBT() {
+            return current.getValue();
+        }
+    }
+
+    /**
+     * Write a segment: postings then directory, header is written last
+     */
+    private final class SegmentWriter {
+        private final File file;
+        private final long number;
+        private final long generation;
+        private final FileOutputStream stream;
+        private final DataOutputStream output;
+        private long[] keys = new long[1024];
+        private long[] nbts = new long[1024];
+        private int[] offsets = new int[1024];
+        private int[] sizes = new int[1024];
+        private int count;
+        private long postings;
+        private long last;
+        private int size;
+        private long nbt;
+        private int offset;
+
+        SegmentWriter(long number, long generation) throws IOException {
+            this.number = number;
+            this.generation = generation;
+            this.file = getSegmentFile(number);
+            this.stream = new FileOutputStream(file);
+            this.output = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+            output.write(new byte[HEADER_SIZE]);
+        }
+
+        void begin(long key) {
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count << 1);
+                nbts = Arrays.copyOf(nbts, count << 1);
+                offsets = Arrays.copyOf(offsets, count << 1);
+                sizes = Arrays.copyOf(sizes, count << 1);
+            }
+            keys[count] = key;
+            offset = output.size();
+            last = 0;
+            size = 0;
+            nbt = 0;
+        }
+
+        void add(long id, int NIBT) throws IOException {
+            //ids are sorted: delta is written as an unsigned varint
+            writeVarint(id - last);
+            writeVarint(NIBT);
+            last = id;
+            nbt = nbt + NIBT;
+            size++;
+        }
+
+        void end() {
+            if (size > 0) {
+                nbts[count] = nbt;
+                offsets[count] = offset;
+                sizes[count] = size;
+                count++;
+                postings = postings + size;
+            }
+        }
+
+        int size() {
+            return output.size();
+        }
+
+        private void writeVarint(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                output.writeByte((int) ((value & 0x7F) | 0x80));
+                value = value >>> 7;
+            }
+            output.writeByte((int) value);
+        }
+
+        Segment finish() throws IOException {
+            try {
+                int directory = output.size();
+                for (int i = 0; i < count; i++) {
+                    output.writeLong(keys[i]);
+                    output.writeLong(nbts[i]);
+                    output.writeInt(offsets[i]);
+                    output.writeInt(sizes[i]);
+                }
+                output.flush();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putLong(MAGIC).putInt(VERSION).putInt(count).putLong(directory).putLong(postings);
+                header.flip();
+                FileChannel channel = stream.getChannel();
+                channel.write(header, 0);
+                channel.force(true);
+            } finally {
+                stream.close();
+            }
+            return new Segment(number, generation, file);
+        }
+
+        void abort() {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                logger.error(e);
+            }
+            if (!file.delete()) {
+                logger.error("Cannot delete segment " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.storage.index.main;
+
+import retrieval.storage.index.ValueStructure;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open addressing hash table (linear probing) with a visual word bit pattern
+ * as key and its posting list as value.
+ * There is one table for each test vector so keys are not prefixed and
+ * a lookup does not build or hash any String.
+ * A slot is free if its value is null (so every long is a valid key).
+ * Only one thread may write (one thread per test vector), readers may run
+ * at the same time: a new key is written before its value (volatile write),
+ * and a remove builds new arrays without the removed keys (copy on write),
+ * so a slot never changes of key while readers may see it.
+ * @author Rollus Loic
+ */
+public class VisualWordTable {
+
+    /**
+     * Keys and values arrays (swapped together on resize and remove)
+     */
+    private static final class Slots {
+        final long[] keys;
+        final AtomicReferenceArray<ValueStructure> values;
+
+        Slots(int capacity) {
+            keys = new long[capacity];
+            values = new AtomicReferenceArray<ValueStructure>(capacity);
+        }
+    }
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private volatile Slots slots;
+    private volatile int size;
+    private int threshold;
+
+    /**
+     * Construct an empty table
+     * @param expectedSize Number of visual words expected
+     */
+    public VisualWordTable(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max((int) (expectedSize / LOAD_FACTOR), 16) - 1) << 1;
+        this.slots = new Slots(capacity);
+        this.threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Get the posting list of visual word key
+     * @param key Visual word
+     * @return Posting list or null if key is not in table
+     */
+    public ValueStructure get(long key) {
+        Slots s = slots;
+        int mask = s.keys.length - 1;
+        int i = hash(key) & mask;
+        ValueStructure value;
+        while ((value = s.values.get(i)) != null) {
+            if (s.keys[i] == key) {
+                return value;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Put the posting list of visual word key (replace old one)
+     * @param key Visual word
+     * @param value Posting list (not null)
+     */
+    public void put(long key, ValueStructure value) {
+        Slots s = slots;
+        int mask = s.keys.length - 1;
+        int i = hash(key) & mask;
+        while (s.values.get(i) != null) {
+            if (s.keys[i] == key) {
+                s.values.set(i, value);
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        //key first: a reader sees the slot (and its key) only once value is set
+        s.keys[i] = key;
+        s.values.set(i, value);
+        size++;
+        if (size > threshold) {
+            resize(s.keys.length << 1);
+        }
+    }
+
+    /**
+     * Remove visual word key from table (the table is copied, use removeAll for many keys)
+     * @param key Visual word
+     * @return Old posting list or null
+     */
+    public ValueStructure remove(long key) {
+        ValueStructure old = get(key);
+        if (old != null) {
+            rebuild(slots.keys.length, new long[]{key}, 1);
+        }
+        return old;
+    }
+
+    /**
+     * Remove visual words from table (a single copy of the table)
+     * @param keys Visual words
+     * @return Number of visual words removed
+     */
+    public int removeAll(List<Long> keys) {
+        long[] toRemove = new long[keys.size()];
+        int n = 0;
+        for (Long key : keys) {
+            if (get(key) != null) {
+                toRemove[n++] = key;
+            }
+        }
+        if (n > 0) {
+            rebuild(slots.keys.length, toRemove, n);
+        }
+        return n;
+    }
+
+    /**
+     * Remove each empty posting list from the table
+     * @return Number of visual words removed
+     */
+    public int removeEmpty() {
+        Slots s = slots;
+        long[] toRemove = new long[16];
+        int n = 0;
+        for (int i = 0; i < s.keys.length; i++) {
+            ValueStructure value = s.values.get(i);
+            if (value != null && value.isEmpty()) {
+                if (n == toRemove.length) {
+                    toRemove = Arrays.copyOf(toRemove, n << 1);
+                }
+                toRemove[n++] = s.keys[i];
+            }
+        }
+        if (n > 0) {
+            rebuild(s.keys.length, toRemove, n);
+        }
+        return n;
+    }
+
+    /**
+     * Get the number of visual words in table
+     * @return Size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of slots (used to iterate with valueAt)
+     * @return Capacity
+     */
+    public int capacity() {
+        return slots.keys.length;
+    }
+
+    /**
+     * Get the posting list in slot i
+     * @param i Slot (0 &lt;= i &lt; capacity)
+     * @return Posting list or null if slot is free
+     */
+    public ValueStructure valueAt(int i) {
+        AtomicReferenceArray<ValueStructure> values = slots.values;
+        return i < values.length() ? values.get(i) : null;
+    }
+
+    /**
+     * Get the visual word in slot i (no writer must modify the table during iteration)
+     * @param i Slot (0 &lt;= i &lt; capacity)
+     * @return Visual word (only valid if valueAt(i) is not null)
+     */
+    public long keyAt(int i) {
+        return slots.keys[i];
+    }
+
+    /**
+     * Remove all visual words
+     */
+    public void clear() {
+        this.slots = new Slots(16);
+        this.threshold = (int) (16 * LOAD_FACTOR);
+        this.size = 0;
+    }
+
+    private void resize(int capacity) {
+        rebuild(capacity, null, 0);
+    }
+
+    /**
+     * Copy the table in new arrays, without some keys, and publish the copy
+     * (readers still working on the old arrays see a coherent table)
+     * @param capacity Capacity of the new arrays
+     * @param removed Keys not copied (only the n first ones, sorted by this method)
+     * @param n Number of keys not copied
+     */
+    private void rebuild(int capacity, long[] removed, int n) {
+        if (n > 0) {
+            Arrays.sort(removed, 0, n);
+        }
+        Slots old = slots;
+        Slots s = new Slots(capacity);
+        int mask = capacity - 1;
+        int count = 0;
+        for (int j = 0; j < old.keys.length; j++) {
+            ValueStructure value = old.values.get(j);
+            if (value != null && (n == 0 || Arrays.binarySearch(removed, 0, n, old.keys[j]) < 0)) {
+                int i = hash(old.keys[j]) & mask;
+                while (s.values.get(i) != null) {
+                    i = (i + 1) & mask;
+                }
+                s.keys[i] = old.keys[j];
+                s.values.set(i, value);
+                count++;
+            }
+        }
+        this.threshold = (int) (capacity * LOAD_FACTOR);
+        this.size = count;
+        this.slots = s;
+    }
+
+    private static int hash(long key) {
+        //mix bits: visual words are often close to each other
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
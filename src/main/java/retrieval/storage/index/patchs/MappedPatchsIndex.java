@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.storage.index.patchs;
+
+import org.apache.log4j.Logger;
+import retrieval.server.globaldatabase.GlobalDatabase;
+import retrieval.server.globaldatabase.MappedDatabase;
+import retrieval.server.globaldatabase.MappedStore;
+import retrieval.storage.exception.CloseIndexException;
+import retrieval.storage.exception.StartIndexException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Patchs Index in a memory-mapped store (STORENAME=MAPPED)
+ * @author Rollus Loic
+ */
+public class MappedPatchsIndex implements PicturePatchsIndex {
+
+    private MappedStore store;
+
+    /**
+     * Logger
+     */
+    private static Logger logger = Logger.getLogger(MappedPatchsIndex.class);
+
+    /**
+     * Constructor for a mapped patchs index
+     * @param global Mapped database
+     * @param idServer Storage id
+     * @throws StartIndexException Error during the start of index
+     */
+    public MappedPatchsIndex(GlobalDatabase global, String idServer) throws StartIndexException {
+        logger.info("MappedPatchsIndex: start");
+        try {
+            store = ((MappedDatabase) global.getDatabasePatchs()).getStore(idServer, MappedDatabase.PATCHS);
+        } catch (IOException e) {
+            throw new StartIndexException(e.toString());
+        }
+    }
+
+    /**
+     * Add a new image id and its N value (number of patch extracted to index)
+     * @param imageID Image I
+     * @param N NI (Number of patch extracted from I to index it)
+     */
+    public void put(Long imageID, Integer N) {
+        try {
+            store.put(imageID, ByteBuffer.allocate(4).putInt(N).array());
+        } catch (IOException e) {
+            logger.error("put: " + e);
+        }
+    }
+
+    /**
+     * Get the NI value of image I
+     * @param imageID I
+     * @return Number of patch extracted from I to index it (-1 if not in index)
+     */
+    public Integer get(Long imageID) {
+        byte[] value = store.get(imageID);
+        return value != null ? ByteBuffer.wrap(value).getInt() : -1;
+    }
+
+    /**
+     * Delete all image ID key in index
+     * @param picturesID Image ID to delete (just look the key)
+     */
+    public void delete(Map<Long, Integer> picturesID) {
+        for (Long id : picturesID.keySet()) {
+            store.remove(id);
+        }
+    }
+
+    /**
+     * Close index
+     * @throws CloseIndexException Error during index close
+     */
+    public void close() throws CloseIndexException {
+        try {
+            store.sync();
+        } catch (IOException e) {
+            logger.error(e.toString());
+            throw new CloseIndexException();
+        }
+    }
+
+    public void sync() {
+        try {
+            store.sync();
+        } catch (IOException e) {
+            logger.error("sync: " + e);
+        }
+    }
+}
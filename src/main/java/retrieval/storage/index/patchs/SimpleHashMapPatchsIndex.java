@@ -16,15 +16,16 @@
 package retrieval.storage.index.patchs;
 
 import org.apache.log4j.Logger;
+import retrieval.server.globaldatabase.GlobalDatabase;
+import retrieval.server.globaldatabase.MemoryDatabase;
 import retrieval.storage.exception.CloseIndexException;
 import retrieval.storage.exception.ReadIndexException;
 
-import java.util.HashMap;
 import java.util.Map;
 
 /**
- * Patchs Index implemented with a simple HashMap for memory use only
- * (Use BDBPatchIndex to support persistant storage)
+ * Patchs Index implemented with a map of the memory database
+ * (saved with the storage snapshot, see MEMORYSNAPSHOT)
  * @author Rollus Loic
  */
 public class SimpleHashMapPatchsIndex implements PicturePatchsIndex {
@@ -41,15 +42,14 @@ public class SimpleHashMapPatchsIndex implements PicturePatchsIndex {
 
     /**
      * Constructor to build a Patchs Map in Memory
-     * @param read No effect (just memory, don't read anything)
+     * @param global Memory database
+     * @param idServer Storage id
      * @throws ReadIndexException Error during the Read
      */
-    public SimpleHashMapPatchsIndex(
-            boolean read)
+    public SimpleHashMapPatchsIndex(GlobalDatabase global, String idServer)
             throws ReadIndexException {
         logger.info("SimpleHashMapPatchsIndex: start");
-        logger.info("SimpleHashMapPatchsIndex: start");
-        map = new HashMap<Long, Integer>();
+        map = ((MemoryDatabase)global).getPatchsTable(idServer);
     }
 
     /**
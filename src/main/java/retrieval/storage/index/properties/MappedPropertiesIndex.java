@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.storage.index.properties;
+
+import org.apache.log4j.Logger;
+import retrieval.server.globaldatabase.GlobalDatabase;
+import retrieval.server.globaldatabase.MappedDatabase;
+import retrieval.server.globaldatabase.MappedStore;
+import retrieval.storage.exception.CloseIndexException;
+import retrieval.storage.exception.StartIndexException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Picture properties in a memory-mapped store (STORENAME=MAPPED)
+ * Value of an image: [number of properties] then [key][value] for each property
+ * @author Rollus Loic
+ */
+public class MappedPropertiesIndex implements PicturePropertiesIndex {
+
+    private MappedStore store;
+
+    /**
+     * Logger
+     */
+    private static Logger logger = Logger.getLogger(MappedPropertiesIndex.class);
+
+    /**
+     * Constructor for a mapped properties index
+     * @param global Mapped database
+     * @param idServer Storage id
+     * @throws StartIndexException Error during the start of index
+     */
+    public MappedPropertiesIndex(GlobalDatabase global, String idServer) throws StartIndexException {
+        logger.info("MappedPropertiesIndex: start");
+        try {
+            store = ((MappedDatabase) global.getDatabaseProperties()).getStore(idServer, MappedDatabase.PROPERTIES);
+        } catch (IOException e) {
+            throw new StartIndexException(e.toString());
+        }
+    }
+
+    /**
+     * Add a new picture with its properties
+     * @param id Picture id
+     * @param properties Picture properties
+     * @return Picture ID (-1 if error)
+     */
+    public Long addPicture(Long id, Map<String, String> properties) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeInt(properties.size());
+            for (Map.Entry<String, String> prop : properties.entrySet()) {
+                output.writeUTF(prop.getKey());
+                output.writeUTF(prop.getValue());
+            }
+            output.flush();
+            store.put(id, bytes.toByteArray());
+            logger.info(";" + Calendar.getInstance().getTime().getTime() + ";" + "" + id + ";" + properties);
+            return id;
+        } catch (IOException ex) {
+            logger.error(ex.toString());
+            return -1l;
+        }
+    }
+
+    /**
+     * Get the properties of a picture
+     * @param id Picture id
+     * @return Properties (empty if picture is not in index)
+     */
+    public Map<String, String> getPictureProperties(Long id) {
+        Map<String, String> properties = new HashMap<String, String>();
+        byte[] value = store.get(id);
+        if (value == null) {
+            return properties;
+        }
+        try {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(value));
+            int size = input.readInt();
+            for (int i = 0; i < size; i++) {
+                properties.put(input.readUTF(), input.readUTF());
+            }
+        } catch (IOException e) {
+            logger.error("Bad properties for " + id + ": " + e);
+        }
+        return properties;
+    }
+
+    public boolean containsPicture(Long id) {
+        return store.contains(id);
+    }
+
+    public int getSize() {
+        return store.size();
+    }
+
+    /**
+     * Delete pictures and get their id
+     * @param ids Pictures that must be deleted
+     * @return Pictures deleted id
+     */
+    public Map<Long, Integer> delete(List<Long> ids) {
+        Map<Long, Integer> picturesID = new HashMap<Long, Integer>(ids.size());
+        for (Long id : ids) {
+            if (store.remove(id)) {
+                logger.info("delete: id=" + id);
+                picturesID.put(id, 0);
+            }
+        }
+        return picturesID;
+    }
+
+    /**
+     * Get the id of all pictures
+     * @return Pictures id (sorted)
+     */
+    public List<Long> getIdsList() {
+        long[] keys = store.keys();
+        Arrays.sort(keys);
+        List<Long> list = new ArrayList<Long>(keys.length);
+        for (long key : keys) {
+            list.add(key);
+        }
+        return list;
+    }
+
+    /**
+     * Get a map with all pictures
+     * @return All pictures map
+     */
+    public Map<Long, Map<String, String>> getMap() {
+        Map<Long, Map<String, String>> map = new TreeMap<Long, Map<String, String>>();
+        for (Long id : getIdsList()) {
+            map.put(id, getPictureProperties(id));
+        }
+        return map;
+    }
+
+    /**
+     * Close index
+     * @throws CloseIndexException Exception during the close
+     */
+    public void close() throws CloseIndexException {
+        try {
+            store.sync();
+        } catch (IOException e) {
+            logger.error(e.toString());
+            throw new CloseIndexException();
+        }
+    }
+
+    public void sync() {
+        try {
+            store.sync();
+        } catch (IOException e) {
+            logger.error("sync: " + e);
+        }
+    }
+}
@@ -17,8 +17,8 @@ package retrieval.testvector;
 
 import org.apache.log4j.Logger;
 import retrieval.config.Config;
-import retrieval.utils.ConvertUtils;
 import retrieval.utils.ImageData;
+import retrieval.utils.PatchMapping;
 import retrieval.utils.PatcheInformation;
 import retrieval.utils.PictureUtils;
 
@@ -36,6 +36,11 @@ import java.util.concurrent.ConcurrentHashMap;
  **/
 public abstract class TestVector implements Comparable {
 
+    /**
+     * Max number of tests (a visual word is a 64 bits pattern)
+     */
+    public static final int MAX_NUMBER_OF_TESTS = Long.SIZE;
+
     /** 
      * list of tests: [Pixel ; Value ]
      **/
@@ -120,12 +125,12 @@ public abstract class TestVector implements Comparable {
      * @param   patchs   List of patchs
      * @return   Map with visual words
      **/
-    public ConcurrentHashMap<String, Long> generateVisualWordFromPatchs(List<BufferedImage> patchs) {
+    public ConcurrentHashMap<Long, Long> generateVisualWordFromPatchs(List<BufferedImage> patchs) {
 
-        ConcurrentHashMap<String, Long> visualWords = new ConcurrentHashMap<String, Long>(patchs.size());
+        ConcurrentHashMap<Long, Long> visualWords = new ConcurrentHashMap<Long, Long>(patchs.size());
 
         for (int i = 0; i < patchs.size(); i++) {
-            String vw = ConvertUtils.convertHexa(analyseToVisualWord(patchs.get(i)));
+            Long vw = analyseToVisualWord(patchs.get(i));
             Long n = visualWords.get(vw);
             if (n == null) {
                 visualWords.put(vw, new Long(1));
@@ -146,7 +151,7 @@ public abstract class TestVector implements Comparable {
      * @param sizeOfPatchH Size of patch (h)
      * @return Visual words
      */
-    public  ConcurrentHashMap<String, Long> generateVisualWordFromPicture(
+    public  ConcurrentHashMap<Long, Long> generateVisualWordFromPicture(
             ImageData img,
             Long id,
             int N,
@@ -154,19 +159,56 @@ public abstract class TestVector implements Comparable {
             int sizeOfPatchW,
             int sizeOfPatchH) {
 
-        ConcurrentHashMap<String, Long> visualWords = generateVisualWordFromPatchs(img.getPatchs(N));
+        List<PatcheInformation> patchsInformation = img.getPatchsInformation();
+        if (patchsInformation != null) {
+            return generateVisualWordFromPatchsInformation(img, patchsInformation, sizeOfPatchW, sizeOfPatchH);
+        }
+        ConcurrentHashMap<Long, Long> visualWords = generateVisualWordFromPatchs(img.getPatchs(N));
+        return visualWords;
+    }
+
+    /**
+     * Return a list of visual words exctracted by the test vector from patchs
+     * read directly in the picture (nearest neighbor resize, no patch image)
+     * @param img Picture
+     * @param patchsInformation Patchs information (x,y,w,h)
+     * @param sizeOfPatchW Size of patch (w)
+     * @param sizeOfPatchH Size of patch (h)
+     * @return Map with visual words
+     */
+    public ConcurrentHashMap<Long, Long> generateVisualWordFromPatchsInformation(
+            ImageData img,
+            List<PatcheInformation> patchsInformation,
+            int sizeOfPatchW,
+            int sizeOfPatchH) {
+
+        ConcurrentHashMap<Long, Long> visualWords = new ConcurrentHashMap<Long, Long>(patchsInformation.size());
+
+        for (int i = 0; i < patchsInformation.size(); i++) {
+            PatcheInformation pi = patchsInformation.get(i);
+            PatchMapping mapping = PatchMapping.getMapping(pi.getW(), pi.getH(), sizeOfPatchW, sizeOfPatchH);
+            Long vw = analyseToVisualWord(img, pi, mapping);
+            Long n = visualWords.get(vw);
+            if (n == null) {
+                visualWords.put(vw, new Long(1));
+            } else {
+                visualWords.put(vw, n + 1);
+            }
+        }
         return visualWords;
     }
 
     /**
      * Take a subimage of imageID and return a visualword
+     * Test i is the bit (size-1-i) of the visual word (first test is the
+     * most significant bit), so there are max 64 tests.
      * Rem: Very critical part of the code (performance!)
      * @param   img   A patch
      * @return A visual word
      **/
-    public String analyseToVisualWord(BufferedImage img) {
+    public long analyseToVisualWord(BufferedImage img) {
 
-        char[] visualword = new char[tests.size()];
+        long visualword = 0;
         double[] rbghsv = new double[6];
         for (int i = 0; i < tests.size(); i++) {
 
@@ -174,25 +216,60 @@ public abstract class TestVector implements Comparable {
 
             int rgb = img.getRGB(test.getX(), test.getY());
 
-            //If position is under 3, don't convert rgb (position 0-1-2) to hsv (position 3-4-5)
-            if (test.getPosition() >= 3) {
-                PictureUtils.RGBToHSV(rgb, rbghsv);
-            }
+            visualword = (visualword << 1) | analyseTest(test, rgb, rbghsv);
+        }
+        return visualword;
+    }
+
+    /**
+     * Take a patch read directly in the picture (see PatchMapping) and
+     * return a visualword (same as analyseToVisualWord on the patch image)
+     * @param img Picture
+     * @param pi Patch information (x,y,w,h)
+     * @param mapping Mapping between patch pixels and extraction pixels
+     * @return A visual word
+     */
+    public long analyseToVisualWord(ImageData img, PatcheInformation pi, PatchMapping mapping) {
 
-            //convert to rgb
-            rbghsv[0] = (rgb >> 16) & 0xFF;
-            rbghsv[1] = (rgb >> 8) & 0xFF;
-            rbghsv[2] = (rgb >> 0) & 0xFF;
+        long visualword = 0;
+        double[] rbghsv = new double[6];
+        for (int i = 0; i < tests.size(); i++) {
 
-            //logger.info(rgb + "---" + (rbghsv[0]) +"#"+(rbghsv[1]) +"#"+(rbghsv[2]) +"#"+(rbghsv[3]) +"#"+(rbghsv[4]) +"#"+(rbghsv[5]));
-            if (rbghsv[test.getPosition()] > test.getValue()) {
-                visualword[i] = '1';
-            } else {
-                visualword[i] = '0';
-            }
+            TestPoint test = tests.get(i);
+
+            int rgb = img.getRGB(
+                    pi.getX() + mapping.getSourceX(test.getX()),
+                    pi.getY() + mapping.getSourceY(test.getY()));
+
+            visualword = (visualword << 1) | analyseTest(test, rgb, rbghsv);
+        }
+        return visualword;
+    }
+
+    /**
+     * Apply a test on a pixel
+     * @param test Test
+     * @param rgb RGB value of the pixel
+     * @param rbghsv Array for r,g,b,h,s,v values
+     * @return 1 if the value is upper than the test value, else 0
+     */
+    private static long analyseTest(TestPoint test, int rgb, double[] rbghsv) {
+
+        //If position is under 3, don't convert rgb (position 0-1-2) to hsv (position 3-4-5)
+        if (test.getPosition() >= 3) {
+            PictureUtils.RGBToHSV(rgb, rbghsv);
+        }
+
+        //convert to rgb
+        rbghsv[0] = (rgb >> 16) & 0xFF;
+        rbghsv[1] = (rgb >> 8) & 0xFF;
+        rbghsv[2] = (rgb >> 0) & 0xFF;
 
+        //logger.info(rgb + "---" + (rbghsv[0]) +"#"+(rbghsv[1]) +"#"+(rbghsv[2]) +"#"+(rbghsv[3]) +"#"+(rbghsv[4]) +"#"+(rbghsv[5]));
+        if (rbghsv[test.getPosition()] > test.getValue()) {
+            return 1L;
         }
-        return new String(visualword);
+        return 0L;
     }
 
     /**
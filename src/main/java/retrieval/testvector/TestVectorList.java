@@ -17,6 +17,7 @@ package retrieval.testvector;
 
 import org.apache.log4j.Logger;
 import retrieval.utils.ImageData;
+import retrieval.utils.PatchMapping;
 import retrieval.utils.PatcheInformation;
 import retrieval.utils.PictureUtils;
 
@@ -53,7 +54,7 @@ public abstract class TestVectorList extends ArrayList<TestVector> {
      * @return Visual words
      * @throws InterruptedException
      */
-    public List<ConcurrentHashMap<String, Long>> generateVisualWordFromPicture(
+    public List<ConcurrentHashMap<Long, Long>> generateVisualWordFromPicture(
             BufferedImage imgP,
             Long id,
             int N,
@@ -64,6 +65,57 @@ public abstract class TestVectorList extends ArrayList<TestVector> {
 
         ImageData img = new ImageData(imgP);
 
+        if (PatchMapping.isSupported(resizeMethod)) {
+            //no patch image, each test vector reads patchs directly in the picture
+            img.setPatchsInformation(TestVector.generatePatcheInformation(N, img.getWidth(), img.getHeight()));
+        } else {
+            generatePatchs(img, N, resizeMethod, sizeOfPatchW, sizeOfPatchH);
+        }
+
+        //generate visual word from patchs
+        VisualWordThread[] threads = new VisualWordThread[this.size()];
+        List<ConcurrentHashMap<Long, Long>> listsVW = new ArrayList<ConcurrentHashMap<Long, Long>>();
+
+        for (int i = 0; i < this.size(); i++) {
+            threads[i] = new VisualWordThread(
+                    this.get(i),
+                    img,
+                    id,
+                    new ConcurrentHashMap<Long, Long>(N),
+                    N, resizeMethod,
+                    sizeOfPatchW,
+                    sizeOfPatchH);
+
+            threads[i].start();
+        }
+        //wait for all thread
+        for (int i = 0; i < this.size(); i++) {
+
+            threads[i].join();
+            listsVW.add(threads[i].getListsVW());
+
+        }
+
+        return listsVW;
+    }
+
+    /**
+     * Build the N patchs images of a picture (multithread)
+     * @param img Picture
+     * @param N Number of patchs
+     * @param resizeMethod Method use to resize patch
+     * @param sizeOfPatchW Size of patch (w)
+     * @param sizeOfPatchH Size of patch (h)
+     * @throws InterruptedException
+     */
+    private void generatePatchs(
+            ImageData img,
+            int N,
+            int resizeMethod,
+            int sizeOfPatchW,
+            int sizeOfPatchH)
+            throws InterruptedException {
+
         int numberOfThread = this.size();
         int numberOfPatchsPerThread = N / numberOfThread;
         int patchsRest = N % numberOfThread;
@@ -92,32 +144,6 @@ public abstract class TestVectorList extends ArrayList<TestVector> {
         for (int i = 0; i < patchsthreads.length; i++) {
             patchsthreads[i].join();
         }
-
-        //second, generate visual word from patchs
-        VisualWordThread[] threads = new VisualWordThread[this.size()];
-        List<ConcurrentHashMap<String, Long>> listsVW = new ArrayList<ConcurrentHashMap<String, Long>>();
-
-        for (int i = 0; i < this.size(); i++) {
-            threads[i] = new VisualWordThread(
-                    this.get(i),
-                    img,
-                    id,
-                    new ConcurrentHashMap<String, Long>(N),
-                    N, resizeMethod,
-                    sizeOfPatchW,
-                    sizeOfPatchH);
-
-            threads[i].start();
-        }
-        //wait for all thread
-        for (int i = 0; i < this.size(); i++) {
-
-            threads[i].join();
-            listsVW.add(threads[i].getListsVW());
-
-        }
-
-        return listsVW;
     }
 
     /**
@@ -208,7 +234,7 @@ class VisualWordThread extends Thread {
     private int resizeMethod;
     private int sizeOfPatchW;
     private int sizeOfPatchH;
-    private ConcurrentHashMap<String, Long> listsVW;
+    private ConcurrentHashMap<Long, Long> listsVW;
     private TestVector testVector;
     private Long id;
 
@@ -227,7 +253,7 @@ class VisualWordThread extends Thread {
             TestVector testVector,
             ImageData img,
             Long id,
-            ConcurrentHashMap<String, Long> listsVW,
+            ConcurrentHashMap<Long, Long> listsVW,
             int N,
             int resizeMethod,
             int sizeOfPatchW,
@@ -260,7 +286,7 @@ class VisualWordThread extends Thread {
      * Return Map with produced visual words
      * @return Visual words
      */
-    public ConcurrentHashMap<String, Long> getListsVW() {
+    public ConcurrentHashMap<Long, Long> getListsVW() {
         return listsVW;
     }
 
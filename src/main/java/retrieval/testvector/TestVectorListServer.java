@@ -17,8 +17,10 @@ package retrieval.testvector;
 
 import retrieval.storage.exception.CloseIndexException;
 import retrieval.storage.index.PictureIndex;
+import retrieval.storage.index.PictureVisualWords;
 import retrieval.storage.index.ValueStructure;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -64,7 +66,7 @@ public class TestVectorListServer extends TestVectorList {
      * @param visualWords Visual words
      * @param imageID Image ID
      */
-    public void addVisualWords(List<ConcurrentHashMap<String, Long>> visualWords, Long imageID) {
+    public void addVisualWords(List<ConcurrentHashMap<Long, Long>> visualWords, Long imageID) {
 
         for (int i = 0; i < this.size(); i++) {
             this.get(i).addVisualWordsToIndex(visualWords.get(i), imageID);
@@ -72,6 +74,28 @@ public class TestVectorListServer extends TestVectorList {
         }
     }
 
+    /**
+     * Add visual words of a batch of pictures in all tests vectors index
+     * (each test vector index receives all pictures of the batch at once)
+     * @param pictures Pictures with their visual words
+     */
+    public void addVisualWords(List<PictureVisualWords> pictures) {
+        if (pictures.isEmpty()) {
+            return;
+        }
+        List<Long> imagesID = new ArrayList<Long>(pictures.size());
+        for (int j = 0; j < pictures.size(); j++) {
+            imagesID.add(pictures.get(j).getId());
+        }
+        for (int i = 0; i < this.size(); i++) {
+            List<ConcurrentHashMap<Long, Long>> visualWords = new ArrayList<ConcurrentHashMap<Long, Long>>(pictures.size());
+            for (int j = 0; j < pictures.size(); j++) {
+                visualWords.add(pictures.get(j).getVisualWords().get(i));
+            }
+            this.get(i).addVisualWordsToIndex(visualWords, imagesID);
+        }
+    }
+
     /**
      * Delete all pictures ID in all tests vector index
      * @param picturesID Picture id
@@ -118,8 +142,14 @@ public class TestVectorListServer extends TestVectorList {
         }
     }
 
-    public Map<String,Map<String,ValueStructure>> getAll(Map<String,List<String>> keysForTV) {
-        return this.get(0).getAll(keysForTV);
+    /**
+     * Get the posting lists of the visual words of many storages and test vectors
+     * (see TestVectorServer.getAll(Map)), store is shared by all test vectors
+     * @param keysByStorage For each storage, for each test vector name: visual words
+     * @return For each storage, for each test vector name: visual words found and their posting list
+     */
+    public Map<String,Map<String,Map<Long,ValueStructure>>> getAll(Map<String,Map<String,List<Long>>> keysByStorage) {
+        return this.get(0).getAll(keysByStorage);
     }
 
 }
@@ -22,7 +22,9 @@ import retrieval.storage.exception.CloseIndexException;
 import retrieval.storage.exception.ReadIndexException;
 import retrieval.storage.exception.StartIndexException;
 import retrieval.storage.index.*;
+import retrieval.storage.index.main.MappedHashTable;
 import retrieval.storage.index.main.RedisHashTable;
+import retrieval.storage.index.main.SegmentHashTable;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -77,7 +79,8 @@ public class TestVectorServer extends TestVector {
         this.tests = new ArrayList<TestPoint>(pts.size());
 
         logger.debug("TestVectorServer: init of index " + this.name);
-        if(configServer.getStoreName().equals(RedisHashTable.NAME)) {
+        if(configServer.getStoreName().equals(RedisHashTable.NAME) || configServer.getStoreName().equals(SegmentHashTable.NAME)
+                || configServer.getStoreName().equals(MappedHashTable.NAME)) {
             this.index = new IndexStructOptim(idServer,idTestVector, configServer, Integer.parseInt(this.name),database);
         } else {
             this.index = new IndexStructClassic(idServer,idTestVector, configServer, Integer.parseInt(this.name),database);
@@ -137,26 +140,73 @@ public class TestVectorServer extends TestVector {
      * @return A map with id pictures and entry value (contains similarity)
      **/
     public  ConcurrentHashMap<Long, Entry> completeSimilarityPictures(
-            ConcurrentHashMap<String, RequestPictureVisualWord> visualWords, int NIQ) {
+            ConcurrentHashMap<Long, RequestPictureVisualWord> visualWords, int NIQ) {
+        return computeScores(visualWords, NIQ).toEntries();
+    }
+
+    /**
+     * During the search, compute similarities between Iq and each picture
+     * of this test vector index (see computeScores(Map,ConcurrentHashMap,int))
+     * @param visualWords Visual words from Iq
+     * @param NIQ Number of patchs extracted from Iq
+     * @return Similarity accumulator with each candidate
+     */
+    public ScoreAccumulator computeScores(
+            ConcurrentHashMap<Long, RequestPictureVisualWord> visualWords, int NIQ) {
 
-        List<String> keys = new ArrayList<String>(NIQ);
+        List<Long> keys = new ArrayList<Long>(visualWords.size());
 
-        for (Map.Entry<String, RequestPictureVisualWord> visualword : visualWords.entrySet()) {
+        for (Map.Entry<Long, RequestPictureVisualWord> visualword : visualWords.entrySet()) {
 //            if(visualword.getValue().nbtSum>0) {
                 keys.add(visualword.getKey());
 //            }
         }
 
-        return completeSimilarityPictures(this.index.getAll(keys),visualWords,NIQ);
+        return computeScores(getAll(keys),visualWords,NIQ);
+    }
+
+    /**
+     * Get the posting list of each visual word from keys
+     * @param keys Visual words
+     * @return Map with each visual word found and its posting list
+     */
+    public Map<Long,ValueStructure> getAll(List<Long> keys) {
+        return this.index.getAll(keys);
     }
 
 
     public  ConcurrentHashMap<Long, Entry> completeSimilarityPictures(
-            Map<String,ValueStructure> map,
-            ConcurrentHashMap<String, RequestPictureVisualWord> visualWords, int NIQ) {
-        ConcurrentHashMap<Long, Entry> listPicture = new ConcurrentHashMap<Long, Entry>(2 * pictureIndex.getSize());
+            Map<Long,ValueStructure> map,
+            ConcurrentHashMap<Long, RequestPictureVisualWord> visualWords, int NIQ) {
+        return computeScores(map, visualWords, NIQ).toEntries();
+    }
 
-        for (Map.Entry<String,ValueStructure> vw : map.entrySet()) {
+    /**
+     * Compute similarities between Iq and each picture which share at least
+     * one visual word with Iq.
+     * Each posting list is read once: for each [I,NIRBT] of visual word B,
+     * add (1/NBT) * (NIQBT/NIQ) * (NIRBT/NIR) to the similarity of I
+     * (equation 3.1 from "Incremental Indexing and Distributed Image Search
+     * using Shared Randomized Vocabularies" (R. Marée &amp; al)).
+     * Cost is the number of postings read, not (visual words x candidates).
+     * @param map Posting list for each visual word of Iq
+     * @param visualWords Visual words from Iq (with NBT sum)
+     * @param NIQ Number of patchs extracted from Iq
+     * @return Similarity accumulator with each candidate
+     */
+    public ScoreAccumulator computeScores(
+            Map<Long,ValueStructure> map,
+            ConcurrentHashMap<Long, RequestPictureVisualWord> visualWords, int NIQ) {
+
+        int postings = 0;
+        for (ValueStructure list : map.values()) {
+            if (list != null) {
+                postings = postings + list.size();
+            }
+        }
+        ScoreAccumulator scores = new ScoreAccumulator(postings);
+
+        for (Map.Entry<Long,ValueStructure> vw : map.entrySet()) {
 
             /** ValueStructure list = List of pictures and occurences for the
              *  visualword visualWords.get(i)
@@ -165,91 +215,36 @@ public class TestVectorServer extends TestVector {
             RequestPictureVisualWord visualWordRequest = visualWords.get(vw.getKey());
             ValueStructure list = vw.getValue();
 
-            if (list != null && list.getEntries().size() > 0) {
-                /** merge the two list and addition the occurence number
-                 * [img01.jpg; 3 , img02.jpg; 4 , ...]
-                 * +
-                 * [img01.jpg; 2 , img03.jpg; 1 , ...]
-                 * =
-                 * [img01.jpg; 5 , img02.jpg; 4 ,  img03.jpg; 1...]
-                 **/
-                listPicture = merge(listPicture, list.getEntries());
-                /**
-                 * For each picture in index which has visual word B
-                 * (which was generated by Iq),
-                 * compute similarities with equation 3.1 rom
-                 * "Incremental Indexing and Distributed Image Search
-                 * using Shared Randomized Vocabularies" (R. Marée & al)
-                 */
+            if (list != null && !list.isEmpty()) {
                 double NBT = visualWordRequest.nbtSum;
                 double ONEOverNBT = (double) (1d / NBT);
                 double NIQBT = visualWordRequest.nbiq;
                 double NIQBTOverNIQ = (double) (NIQBT / (double) NIQ);
-                for (Map.Entry<Long, Entry> entry : listPicture.entrySet()) {
-                    Entry e = entry.getValue();
-                    double NIRBT = list.getNBIT(e.getI());
-                    double NIRBTOverNIR = (double) (NIRBT / e.getNumberOfPatch());
-                    //Compute similarities with weighting
-                    if (NIRBTOverNIR != 0) {
-                        entry.getValue().addSimilarityComputation(
-                                ONEOverNBT, NIQBTOverNIQ, NIRBTOverNIR);
-                    }
-                }
-            }
-        }
 
-        return listPicture;
-    }
-
-    /**
-     * Merge the two hashtable (can be view like a list)
-     * and addition the occurence number
-     * [img01.jpg = 3 , img02.jpg = 4 , ...]
-     * +
-     * [img01.jpg = 2 , img03.jpg = 1 , ...]
-     * =
-     * [img01.jpg = 5 , img02.jpg = 4 ,  img03.jpg = 1...]
-     * @param   list1   List which will be update by list2
-     * @param   list2   List where new item (not in list1) will be added to
-     * list1 and existing item (already in list1) will increment correspondant
-     * item in list 1
-     * @return the new list
-     *
-     **/
-    private ConcurrentHashMap<Long, Entry> merge(
-            ConcurrentHashMap<Long, Entry> list1,
-            Map<Long, Integer> list2) {
-
-        for (Map.Entry<Long, Integer> entree : list2.entrySet()) {
-            Entry e2 = new Entry(entree.getKey(), entree.getValue());
-            boolean find = addElement(list1, e2);
-            if (!find) {
-                e2.setNumberOfPatch(pictureIndex.getPicturePatchs(e2.getI()));
-                //if numberOfPatch=-1, picture has been delete in pictureIndex
-                //but not in this index
-                if (e2.getNumberOfPatch() != -1) {
-                    list1.put(e2.getI(), e2);
+                EntryCursor cursor = list.cursor();
+                while (cursor.next()) {
+                    long I = cursor.getI();
+                    int pos = scores.indexOf(I);
+                    if (pos == ScoreAccumulator.ABSENT) {
+                        //if numberOfPatch=-1, picture has been delete in pictureIndex
+                        //but not in this index (kept to avoid a new lookup)
+                        pos = scores.add(I, pictureIndex.getPicturePatchs(I));
+                    }
+                    int NI = scores.getNumberOfPatch(pos);
+                    if (NI != -1) {
+                        scores.incrementNIBT(pos, cursor.getNIBT());
+                        double NIRBT = cursor.getNIBT();
+                        double NIRBTOverNIR = (double) (NIRBT / NI);
+                        //Compute similarities with weighting
+                        if (NIRBTOverNIR != 0) {
+                            scores.addSimilarity(pos, ONEOverNBT * NIQBTOverNIQ * NIRBTOverNIR);
+                        }
+                    }
                 }
             }
         }
-        return list1;
-    }
 
-    /**
-     * If list1 contains the value of e2, increment e2 in list1, return true
-     * If list1 does'nt contains the value of e2, do nothing, return false
-     * @param   list1   A list
-     * @param   e2   Element which will be
-     * @return   true if element was found
-     *
-     **/
-    private boolean addElement(ConcurrentHashMap<Long, Entry> list1, Entry e2) {
-        Entry e1 = list1.get(e2.getI());
-        if (e1 != null) {
-            e1.incrementNIBT(e2.getNIBT());
-            return true;
-        }
-        return false;
+        return scores;
     }
 
    /**
@@ -257,10 +252,21 @@ public class TestVectorServer extends TestVector {
     * @param visualWords Visual words
     * @param imageID Image ID
     */
-    public synchronized void addVisualWordsToIndex(ConcurrentHashMap<String, Long> visualWords, Long imageID) {
+    public synchronized void addVisualWordsToIndex(ConcurrentHashMap<Long, Long> visualWords, Long imageID) {
         this.index.put(visualWords,imageID);
     }
 
+    /**
+    * Add visual words of many images to Index
+    * @param visualWords Visual words of each image
+    * @param imagesID Image ID of each image
+    */
+    public synchronized void addVisualWordsToIndex(List<ConcurrentHashMap<Long, Long>> visualWords, List<Long> imagesID) {
+        for (int i = 0; i < imagesID.size(); i++) {
+            this.index.put(visualWords.get(i), imagesID.get(i));
+        }
+    }
+
     /**
      * Delete visual words for image ID to Index
      * @param imagesID List of image ID
@@ -277,15 +283,21 @@ public class TestVectorServer extends TestVector {
      * @param visualWords Visual words
      * @return Visual words and their NBT
      */
-    public synchronized ConcurrentHashMap<String, Long> fillNBT(
-            ConcurrentHashMap<String, Long> visualWords) {
-        ConcurrentHashMap<String, Long> chm = index.getNBT(visualWords);
+    public synchronized ConcurrentHashMap<Long, Long> fillNBT(
+            ConcurrentHashMap<Long, Long> visualWords) {
+        ConcurrentHashMap<Long, Long> chm = index.getNBT(visualWords);
         return chm;
 
     }
 
-    public Map<String,Map<String,ValueStructure>> getAll(Map<String,List<String>> keysForTV) {
-        return this.index.getAll(keysForTV);
+    /**
+     * Get the posting lists of the visual words of many storages and test vectors
+     * with a single request to the store (null if the store does not support it)
+     * @param keysByStorage For each storage, for each test vector name: visual words
+     * @return For each storage, for each test vector name: visual words found and their posting list
+     */
+    public Map<String,Map<String,Map<Long,ValueStructure>>> getAll(Map<String,Map<String,List<Long>>> keysByStorage) {
+        return this.index.getAll(keysByStorage);
     }
 
     public void sync()
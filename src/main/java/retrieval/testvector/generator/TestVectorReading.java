@@ -22,10 +22,12 @@ import org.jdom.input.SAXBuilder;
 import retrieval.config.ConfigClient;
 import retrieval.config.ConfigServer;
 import retrieval.storage.exception.TestsVectorsNotFoundServerException;
+import retrieval.testvector.TestVector;
 import retrieval.testvector.TestVectorClient;
 import retrieval.testvector.TestVectorListClient;
 import retrieval.testvector.TestVectorListServer;
 import retrieval.testvector.TestVectorServer;
+import retrieval.testvector.generator.exception.TestsVectorsArgumentException;
 
 import java.io.File;
 import java.io.FileFilter;
@@ -169,6 +171,9 @@ public class TestVectorReading {
             val.add(assoc.getAttributeValue("value"));
             pos.add(assoc.getAttributeValue("position"));
         }
+        if (key.size() > TestVector.MAX_NUMBER_OF_TESTS) {
+            throw new TestsVectorsArgumentException(f + " has " + key.size() + " tests (max " + TestVector.MAX_NUMBER_OF_TESTS + ")");
+        }
         
         return storeName;
     }
@@ -16,6 +16,7 @@
 package retrieval.testvector.generator;
 
 import org.apache.log4j.Logger;
+import retrieval.testvector.TestVector;
 import retrieval.testvector.TestVectorGeneration;
 import retrieval.testvector.generator.exception.TestsVectorsArgumentException;
 import retrieval.testvector.generator.exception.TestsVectorsWritingException;
@@ -99,6 +100,9 @@ public class TestVectorWriting {
         if (numberOfTest < 1) {
             throw new TestsVectorsArgumentException("NumberOfTest must be >0");
         }
+        if (numberOfTest > TestVector.MAX_NUMBER_OF_TESTS) {
+            throw new TestsVectorsArgumentException("NumberOfTest must be <=" + TestVector.MAX_NUMBER_OF_TESTS);
+        }
         if (firstValue > lastValue) {
             throw new TestsVectorsArgumentException("firstValue must be <lastValue");
         }
@@ -16,15 +16,14 @@
 package retrieval.utils;
 
 import retrieval.config.ConfigServer;
+import retrieval.storage.index.EntryCursor;
 import retrieval.storage.index.ValueStructure;
 import retrieval.utils.Value.EntryInfo;
 import retrieval.utils.Value.ValueInfo;
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,13 +33,32 @@ import java.util.logging.Logger;
  */
 public class ConvertUtils {
 
-   /**
-     * Convert a Bool String as a Hexa String
-     * @param bool Bool string
+    /**
+     * Convert a visual word (bit pattern) to its hexa string
+     * Only used for XML messages and store keys (same string as the
+     * old hexa visual words).
+     * @param visualWord Visual word
      * @return Hexa string
      */
-    public static String convertHexa(String bool) {
-        return Integer.toString(Integer.parseInt(bool, 2), 16);
+    public static String convertVisualWordToHexa(long visualWord) {
+        return Long.toHexString(visualWord);
+    }
+
+    /**
+     * Convert a hexa string to a visual word (bit pattern)
+     * @param hexa Hexa string (max 16 digits)
+     * @return Visual word
+     */
+    public static long convertHexaToVisualWord(String hexa) {
+        long bits = 0;
+        for (int i = 0; i < hexa.length(); i++) {
+            int digit = Character.digit(hexa.charAt(i), 16);
+            if (digit < 0 || i >= 16) {
+                throw new IllegalArgumentException("Visual word " + hexa + " is not a 64 bits hexa value");
+            }
+            bits = (bits << 4) | digit;
+        }
+        return bits;
     }
 
     /**
@@ -52,13 +70,11 @@ public class ConvertUtils {
      */
     public static ValueInfo convertObjectToProtoBuf(ValueStructure vs) {
 
-        Map<Long, Integer> entries = vs.getEntries();
-        Iterator<Map.Entry<Long,Integer>> it2 = entries.entrySet().iterator();
+        EntryCursor cursor = vs.cursor();
 
-        List<EntryInfo> entryList = new ArrayList<EntryInfo>(entries.size());
-        while (it2.hasNext()) {
-           Map.Entry<Long,Integer> elem = it2.next();
-           entryList.add(EntryInfo.newBuilder().setIdImage(elem.getKey()).setOccNumber(elem.getValue()).build());
+        List<EntryInfo> entryList = new ArrayList<EntryInfo>(vs.size());
+        while (cursor.next()) {
+           entryList.add(EntryInfo.newBuilder().setIdImage(cursor.getI()).setOccNumber(cursor.getNIBT()).build());
         }
         return ValueInfo.newBuilder().setNbt(vs.getNBT()).addAllImageSet(entryList).build();
 
@@ -20,6 +20,7 @@ import retrieval.storage.exception.PictureNotFoundException;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -148,6 +149,25 @@ public class FileUtils {
         }
     }
     
+    /**
+     * Decode an encoded picture (JPEG, PNG,...)
+     * @param encoded Bytes of picture file
+     * @return Picture
+     * @throws PictureNotFoundException Bytes are not a supported picture
+     */
+    public static BufferedImage readPictureFromBytes(byte[] encoded) throws PictureNotFoundException {
+        BufferedImage image;
+        try {
+            image = ImageIO.read(new ByteArrayInputStream(encoded));
+        } catch(IOException e) {
+            throw new PictureNotFoundException("Cannot decode picture: " + e.toString());
+        }
+        if(image == null) {
+            throw new PictureNotFoundException("Cannot decode picture: format not supported");
+        }
+        return image;
+    }
+
      public static BufferedImage readPictureFromUrl(URL url) throws PictureNotFoundException {
         try {
             return ImageIO.read(url);
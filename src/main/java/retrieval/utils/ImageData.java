@@ -16,6 +16,11 @@
 package retrieval.utils;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -35,6 +40,22 @@ public class ImageData {
      * Picture's patchs
      */
     private ConcurrentLinkedQueue<BufferedImage> patchs;
+    /**
+     * Picture's patchs information when patchs are read directly
+     * in the picture (no patch image)
+     */
+    private List<PatcheInformation> patchsInformation;
+    /**
+     * Pixels of INT_RGB/INT_ARGB picture (null otherwise)
+     */
+    private int[] pixelsInt;
+    /**
+     * Pixels of 3BYTE_BGR picture (null otherwise)
+     */
+    private byte[] pixelsByte;
+    private int scanlineStride;
+    private int pixelStride;
+    private int[] bandOffsets;
 
     /**
      * Construct image data
@@ -43,6 +64,65 @@ public class ImageData {
     public ImageData(BufferedImage img) {
         this.img = img;
         this.patchs = new ConcurrentLinkedQueue<BufferedImage>();
+        initPixels();
+    }
+
+    /**
+     * Keep the pixel array of usual picture types to read pixels without getRGB
+     */
+    private void initPixels() {
+        Raster raster = img.getRaster();
+        if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+                || raster.getDataBuffer().getOffset() != 0) {
+            return;
+        }
+        int type = img.getType();
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
+            pixelsInt = ((DataBufferInt) raster.getDataBuffer()).getData();
+            scanlineStride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+        } else if (type == BufferedImage.TYPE_3BYTE_BGR) {
+            ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+            pixelsByte = ((DataBufferByte) raster.getDataBuffer()).getData();
+            scanlineStride = sampleModel.getScanlineStride();
+            pixelStride = sampleModel.getPixelStride();
+            bandOffsets = sampleModel.getBandOffsets();
+        }
+    }
+
+    /**
+     * Get the rgb value of pixel (x,y) of the picture
+     * (same value as getImg().getRGB(x,y) for the 8 lower bits of r, g and b)
+     * @param x X
+     * @param y Y
+     * @return RGB value
+     */
+    public int getRGB(int x, int y) {
+        if (pixelsInt != null) {
+            return pixelsInt[y * scanlineStride + x];
+        } else if (pixelsByte != null) {
+            int offset = y * scanlineStride + x * pixelStride;
+            return ((pixelsByte[offset + bandOffsets[0]] & 0xFF) << 16)
+                    | ((pixelsByte[offset + bandOffsets[1]] & 0xFF) << 8)
+                    | (pixelsByte[offset + bandOffsets[2]] & 0xFF);
+        } else {
+            return img.getRGB(x, y);
+        }
+    }
+
+    /**
+     * Set patchs information, patchs will be read directly in the picture
+     * @param patchsInformation Patchs information (x,y,w,h)
+     */
+    public void setPatchsInformation(List<PatcheInformation> patchsInformation) {
+        this.patchsInformation = patchsInformation;
+    }
+
+    /**
+     * Get patchs information (if patchs are read directly in the picture)
+     * @return Patchs information or null if patchs are images (see getPatchs)
+     */
+    public List<PatcheInformation> getPatchsInformation() {
+        return patchsInformation;
     }
 
     /**
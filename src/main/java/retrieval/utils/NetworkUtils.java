@@ -15,17 +15,26 @@
  */
 package retrieval.utils;
 
+import com.google.protobuf.CodedOutputStream;
 import org.apache.log4j.Logger;
 import org.jdom.Document;
 import org.jdom.output.Format;
 import org.jdom.output.XMLOutputter;
+import retrieval.dist.BinaryFrame;
+import retrieval.dist.MessageBinary;
 import retrieval.dist.NotValidMessageXMLException;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.DatagramSocket;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -36,6 +45,23 @@ import java.net.Socket;
  */
 public class NetworkUtils {
     public static String NORESPONSE = "NORESPONSE";
+    /**
+     * First byte of a XML message (first byte of a java serialization stream)
+     */
+    public static final int PROTOCOL_XML = 0xAC;
+    /**
+     * First byte of a binary frame (version of the binary protocol)
+     */
+    public static final int PROTOCOL_BINARY = 0x02;
+    /**
+     * First byte of a binary frame with a request id (persistent connection,
+     * several requests at the same time)
+     */
+    public static final int PROTOCOL_MULTIPLEXED = 0x03;
+    /**
+     * Max size of a binary frame payload
+     */
+    public static final int MAX_FRAME_SIZE = 512 * 1024 * 1024;
     
     private static Logger logger = Logger.getLogger(NetworkUtils.class);
     /**
@@ -84,13 +110,57 @@ public class NetworkUtils {
        oos.flush();
     }        
     
-     public static Document readXmlFromSocket(Socket client) throws IOException, NotValidMessageXMLException {
+    /**
+     * Write bytes (an encoded picture) after a XML message
+     * @param client Entity which will receive bytes
+     * @param bytes Bytes
+     * @throws IOException Error on socket
+     */
+    public static void writeBytesToSocket(Socket client, byte[] bytes)
+            throws IOException {
+       client.setSoTimeout(60000);
+       ObjectOutputStream oos = new ObjectOutputStream(client.getOutputStream());
+       oos.writeObject(bytes);
+       oos.flush();
+    }
+
+    /**
+     * Read bytes (an encoded picture) sent after a XML message
+     * @param client Entity which will send bytes
+     * @return Bytes
+     * @throws IOException Connection is closed
+     * @throws NotValidMessageXMLException Not valid bytes message
+     */
+    public static byte[] readBytesFromSocket(Socket client) throws IOException, NotValidMessageXMLException {
+        if(client.isClosed() || !client.isConnected()) {
+            throw new IOException("Connection is closed!");
+        }
         try {
-            if(client.isClosed() || !client.isConnected()) {
-                throw new IOException("Connection is closed!");
-            }
-            //client.setSoTimeout(60000);
             ObjectInputStream ois = new ObjectInputStream(client.getInputStream());
+            return (byte[])ois.readObject();
+        } catch (Exception e) {
+            logger.error(e);
+            throw new NotValidMessageXMLException(e.toString());
+        }
+    }
+
+     public static Document readXmlFromSocket(Socket client) throws IOException, NotValidMessageXMLException {
+        if(client.isClosed() || !client.isConnected()) {
+            logger.error("Connection is closed!");
+            throw new NotValidMessageXMLException(new IOException("Connection is closed!").toString());
+        }
+        return readXmlFromStream(client.getInputStream());
+     }
+
+     /**
+      * Read a xml message from a stream (socket input already opened)
+      * @param input Stream
+      * @return XML message
+      * @throws NotValidMessageXMLException Bad message or error on stream
+      */
+     public static Document readXmlFromStream(InputStream input) throws NotValidMessageXMLException {
+        try {
+            ObjectInputStream ois = new ObjectInputStream(input);
             Document document = (Document)ois.readObject();
             return document;
         } catch (IOException e) {
@@ -122,6 +192,126 @@ public class NetworkUtils {
 
     }        
 
+    /**
+     * Write a binary frame to a client/server
+     * @param client Entity which will receive message
+     * @param message Message
+     * @throws IOException Error on socket
+     */
+    public static void writeBinaryToSocket(Socket client, MessageBinary message) throws IOException {
+        writeBinaryToSocket(client, message, null);
+    }
+
+    /**
+     * Write a binary frame to a client/server, with a picture after the message
+     * in the same frame
+     * @param client Entity which will receive message
+     * @param message Message
+     * @param image Picture (may be null)
+     * @throws IOException Error on socket
+     */
+    public static void writeBinaryToSocket(Socket client, MessageBinary message, BufferedImage image) throws IOException {
+        client.setSoTimeout(60000);
+        writeBinaryToStream(client.getOutputStream(), message, image);
+    }
+
+    /**
+     * Write a binary frame on a stream: [version][type][payload length][payload]
+     * @param output Stream
+     * @param message Message
+     * @param image Picture (may be null)
+     * @throws IOException Error on stream
+     */
+    public static void writeBinaryToStream(OutputStream output, MessageBinary message, BufferedImage image) throws IOException {
+        writeFrame(output, PROTOCOL_BINARY, 0, message, image);
+    }
+
+    /**
+     * Write a binary frame of a request on a multiplexed connection:
+     * [version][type][request id][payload length][payload]
+     * @param output Stream of the connection (caller must avoid concurrent writes)
+     * @param requestId Id of the request on the connection
+     * @param message Message
+     * @throws IOException Error on stream
+     */
+    public static void writeBinaryToStream(OutputStream output, int requestId, MessageBinary message) throws IOException {
+        writeBinaryToStream(output, requestId, message, null);
+    }
+
+    /**
+     * Write a binary frame of a request on a multiplexed connection, with a picture
+     * after the message in the same frame
+     * @param output Stream of the connection (caller must avoid concurrent writes)
+     * @param requestId Id of the request on the connection
+     * @param message Message
+     * @param image Picture (may be null)
+     * @throws IOException Error on stream
+     */
+    public static void writeBinaryToStream(OutputStream output, int requestId, MessageBinary message, BufferedImage image) throws IOException {
+        writeFrame(output, PROTOCOL_MULTIPLEXED, requestId, message, image);
+    }
+
+    private static void writeFrame(OutputStream output, int version, int requestId, MessageBinary message, BufferedImage image) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        CodedOutputStream coded = CodedOutputStream.newInstance(payload);
+        message.writeBinary(coded);
+        if (image != null) {
+            BinaryFrame.writeImage(coded, image);
+        }
+        coded.flush();
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(output));
+        dos.writeByte(version);
+        dos.writeByte(message.getBinaryType());
+        if (version == PROTOCOL_MULTIPLEXED) {
+            dos.writeInt(requestId);
+        }
+        dos.writeInt(payload.size());
+        payload.writeTo(dos);
+        dos.flush();
+    }
+
+    /**
+     * Read a binary frame from a client/server
+     * @param client Entity which will send message
+     * @return Frame
+     * @throws IOException Error on socket (timeout,...)
+     * @throws NotValidMessageXMLException Not a binary frame
+     */
+    public static BinaryFrame readBinaryFromSocket(Socket client) throws IOException, NotValidMessageXMLException {
+        if(client.isClosed() || !client.isConnected()) {
+            throw new IOException("Connection is closed!");
+        }
+        return readBinaryFromStream(client.getInputStream());
+    }
+
+    /**
+     * Read a binary frame from a stream (with a request id if frame is multiplexed)
+     * @param input Stream
+     * @return Frame
+     * @throws IOException Error on stream (timeout,...)
+     * @throws NotValidMessageXMLException Not a binary frame
+     */
+    public static BinaryFrame readBinaryFromStream(InputStream input) throws IOException, NotValidMessageXMLException {
+        //DataInputStream has no buffer: it never reads after the end of frame
+        DataInputStream dis = new DataInputStream(input);
+        int version = dis.readUnsignedByte();
+        if (version != PROTOCOL_BINARY && version != PROTOCOL_MULTIPLEXED) {
+            throw new NotValidMessageXMLException("Protocol version " + version + " not supported!");
+        }
+        byte type = dis.readByte();
+        int requestId = 0;
+        if (version == PROTOCOL_MULTIPLEXED) {
+            requestId = dis.readInt();
+        }
+        int length = dis.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new NotValidMessageXMLException("Frame size " + length + " not valid!");
+        }
+        byte[] payload = new byte[length];
+        dis.readFully(payload);
+        return new BinaryFrame(type, requestId, payload);
+    }
+
     public static void saveXml(Document document, String path) throws IOException {
 
         XMLOutputter sortie = new XMLOutputter(Format.getPrettyFormat());
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 ROLLUS Loïc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrieval.utils;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferUShort;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Mapping between the pixels of a patch and the pixels of the picture.
+ * With a nearest neighbor resize (method 3), each pixel (x,y) of a patch
+ * is a pixel of the picture, so a test vector can read it directly
+ * in the picture without building the patch image.
+ * The mapping only depends on the size of the extraction and the size of
+ * the patch. A nearest neighbor scale is separable: the x of a patch pixel
+ * only depends on its x (same for y), so the mapping is an array for each axis.
+ * It's computed once (with the same AffineTransformOp as
+ * PictureUtils.extractAndResizePicture, so visual words are the same)
+ * and cached.
+ * @author Rollus Loic
+ */
+public class PatchMapping {
+
+    /**
+     * Mapping for each extraction size (w,h) and patch size (targetWidth,targetHeight)
+     */
+    private static ConcurrentHashMap<Long, PatchMapping> mappings = new ConcurrentHashMap<Long, PatchMapping>();
+
+    /**
+     * Max size of extraction and patch (coordinates are coded on 16 bits)
+     */
+    private static final int MAX_SIZE = 0xFFFF;
+
+    /**
+     * Max number of mappings in cache (all mappings are removed when it's full)
+     */
+    private static final int MAX_MAPPINGS = 10000;
+
+    private final int targetWidth;
+    private final int targetHeight;
+    /**
+     * Picture x (relative to extraction) for each patch x
+     */
+    private final int[] sourceX;
+    /**
+     * Picture y (relative to extraction) for each patch y
+     */
+    private final int[] sourceY;
+
+    private PatchMapping(int targetWidth, int targetHeight, int[] sourceX, int[] sourceY) {
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+        this.sourceX = sourceX;
+        this.sourceY = sourceY;
+    }
+
+    /**
+     * Check if patchs of the resize method can be read directly in the picture
+     * (only nearest neighbor: with other methods a patch pixel is computed
+     * from many picture pixels)
+     * @param method Method use for resize
+     * @return True if there is no need to build patchs
+     */
+    public static boolean isSupported(int method) {
+        return method == 3;
+    }
+
+    /**
+     * Get the mapping for an extraction of w*h resized in targetWidth*targetHeight
+     * @param w Width of the extraction
+     * @param h Height of the extraction
+     * @param targetWidth Width of the patch
+     * @param targetHeight Height of the patch
+     * @return Mapping
+     */
+    public static PatchMapping getMapping(int w, int h, int targetWidth, int targetHeight) {
+        if (w > MAX_SIZE || h > MAX_SIZE || targetWidth > MAX_SIZE || targetHeight > MAX_SIZE) {
+            throw new IllegalArgumentException("Extraction " + w + "x" + h + " or patch " + targetWidth + "x" + targetHeight + " is too big");
+        }
+        Long key = ((long) w << 48) | ((long) h << 32) | ((long) targetWidth << 16) | (long) targetHeight;
+        PatchMapping mapping = mappings.get(key);
+        if (mapping == null) {
+            //two threads may compute the same mapping, the result is the same
+            mapping = computeMapping(w, h, targetWidth, targetHeight);
+            if (mappings.size() >= MAX_MAPPINGS) {
+                mappings.clear();
+            }
+            mappings.put(key, mapping);
+        }
+        return mapping;
+    }
+
+    /**
+     * Compute the mapping by resizing a line where each pixel contains
+     * its own x (w*1) and a column where each pixel contains its own y (1*h).
+     * Scale of both axis is kept in the transform: the op rounds coordinates
+     * with the inverse transform, so a tie depends on both scales.
+     * The line (column) is translated on the first row (column) of the patch.
+     */
+    private static PatchMapping computeMapping(int w, int h, int targetWidth, int targetHeight) {
+        double scalex = (double) targetWidth / (double) w;
+        double scaley = (double) targetHeight / (double) h;
+        int[] sourceX = resizeCoordinates(w, 1, new AffineTransform(scalex, 0, 0, scaley, 0, 0.5 - 0.5 * scaley), targetWidth, 1);
+        int[] sourceY = resizeCoordinates(1, h, new AffineTransform(scalex, 0, 0, scaley, 0.5 - 0.5 * scalex, 0), 1, targetHeight);
+        return new PatchMapping(targetWidth, targetHeight, sourceX, sourceY);
+    }
+
+    private static int[] resizeCoordinates(int w, int h, AffineTransform transform, int targetWidth, int targetHeight) {
+        BufferedImage coded = new BufferedImage(w, h, BufferedImage.TYPE_USHORT_GRAY);
+        short[] data = ((DataBufferUShort) coded.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (short) i;
+        }
+        BufferedImage patch = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_USHORT_GRAY);
+        new AffineTransformOp(transform, AffineTransformOp.TYPE_NEAREST_NEIGHBOR).filter(coded, patch);
+        return patch.getRaster().getSamples(0, 0, targetWidth, targetHeight, 0, new int[targetWidth * targetHeight]);
+    }
+
+    /**
+     * Get the x in the extraction for a x of the patch
+     * @param x X in patch
+     * @return X in extraction
+     */
+    public int getSourceX(int x) {
+        return sourceX[x];
+    }
+
+    /**
+     * Get the y in the extraction for a y of the patch
+     * @param y Y in patch
+     * @return Y in extraction
+     */
+    public int getSourceY(int y) {
+        return sourceY[y];
+    }
+
+    public int getTargetWidth() {
+        return targetWidth;
+    }
+
+    public int getTargetHeight() {
+        return targetHeight;
+    }
+}
@@ -0,0 +1,86 @@
+package retrieval.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import retrieval.config.ConfigClient;
+import retrieval.testvector.TestVectorListClient;
+import retrieval.testvector.generator.TestVectorReading;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Visual words of a picture for each test vector (TestVectorList.generateVisualWordFromPicture),
+ * for each resize method (1=BILL/Graphics2D, 2=PPV/Graphics2D, 3=BILL/AffineTransformOp, 4=PPV/AffineTransformOp).
+ * Picture is synthetic (random colored blocks with noise), test vectors are read in testdata.
+ * Run from the project directory:
+ * java -cp target/test-classes:target/classes:[test classpath] retrieval.benchmark.ExtractionBenchmark
+ * @author lrollus
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExtractionBenchmark {
+
+    @Param({"1", "2", "3", "4"})
+    public int resizeMethod;
+
+    @Param({"1000"})
+    public int N;
+
+    @Param({"512"})
+    public int pictureSize;
+
+    private ConfigClient config;
+    private TestVectorListClient testVectors;
+    private BufferedImage picture;
+
+    @Setup
+    public void setUp() throws Exception {
+        config = new ConfigClient("testdata/ConfigClient.prop");
+        testVectors = TestVectorReading.readClient(config.getVectorPath(), config);
+        Random random = new Random(0);
+        picture = new BufferedImage(pictureSize, pictureSize, BufferedImage.TYPE_INT_RGB);
+        int block = Math.max(1, pictureSize / 16);
+        for (int y = 0; y < pictureSize; y++) {
+            for (int x = 0; x < pictureSize; x++) {
+                //same color in a block (seeded by the block), noise on each pixel
+                int color = new Random((x / block) * 31 + (y / block)).nextInt(0xFFFFFF);
+                picture.setRGB(x, y, color ^ random.nextInt(0x101010));
+            }
+        }
+    }
+
+    @Benchmark
+    public List<ConcurrentHashMap<Long, Long>> generateVisualWordFromPicture() throws Exception {
+        return testVectors.generateVisualWordFromPicture(picture, 0l, N, resizeMethod,
+                config.getSizeOfPatchResizeWidth(), config.getSizeOfPatchResizeHeight());
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(ExtractionBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,136 @@
+package retrieval.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import retrieval.storage.index.Entry;
+import retrieval.storage.index.ScoreAccumulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fusion of the results of each test vector for one search.
+ * Each benchmark thread is a search on its own storage:
+ * legacy fusion takes a global lock (static synchronized), accumulators
+ * are fused without lock.
+ * Run with different number of threads to see the scaling:
+ * java -cp target/test-classes:target/classes:[test classpath] retrieval.benchmark.FusionBenchmark 1 2 4 8
+ * @author lrollus
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FusionBenchmark {
+
+    @Param({"30"})
+    public int testVectors;
+
+    @Param({"5000"})
+    public int candidates;
+
+    private List<ConcurrentHashMap<Long, Entry>> maps;
+    private List<ScoreAccumulator> accumulators;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        maps = new ArrayList<ConcurrentHashMap<Long, Entry>>(testVectors);
+        accumulators = new ArrayList<ScoreAccumulator>(testVectors);
+        for (int t = 0; t < testVectors; t++) {
+            ConcurrentHashMap<Long, Entry> map = new ConcurrentHashMap<Long, Entry>();
+            ScoreAccumulator accumulator = new ScoreAccumulator(candidates);
+            for (int i = 0; i < candidates; i++) {
+                long I = random.nextInt(candidates * 4);
+                if (accumulator.indexOf(I) != ScoreAccumulator.ABSENT) {
+                    continue;
+                }
+                int NIBT = 1 + random.nextInt(10);
+                double sim = random.nextDouble();
+                Entry e = new Entry(I, NIBT);
+                e.setNumberOfPatch(1000);
+                e.incrementSimilarities(sim);
+                map.put(I, e);
+                int pos = accumulator.add(I, 1000);
+                accumulator.incrementNIBT(pos, NIBT);
+                accumulator.addSimilarity(pos, sim);
+            }
+            maps.add(map);
+            accumulators.add(accumulator);
+        }
+    }
+
+    @Benchmark
+    public int synchronizedFusion() {
+        ConcurrentHashMap<Long, Entry> resultsForAllTV = new ConcurrentHashMap<Long, Entry>();
+        for (int t = 0; t < maps.size(); t++) {
+            fusion(resultsForAllTV, maps.get(t));
+        }
+        return resultsForAllTV.size();
+    }
+
+    @Benchmark
+    public int accumulatorFusion() {
+        int size = 0;
+        for (int t = 0; t < accumulators.size(); t++) {
+            size = Math.max(size, accumulators.get(t).size());
+        }
+        ScoreAccumulator resultsForAllTV = new ScoreAccumulator(size);
+        for (int t = 0; t < accumulators.size(); t++) {
+            resultsForAllTV.addAll(accumulators.get(t));
+        }
+        return resultsForAllTV.size();
+    }
+
+    /**
+     * Fusion used before accumulators (one lock for all searches)
+     */
+    private synchronized static void fusion(Map<Long, Entry> l1, Map<Long, Entry> l2) {
+        for (Map.Entry<Long, Entry> entree : l2.entrySet()) {
+            Entry e2 = entree.getValue();
+            Entry e1 = l1.get(new Long(e2.getI()));
+            if (e1 != null) {
+                e1.incrementNIBT(e2.getNIBT());
+                e1.incrementSimilarities(e2.getSimilarities());
+            } else {
+                l1.put(e2.getI(), (Entry) e2.clone());
+            }
+        }
+    }
+
+    /**
+     * Run benchmark for each number of threads given (default: 1 2 4 8)
+     * @param args Number of threads
+     * @throws Exception Error during benchmark
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            args = new String[]{"1", "2", "4", "8"};
+        }
+        for (String threads : args) {
+            Options options = new OptionsBuilder()
+                    .include(FusionBenchmark.class.getSimpleName())
+                    .threads(Integer.parseInt(threads))
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
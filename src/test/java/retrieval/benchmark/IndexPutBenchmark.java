@@ -0,0 +1,87 @@
+package retrieval.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import retrieval.config.ConfigServer;
+import retrieval.server.globaldatabase.MemoryDatabase;
+import retrieval.storage.index.IndexStructClassic;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Visual words of a picture added to the MEMORY index of a test vector (IndexStructClassic.put).
+ * Index is filled with synthetic pictures before each iteration, then grows during the iteration.
+ * Run from the project directory:
+ * java -cp target/test-classes:target/classes:[test classpath] retrieval.benchmark.IndexPutBenchmark
+ * @author lrollus
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class IndexPutBenchmark {
+
+    @Param({"0", "100000"})
+    public int images;
+
+    @Param({"100000"})
+    public int vocabulary;
+
+    private ConfigServer config;
+    private IndexStructClassic index;
+    private ConcurrentHashMap<Long, Long>[] pictures;
+    private long id;
+
+    @Setup(Level.Trial)
+    public void setUpPictures() throws Exception {
+        config = SyntheticIndex.config();
+        Random random = new Random(1);
+        pictures = new ConcurrentHashMap[1000];
+        for (int i = 0; i < pictures.length; i++) {
+            pictures[i] = SyntheticIndex.visualWords(random, 1, config.getNumberOfPatch(), vocabulary).get(0);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIndex() throws Exception {
+        index = new IndexStructClassic("benchmark", "0", config, 0, new MemoryDatabase(config));
+        Random random = new Random(0);
+        for (id = 0; id < images; id++) {
+            List<ConcurrentHashMap<Long, Long>> visualWords = SyntheticIndex.visualWords(random, 1, config.getNumberOfPatch(), vocabulary);
+            index.put(visualWords.get(0), id);
+        }
+    }
+
+    @Benchmark
+    public void put() {
+        index.put(pictures[(int) (id % pictures.length)], id);
+        id++;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(IndexPutBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,120 @@
+package retrieval.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import retrieval.dist.BinaryFrame;
+import retrieval.dist.MultiServerMessageIndex;
+import retrieval.storage.PictureInfo;
+import retrieval.utils.FileUtils;
+import retrieval.utils.ImageSerializable;
+import retrieval.utils.NetworkUtils;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * INDEX request of a picture file, pixels vs encoded file (binary protocol).
+ * Client work (read/decode file, write frame) and server work (read frame, decode picture)
+ * are done for each request, as done by an indexer and the server ingestion workers.
+ * Bytes per picture are printed before the benchmark:
+ * java -cp target/test-classes:target/classes:[test classpath] retrieval.benchmark.IndexTransferBenchmark
+ * @author lrollus
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexTransferBenchmark {
+
+    @Param({"testdata/pictures/cyto/crop1.jpg"})
+    public String picture;
+
+    private byte[] file;
+
+    @Setup
+    public void setUp() throws Exception {
+        file = Files.readAllBytes(Paths.get(picture));
+    }
+
+    @Benchmark
+    public int pixelsIndex() throws Exception {
+        BufferedImage image = FileUtils.readPictureFromBytes(file);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        NetworkUtils.writeBinaryToStream(output, new MultiServerMessageIndex(1l, null, "storage1", true), image);
+        BinaryFrame frame = NetworkUtils.readBinaryFromStream(new ByteArrayInputStream(output.toByteArray()));
+        new MultiServerMessageIndex(frame);
+        return BinaryFrame.readImage(frame.getInput()).getWidth();
+    }
+
+    @Benchmark
+    public int encodedIndex() throws Exception {
+        MultiServerMessageIndex message = new MultiServerMessageIndex(1l, null, "storage1", true);
+        message.setEncoded(file);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        NetworkUtils.writeBinaryToStream(output, message, null);
+        MultiServerMessageIndex check = new MultiServerMessageIndex(NetworkUtils.readBinaryFromStream(new ByteArrayInputStream(output.toByteArray())));
+        return new PictureInfo(check.getEncoded(), null, 1l, null).readImage().getWidth();
+    }
+
+    /**
+     * Bytes of an INDEX request: xml pixels, binary pixels and binary encoded
+     */
+    public int[] bytesPerPicture() throws Exception {
+        BufferedImage image = FileUtils.readPictureFromBytes(file);
+        int[] bytes = new int[3];
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(output);
+        oos.writeObject(new MultiServerMessageIndex(1l, null, "storage1", true).toXML());
+        oos.writeObject(new ImageSerializable(image));
+        oos.flush();
+        bytes[0] = output.size();
+        bytes[1] = writeBinary(new MultiServerMessageIndex(1l, null, "storage1", true), image);
+        MultiServerMessageIndex message = new MultiServerMessageIndex(1l, null, "storage1", true);
+        message.setEncoded(file);
+        bytes[2] = writeBinary(message, null);
+        return bytes;
+    }
+
+    private static int writeBinary(MultiServerMessageIndex message, BufferedImage image) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        NetworkUtils.writeBinaryToStream(output, message, image);
+        return output.size();
+    }
+
+    /**
+     * Print bytes per picture and run benchmark
+     * @param args Not used
+     * @throws Exception Error during benchmark
+     */
+    public static void main(String[] args) throws Exception {
+        IndexTransferBenchmark benchmark = new IndexTransferBenchmark();
+        benchmark.picture = "testdata/pictures/cyto/crop1.jpg";
+        benchmark.setUp();
+        int[] bytes = benchmark.bytesPerPicture();
+        System.out.println("bytes per picture: xml pixels=" + bytes[0] + " binary pixels=" + bytes[1] + " encoded=" + bytes[2]);
+        Options options = new OptionsBuilder()
+                .include(IndexTransferBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,102 @@
+package retrieval.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import retrieval.client.message.MessageNBT;
+import retrieval.client.message.MessageSimilarities;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NBT aggregation of a search on local storages (RetrievalClientToServersObject).
+ * Each storage gives its NBT maps (Storage.getNBT):
+ * legacy path renders them to XML and parses them back (addNBT(Document)),
+ * direct path adds them to the similarities message (addNBT(List)).
+ * java -cp target/test-classes:target/classes:[test classpath] retrieval.benchmark.LocalNBTBenchmark
+ * @author lrollus
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocalNBTBenchmark {
+
+    @Param({"1000"})
+    public int N;
+
+    @Param({"5"})
+    public int testVectors;
+
+    @Param({"1", "10"})
+    public int storages;
+
+    private List<ConcurrentHashMap<Long, Long>> visualWords;
+    private List<List<ConcurrentHashMap<Long, Long>>> responses;
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(0);
+        visualWords = new ArrayList<ConcurrentHashMap<Long, Long>>(testVectors);
+        for (int t = 0; t < testVectors; t++) {
+            ConcurrentHashMap<Long, Long> map = new ConcurrentHashMap<Long, Long>();
+            while (map.size() < N / 2) {
+                map.put((long) random.nextInt(1 << 30), (long) (1 + random.nextInt(4)));
+            }
+            visualWords.add(map);
+        }
+        responses = new ArrayList<List<ConcurrentHashMap<Long, Long>>>(storages);
+        for (int s = 0; s < storages; s++) {
+            List<ConcurrentHashMap<Long, Long>> nbt = new MessageNBT(visualWords).copyWithoutValue().getVisualWordsByTestVector();
+            for (ConcurrentHashMap<Long, Long> map : nbt) {
+                for (Map.Entry<Long, Long> entry : map.entrySet()) {
+                    entry.setValue((long) random.nextInt(100000));
+                }
+            }
+            responses.add(nbt);
+        }
+    }
+
+    @Benchmark
+    public MessageSimilarities xmlAggregation() {
+        MessageSimilarities msgSimilar = new MessageSimilarities(visualWords, N, 30);
+        for (List<ConcurrentHashMap<Long, Long>> response : responses) {
+            msgSimilar.addNBT(new MessageNBT(response).toXML());
+        }
+        return msgSimilar;
+    }
+
+    @Benchmark
+    public MessageSimilarities directAggregation() {
+        MessageSimilarities msgSimilar = new MessageSimilarities(visualWords, N, 30);
+        for (List<ConcurrentHashMap<Long, Long>> response : responses) {
+            msgSimilar.addNBT(response);
+        }
+        return msgSimilar;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(LocalNBTBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,194 @@
+package retrieval.benchmark;
+
+import org.jdom.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import retrieval.dist.BinaryFrame;
+import retrieval.dist.Message;
+import retrieval.dist.MessageBinary;
+import retrieval.dist.MultiServerMessageNBT;
+import retrieval.dist.MultiServerMessageResults;
+import retrieval.dist.MultiServerMessageSimilarities;
+import retrieval.storage.index.ResultSim;
+import retrieval.utils.NetworkUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages of one search between a client and a server, XML vs binary protocol:
+ * SEARCH1 (visual words), NBT response (for each storage), SEARCH2 (nbt sum)
+ * and SEARCH3 (k results for each storage).
+ * Each message is written and read back as on a socket (message built from the stream).
+ * Bytes per query are printed before the benchmark:
+ * java -cp target/test-classes:target/classes:[test classpath] retrieval.benchmark.ProtocolBenchmark
+ * @author lrollus
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    @Param({"1000"})
+    public int N;
+
+    @Param({"5"})
+    public int testVectors;
+
+    @Param({"1", "10"})
+    public int storages;
+
+    @Param({"30"})
+    public int k;
+
+    private MultiServerMessageNBT search1;
+    private MultiServerMessageNBT nbt;
+    private MultiServerMessageSimilarities search2;
+    private MultiServerMessageResults search3;
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(0);
+        String[] containers = new String[0];
+        List<ConcurrentHashMap<Long, Long>> visualWords = new ArrayList<ConcurrentHashMap<Long, Long>>();
+        for (int t = 0; t < testVectors; t++) {
+            ConcurrentHashMap<Long, Long> map = new ConcurrentHashMap<Long, Long>();
+            while (map.size() < N / 2) {
+                //visual words of 30 bits, each one produced by a few patchs
+                map.put((long) random.nextInt(1 << 30), (long) (1 + random.nextInt(4)));
+            }
+            visualWords.add(map);
+        }
+        Map<String, List<ConcurrentHashMap<Long, Long>>> all = new TreeMap<String, List<ConcurrentHashMap<Long, Long>>>();
+        all.put("#all#", visualWords);
+        search1 = new MultiServerMessageNBT(all, containers);
+
+        Map<String, List<ConcurrentHashMap<Long, Long>>> byStorage = new TreeMap<String, List<ConcurrentHashMap<Long, Long>>>();
+        Map<String, List<ResultSim>> results = new TreeMap<String, List<ResultSim>>();
+        for (int s = 0; s < storages; s++) {
+            List<ConcurrentHashMap<Long, Long>> storageNBT = MultiServerMessageNBT.copyVWList(visualWords);
+            for (ConcurrentHashMap<Long, Long> map : storageNBT) {
+                for (Map.Entry<Long, Long> entry : map.entrySet()) {
+                    entry.setValue((long) random.nextInt(100000));
+                }
+            }
+            byStorage.put("storage" + s, storageNBT);
+            List<ResultSim> sims = new ArrayList<ResultSim>(k);
+            for (int i = 0; i < k; i++) {
+                Map<String, String> properties = new HashMap<String, String>();
+                properties.put("id", i + "");
+                properties.put("path", "/data/pictures/storage" + s + "/picture" + i + ".jpg");
+                sims.add(new ResultSim((long) random.nextInt(), properties, random.nextDouble()));
+            }
+            results.put("storage" + s, sims);
+        }
+        nbt = new MultiServerMessageNBT(byStorage, containers);
+        search2 = new MultiServerMessageSimilarities(all, N, k, containers);
+        search2.addNBT(nbt.toXML());
+        search3 = new MultiServerMessageResults(results);
+    }
+
+    @Benchmark
+    public int xmlQuery() throws Exception {
+        int size = 0;
+        size += new MultiServerMessageNBT(xml(search1)).getContainers().size();
+        MultiServerMessageSimilarities msg = new MultiServerMessageSimilarities(search1.getVisualWordsByTestVectorServer(), N, k, search1.getContainers());
+        msg.addNBT(xml(nbt));
+        size += new MultiServerMessageSimilarities(xml(search2)).getNiq();
+        size += new MultiServerMessageResults(xml(search3)).getResults().size();
+        return size;
+    }
+
+    @Benchmark
+    public int binaryQuery() throws Exception {
+        int size = 0;
+        size += new MultiServerMessageNBT(binary(search1)).getContainers().size();
+        MultiServerMessageSimilarities msg = new MultiServerMessageSimilarities(search1.getVisualWordsByTestVectorServer(), N, k, search1.getContainers());
+        msg.addNBT(binary(nbt));
+        size += new MultiServerMessageSimilarities(binary(search2)).getNiq();
+        size += new MultiServerMessageResults(binary(search3)).getResults().size();
+        return size;
+    }
+
+    /**
+     * Bytes of all messages of a query
+     */
+    public int[] bytesPerQuery() throws Exception {
+        Object[] messages = {search1, nbt, search2, search3};
+        int[] bytes = new int[2];
+        for (Object msg : messages) {
+            bytes[0] += writeXml((Message) msg).size();
+            bytes[1] += writeBinary((MessageBinary) msg).size();
+        }
+        return bytes;
+    }
+
+    private static ByteArrayOutputStream writeXml(Message msg) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(output);
+        oos.writeObject(msg.toXML());
+        oos.flush();
+        return output;
+    }
+
+    private static ByteArrayOutputStream writeBinary(MessageBinary msg) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        NetworkUtils.writeBinaryToStream(output, msg, null);
+        return output;
+    }
+
+    private static Document xml(Message msg) throws Exception {
+        return NetworkUtils.readXmlFromStream(new ByteArrayInputStream(writeXml(msg).toByteArray()));
+    }
+
+    private static BinaryFrame binary(MessageBinary msg) throws Exception {
+        return NetworkUtils.readBinaryFromStream(new ByteArrayInputStream(writeBinary(msg).toByteArray()));
+    }
+
+    /**
+     * Print bytes per query for each number of storages and run benchmark
+     * @param args Not used
+     * @throws Exception Error during benchmark
+     */
+    public static void main(String[] args) throws Exception {
+        for (int storages : new int[]{1, 10}) {
+            ProtocolBenchmark benchmark = new ProtocolBenchmark();
+            benchmark.N = 1000;
+            benchmark.testVectors = 5;
+            benchmark.storages = storages;
+            benchmark.k = 30;
+            benchmark.setUp();
+            int[] bytes = benchmark.bytesPerQuery();
+            System.out.println("storages=" + storages + " bytes per query: xml=" + bytes[0] + " binary=" + bytes[1]);
+        }
+        Options options = new OptionsBuilder()
+                .include(ProtocolBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
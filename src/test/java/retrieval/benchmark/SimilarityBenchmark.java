@@ -0,0 +1,90 @@
+package retrieval.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import retrieval.config.ConfigServer;
+import retrieval.dist.RequestPictureVisualWord;
+import retrieval.storage.index.Entry;
+import retrieval.storage.index.IndexMultiThread;
+import retrieval.storage.index.ResultSim;
+import retrieval.testvector.TestVectorServer;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Last search step on a synthetic MEMORY index: similarities of a request picture
+ * for one test vector (TestVectorServer.completeSimilarityPictures)
+ * and k best pictures for all test vectors (IndexMultiThread.computeSimilarity).
+ * Requests are rotated (with the NBT of the index, as after the first search step).
+ * Run from the project directory:
+ * java -cp target/test-classes:target/classes:[test classpath] retrieval.benchmark.SimilarityBenchmark
+ * @author lrollus
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class SimilarityBenchmark {
+
+    @Param({"1000", "10000"})
+    public int images;
+
+    @Param({"100000"})
+    public int vocabulary;
+
+    @Param({"30"})
+    public int k;
+
+    private ConfigServer config;
+    private IndexMultiThread index;
+    private List<ConcurrentHashMap<Long, RequestPictureVisualWord>>[] requests;
+    private int request;
+
+    @Setup
+    public void setUp() throws Exception {
+        config = SyntheticIndex.config();
+        index = SyntheticIndex.create(config, images, vocabulary);
+        Random random = new Random(1);
+        requests = new List[16];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = SyntheticIndex.request(index, random, config.getNumberOfPatch(), vocabulary);
+        }
+    }
+
+    @Benchmark
+    public ConcurrentHashMap<Long, Entry> completeSimilarityPictures() {
+        TestVectorServer tv = index.getTestVectors().get(0);
+        return tv.completeSimilarityPictures(requests[request++ % requests.length].get(0), config.getNumberOfPatch());
+    }
+
+    @Benchmark
+    public List<ResultSim> computeSimilarity() {
+        return index.computeSimilarity(requests[request++ % requests.length], config.getNumberOfPatch(), k);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(SimilarityBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,110 @@
+package retrieval.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import retrieval.config.ConfigServer;
+import retrieval.dist.RequestPictureVisualWord;
+import retrieval.storage.index.IndexMultiThread;
+import retrieval.storage.index.ResultSim;
+import retrieval.storage.index.ValueStructure;
+import retrieval.testvector.TestVectorServer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Same synthetic dataset on the MAPPED and REDIS stores: index build (logged by the setup),
+ * NBT of a request (first search step), posting lists of a test vector
+ * and k best pictures for all test vectors (last search step).
+ * REDIS needs a Redis server on REDISHOST:REDISPORT of testdata/ConfigServer.prop, its data are flushed!
+ * Run from the project directory:
+ * java -cp target/test-classes:target/classes:[test classpath] retrieval.benchmark.StoreBenchmark
+ * or only MAPPED (no Redis server): java -jar target/benchmarks.jar StoreBenchmark -p storeName=MAPPED
+ * @author lrollus
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class StoreBenchmark {
+
+    @Param({"MAPPED", "REDIS"})
+    public String storeName;
+
+    @Param({"10000"})
+    public int images;
+
+    @Param({"100000"})
+    public int vocabulary;
+
+    @Param({"30"})
+    public int k;
+
+    private ConfigServer config;
+    private IndexMultiThread index;
+    private List<ConcurrentHashMap<Long, Long>>[] visualWords;
+    private List<ConcurrentHashMap<Long, RequestPictureVisualWord>>[] requests;
+    private int request;
+
+    @Setup
+    public void setUp() throws Exception {
+        config = SyntheticIndex.config(storeName);
+        long start = System.currentTimeMillis();
+        index = SyntheticIndex.create(config, images, vocabulary);
+        System.out.println(storeName + ": " + images + " pictures indexed in " + (System.currentTimeMillis() - start) + " ms");
+        Random random = new Random(1);
+        visualWords = new List[16];
+        requests = new List[16];
+        for (int i = 0; i < requests.length; i++) {
+            visualWords[i] = SyntheticIndex.visualWords(random, index.getTestVectors().size(), config.getNumberOfPatch(), vocabulary);
+            requests[i] = SyntheticIndex.request(index, random, config.getNumberOfPatch(), vocabulary);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        index.close();
+    }
+
+    @Benchmark
+    public List<ConcurrentHashMap<Long, Long>> fillNBT() {
+        return index.fillNBT(visualWords[request++ % visualWords.length]);
+    }
+
+    @Benchmark
+    public Map<Long, ValueStructure> getAll() {
+        TestVectorServer tv = index.getTestVectors().get(0);
+        return tv.getAll(new ArrayList<Long>(visualWords[request++ % visualWords.length].get(0).keySet()));
+    }
+
+    @Benchmark
+    public List<ResultSim> computeSimilarity() {
+        return index.computeSimilarity(requests[request++ % requests.length], config.getNumberOfPatch(), k);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(StoreBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,155 @@
+package retrieval.benchmark;
+
+import retrieval.config.ConfigServer;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import retrieval.dist.RequestPictureVisualWord;
+import retrieval.server.globaldatabase.GlobalDatabase;
+import retrieval.server.globaldatabase.MappedDatabase;
+import retrieval.server.globaldatabase.MemoryDatabase;
+import retrieval.server.globaldatabase.RedisDatabase;
+import retrieval.storage.index.IndexMultiThread;
+import retrieval.storage.index.PictureIndex;
+import retrieval.storage.index.PictureVisualWords;
+import retrieval.storage.index.ValueStructure;
+import retrieval.testvector.TestVectorListServer;
+import retrieval.testvector.TestVectorServer;
+import retrieval.testvector.generator.TestVectorReading;
+import retrieval.utils.FileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Synthetic pictures and indexes for the benchmarks (no picture extraction).
+ * Each of the N patchs of a picture falls in a visual word of the vocabulary,
+ * small visual words are more frequent (long posting lists as with real pictures).
+ * Sizes are benchmark parameters: java -jar target/benchmarks.jar -p images=100000
+ * @author lrollus
+ */
+class SyntheticIndex {
+
+    /**
+     * Get the visual words of a picture for each test vector
+     * @param random Generator
+     * @param testVectors Number of test vectors
+     * @param N Number of patchs
+     * @param vocabulary Number of visual words
+     * @return Visual words (and number of patchs) for each test vector
+     */
+    static List<ConcurrentHashMap<Long, Long>> visualWords(Random random, int testVectors, int N, int vocabulary) {
+        List<ConcurrentHashMap<Long, Long>> visualWords = new ArrayList<ConcurrentHashMap<Long, Long>>(testVectors);
+        for (int t = 0; t < testVectors; t++) {
+            ConcurrentHashMap<Long, Long> map = new ConcurrentHashMap<Long, Long>();
+            for (int i = 0; i < N; i++) {
+                double r = random.nextDouble();
+                Long key = (long) (r * r * vocabulary);
+                Long count = map.get(key);
+                map.put(key, count == null ? 1l : count + 1);
+            }
+            visualWords.add(map);
+        }
+        return visualWords;
+    }
+
+    /**
+     * Get the configuration of a MEMORY storage
+     * @return Configuration (testdata)
+     * @throws Exception Cannot read configuration
+     */
+    static ConfigServer config() throws Exception {
+        return config("MEMORY");
+    }
+
+    /**
+     * Get the configuration of a storage.
+     * MAPPED files are in INDEXPATH/benchmark/ (deleted), REDIS uses REDISHOST:REDISPORT
+     * @param storeName Store name (MEMORY, MAPPED, REDIS,...)
+     * @return Configuration (testdata)
+     * @throws Exception Cannot read configuration
+     */
+    static ConfigServer config(String storeName) throws Exception {
+        ConfigServer config = new ConfigServer("testdata/ConfigServer.prop");
+        config.setStoreName(storeName);
+        config.setMemorySnapshot(0);
+        config.setNbtCacheSize(0);
+        config.setIndexPath(config.getIndexPath() + "benchmark/");
+        return config;
+    }
+
+    /**
+     * Open an empty database for the store of the configuration.
+     * Warning: REDIS database is flushed!
+     * @param config Configuration
+     * @return Database
+     * @throws Exception Cannot open database
+     */
+    static GlobalDatabase database(ConfigServer config) throws Exception {
+        if (config.getStoreName().equals("REDIS")) {
+            RedisDatabase database = new RedisDatabase(config);
+            try (Jedis redis = ((JedisPool) database.getDatabase()).getResource()) {
+                redis.flushAll();
+            }
+            return database;
+        } else if (config.getStoreName().equals("MAPPED")) {
+            FileUtils.deleteAllFilesRecursively(new File(config.getIndexPath()));
+            return new MappedDatabase(config);
+        } else {
+            return new MemoryDatabase(config);
+        }
+    }
+
+    /**
+     * Build a storage index with synthetic pictures (id 0 to images - 1)
+     * @param config Configuration
+     * @param images Number of pictures
+     * @param vocabulary Number of visual words
+     * @return Index
+     * @throws Exception Error during index build
+     */
+    static IndexMultiThread create(ConfigServer config, int images, int vocabulary) throws Exception {
+        GlobalDatabase database = database(config);
+        TestVectorListServer testVectors = TestVectorReading.readServer("benchmark", config.getVectorPath(), config, database);
+        IndexMultiThread index = new IndexMultiThread("benchmark", database, config, testVectors, PictureIndex.getPictureIndex("benchmark", config, database));
+        Random random = new Random(0);
+        List<PictureVisualWords> batch = new ArrayList<PictureVisualWords>();
+        for (long id = 0; id < images; id++) {
+            batch.add(new PictureVisualWords(id, new HashMap<String, String>(), visualWords(random, testVectors.size(), config.getNumberOfPatch(), vocabulary)));
+            if (batch.size() == 1000 || id == images - 1) {
+                index.addPictures(batch, config.getNumberOfPatch(), false);
+                batch.clear();
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Get the visual words of a request picture with the NBT of the index (as after the first search step)
+     * @param index Index
+     * @param random Generator
+     * @param N Number of patchs
+     * @param vocabulary Number of visual words
+     * @return Request visual words for each test vector
+     */
+    static List<ConcurrentHashMap<Long, RequestPictureVisualWord>> request(IndexMultiThread index, Random random, int N, int vocabulary) {
+        TestVectorListServer testVectors = index.getTestVectors();
+        List<ConcurrentHashMap<Long, Long>> visualWords = visualWords(random, testVectors.size(), N, vocabulary);
+        List<ConcurrentHashMap<Long, RequestPictureVisualWord>> request = new ArrayList<ConcurrentHashMap<Long, RequestPictureVisualWord>>(testVectors.size());
+        for (int t = 0; t < testVectors.size(); t++) {
+            TestVectorServer tv = testVectors.get(t);
+            Map<Long, ValueStructure> postings = tv.getAll(new ArrayList<Long>(visualWords.get(t).keySet()));
+            ConcurrentHashMap<Long, RequestPictureVisualWord> map = new ConcurrentHashMap<Long, RequestPictureVisualWord>();
+            for (Map.Entry<Long, Long> entry : visualWords.get(t).entrySet()) {
+                ValueStructure value = postings.get(entry.getKey());
+                map.put(entry.getKey(), new RequestPictureVisualWord(entry.getValue().intValue(), value != null ? (int) value.getNBT() : 0));
+            }
+            request.add(map);
+        }
+        return request;
+    }
+}
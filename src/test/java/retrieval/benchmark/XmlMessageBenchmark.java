@@ -0,0 +1,135 @@
+package retrieval.benchmark;
+
+import org.jdom.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import retrieval.dist.Message;
+import retrieval.dist.MultiServerMessageNBT;
+import retrieval.dist.MultiServerMessageResults;
+import retrieval.dist.MultiServerMessageSimilarities;
+import retrieval.storage.index.ResultSim;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * XML documents of the search messages without the socket (see ProtocolBenchmark):
+ * NBT response of the storages, SEARCH2 (nbt sum) and SEARCH3 (k results for each storage).
+ * Each message is rendered (toXML) or rendered and parsed back (round-trip).
+ * Run from the project directory:
+ * java -cp target/test-classes:target/classes:[test classpath] retrieval.benchmark.XmlMessageBenchmark
+ * @author lrollus
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XmlMessageBenchmark {
+
+    @Param({"NBT", "SIMILARITIES", "RESULTS"})
+    public String message;
+
+    @Param({"1000"})
+    public int N;
+
+    @Param({"5"})
+    public int testVectors;
+
+    @Param({"10"})
+    public int storages;
+
+    @Param({"30"})
+    public int k;
+
+    private Message msg;
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(0);
+        String[] containers = new String[0];
+        List<ConcurrentHashMap<Long, Long>> visualWords = new ArrayList<ConcurrentHashMap<Long, Long>>();
+        for (int t = 0; t < testVectors; t++) {
+            ConcurrentHashMap<Long, Long> map = new ConcurrentHashMap<Long, Long>();
+            while (map.size() < N / 2) {
+                map.put((long) random.nextInt(1 << 30), (long) (1 + random.nextInt(4)));
+            }
+            visualWords.add(map);
+        }
+        Map<String, List<ConcurrentHashMap<Long, Long>>> all = new TreeMap<String, List<ConcurrentHashMap<Long, Long>>>();
+        all.put("#all#", visualWords);
+        Map<String, List<ConcurrentHashMap<Long, Long>>> byStorage = new TreeMap<String, List<ConcurrentHashMap<Long, Long>>>();
+        Map<String, List<ResultSim>> results = new TreeMap<String, List<ResultSim>>();
+        for (int s = 0; s < storages; s++) {
+            List<ConcurrentHashMap<Long, Long>> storageNBT = MultiServerMessageNBT.copyVWList(visualWords);
+            for (ConcurrentHashMap<Long, Long> map : storageNBT) {
+                for (Map.Entry<Long, Long> entry : map.entrySet()) {
+                    entry.setValue((long) random.nextInt(100000));
+                }
+            }
+            byStorage.put("storage" + s, storageNBT);
+            List<ResultSim> sims = new ArrayList<ResultSim>(k);
+            for (int i = 0; i < k; i++) {
+                Map<String, String> properties = new HashMap<String, String>();
+                properties.put("id", i + "");
+                properties.put("path", "/data/pictures/storage" + s + "/picture" + i + ".jpg");
+                sims.add(new ResultSim((long) random.nextInt(), properties, random.nextDouble()));
+            }
+            results.put("storage" + s, sims);
+        }
+        MultiServerMessageNBT nbt = new MultiServerMessageNBT(byStorage, containers);
+        if (message.equals("NBT")) {
+            msg = nbt;
+        } else if (message.equals("SIMILARITIES")) {
+            MultiServerMessageSimilarities search2 = new MultiServerMessageSimilarities(all, N, k, containers);
+            search2.addNBT(nbt.toXML());
+            msg = search2;
+        } else {
+            msg = new MultiServerMessageResults(results);
+        }
+    }
+
+    @Benchmark
+    public Document toXML() throws Exception {
+        return msg.toXML();
+    }
+
+    @Benchmark
+    public Message roundTrip() throws Exception {
+        Document document = msg.toXML();
+        if (msg instanceof MultiServerMessageNBT) {
+            return new MultiServerMessageNBT(document);
+        } else if (msg instanceof MultiServerMessageSimilarities) {
+            return new MultiServerMessageSimilarities(document);
+        }
+        return new MultiServerMessageResults(document);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(XmlMessageBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
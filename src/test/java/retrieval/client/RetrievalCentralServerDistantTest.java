@@ -4,7 +4,11 @@ import org.apache.log4j.Logger;
 import org.junit.*;
 import retrieval.config.ConfigClient;
 import retrieval.config.ConfigServer;
+import retrieval.dist.MultiServerMessageNBT;
 import retrieval.dist.ResultsSimilarities;
+import retrieval.storage.index.ResultSim;
+import retrieval.testvector.TestVectorListClient;
+import retrieval.testvector.generator.TestVectorReading;
 import retrieval.utils.FileUtils;
 
 import javax.imageio.ImageIO;
@@ -12,8 +16,11 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
 /**
@@ -102,4 +109,120 @@ public class RetrievalCentralServerDistantTest extends RetrievalCentralServerAbs
         assertEquals(true,containsPictures(result, 5l));           
     }
 
+    @Test
+    public void testMultiCentralServerSearchXmlSameAsBinary() throws Exception {
+        System.out.println("testMultiCentralServerSearchXmlSameAsBinary");
+        TestVectorListClient testVectors = TestVectorReading.readClient(configCentralServer.getVectorPath(), configCentralServer);
+        List<ConcurrentHashMap<Long, Long>> visualWords = testVectors.generateVisualWordFromPicture(
+                FileUtils.readPicture(LOCALPICTURE1), null, 1000, 3, 16, 16);
+
+        List<ServerInformationSocket> servers = new ArrayList<ServerInformationSocket>();
+        servers.add(new ServerInformationSocket("localhost", multiServer1.getPort()));
+        servers.add(new ServerInformationSocket("localhost", multiServer2.getPort()));
+
+        configCentralServer.setBinaryProtocol(true);
+        configCentralServer.setPersistentConnection(false);
+        RetrievalClient binaryClient = new RetrievalClient(configCentralServer, new ListServerInformationSocket(servers));
+        List<ResultSim> binary = binaryClient.search(MultiServerMessageNBT.copyVWList(visualWords), 1000, 30).getResults();
+
+        configCentralServer.setBinaryProtocol(false);
+        RetrievalClient xmlClient = new RetrievalClient(configCentralServer, new ListServerInformationSocket(servers));
+        List<ResultSim> xml = xmlClient.search(MultiServerMessageNBT.copyVWList(visualWords), 1000, 30).getResults();
+
+        assertEquals(7, binary.size());
+        assertEquals(xml.size(), binary.size());
+        for (int i = 0; i < xml.size(); i++) {
+            assertEquals(xml.get(i).getId(), binary.get(i).getId());
+            assertEquals(xml.get(i).getSimilarities(), binary.get(i).getSimilarities(), 0.0000001);
+            assertEquals(xml.get(i).getProperties(), binary.get(i).getProperties());
+        }
+    }
+
+    private static void assertSameResults(List<ResultSim> expected, List<ResultSim> results) {
+        assertEquals(expected.size(), results.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), results.get(i).getId());
+            assertEquals(expected.get(i).getSimilarities(), results.get(i).getSimilarities(), 0.0000001);
+            assertEquals(expected.get(i).getProperties(), results.get(i).getProperties());
+        }
+    }
+
+    @Test
+    public void testMultiCentralServerSearchPersistentConnection() throws Exception {
+        System.out.println("testMultiCentralServerSearchPersistentConnection");
+        TestVectorListClient testVectors = TestVectorReading.readClient(configCentralServer.getVectorPath(), configCentralServer);
+        List<ConcurrentHashMap<Long, Long>> visualWords = testVectors.generateVisualWordFromPicture(
+                FileUtils.readPicture(LOCALPICTURE1), null, 1000, 3, 16, 16);
+
+        List<ServerInformationSocket> servers = new ArrayList<ServerInformationSocket>();
+        servers.add(new ServerInformationSocket("localhost", multiServer1.getPort()));
+        servers.add(new ServerInformationSocket("localhost", multiServer2.getPort()));
+
+        configCentralServer.setBinaryProtocol(true);
+        configCentralServer.setPersistentConnection(false);
+        RetrievalClient newConnectionClient = new RetrievalClient(configCentralServer, new ListServerInformationSocket(servers));
+        assertNull(newConnectionClient.getConnectionPool());
+        List<ResultSim> expected = newConnectionClient.search(MultiServerMessageNBT.copyVWList(visualWords), 1000, 30).getResults();
+
+        configCentralServer.setPersistentConnection(true);
+        RetrievalClient persistentClient = new RetrievalClient(configCentralServer, new ListServerInformationSocket(servers));
+        for (int i = 0; i < 3; i++) {
+            ResultsSimilarities result = persistentClient.search(MultiServerMessageNBT.copyVWList(visualWords), 1000, 30);
+            assertSameResults(expected, result.getResults());
+            for (Integer key : result.getServersSocket().getKeys()) {
+                assertEquals(ServerInformationSocket.NOERROR, result.getServersSocket().get(key).getState());
+            }
+            //one connection for each server, kept between searches
+            assertEquals(2, persistentClient.getConnectionPool().size());
+        }
+
+        //connections are open again after close
+        persistentClient.close();
+        assertEquals(0, persistentClient.getConnectionPool().size());
+        assertSameResults(expected, persistentClient.search(MultiServerMessageNBT.copyVWList(visualWords), 1000, 30).getResults());
+        assertEquals(2, persistentClient.getConnectionPool().size());
+        persistentClient.close();
+    }
+
+    @Test
+    public void testMultiCentralServerSearchPersistentConnectionConcurrent() throws Exception {
+        System.out.println("testMultiCentralServerSearchPersistentConnectionConcurrent");
+        final String[] pictures = {LOCALPICTURE1, LOCALPICTURE5, LOCALPICTURE3, LOCALPICTURE7};
+        final long[] ids = {1l, 5l, 3l, 7l};
+
+        List<ServerInformationSocket> servers = new ArrayList<ServerInformationSocket>();
+        servers.add(new ServerInformationSocket("localhost", multiServer1.getPort()));
+        servers.add(new ServerInformationSocket("localhost", multiServer2.getPort()));
+        configCentralServer.setBinaryProtocol(true);
+        configCentralServer.setPersistentConnection(true);
+        final RetrievalClient persistentClient = new RetrievalClient(configCentralServer, new ListServerInformationSocket(servers));
+
+        //several searches at the same time on the same connections
+        final ResultsSimilarities[] results = new ResultsSimilarities[8];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int number = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        results[number] = persistentClient.search(FileUtils.readPicture(pictures[number % pictures.length]), 30);
+                    } catch (Exception e) {
+                        logger.error(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < results.length; i++) {
+            assertNotNull(results[i]);
+            assertEquals(true, containsPictures(results[i], ids[i % ids.length]));
+        }
+        assertEquals(2, persistentClient.getConnectionPool().size());
+        persistentClient.close();
+    }
+
 }
@@ -0,0 +1,57 @@
+package retrieval.client.message;
+
+import org.junit.Test;
+import retrieval.dist.RequestPictureVisualWord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ * @author lrollus
+ */
+public class MessageSimilaritiesTest {
+
+    @Test
+    public void testAddNBTSameAsXml() throws Exception {
+        System.out.println("testAddNBTSameAsXml");
+        Random random = new Random(0);
+        List<ConcurrentHashMap<Long, Long>> visualWords = new ArrayList<ConcurrentHashMap<Long, Long>>();
+        for (int t = 0; t < 5; t++) {
+            ConcurrentHashMap<Long, Long> map = new ConcurrentHashMap<Long, Long>();
+            for (int i = 0; i < 500; i++) {
+                map.put((long) random.nextInt(1 << 30), (long) (1 + random.nextInt(4)));
+            }
+            visualWords.add(map);
+        }
+        MessageSimilarities xml = new MessageSimilarities(visualWords, 1000, 30);
+        MessageSimilarities direct = new MessageSimilarities(visualWords, 1000, 30);
+
+        //3 storages
+        for (int s = 0; s < 3; s++) {
+            List<ConcurrentHashMap<Long, Long>> nbt = new MessageNBT(visualWords).copyWithoutValue().getVisualWordsByTestVector();
+            for (ConcurrentHashMap<Long, Long> map : nbt) {
+                for (Map.Entry<Long, Long> entry : map.entrySet()) {
+                    entry.setValue((long) random.nextInt(100000));
+                }
+            }
+            xml.addNBT(new MessageNBT(nbt).toXML());
+            direct.addNBT(nbt);
+        }
+
+        for (int t = 0; t < visualWords.size(); t++) {
+            ConcurrentHashMap<Long, RequestPictureVisualWord> expected = xml.getVisualWord().get(t);
+            ConcurrentHashMap<Long, RequestPictureVisualWord> result = direct.getVisualWord().get(t);
+            assertEquals(expected.keySet(), result.keySet());
+            for (Long vw : expected.keySet()) {
+                assertEquals(expected.get(vw).nbiq, result.get(vw).nbiq);
+                assertEquals(expected.get(vw).nbtSum, result.get(vw).nbtSum);
+            }
+        }
+    }
+}
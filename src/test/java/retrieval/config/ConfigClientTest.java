@@ -48,6 +48,8 @@ public class ConfigClientTest {
         instance.setTimeout(0);
         instance.setResizeMethod(3);
         instance.setVectorPath("/test");
+        instance.setBinaryProtocol(false);
+        instance.setPersistentConnection(false);
         assertEquals(1000, instance.getNumberOfPatch());
         assertEquals(10, instance.getNumberOfTV());
         assertEquals(16, instance.getSizeOfPatchResizeWidth());
@@ -55,6 +57,16 @@ public class ConfigClientTest {
         assertEquals(0, instance.getTimeout());
         assertEquals(3, instance.getResizeMethod());
         assertEquals("/test", instance.getVectorPath());
+        assertEquals(false, instance.isBinaryProtocol());
+        assertEquals(false, instance.isPersistentConnection());
+    }
+
+    @Test
+    public void testProtocol() throws Exception {
+        System.out.println("testProtocol");
+        ConfigClient instance = new ConfigClient("testdata/ConfigClient.prop");
+        assertEquals(true, instance.isBinaryProtocol());
+        assertEquals(true, instance.isPersistentConnection());
     }
     
 }
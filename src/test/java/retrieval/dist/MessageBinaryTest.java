@@ -0,0 +1,292 @@
+package retrieval.dist;
+
+import org.junit.Test;
+import retrieval.exception.CBIRException;
+import retrieval.storage.exception.AlreadyIndexedException;
+import retrieval.storage.exception.NoException;
+import retrieval.storage.index.ResultSim;
+import retrieval.utils.NetworkUtils;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author lrollus
+ */
+public class MessageBinaryTest {
+
+    private static BinaryFrame roundTrip(MessageBinary msg) throws Exception {
+        return roundTrip(msg, null);
+    }
+
+    private static BinaryFrame roundTrip(MessageBinary msg, BufferedImage image) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        NetworkUtils.writeBinaryToStream(output, msg, image);
+        ByteArrayInputStream input = new ByteArrayInputStream(output.toByteArray());
+        BinaryFrame frame = NetworkUtils.readBinaryFromStream(input);
+        assertEquals(0, input.available());
+        return frame;
+    }
+
+    private static List<ConcurrentHashMap<Long, Long>> visualWords(int T, int N, Random random) {
+        List<ConcurrentHashMap<Long, Long>> visualWords = new ArrayList<ConcurrentHashMap<Long, Long>>();
+        for (int t = 0; t < T; t++) {
+            ConcurrentHashMap<Long, Long> map = new ConcurrentHashMap<Long, Long>();
+            for (int i = 0; i < N; i++) {
+                map.put(random.nextLong() >>> (random.nextInt(40)), (long) random.nextInt(1000));
+            }
+            visualWords.add(map);
+        }
+        return visualWords;
+    }
+
+    @Test
+    public void testNBT() throws Exception {
+        System.out.println("testNBT");
+        Random random = new Random(0);
+        Map<String, List<ConcurrentHashMap<Long, Long>>> lists = new TreeMap<String, List<ConcurrentHashMap<Long, Long>>>();
+        lists.put("#all#", visualWords(5, 1000, random));
+        lists.put("storage1", visualWords(5, 10, random));
+        MultiServerMessageNBT msg = new MultiServerMessageNBT(lists, new String[]{"storage1", "storage2"});
+
+        MultiServerMessageNBT binary = new MultiServerMessageNBT(roundTrip(msg));
+        assertEquals(lists, binary.getVisualWordsByTestVectorServer());
+        assertEquals(Arrays.asList("storage1", "storage2"), binary.getContainers());
+
+        MultiServerMessageNBT noContainer = new MultiServerMessageNBT(roundTrip(new MultiServerMessageNBT(lists, new String[0])));
+        assertEquals(0, noContainer.getContainers().size());
+    }
+
+    @Test
+    public void testSimilaritiesAndAddNBT() throws Exception {
+        System.out.println("testSimilaritiesAndAddNBT");
+        Random random = new Random(1);
+        Map<String, List<ConcurrentHashMap<Long, Long>>> lists = new TreeMap<String, List<ConcurrentHashMap<Long, Long>>>();
+        lists.put("#all#", visualWords(5, 1000, random));
+        String[] containers = {"storage1"};
+
+        //response of a server: same visual words with its nbt
+        Map<String, List<ConcurrentHashMap<Long, Long>>> response = new TreeMap<String, List<ConcurrentHashMap<Long, Long>>>();
+        List<ConcurrentHashMap<Long, Long>> nbt = MultiServerMessageNBT.copyVWList(lists.get("#all#"));
+        for (ConcurrentHashMap<Long, Long> map : nbt) {
+            for (Map.Entry<Long, Long> entry : map.entrySet()) {
+                entry.setValue((long) random.nextInt(100000));
+            }
+        }
+        response.put("storage1", nbt);
+        MultiServerMessageNBT msgResponse = new MultiServerMessageNBT(response, containers);
+
+        MultiServerMessageSimilarities xml = new MultiServerMessageSimilarities(lists, 1000, 30, containers);
+        xml.addNBT(msgResponse.toXML());
+        MultiServerMessageSimilarities binary = new MultiServerMessageSimilarities(lists, 1000, 30, containers);
+        binary.addNBT(roundTrip(msgResponse));
+
+        MultiServerMessageSimilarities check = new MultiServerMessageSimilarities(roundTrip(binary));
+        assertEquals(1000, check.getNiq());
+        assertEquals(30, check.getK());
+        assertEquals(Arrays.asList(containers), check.getContainers());
+        assertEquals(xml.getVisualWord().keySet(), check.getVisualWord().keySet());
+        for (String server : xml.getVisualWord().keySet()) {
+            List<ConcurrentHashMap<Long, RequestPictureVisualWord>> expected = xml.getVisualWord().get(server);
+            List<ConcurrentHashMap<Long, RequestPictureVisualWord>> result = check.getVisualWord().get(server);
+            assertEquals(expected.size(), result.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).keySet(), result.get(i).keySet());
+                for (Long vw : expected.get(i).keySet()) {
+                    assertEquals(expected.get(i).get(vw).nbiq, result.get(i).get(vw).nbiq);
+                    assertEquals(expected.get(i).get(vw).nbtSum, result.get(i).get(vw).nbtSum);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testResults() throws Exception {
+        System.out.println("testResults");
+        Map<String, List<ResultSim>> lists = new TreeMap<String, List<ResultSim>>();
+        List<ResultSim> results = new ArrayList<ResultSim>();
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("name", "picture1");
+        results.add(new ResultSim(1l, properties, 0.5d));
+        results.add(new ResultSim(Long.MAX_VALUE, new HashMap<String, String>(), 0.25d));
+        lists.put("storage1", results);
+        lists.put("storage2", new ArrayList<ResultSim>());
+
+        MultiServerMessageResults check = new MultiServerMessageResults(roundTrip(new MultiServerMessageResults(lists)));
+        assertEquals(lists.keySet(), check.getResults().keySet());
+        assertEquals(0, check.getResults().get("storage2").size());
+        List<ResultSim> checkResults = check.getResults().get("storage1");
+        assertEquals(2, checkResults.size());
+        assertEquals(new Long(1l), checkResults.get(0).getId());
+        assertEquals(0.5d, checkResults.get(0).getSimilarities(), 0d);
+        assertEquals(properties, checkResults.get(0).getProperties());
+        assertEquals(new Long(Long.MAX_VALUE), checkResults.get(1).getId());
+    }
+
+    @Test
+    public void testIndexWithPicture() throws Exception {
+        System.out.println("testIndexWithPicture");
+        BufferedImage image = new BufferedImage(31, 17, BufferedImage.TYPE_3BYTE_BGR);
+        Random random = new Random(2);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("date", "2014/10/31");
+
+        BinaryFrame frame = roundTrip(new MultiServerMessageIndex(5l, properties, "storage1", true), image);
+        MultiServerMessageIndex check = new MultiServerMessageIndex(frame);
+        BufferedImage checkImage = BinaryFrame.readImage(frame.getInput());
+        assertEquals(new Long(5l), check.getId());
+        assertEquals("storage1", check.getStorage());
+        assertEquals(true, check.async);
+        assertEquals(properties, check.getProperties());
+        assertEquals(image.getWidth(), checkImage.getWidth());
+        assertEquals(image.getHeight(), checkImage.getHeight());
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(image.getRGB(x, y), checkImage.getRGB(x, y));
+            }
+        }
+
+        check = new MultiServerMessageIndex(roundTrip(new MultiServerMessageIndex(null, null, "storage1", false)));
+        assertNull(check.getId());
+        assertEquals(false, check.async);
+        assertEquals(0, check.getProperties().size());
+    }
+
+    @Test
+    public void testIndexWithEncodedOrPath() throws Exception {
+        System.out.println("testIndexWithEncodedOrPath");
+        byte[] encoded = new byte[1000];
+        new Random(3).nextBytes(encoded);
+        MultiServerMessageIndex msg = new MultiServerMessageIndex(5l, null, "storage1", true);
+        msg.setEncoded(encoded);
+        MultiServerMessageIndex check = new MultiServerMessageIndex(roundTrip(msg));
+        assertEquals(MultiServerMessageIndex.PICTURE_ENCODED, check.getPictureTransfer());
+        assertArrayEquals(encoded, check.getEncoded());
+        assertEquals(new Long(5l), check.getId());
+
+        msg = new MultiServerMessageIndex(6l, null, "storage1", false);
+        msg.setPath("/data/pictures/picture1.jpg");
+        check = new MultiServerMessageIndex(roundTrip(msg));
+        assertEquals(MultiServerMessageIndex.PICTURE_PATH, check.getPictureTransfer());
+        assertEquals("/data/pictures/picture1.jpg", check.getPath());
+        assertNull(check.getEncoded());
+
+        assertEquals(false, check.isStream());
+        msg.setStream(true);
+        BinaryFrame frame = roundTrip(msg);
+        assertEquals(BinaryFrame.INDEXSTREAM, frame.getType());
+        check = new MultiServerMessageIndex(frame);
+        assertEquals(true, check.isStream());
+        assertEquals("/data/pictures/picture1.jpg", check.getPath());
+
+        check = new MultiServerMessageIndex(msg.toXML());
+        assertEquals(MultiServerMessageIndex.PICTURE_PATH, check.getPictureTransfer());
+        assertEquals("/data/pictures/picture1.jpg", check.getPath());
+        check = new MultiServerMessageIndex(new MultiServerMessageIndex(7l, null, "storage1", false).toXML());
+        assertEquals(MultiServerMessageIndex.PICTURE_PIXELS, check.getPictureTransfer());
+    }
+
+    @Test
+    public void testIndexResults() throws Exception {
+        System.out.println("testIndexResults");
+        Map<String, Map<Long, CBIRException>> allPictures = new HashMap<String, Map<Long, CBIRException>>();
+        Map<Long, CBIRException> pictures = new HashMap<Long, CBIRException>();
+        pictures.put(1l, new NoException());
+        pictures.put(2l, new AlreadyIndexedException("Picture 2 already indexed"));
+        pictures.put(3l, new CBIRException("Undefined error"));
+        allPictures.put("storage1", pictures);
+
+        MultiServerMessageIndexResults check = new MultiServerMessageIndexResults(roundTrip(new MultiServerMessageIndexResults(allPictures)));
+        TreeMap<Long, CBIRException> flat = check.getAllPicturesFlat();
+        assertEquals(3, flat.size());
+        assertEquals(true, flat.get(1l).isNotAnException());
+        assertEquals(new AlreadyIndexedException("").getCode(), flat.get(2l).getCode());
+        assertNull(flat.get(3l).getCode());
+    }
+
+    @Test
+    public void testError() throws Exception {
+        System.out.println("testError");
+        CBIRException exception = new AlreadyIndexedException(null);
+        BinaryFrame frame = roundTrip(new MessageError(exception));
+        assertEquals(true, frame.isErrorMessage());
+        CBIRException check = MessageError.getException(frame);
+        assertEquals(exception.getCode(), check.getCode());
+        assertEquals("", check.getMessage());
+    }
+
+    @Test
+    public void testMultiplexedFrames() throws Exception {
+        System.out.println("testMultiplexedFrames");
+        Map<String, List<ConcurrentHashMap<Long, Long>>> lists = new TreeMap<String, List<ConcurrentHashMap<Long, Long>>>();
+        lists.put("#all#", visualWords(5, 100, new Random(4)));
+        //several requests on the same stream, each one with its id
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        NetworkUtils.writeBinaryToStream(output, 1, new MultiServerMessageNBT(lists, new String[0]));
+        NetworkUtils.writeBinaryToStream(output, Integer.MAX_VALUE, new MessageError("404", "Not found"));
+        NetworkUtils.writeBinaryToStream(output, 3, new MultiServerMessageNBT(lists, new String[]{"storage1"}));
+        ByteArrayInputStream input = new ByteArrayInputStream(output.toByteArray());
+        assertEquals(NetworkUtils.PROTOCOL_MULTIPLEXED, output.toByteArray()[0] & 0xFF);
+
+        BinaryFrame frame = NetworkUtils.readBinaryFromStream(input);
+        assertEquals(1, frame.getRequestId());
+        assertEquals(lists, new MultiServerMessageNBT(frame).getVisualWordsByTestVectorServer());
+        frame = NetworkUtils.readBinaryFromStream(input);
+        assertEquals(Integer.MAX_VALUE, frame.getRequestId());
+        assertEquals(true, frame.isErrorMessage());
+        frame = NetworkUtils.readBinaryFromStream(input);
+        assertEquals(3, frame.getRequestId());
+        assertEquals(Arrays.asList("storage1"), new MultiServerMessageNBT(frame).getContainers());
+        assertEquals(0, input.available());
+
+        //frame without request id
+        assertEquals(0, roundTrip(new MessageError("404", "Not found")).getRequestId());
+    }
+
+    @Test(expected = NotValidMessageXMLException.class)
+    public void testBadFrameType() throws Exception {
+        System.out.println("testBadFrameType");
+        new MultiServerMessageResults(roundTrip(new MessageError("404", "Not found")));
+    }
+
+    @Test(expected = NotValidMessageXMLException.class)
+    public void testXmlIsNotABinaryFrame() throws Exception {
+        System.out.println("testXmlIsNotABinaryFrame");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(output);
+        oos.writeObject(new MessageError("404", "Not found").toXML());
+        oos.flush();
+        assertEquals(NetworkUtils.PROTOCOL_XML, output.toByteArray()[0] & 0xFF);
+        NetworkUtils.readBinaryFromStream(new ByteArrayInputStream(output.toByteArray()));
+    }
+
+    @Test
+    public void testBinarySmallerThanXml() throws Exception {
+        System.out.println("testBinarySmallerThanXml");
+        Map<String, List<ConcurrentHashMap<Long, Long>>> lists = new TreeMap<String, List<ConcurrentHashMap<Long, Long>>>();
+        lists.put("#all#", visualWords(5, 1000, new Random(3)));
+        MultiServerMessageNBT msg = new MultiServerMessageNBT(lists, new String[0]);
+
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(xml);
+        oos.writeObject(msg.toXML());
+        oos.flush();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        NetworkUtils.writeBinaryToStream(binary, msg, null);
+
+        System.out.println("NBT message: xml=" + xml.size() + " bytes, binary=" + binary.size() + " bytes");
+        assertTrue(binary.size() * 4 < xml.size());
+    }
+}
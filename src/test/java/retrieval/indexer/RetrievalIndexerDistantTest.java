@@ -8,12 +8,15 @@ import org.apache.log4j.Logger;
 import org.junit.*;
 import retrieval.TestUtils;
 import retrieval.config.ConfigServer;
+import retrieval.dist.MultiServerMessageIndex;
+import retrieval.exception.CBIRException;
 import retrieval.server.RetrievalServer;
 import retrieval.storage.Storage;
 import retrieval.storage.exception.PictureNotFoundException;
 
 import javax.imageio.ImageIO;
 import java.io.File;
+import java.io.IOException;
 import java.net.URL;
 import java.util.*;
 import java.util.Map.Entry;
@@ -49,6 +52,7 @@ public class RetrievalIndexerDistantTest extends TestUtils {
         try {
             config = new ConfigServer("testdata/ConfigServer.prop");
             config.setStoreName("MEMORY");
+            config.setIndexPictureRoot("testdata");
             System.out.println("server");
             retrievalServer = createMultiServer(config,MULTISERVERPORT1,4,"MEMORY");            
         } catch (Exception e) {
@@ -431,4 +435,217 @@ public class RetrievalIndexerDistantTest extends TestUtils {
         }
     }    
 
+    @Test
+    public void testMultiIndexerIndexSyncBinary() throws Exception {
+        System.out.println("testMultiIndexerIndexSyncBinary");
+        String container = "myContainer";
+        retrievalServer.createStorage(container);
+
+        RetrievalIndexer index = new RetrievalIndexerDistantStorage(MULTISERVERURL,MULTISERVERPORT1,container,true,true);
+        Long id = index.index(new File(LOCALPICTURE1),5l,LOCALPICTURE1MAP);
+        assertEquals(new Long(5),id);
+        assertEquals(true,retrievalServer.getStorage(container).isPictureInIndex(id));
+
+        Map<String,String> map = retrievalServer.getStorage(container).getProperties(id);
+        assertEquals(LOCALPICTURE1MAP.get("date"),map.get("date"));
+        assertEquals(LOCALPICTURE1MAP.get("name"),map.get("name"));
+
+        id = index.index(new File(LOCALPICTURE2));
+        assertEquals(true,retrievalServer.getStorage(container).isPictureInIndex(id));
+        assertEquals(new Long(2l),retrievalServer.getSize());
+
+        try {
+            index.index(new File(LOCALPICTURE2),5l);
+            fail();
+        } catch(CBIRException e) {
+            assertEquals(new Long(2l),retrievalServer.getSize());
+        }
+    }
+
+    @Test
+    public void testMultiIndexerIndexASyncBinary() throws Exception {
+        System.out.println("testMultiIndexerIndexASyncBinary");
+        String container = "myContainer";
+        retrievalServer.createStorage(container);
+
+        RetrievalIndexer index = new RetrievalIndexerDistantStorage(MULTISERVERURL,MULTISERVERPORT1,container,false,true);
+        Long id = index.index(new File(LOCALPICTURE1),LOCALPICTURE1MAP);
+        assertEquals(true,waitForPictureIndexed(retrievalServer.getStorage(container),id));
+    }
+
+
+    private void indexWithTransfer(int transfer, boolean synchrone, boolean binary) throws Exception {
+        String container = "myContainer";
+        retrievalServer.createStorage(container);
+
+        RetrievalIndexerDistantStorage index = new RetrievalIndexerDistantStorage(MULTISERVERURL,MULTISERVERPORT1,container,synchrone,binary);
+        index.setPictureTransfer(transfer);
+        Long id = index.index(new File(LOCALPICTURE1),5l,LOCALPICTURE1MAP);
+        assertEquals(new Long(5),id);
+        if(synchrone) {
+            assertEquals(true,retrievalServer.getStorage(container).isPictureInIndex(id));
+        } else {
+            assertEquals(true,waitForPictureIndexed(retrievalServer.getStorage(container),id));
+        }
+        Map<String,String> map = retrievalServer.getStorage(container).getProperties(id);
+        assertEquals(LOCALPICTURE1MAP.get("name"),map.get("name"));
+        assertEquals(new Long(1l),retrievalServer.getSize());
+    }
+
+    @Test
+    public void testMultiIndexerIndexEncodedSync() throws Exception {
+        System.out.println("testMultiIndexerIndexEncodedSync");
+        indexWithTransfer(MultiServerMessageIndex.PICTURE_ENCODED,true,false);
+    }
+
+    @Test
+    public void testMultiIndexerIndexEncodedAsyncBinary() throws Exception {
+        System.out.println("testMultiIndexerIndexEncodedAsyncBinary");
+        indexWithTransfer(MultiServerMessageIndex.PICTURE_ENCODED,false,true);
+    }
+
+    @Test
+    public void testMultiIndexerIndexEncodedSyncBinary() throws Exception {
+        System.out.println("testMultiIndexerIndexEncodedSyncBinary");
+        indexWithTransfer(MultiServerMessageIndex.PICTURE_ENCODED,true,true);
+    }
+
+    @Test
+    public void testMultiIndexerIndexPathAsync() throws Exception {
+        System.out.println("testMultiIndexerIndexPathAsync");
+        indexWithTransfer(MultiServerMessageIndex.PICTURE_PATH,false,false);
+    }
+
+    @Test
+    public void testMultiIndexerIndexPathSyncBinary() throws Exception {
+        System.out.println("testMultiIndexerIndexPathSyncBinary");
+        indexWithTransfer(MultiServerMessageIndex.PICTURE_PATH,true,true);
+    }
+
+    @Test
+    public void testMultiIndexerIndexBadEncodedPicture() throws Exception {
+        System.out.println("testMultiIndexerIndexBadEncodedPicture");
+        String container = "myContainer";
+        retrievalServer.createStorage(container);
+        RetrievalIndexerDistantStorage index = new RetrievalIndexerDistantStorage(MULTISERVERURL,MULTISERVERPORT1,container,true,true);
+        try {
+            index.indexEncodedToStorage(new byte[]{1,2,3},5l,null);
+            fail();
+        } catch(CBIRException e) {
+            assertEquals(new Long(0l),retrievalServer.getSize());
+        }
+        try {
+            index.indexPathToStorage("/notexist/picture.jpg",6l,null);
+            fail();
+        } catch(CBIRException e) {
+            assertEquals(new Long(0l),retrievalServer.getSize());
+        }
+    }
+
+    @Test
+    public void testMultiIndexerIndexPathOutOfRoot() throws Exception {
+        System.out.println("testMultiIndexerIndexPathOutOfRoot");
+        String container = "myContainer";
+        retrievalServer.createStorage(container);
+        RetrievalIndexerDistantStorage index = new RetrievalIndexerDistantStorage(MULTISERVERURL,MULTISERVERPORT1,container,true,true);
+        String[] paths = {"testdata/../pom.xml", new File("pom.xml").getAbsolutePath(), "testdata2/picture.jpg"};
+        for(String path : paths) {
+            try {
+                index.indexPathToStorage(path,5l,null);
+                fail();
+            } catch(CBIRException e) {
+                assertEquals(true,e.getMessage().contains("INDEXPICTUREROOT"));
+            }
+        }
+        assertEquals(new Long(0l),retrievalServer.getSize());
+    }
+
+    @Test
+    public void testMultiIndexerIndexPathDisabled() throws Exception {
+        System.out.println("testMultiIndexerIndexPathDisabled");
+        String container = "myContainer";
+        retrievalServer.createStorage(container);
+        config.setIndexPictureRoot("");
+        RetrievalIndexerDistantStorage index = new RetrievalIndexerDistantStorage(MULTISERVERURL,MULTISERVERPORT1,container,true,true);
+        try {
+            index.indexPathToStorage(LOCALPICTURE1,5l,null);
+            fail();
+        } catch(CBIRException e) {
+            assertEquals(true,e.getMessage().contains("INDEXPICTUREROOT"));
+        }
+        assertEquals(new Long(0l),retrievalServer.getSize());
+    }
+
+    String[] pictures = {LOCALPICTURE1, LOCALPICTURE2, LOCALPICTURE3, LOCALPICTURE4,
+        LOCALPICTURE5, LOCALPICTURE6, LOCALPICTURE7, LOCALPICTURE8};
+
+    @Test
+    public void testIndexStreamSync() throws Exception {
+        System.out.println("testIndexStreamSync");
+        String container = "myContainer";
+        retrievalServer.createStorage(container);
+
+        RetrievalIndexerDistantStorage index = new RetrievalIndexerDistantStorage(MULTISERVERURL,MULTISERVERPORT1,container,true,true);
+        index.setPictureTransfer(MultiServerMessageIndex.PICTURE_ENCODED);
+        IndexStream stream = index.openStream(3);
+        for(int i=0;i<pictures.length;i++) {
+            stream.index(new File(pictures[i]),(long)i+1,LOCALPICTURE1MAP);
+            assertEquals(true,stream.getInFlight()<=3);
+        }
+        stream.close();
+        assertEquals(0,stream.getInFlight());
+        assertEquals(0,stream.getErrors().size());
+        assertEquals(pictures.length,stream.getIndexed().size());
+        assertEquals(new Long(pictures.length),retrievalServer.getSize());
+        for(int i=0;i<pictures.length;i++) {
+            assertEquals(true,retrievalServer.getStorage(container).isPictureInIndex((long)i+1));
+        }
+        assertEquals(LOCALPICTURE1MAP.get("name"),retrievalServer.getStorage(container).getProperties(8l).get("name"));
+    }
+
+    @Test
+    public void testIndexStreamAsyncPixels() throws Exception {
+        System.out.println("testIndexStreamAsyncPixels");
+        String container = "myContainer";
+        retrievalServer.createStorage(container);
+
+        RetrievalIndexerDistantStorage index = new RetrievalIndexerDistantStorage(MULTISERVERURL,MULTISERVERPORT1,container,false,true);
+        IndexStream stream = index.openStream(2);
+        for(String picture : pictures) {
+            stream.index(new File(picture),null,null);
+        }
+        stream.close();
+        assertEquals(0,stream.getErrors().size());
+        assertEquals(pictures.length,stream.getIndexed().size());
+        for(Long id : stream.getIndexed()) {
+            assertEquals(true,waitForPictureIndexed(retrievalServer.getStorage(container),id));
+        }
+    }
+
+    @Test
+    public void testIndexStreamWithErrors() throws Exception {
+        System.out.println("testIndexStreamWithErrors");
+        String container = "myContainer";
+        retrievalServer.createStorage(container);
+
+        RetrievalIndexerDistantStorage index = new RetrievalIndexerDistantStorage(MULTISERVERURL,MULTISERVERPORT1,container,true,true);
+        index.setPictureTransfer(MultiServerMessageIndex.PICTURE_PATH);
+        IndexStream stream = index.openStream(4);
+        stream.index(new File(LOCALPICTURE1),1l,null);
+        stream.index(new File("testdata/ConfigServer.prop"),2l,null);
+        stream.index(new File(LOCALPICTURE2),3l,null);
+        stream.close();
+        //bad picture does not stop the stream
+        assertEquals(1,stream.getErrors().size());
+        assertEquals(true,stream.getErrors().containsKey(new File("testdata/ConfigServer.prop").getPath()));
+        assertEquals(2,stream.getIndexed().size());
+        assertEquals(new Long(2l),retrievalServer.getSize());
+
+        try {
+            stream.index(new File(LOCALPICTURE3),4l,null);
+            fail();
+        } catch(IOException e) {
+        }
+    }
+
 }
@@ -0,0 +1,261 @@
+package retrieval.server;
+
+import org.junit.After;
+import org.junit.Test;
+import retrieval.TestUtils;
+import retrieval.client.ListServerInformationSocket;
+import retrieval.client.RetrievalClient;
+import retrieval.client.ServerInformationSocket;
+import retrieval.config.ConfigClient;
+import retrieval.config.ConfigServer;
+import retrieval.dist.BinaryFrame;
+import retrieval.dist.MultiServerMessageNBT;
+import retrieval.dist.MultiServerMessageResults;
+import retrieval.dist.MultiServerMessageSimilarities;
+import retrieval.dist.ResultsSimilarities;
+import retrieval.storage.exception.TooMuchSearchRequestException;
+import retrieval.storage.index.ResultSim;
+import retrieval.testvector.TestVectorListClient;
+import retrieval.testvector.generator.TestVectorReading;
+import retrieval.utils.FileUtils;
+import retrieval.utils.NetworkUtils;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author lrollus
+ */
+public class RetrievalServerSocketNIOTest extends TestUtils {
+
+    private static final String CONTAINER1 = "myContainer1";
+
+    private RetrievalServer multiServer;
+
+    private RetrievalServer createNIOServer(int maxConnections, int queueTimeout) throws Exception {
+        ConfigServer config = new ConfigServer("testdata/ConfigServer.prop");
+        config.setServerInterface("NIO");
+        config.setServerMaxConnections(maxConnections);
+        config.setServerQueueTimeout(queueTimeout);
+        multiServer = createMultiServer(config, MULTISERVERPORT1, 0, "MEMORY");
+        multiServer.createStorage(CONTAINER1);
+        multiServer.getStorage(CONTAINER1).indexPicture(FileUtils.readPicture(LOCALPICTURE1), 1l, null);
+        multiServer.getStorage(CONTAINER1).indexPicture(FileUtils.readPicture(LOCALPICTURE2), 2l, null);
+        return multiServer;
+    }
+
+    private RetrievalClient createClient(boolean binary, boolean persistent) throws Exception {
+        ConfigClient configClient = new ConfigClient("testdata/ConfigClient.prop");
+        configClient.setBinaryProtocol(binary);
+        configClient.setPersistentConnection(persistent);
+        List<ServerInformationSocket> servers = new ArrayList<ServerInformationSocket>();
+        servers.add(new ServerInformationSocket("localhost", MULTISERVERPORT1, 10000));
+        return new RetrievalClient(configClient, new ListServerInformationSocket(servers));
+    }
+
+    private static boolean isRejected(Socket socket) throws Exception {
+        socket.setSoTimeout(5000);
+        return socket.getInputStream().read() == -1;
+    }
+
+    @After
+    public void tearDown() {
+        try{multiServer.stop();}catch(Exception e) {}
+    }
+
+    @Test
+    public void testSearchAllProtocols() throws Exception {
+        System.out.println("testSearchAllProtocols");
+        createNIOServer(16, 1000);
+        boolean[][] protocols = {{false, false}, {true, false}, {true, true}};
+        for (boolean[] protocol : protocols) {
+            RetrievalClient client = createClient(protocol[0], protocol[1]);
+            for (int i = 0; i < 2; i++) {
+                ResultsSimilarities result = client.search(FileUtils.readPicture(LOCALPICTURE1), 30);
+                assertEquals(true, containsPictures(result, 1l));
+                assertEquals(2, result.getResults().size());
+            }
+            client.close();
+        }
+    }
+
+    @Test
+    public void testRejectWhenTooManyConnections() throws Exception {
+        System.out.println("testRejectWhenTooManyConnections");
+        createNIOServer(2, 0);
+        //idle connections take all slots
+        Socket idle1 = new Socket("localhost", MULTISERVERPORT1);
+        Socket idle2 = new Socket("localhost", MULTISERVERPORT1);
+        Thread.sleep(300);
+        assertTrue(isRejected(new Socket("localhost", MULTISERVERPORT1)));
+
+        idle1.close();
+        idle2.close();
+        Thread.sleep(500);
+        ResultsSimilarities result = createClient(true, false).search(FileUtils.readPicture(LOCALPICTURE1), 30);
+        assertEquals(true, containsPictures(result, 1l));
+    }
+
+    @Test
+    public void testQueueWhenTooManyConnections() throws Exception {
+        System.out.println("testQueueWhenTooManyConnections");
+        createNIOServer(1, 10000);
+        Socket idle = new Socket("localhost", MULTISERVERPORT1);
+        Thread.sleep(300);
+
+        final RetrievalClient client = createClient(true, false);
+        final ResultsSimilarities[] result = new ResultsSimilarities[1];
+        Thread search = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = client.search(FileUtils.readPicture(LOCALPICTURE1), 30);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        search.start();
+        Thread.sleep(500);
+        //search waits for the idle connection
+        assertTrue(search.isAlive());
+        idle.close();
+        search.join(10000);
+        assertNotNull(result[0]);
+        assertEquals(true, containsPictures(result[0], 1l));
+    }
+
+    @Test
+    public void testQueueTimeout() throws Exception {
+        System.out.println("testQueueTimeout");
+        createNIOServer(1, 500);
+        Socket idle = new Socket("localhost", MULTISERVERPORT1);
+        Thread.sleep(300);
+        long start = System.currentTimeMillis();
+        assertTrue(isRejected(new Socket("localhost", MULTISERVERPORT1)));
+        assertTrue(System.currentTimeMillis() - start >= 400);
+        idle.close();
+    }
+
+    @Test
+    public void testStalledRequestClosedAfterReadTimeout() throws Exception {
+        System.out.println("testStalledRequestClosedAfterReadTimeout");
+        ConfigServer config = new ConfigServer("testdata/ConfigServer.prop");
+        config.setServerInterface("NIO");
+        config.setServerThreads(1);
+        config.setServerReadTimeout(500);
+        multiServer = createMultiServer(config, MULTISERVERPORT1, 0, "MEMORY");
+        multiServer.createStorage(CONTAINER1);
+        multiServer.getStorage(CONTAINER1).indexPicture(FileUtils.readPicture(LOCALPICTURE1), 1l, null);
+
+        //first byte of a request, then nothing: the only worker waits for the request
+        Socket stalled = new Socket("localhost", MULTISERVERPORT1);
+        stalled.getOutputStream().write(NetworkUtils.PROTOCOL_BINARY);
+        stalled.getOutputStream().flush();
+        long start = System.currentTimeMillis();
+        stalled.setSoTimeout(5000);
+        while (stalled.getInputStream().read() != -1) {
+            //error message before the close
+        }
+        assertTrue(System.currentTimeMillis() - start >= 400);
+        stalled.close();
+
+        ResultsSimilarities result = createClient(true, false).search(FileUtils.readPicture(LOCALPICTURE1), 30);
+        assertEquals(true, containsPictures(result, 1l));
+    }
+
+    @Test
+    public void testStopDrainsRunningRequests() throws Exception {
+        System.out.println("testStopDrainsRunningRequests");
+        createNIOServer(16, 1000);
+        ConfigClient configClient = new ConfigClient("testdata/ConfigClient.prop");
+        TestVectorListClient testVectors = TestVectorReading.readClient(configClient.getVectorPath(), configClient);
+        List<ConcurrentHashMap<Long, Long>> visualWords = testVectors.generateVisualWordFromPicture(
+                FileUtils.readPicture(LOCALPICTURE1), null, 1000, 3, 16, 16);
+        Map<String, List<ConcurrentHashMap<Long, Long>>> all = new TreeMap<String, List<ConcurrentHashMap<Long, Long>>>();
+        all.put("#all#", visualWords);
+
+        //first part of a search
+        Socket socket = new Socket("localhost", MULTISERVERPORT1);
+        NetworkUtils.writeBinaryToSocket(socket, new MultiServerMessageNBT(all, new String[0]));
+        BinaryFrame nbt = NetworkUtils.readBinaryFromSocket(socket);
+        assertFalse(nbt.isErrorMessage());
+
+        //server stops during the search
+        Thread stop = new Thread() {
+            @Override
+            public void run() {
+                multiServer.stop();
+            }
+        };
+        stop.start();
+        Thread.sleep(500);
+        assertTrue(stop.isAlive());
+
+        //second part of the search is still carried
+        MultiServerMessageSimilarities msg2 = new MultiServerMessageSimilarities(all, 1000, 30, new String[0]);
+        msg2.addNBT(nbt);
+        NetworkUtils.writeBinaryToSocket(socket, msg2);
+        BinaryFrame results = NetworkUtils.readBinaryFromSocket(socket);
+        assertFalse(results.isErrorMessage());
+        List<ResultSim> sims = new MultiServerMessageResults(results).getResults().get(CONTAINER1);
+        assertEquals(2, sims.size());
+
+        stop.join(10000);
+        assertFalse(stop.isAlive());
+        assertTrue(NetworkUtils.isPortAvailable(MULTISERVERPORT1));
+    }
+
+    @Test
+    public void testTooManyPendingRequests() throws Exception {
+        System.out.println("testTooManyPendingRequests");
+        ConfigServer config = new ConfigServer("testdata/ConfigServer.prop");
+        config.setServerThreads(1);
+        config.setServerMaxPending(1);
+        RetrievalServerSocketNIO socket = new RetrievalServerSocketNIO(null, MULTISERVERPORT1, config);
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger done = new AtomicInteger();
+        Runnable blocked = new Runnable() {
+            public void run() {
+                running.countDown();
+                try {release.await();} catch(InterruptedException e) {}
+                done.incrementAndGet();
+            }
+        };
+        Runnable task = new Runnable() {
+            public void run() {
+                done.incrementAndGet();
+            }
+        };
+        //the only worker is busy, one request may wait
+        socket.execute(blocked);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        socket.execute(task);
+        try {
+            socket.execute(task);
+            fail();
+        } catch (TooMuchSearchRequestException e) {
+            assertEquals(TooMuchSearchRequestException.CODE, e.getCode());
+        }
+        release.countDown();
+        long start = System.currentTimeMillis();
+        while (done.get() < 2 && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, done.get());
+        //a slot is free again
+        socket.execute(task);
+        socket.close();
+    }
+}
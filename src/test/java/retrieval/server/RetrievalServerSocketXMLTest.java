@@ -0,0 +1,142 @@
+package retrieval.server;
+
+import org.junit.After;
+import org.junit.Test;
+import retrieval.TestUtils;
+import retrieval.client.ListServerInformationSocket;
+import retrieval.client.RetrievalClient;
+import retrieval.client.ServerInformationSocket;
+import retrieval.config.ConfigClient;
+import retrieval.config.ConfigServer;
+import retrieval.dist.ResultsSimilarities;
+import retrieval.storage.exception.TooMuchSearchRequestException;
+import retrieval.utils.FileUtils;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author lrollus
+ */
+public class RetrievalServerSocketXMLTest extends TestUtils {
+
+    private static final String CONTAINER1 = "myContainer1";
+
+    private RetrievalServer multiServer;
+
+    private RetrievalServer createSocketServer(int threads, int readTimeout) throws Exception {
+        ConfigServer config = new ConfigServer("testdata/ConfigServer.prop");
+        config.setServerInterface("SOCKET");
+        config.setServerThreads(threads);
+        config.setServerReadTimeout(readTimeout);
+        multiServer = createMultiServer(config, MULTISERVERPORT1, 0, "MEMORY");
+        multiServer.createStorage(CONTAINER1);
+        multiServer.getStorage(CONTAINER1).indexPicture(FileUtils.readPicture(LOCALPICTURE1), 1l, null);
+        multiServer.getStorage(CONTAINER1).indexPicture(FileUtils.readPicture(LOCALPICTURE2), 2l, null);
+        return multiServer;
+    }
+
+    private RetrievalClient createClient(boolean binary, boolean persistent) throws Exception {
+        ConfigClient configClient = new ConfigClient("testdata/ConfigClient.prop");
+        configClient.setBinaryProtocol(binary);
+        configClient.setPersistentConnection(persistent);
+        List<ServerInformationSocket> servers = new ArrayList<ServerInformationSocket>();
+        servers.add(new ServerInformationSocket("localhost", MULTISERVERPORT1, 10000));
+        return new RetrievalClient(configClient, new ListServerInformationSocket(servers));
+    }
+
+    private static boolean isClosed(Socket socket) throws Exception {
+        socket.setSoTimeout(5000);
+        InputStream input = socket.getInputStream();
+        //an error message may be written before the close
+        while (input.read() != -1) {
+        }
+        return true;
+    }
+
+    @After
+    public void tearDown() {
+        try{multiServer.stop();}catch(Exception e) {}
+    }
+
+    @Test
+    public void testIdleConnectionsDontBlockRequests() throws Exception {
+        System.out.println("testIdleConnectionsDontBlockRequests");
+        createSocketServer(1, 10000);
+        List<Socket> idle = new ArrayList<Socket>();
+        for (int i = 0; i < 4; i++) {
+            idle.add(new Socket("localhost", MULTISERVERPORT1));
+        }
+        Thread.sleep(300);
+        boolean[][] protocols = {{false, false}, {true, false}, {true, true}};
+        for (boolean[] protocol : protocols) {
+            RetrievalClient client = createClient(protocol[0], protocol[1]);
+            ResultsSimilarities result = client.search(FileUtils.readPicture(LOCALPICTURE1), 30);
+            assertEquals(true, containsPictures(result, 1l));
+            assertEquals(2, result.getResults().size());
+            client.close();
+        }
+        for (Socket socket : idle) {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testIdleConnectionClosedAfterReadTimeout() throws Exception {
+        System.out.println("testIdleConnectionClosedAfterReadTimeout");
+        createSocketServer(4, 500);
+        Socket idle = new Socket("localhost", MULTISERVERPORT1);
+        long start = System.currentTimeMillis();
+        assertTrue(isClosed(idle));
+        assertTrue(System.currentTimeMillis() - start >= 400);
+        idle.close();
+    }
+
+    @Test
+    public void testTooManyPendingRequests() throws Exception {
+        System.out.println("testTooManyPendingRequests");
+        RetrievalServerSocketXML socket = new RetrievalServerSocketXML(null, MULTISERVERPORT1, 1, 1000, 1);
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger done = new AtomicInteger();
+        Runnable blocked = new Runnable() {
+            public void run() {
+                running.countDown();
+                try {release.await();} catch(InterruptedException e) {}
+                done.incrementAndGet();
+            }
+        };
+        Runnable task = new Runnable() {
+            public void run() {
+                done.incrementAndGet();
+            }
+        };
+        //the only worker is busy, one request may wait
+        socket.execute(blocked);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        socket.execute(task);
+        try {
+            socket.execute(task);
+            fail();
+        } catch (TooMuchSearchRequestException e) {
+            assertEquals(TooMuchSearchRequestException.CODE, e.getCode());
+        }
+        release.countDown();
+        long start = System.currentTimeMillis();
+        while (done.get() < 2 && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, done.get());
+        //a slot is free again
+        socket.execute(task);
+        socket.close();
+    }
+}
@@ -0,0 +1,96 @@
+package retrieval.server;
+
+import org.junit.After;
+import org.junit.Test;
+import retrieval.storage.exception.TooMuchSearchRequestException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author lrollus
+ */
+public class SearchSchedulerTest {
+
+    SearchScheduler scheduler = null;
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.close();
+        }
+    }
+
+    @Test
+    public void testNestedTasks() throws Exception {
+        System.out.println("testNestedTasks");
+        //less threads than tasks: nested tasks must not block the pool
+        scheduler = new SearchScheduler(2, 10);
+        final AtomicInteger count = new AtomicInteger();
+        List<Runnable> storages = new ArrayList<Runnable>();
+        for (int i = 0; i < 4; i++) {
+            storages.add(new Runnable() {
+                public void run() {
+                    List<Runnable> testVectors = new ArrayList<Runnable>();
+                    for (int j = 0; j < 5; j++) {
+                        testVectors.add(new Runnable() {
+                            public void run() {
+                                count.incrementAndGet();
+                            }
+                        });
+                    }
+                    scheduler.invokeAll(testVectors);
+                }
+            });
+        }
+        scheduler.search(storages);
+        assertEquals(20, count.get());
+        assertEquals(0, scheduler.getActiveSearches());
+    }
+
+    @Test
+    public void testSearchMax() throws Exception {
+        System.out.println("testSearchMax");
+        scheduler = new SearchScheduler(2, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Runnable> blocking = new ArrayList<Runnable>();
+        blocking.add(new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        Thread first = new Thread() {
+            public void run() {
+                try {
+                    scheduler.search(blocking);
+                } catch (TooMuchSearchRequestException e) {
+                }
+            }
+        };
+        first.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertEquals(1, scheduler.getActiveSearches());
+        try {
+            scheduler.search(new ArrayList<Runnable>());
+            fail();
+        } catch (TooMuchSearchRequestException e) {
+            assertEquals(TooMuchSearchRequestException.CODE, e.getCode());
+        }
+        assertEquals(1, scheduler.getRejectedSearches());
+        release.countDown();
+        first.join();
+        scheduler.search(new ArrayList<Runnable>());
+        assertEquals(0, scheduler.getActiveSearches());
+    }
+}
@@ -0,0 +1,152 @@
+package retrieval.server.globaldatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import retrieval.utils.FileUtils;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Store is checked against a map with the same values
+ * @author lrollus
+ */
+public class MappedStoreTest {
+
+    File directory = new File("index/mappedstore/");
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.deleteAllFilesRecursively(directory);
+        directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteAllFilesRecursively(directory);
+    }
+
+    private static void assertSameStore(Map<Long, byte[]> expected, MappedStore store) {
+        assertEquals(expected.size(), store.size());
+        assertEquals(expected.size(), store.keys().length);
+        for (long key : store.keys()) {
+            assertArrayEquals(expected.get(key), store.get(key));
+        }
+    }
+
+    @Test
+    public void testPutAppendRemove() throws Exception {
+        System.out.println("testPutAppendRemove");
+        //small chunks (4 KB): values are moved and chunks are added
+        MappedStore store = new MappedStore(new File(directory, "test"), 12);
+        Map<Long, byte[]> expected = new HashMap<Long, byte[]>();
+        Random random = new Random(0);
+        for (int i = 0; i < 20000; i++) {
+            long key = random.nextInt(500);
+            int operation = random.nextInt(10);
+            if (operation == 0) {
+                assertEquals(expected.remove(key) != null, store.remove(key));
+            } else if (operation < 3) {
+                byte[] value = new byte[random.nextInt(100)];
+                random.nextBytes(value);
+                store.put(key, value);
+                expected.put(key, value);
+            } else {
+                byte[] head = new byte[]{(byte) i};
+                byte[] data = new byte[1 + random.nextInt(10)];
+                random.nextBytes(data);
+                byte[] old = expected.get(key);
+                byte[] value;
+                if (old == null || old.length == 0) {
+                    value = new byte[1 + data.length];
+                } else {
+                    value = Arrays.copyOf(old, old.length + data.length);
+                }
+                value[0] = head[0];
+                System.arraycopy(data, 0, value, value.length - data.length, data.length);
+                store.append(key, head, data);
+                expected.put(key, value);
+            }
+        }
+        assertSameStore(expected, store);
+        assertNull(store.get(1000l));
+        assertFalse(store.contains(1000l));
+        long key = expected.keySet().iterator().next();
+        assertArrayEquals(Arrays.copyOfRange(expected.get(key), 0, Math.min(2, expected.get(key).length)), store.get(key, 0, 2));
+    }
+
+    @Test
+    public void testCompactAndReopen() throws Exception {
+        System.out.println("testCompactAndReopen");
+        File file = new File(directory, "test");
+        MappedStore store = new MappedStore(file, 12);
+        Map<Long, byte[]> expected = new HashMap<Long, byte[]>();
+        for (long key = 0; key < 2000; key++) {
+            store.append(key, new byte[0], new byte[]{(byte) key});
+        }
+        for (long key = 0; key < 2000; key++) {
+            for (int i = 0; i < 20; i++) {
+                store.append(key, new byte[0], new byte[]{(byte) i});
+            }
+            if (key % 2 == 0) {
+                store.remove(key);
+            } else {
+                expected.put(key, store.get(key));
+            }
+        }
+        long[] space = store.getSpace();
+        assertTrue(space[1] > space[0]);
+        store.sync();
+        //moved and removed values are dropped in a new data file
+        space = store.getSpace();
+        assertTrue(space[1] < space[0]);
+        assertSameStore(expected, store);
+        assertEquals(2, directory.list().length);
+
+        MappedStore reopened = new MappedStore(file, 20);
+        assertSameStore(expected, reopened);
+        reopened.append(1l, new byte[0], new byte[]{5});
+        assertEquals(22, reopened.get(1l).length);
+        reopened.clear();
+        assertEquals(0, reopened.size());
+        assertNull(reopened.get(1l));
+
+        MappedStore.delete(file);
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testValueBiggerThanChunk() throws Exception {
+        System.out.println("testValueBiggerThanChunk");
+        MappedStore store = new MappedStore(new File(directory, "test"), 12);
+        store.put(1l, new byte[8192]);
+    }
+
+    @Test
+    public void testAppendBiggerThanChunk() throws Exception {
+        System.out.println("testAppendBiggerThanChunk");
+        MappedStore store = new MappedStore(new File(directory, "test"), 12);
+        byte[] data = new byte[1000];
+        for (int i = 0; i < 4; i++) {
+            store.append(1l, new byte[0], data);
+        }
+        long[] space = store.getSpace();
+        try {
+            store.append(1l, new byte[0], new byte[100]);
+            fail();
+        } catch (java.io.IOException e) {
+            assertTrue(e.getMessage().contains("key 1 "));
+        }
+        //value is not moved or lost
+        assertEquals(4000, store.get(1l).length);
+        assertArrayEquals(space, store.getSpace());
+        store.append(1l, new byte[0], new byte[96]);
+        assertEquals(4096, store.get(1l).length);
+    }
+}
@@ -0,0 +1,95 @@
+package retrieval.storage;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import retrieval.config.ConfigServer;
+import retrieval.server.globaldatabase.MappedDatabase;
+import retrieval.storage.index.main.MappedHashTable;
+import retrieval.utils.FileUtils;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author lrollus
+ */
+public class StorageMappedTest extends StorageTestAbstract {
+
+    /**
+     * Directory of the stores (createServer uses a sub directory)
+     */
+    File directory = null;
+
+    public StorageMappedTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        enableLog();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+        try {
+            config = new ConfigServer("testdata/ConfigServer.prop");
+            config.setStoreName(MappedHashTable.NAME);
+            config.setIndexPath(config.getIndexPath() + "mapped/");
+            config.setMappedChunk(1);
+            directory = new File(config.getIndexPath());
+            FileUtils.deleteAllFilesRecursively(directory);
+            storage = createServer("0",config,new MappedDatabase(config));
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        try { storage.stop();}catch(Exception e) {}
+        storage=null;
+        try { FileUtils.deleteAllFilesRecursively(directory);}catch(Exception e) {}
+    }
+
+    @Test
+    public void testServerRestart() throws Exception {
+        System.out.println("testServerRestart");
+        storage.stop();
+        MappedDatabase database = new MappedDatabase(config);
+        database.addStorage("map");
+        storage = new Storage("map", config, database);
+        storage.start();
+        storage.indexPicture(FileUtils.readPicture(LOCALPICTURE1), 1l, LOCALPICTURE1MAP);
+        storage.indexPicture(FileUtils.readPicture(LOCALPICTURE2), 2l, null);
+        storage.deletePicture(2l);
+        storage.stop();
+
+        //index, properties and pictures to purge are read in files
+        MappedDatabase restored = new MappedDatabase(config);
+        assertEquals(Arrays.asList("map"), restored.getStorages());
+        storage = new Storage("map", config, restored);
+        storage.start();
+        assertEquals(1, storage.getNumberOfItem());
+        assertEquals("CROP1", storage.getProperties(1l).get("name"));
+        assertFalse(storage.isPictureCorrectlyRemovedFromIndex(1l));
+        assertFalse(storage.isPictureCorrectlyRemovedFromIndex(2l));
+        storage.purgeIndex();
+        assertTrue(storage.isPictureCorrectlyRemovedFromIndex(2l));
+        assertFalse(storage.isPictureCorrectlyRemovedFromIndex(1l));
+
+        storage.stop();
+        restored.deleteStorage("map");
+        assertEquals(Arrays.asList(MappedDatabase.STORAGES), Arrays.asList(new File(config.getIndexPath()).list()));
+        assertTrue(new MappedDatabase(config).getStorages().isEmpty());
+    }
+}
@@ -1,16 +1,28 @@
 package retrieval.storage;
 
 import org.junit.*;
+import retrieval.config.ConfigClient;
 import retrieval.config.ConfigServer;
+import retrieval.dist.MultiServerMessageNBT;
+import retrieval.exception.CBIRException;
 import retrieval.server.globaldatabase.MemoryDatabase;
+import retrieval.server.globaldatabase.WriteAheadLog;
+import retrieval.storage.exception.InternalServerException;
 import retrieval.storage.exception.PictureTooHomogeneous;
+import retrieval.testvector.TestVectorListClient;
+import retrieval.testvector.generator.TestVectorReading;
 import retrieval.utils.FileUtils;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import static org.junit.Assert.assertNull;
-import static org.junit.Assert.fail;
+import static org.junit.Assert.*;
 
 /**
  *
@@ -74,4 +86,217 @@ public class StorageMemoryTest extends StorageTestAbstract {
         //the image properties should not be modify, even if we change the object
         assertNull(imageMap.get("hello"));
     }
+
+    private List<ConcurrentHashMap<Long, Long>> visualWords() throws Exception {
+        TestVectorListClient testVectors = TestVectorReading.readClient(config.getVectorPath(), new ConfigClient("testdata/ConfigClient.prop"));
+        return testVectors.generateVisualWordFromPicture(
+                FileUtils.readPicture(LOCALPICTURE1), null, config.getNumberOfPatch(), config.getResizeMethod(),
+                config.getSizeOfPatchResizeWidth(), config.getSizeOfPatchResizeHeight());
+    }
+
+    @Test
+    public void testServerSnapshotRestore() throws Exception {
+        System.out.println("testServerSnapshotRestore");
+        storage.stop();
+        config.setIndexPath(config.getIndexPath() + "snapshot/");
+        new File(config.getIndexPath()).mkdirs();
+        config.setMemorySnapshot(3600);
+        MemoryDatabase database = new MemoryDatabase(config);
+        storage = new Storage("snap", config, database);
+        storage.start();
+        storage.indexPicture(FileUtils.readPicture(LOCALPICTURE1), 1l, LOCALPICTURE1MAP);
+        storage.indexPicture(FileUtils.readPicture(LOCALPICTURE2), 2l, null);
+        List<Long> ids = new ArrayList<Long>();
+        ids.add(2l);
+        storage.deletePictures(ids);
+        List<ConcurrentHashMap<Long, Long>> vw = visualWords();
+        List<ConcurrentHashMap<Long, Long>> nbt = storage.getNBT(MultiServerMessageNBT.copyVWList(vw));
+        assertTrue(storage.snapshot());
+        //nothing changed since last snapshot
+        assertFalse(storage.snapshot());
+        storage.stop();
+        assertTrue(database.getSnapshotFile("snap").exists());
+
+        MemoryDatabase restored = new MemoryDatabase(config);
+        assertEquals(Arrays.asList("snap"), restored.getStorages());
+        storage = new Storage("snap", config, restored);
+        storage.start();
+        assertEquals(1, storage.getNumberOfItem());
+        assertEquals("CROP1", storage.getProperties(1l).get("name"));
+        assertEquals(1, storage.getNumberOfPicturesToPurge());
+        assertEquals(nbt, storage.getNBT(MultiServerMessageNBT.copyVWList(vw)));
+        storage.purgeIndex();
+        assertTrue(storage.isPictureCorrectlyRemovedFromIndex(2l));
+        assertFalse(storage.isPictureCorrectlyRemovedFromIndex(1l));
+
+        restored.deleteStorage("snap");
+        assertFalse(restored.getSnapshotFile("snap").exists());
+    }
+
+    @Test
+    public void testServerSnapshotWithoutReverseIndex() throws Exception {
+        System.out.println("testServerSnapshotWithoutReverseIndex");
+        storage.stop();
+        config.setIndexPath(config.getIndexPath() + "snapshot/");
+        new File(config.getIndexPath()).mkdirs();
+        config.setMemorySnapshot(3600);
+        config.setMemoryReverseIndex(false);
+        storage = new Storage("snap", config, new MemoryDatabase(config));
+        storage.start();
+        storage.indexPicture(FileUtils.readPicture(LOCALPICTURE1), 1l, null);
+        storage.stop();
+
+        //reverse index is built from the posting lists
+        config.setMemoryReverseIndex(true);
+        storage = new Storage("snap", config, new MemoryDatabase(config));
+        storage.start();
+        assertFalse(storage.isPictureCorrectlyRemovedFromIndex(1l));
+        storage.deletePicture(1l);
+        storage.purgeIndex();
+        assertTrue(storage.isPictureCorrectlyRemovedFromIndex(1l));
+        assertEquals(0, storage.getNumberOfItem());
+    }
+
+    @Test
+    public void testServerLogReplay() throws Exception {
+        System.out.println("testServerLogReplay");
+        storage.stop();
+        config.setIndexPath(config.getIndexPath() + "snapshot/");
+        new File(config.getIndexPath()).mkdirs();
+        config.setMemorySnapshot(3600);
+        config.setMemoryWal(true);
+        config.setSyncAfterImage(true);
+        MemoryDatabase database = new MemoryDatabase(config);
+        Storage crashed = new Storage("snap", config, database);
+        crashed.start();
+        crashed.indexPicture(FileUtils.readPicture(LOCALPICTURE1), 1l, LOCALPICTURE1MAP);
+        assertTrue(crashed.snapshot());
+        //segments in snapshot are deleted
+        assertEquals(1, WriteAheadLog.getSegments(database.getIndexDirectory(), "snap").size());
+        crashed.indexPicture(FileUtils.readPicture(LOCALPICTURE2), 2l, null);
+        crashed.indexPicture(FileUtils.readPicture(LOCALPICTURE3), 3l, null);
+        crashed.deletePicture(1l);
+        List<ConcurrentHashMap<Long, Long>> vw = visualWords();
+        List<ConcurrentHashMap<Long, Long>> nbt = crashed.getNBT(MultiServerMessageNBT.copyVWList(vw));
+
+        //crash: storage is not stopped (no snapshot), last record is cut
+        List<Long> segments = WriteAheadLog.getSegments(database.getIndexDirectory(), "snap");
+        FileOutputStream output = new FileOutputStream(WriteAheadLog.getFile(database.getIndexDirectory(), "snap", segments.get(segments.size() - 1)), true);
+        output.write(new byte[]{0, 0, 1, 0, 5});
+        output.close();
+
+        storage = new Storage("snap", config, new MemoryDatabase(config));
+        storage.start();
+        assertEquals(2, storage.getNumberOfItem());
+        assertEquals(1, storage.getNumberOfPicturesToPurge());
+        assertEquals(nbt, storage.getNBT(MultiServerMessageNBT.copyVWList(vw)));
+        storage.purgeIndex();
+        assertTrue(storage.isPictureCorrectlyRemovedFromIndex(1l));
+        crashed.stop();
+    }
+
+    @Test
+    public void testServerLogReplayBatch() throws Exception {
+        System.out.println("testServerLogReplayBatch");
+        storage.stop();
+        config.setIndexPath(config.getIndexPath() + "snapshot/");
+        new File(config.getIndexPath()).mkdirs();
+        config.setMemorySnapshot(3600);
+        config.setMemoryWal(true);
+        config.setSyncAfterImage(false);
+        //storage only in log (no snapshot yet)
+        Storage crashed = new Storage("snap", config, new MemoryDatabase(config));
+        crashed.start();
+        List<PictureInfo> pictures = new ArrayList<PictureInfo>();
+        pictures.add(new PictureInfo(FileUtils.readPicture(LOCALPICTURE1), 1l, null));
+        pictures.add(new PictureInfo(FileUtils.readPicture(LOCALPICTURE2), 2l, null));
+        crashed.indexPictures(pictures);
+        crashed.purgeIndex();
+
+        MemoryDatabase restored = new MemoryDatabase(config);
+        assertEquals(Arrays.asList("snap"), restored.getStorages());
+        storage = new Storage("snap", config, restored);
+        storage.start();
+        assertEquals(2, storage.getNumberOfItem());
+        assertFalse(storage.isPictureCorrectlyRemovedFromIndex(2l));
+        crashed.stop();
+    }
+
+    @Test
+    public void testServerStopDuringIndex() throws Exception {
+        System.out.println("testServerStopDuringIndex");
+        storage.stop();
+        config.setIndexPath(config.getIndexPath() + "snapshot/");
+        new File(config.getIndexPath()).mkdirs();
+        config.setMemorySnapshot(3600);
+        config.setMemoryWal(true);
+        config.setIndexThreads(1);
+        config.setIndexBatchSize(1);
+        final Storage stopped = new Storage("snap", config, new MemoryDatabase(config));
+        stopped.start();
+        String[] files = {LOCALPICTURE1, LOCALPICTURE2, LOCALPICTURE3, LOCALPICTURE4,
+            LOCALPICTURE5, LOCALPICTURE6, LOCALPICTURE7, LOCALPICTURE8};
+        final List<PictureInfo> pictures = new ArrayList<PictureInfo>();
+        for (int i = 0; i < files.length; i++) {
+            pictures.add(new PictureInfo(FileUtils.readPicture(files[i]), (long) i + 1, null));
+        }
+        final List<Map<Long, CBIRException>> results = new ArrayList<Map<Long, CBIRException>>();
+        Thread index = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    results.add(stopped.indexPictures(pictures));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        index.start();
+        while (stopped.getNumberOfItem() == 0) {
+            Thread.sleep(1);
+        }
+        stopped.stop();
+        //pictures not indexed get an error, the batch is not blocked
+        index.join(10000);
+        assertFalse(index.isAlive());
+        assertEquals(1, results.size());
+
+        //all acknowledged pictures are in snapshot
+        storage = new Storage("snap", config, new MemoryDatabase(config));
+        storage.start();
+        int indexed = 0;
+        for (Map.Entry<Long, CBIRException> result : results.get(0).entrySet()) {
+            if (result.getValue().isNotAnException()) {
+                indexed++;
+                assertTrue(storage.isPictureInIndex(result.getKey()));
+            }
+        }
+        assertEquals(indexed, storage.getNumberOfItem());
+    }
+
+    @Test
+    public void testServerModificationAfterStopRefused() throws Exception {
+        System.out.println("testServerModificationAfterStopRefused");
+        storage.stop();
+        config.setIndexPath(config.getIndexPath() + "snapshot/");
+        new File(config.getIndexPath()).mkdirs();
+        config.setMemorySnapshot(3600);
+        config.setMemoryWal(true);
+        Storage stopped = new Storage("snap", config, new MemoryDatabase(config));
+        stopped.start();
+        stopped.indexPicture(FileUtils.readPicture(LOCALPICTURE1), 1l, null);
+        stopped.stop();
+        //log is closed: a delete after the stop would not be durable
+        try {
+            stopped.deletePicture(1l);
+            fail();
+        } catch (InternalServerException e) {
+            assertTrue(e.getMessage().contains("is not open"));
+        }
+
+        storage = new Storage("snap", config, new MemoryDatabase(config));
+        storage.start();
+        assertEquals(1, storage.getNumberOfItem());
+        assertEquals(0, storage.getNumberOfPicturesToPurge());
+    }
 }
@@ -0,0 +1,93 @@
+package retrieval.storage;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import retrieval.config.ConfigServer;
+import retrieval.server.globaldatabase.MemoryDatabase;
+import retrieval.storage.index.main.SegmentHashTable;
+import retrieval.utils.FileUtils;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author lrollus
+ */
+public class StorageSegmentTest extends StorageTestAbstract {
+
+    /**
+     * Directory of segments (createServer uses a sub directory for the snapshots)
+     */
+    File directory = null;
+
+    public StorageSegmentTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        enableLog();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+        try {
+            config = new ConfigServer("testdata/ConfigServer.prop");
+            config.setStoreName(SegmentHashTable.NAME);
+            config.setIndexPath(config.getIndexPath() + "segment/");
+            config.setSegmentBuffer(1000);
+            directory = new File(config.getIndexPath());
+            FileUtils.deleteAllFilesRecursively(directory);
+            storage = createServer("0",config,new MemoryDatabase(config));
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        try { storage.stop();}catch(Exception e) {}
+        storage=null;
+        try { FileUtils.deleteAllFilesRecursively(directory);}catch(Exception e) {}
+    }
+
+    @Test
+    public void testServerRestart() throws Exception {
+        System.out.println("testServerRestart");
+        storage.stop();
+        config.setMemorySnapshot(3600);
+        MemoryDatabase database = new MemoryDatabase(config);
+        storage = new Storage("seg", config, database);
+        storage.start();
+        storage.indexPicture(FileUtils.readPicture(LOCALPICTURE1), 1l, LOCALPICTURE1MAP);
+        storage.indexPicture(FileUtils.readPicture(LOCALPICTURE2), 2l, null);
+        storage.deletePicture(2l);
+        storage.stop();
+
+        //postings are read in segments, properties in snapshot
+        MemoryDatabase restored = new MemoryDatabase(config);
+        assertEquals(Arrays.asList("seg"), restored.getStorages());
+        storage = new Storage("seg", config, restored);
+        storage.start();
+        assertEquals(1, storage.getNumberOfItem());
+        assertEquals("CROP1", storage.getProperties(1l).get("name"));
+        assertFalse(storage.isPictureCorrectlyRemovedFromIndex(1l));
+        storage.purgeIndex();
+        assertTrue(storage.isPictureCorrectlyRemovedFromIndex(2l));
+        assertFalse(storage.isPictureCorrectlyRemovedFromIndex(1l));
+
+        storage.stop();
+        restored.deleteStorage("seg");
+        assertEquals(0, new File(config.getIndexPath()).listFiles().length);
+    }
+}
@@ -4,9 +4,13 @@ import org.junit.Test;
 import retrieval.TestUtils;
 import retrieval.config.ConfigClient;
 import retrieval.config.ConfigServer;
+import retrieval.dist.MultiServerMessageNBT;
+import retrieval.dist.RequestPictureVisualWord;
 import retrieval.exception.CBIRException;
 import retrieval.storage.exception.AlreadyIndexedException;
 import retrieval.storage.exception.NoException;
+import retrieval.storage.index.ResultSim;
+import retrieval.storage.index.ValueStructure;
 import retrieval.testvector.TestVectorListClient;
 import retrieval.testvector.generator.TestVectorReading;
 import retrieval.utils.FileUtils;
@@ -105,6 +109,154 @@ public abstract class StorageTestAbstract extends TestUtils {
         storage.indexPicture(FileUtils.readPicture(LOCALPICTURE2), 10l,null);
     }        
     
+    @Test
+    public void testServerIndexPictures() throws Exception {
+        System.out.println("testServerIndexPictures");
+        assertEquals(0, storage.getNumberOfItem());
+        storage.indexPicture(FileUtils.readPicture(LOCALPICTURE1), 10l, null);
+        List<PictureInfo> pictures = new ArrayList<PictureInfo>();
+        pictures.add(new PictureInfo(FileUtils.readPicture(LOCALPICTURE1), 10l, null));
+        pictures.add(new PictureInfo(FileUtils.readPicture(LOCALPICTURE2), 11l, LOCALPICTURE1MAP));
+        pictures.add(new PictureInfo(FileUtils.readPicture(LOCALPICTURE3), 12l, null));
+        pictures.add(new PictureInfo(FileUtils.readPicture(LOCALPICTURE4), 13l, null));
+        pictures.add(new PictureInfo(null, 14l, null));
+        Map<Long, CBIRException> results = storage.indexPictures(pictures);
+        assertEquals(5, results.size());
+        assertTrue(results.get(10l) instanceof AlreadyIndexedException);
+        assertTrue(results.get(11l) instanceof NoException);
+        assertTrue(results.get(12l) instanceof NoException);
+        assertTrue(results.get(13l) instanceof NoException);
+        assertFalse(results.get(14l).isNotAnException());
+        assertEquals(4, storage.getNumberOfItem());
+        assertEquals("CROP1", storage.getProperties(11l).get("name"));
+        assertTrue(storage.isIndexQueueEmpty());
+    }
+
+    @Test
+    public void testServerIndexPicturesSameId() throws Exception {
+        System.out.println("testServerIndexPicturesSameId");
+        List<PictureInfo> pictures = new ArrayList<PictureInfo>();
+        pictures.add(new PictureInfo(FileUtils.readPicture(LOCALPICTURE1), 10l, null));
+        pictures.add(new PictureInfo(FileUtils.readPicture(LOCALPICTURE2), 11l, null));
+        pictures.add(new PictureInfo(FileUtils.readPicture(LOCALPICTURE3), 10l, null));
+        Map<Long, CBIRException> results = storage.indexPictures(pictures);
+        assertEquals(2, results.size());
+        assertTrue(results.get(10l) instanceof NoException);
+        assertTrue(results.get(11l) instanceof NoException);
+        assertEquals(2, storage.getNumberOfItem());
+        assertTrue(storage.isIndexQueueEmpty());
+    }
+
+    @Test
+    public void testServerIndexPicturesSameAsIndexPicture() throws Exception {
+        System.out.println("testServerIndexPicturesSameAsIndexPicture");
+        String[] files = {LOCALPICTURE1, LOCALPICTURE2, LOCALPICTURE3};
+        List<PictureInfo> pictures = new ArrayList<PictureInfo>();
+        for (int i = 0; i < files.length; i++) {
+            pictures.add(new PictureInfo(FileUtils.readPicture(files[i]), (long) i + 1, null));
+        }
+        storage.indexPictures(pictures);
+        assertEquals(files.length, storage.getNumberOfItem());
+        //each picture must find itself as the most similar one
+        TestVectorListClient testVectors = TestVectorReading.readClient(config.getVectorPath(), new ConfigClient("testdata/ConfigClient.prop"));
+        for (int i = 0; i < files.length; i++) {
+            List<ConcurrentHashMap<Long, Long>> vw = testVectors.generateVisualWordFromPicture(
+                    FileUtils.readPicture(files[i]), null, config.getNumberOfPatch(), config.getResizeMethod(),
+                    config.getSizeOfPatchResizeWidth(), config.getSizeOfPatchResizeHeight());
+            List<ConcurrentHashMap<Long, Long>> nbt = new ArrayList<ConcurrentHashMap<Long, Long>>();
+            for (ConcurrentHashMap<Long, Long> map : vw) {
+                nbt.add(new ConcurrentHashMap<Long, Long>(map));
+            }
+            nbt = storage.getNBT(nbt);
+            List<ConcurrentHashMap<Long, RequestPictureVisualWord>> request = new ArrayList<ConcurrentHashMap<Long, RequestPictureVisualWord>>();
+            for (int t = 0; t < vw.size(); t++) {
+                ConcurrentHashMap<Long, RequestPictureVisualWord> tv = new ConcurrentHashMap<Long, RequestPictureVisualWord>();
+                for (Map.Entry<Long, Long> entry : vw.get(t).entrySet()) {
+                    tv.put(entry.getKey(), new RequestPictureVisualWord(entry.getValue().intValue(), nbt.get(t).get(entry.getKey()).intValue()));
+                }
+                request.add(tv);
+            }
+            assertEquals(new Long(i + 1), storage.getPicturesSimilarities(request, config.getNumberOfPatch(), 1).get(0).getId());
+        }
+    }
+
+    @Test
+    public void testServerNBTAfterIndexAndPurge() throws Exception {
+        System.out.println("testServerNBTAfterIndexAndPurge");
+        TestVectorListClient testVectors = TestVectorReading.readClient(config.getVectorPath(), new ConfigClient("testdata/ConfigClient.prop"));
+        List<ConcurrentHashMap<Long, Long>> vw = testVectors.generateVisualWordFromPicture(
+                FileUtils.readPicture(LOCALPICTURE1), null, config.getNumberOfPatch(), config.getResizeMethod(),
+                config.getSizeOfPatchResizeWidth(), config.getSizeOfPatchResizeHeight());
+        List<ConcurrentHashMap<Long, Long>> empty = storage.getNBT(MultiServerMessageNBT.copyVWList(vw));
+        //same request twice (second one may be read from cache)
+        assertEquals(empty, storage.getNBT(MultiServerMessageNBT.copyVWList(vw)));
+
+        storage.indexPicture(FileUtils.readPicture(LOCALPICTURE1), 1l, null);
+        List<ConcurrentHashMap<Long, Long>> indexed = storage.getNBT(MultiServerMessageNBT.copyVWList(vw));
+        assertFalse(empty.equals(indexed));
+        assertEquals(indexed, storage.getNBT(MultiServerMessageNBT.copyVWList(vw)));
+
+        List<Long> ids = new ArrayList<Long>();
+        ids.add(1l);
+        storage.deletePictures(ids);
+        storage.purgeIndex();
+        assertEquals(empty, storage.getNBT(MultiServerMessageNBT.copyVWList(vw)));
+    }
+
+    @Test
+    public void testServerSearchWithPostingsAlreadyRead() throws Exception {
+        System.out.println("testServerSearchWithPostingsAlreadyRead");
+        storage.indexPicture(FileUtils.readPicture(LOCALPICTURE1), 1l, null);
+        storage.indexPicture(FileUtils.readPicture(LOCALPICTURE2), 2l, null);
+        TestVectorListClient testVectors = TestVectorReading.readClient(config.getVectorPath(), new ConfigClient("testdata/ConfigClient.prop"));
+        List<ConcurrentHashMap<Long, Long>> vw = testVectors.generateVisualWordFromPicture(
+                FileUtils.readPicture(LOCALPICTURE1), null, config.getNumberOfPatch(), config.getResizeMethod(),
+                config.getSizeOfPatchResizeWidth(), config.getSizeOfPatchResizeHeight());
+        List<ConcurrentHashMap<Long, Long>> nbt = storage.getNBT(MultiServerMessageNBT.copyVWList(vw));
+        List<ConcurrentHashMap<Long, RequestPictureVisualWord>> request = new ArrayList<ConcurrentHashMap<Long, RequestPictureVisualWord>>();
+        Map<String, List<Long>> keysByTV = new HashMap<String, List<Long>>();
+        for (int t = 0; t < vw.size(); t++) {
+            ConcurrentHashMap<Long, RequestPictureVisualWord> tv = new ConcurrentHashMap<Long, RequestPictureVisualWord>();
+            for (Map.Entry<Long, Long> entry : vw.get(t).entrySet()) {
+                tv.put(entry.getKey(), new RequestPictureVisualWord(entry.getValue().intValue(), nbt.get(t).get(entry.getKey()).intValue()));
+            }
+            request.add(tv);
+            keysByTV.put(storage.getTestVectors().get(t).getName(), new ArrayList<Long>(vw.get(t).keySet()));
+        }
+
+        //all test vectors in a single request (store without this request: each test vector)
+        Map<String, Map<String, List<Long>>> keysByStorage = new HashMap<String, Map<String, List<Long>>>();
+        keysByStorage.put(storage.getStorageName(), keysByTV);
+        Map<String, Map<String, Map<Long, ValueStructure>>> all = storage.getTestVectors().getAll(keysByStorage);
+        Map<String, Map<Long, ValueStructure>> postings = new HashMap<String, Map<Long, ValueStructure>>();
+        for (int t = 0; t < vw.size(); t++) {
+            String name = storage.getTestVectors().get(t).getName();
+            postings.put(name, all != null ? all.get(storage.getStorageName()).get(name) : storage.getTestVectors().get(t).getAll(keysByTV.get(name)));
+        }
+
+        List<ResultSim> expected = storage.getPicturesSimilarities(request, config.getNumberOfPatch(), 10);
+        List<ResultSim> results = storage.getPicturesSimilarities(request, postings, config.getNumberOfPatch(), 10);
+        assertEquals(2, results.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), results.get(i).getId());
+            assertEquals(expected.get(i).getSimilarities(), results.get(i).getSimilarities(), 0.0000001);
+        }
+    }
+
+    @Test
+    public void testServerAddToIndexQueue() throws Exception {
+        System.out.println("testServerAddToIndexQueue");
+        storage.addToIndexQueue(FileUtils.readPicture(LOCALPICTURE1), 20l, null);
+        storage.addToIndexQueue(FileUtils.readPicture(LOCALPICTURE2), 21l, null);
+        for (int i = 0; i < 600 && !storage.isIndexQueueEmpty(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(storage.isIndexQueueEmpty());
+        assertEquals(0, storage.getIndexQueueSize());
+        assertTrue(storage.isPictureInIndex(20l));
+        assertTrue(storage.isPictureInIndex(21l));
+    }
+
     @Test
     public void testServerDeletePicture() throws Exception {
         System.out.println("testServerGetNumberOfItem");
@@ -148,6 +300,25 @@ public abstract class StorageTestAbstract extends TestUtils {
         assertEquals(0,storage.getNumberOfPicturesToPurge());
     }
        
+    @Test
+    public void testServerIndexPurgeKeepsOtherPictures() throws Exception {
+        System.out.println("testServerIndexPurgeKeepsOtherPictures");
+        TestVectorListClient buildVW = TestVectorReading.readClient(config.getVectorPath(),new ConfigClient("testdata/ConfigClient.prop"));
+        List<ConcurrentHashMap<Long, Long>> vw = buildVW.generateVisualWordFromPicture(ImageIO.read(new File(LOCALPICTURE1)), null, config.getNumberOfPatch(), config.getResizeMethod(), config.getSizeOfPatchResizeWidth(), config.getSizeOfPatchResizeHeight());
+        storage.indexPicture(FileUtils.readPicture(LOCALPICTURE2),2l,null);
+        List<ConcurrentHashMap<Long, Long>> before = storage.getNBT(MultiServerMessageNBT.copyVWList(vw));
+
+        storage.indexPicture(FileUtils.readPicture(LOCALPICTURE1),1l,null);
+        storage.deletePicture(1l);
+        storage.purgeIndex();
+        assertEquals(true,storage.isPictureCorrectlyRemovedFromIndex(1l));
+        assertEquals(false,storage.isPictureCorrectlyRemovedFromIndex(2l));
+        if(config.getIndexCompressThreshold()==0) {
+            //NBT of each visual word is the NBT without the purged picture
+            assertEquals(before,storage.getNBT(MultiServerMessageNBT.copyVWList(vw)));
+        }
+    }
+
     /**
      * Test of isPictureCorrectlyRemovedFromIndex method, of class Server.
      */
@@ -256,8 +427,8 @@ public abstract class StorageTestAbstract extends TestUtils {
         System.out.println("testServerSearch");        
         Long id1 = storage.indexPicture(FileUtils.readPicture(LOCALPICTURE1),5l,LOCALPICTURE1MAP);  
         TestVectorListClient buildVW = TestVectorReading.readClient(config.getVectorPath(),new ConfigClient("testdata/ConfigClient.prop"));
-        List<ConcurrentHashMap<String,Long>> vw = buildVW.generateVisualWordFromPicture(ImageIO.read(new File(LOCALPICTURE1)), id1, config.getNumberOfPatch(), config.getResizeMethod(), config.getSizeOfPatchResizeWidth(), config.getSizeOfPatchResizeHeight());
-        List<ConcurrentHashMap<String,Long>> result = storage.getNBT(vw);
+        List<ConcurrentHashMap<Long, Long>> vw = buildVW.generateVisualWordFromPicture(ImageIO.read(new File(LOCALPICTURE1)), id1, config.getNumberOfPatch(), config.getResizeMethod(), config.getSizeOfPatchResizeWidth(), config.getSizeOfPatchResizeHeight());
+        List<ConcurrentHashMap<Long, Long>> result = storage.getNBT(vw);
     }
     
    
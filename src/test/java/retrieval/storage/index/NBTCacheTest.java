@@ -0,0 +1,85 @@
+package retrieval.storage.index;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author lrollus
+ */
+public class NBTCacheTest {
+
+    private static List<ConcurrentHashMap<Long, Long>> request(long... words) {
+        List<ConcurrentHashMap<Long, Long>> list = new ArrayList<ConcurrentHashMap<Long, Long>>();
+        for (int t = 0; t < 2; t++) {
+            ConcurrentHashMap<Long, Long> map = new ConcurrentHashMap<Long, Long>();
+            for (long word : words) {
+                map.put(word, 1l);
+            }
+            list.add(map);
+        }
+        return list;
+    }
+
+    private static List<ConcurrentHashMap<Long, Long>> nbt(List<ConcurrentHashMap<Long, Long>> words) {
+        for (int t = 0; t < words.size(); t++) {
+            for (Long word : words.get(t).keySet()) {
+                words.get(t).put(word, word * 10 + t);
+            }
+        }
+        return words;
+    }
+
+    @Test
+    public void testFillFromCache() {
+        System.out.println("testFillFromCache");
+        NBTCache cache = new NBTCache(100);
+        List<ConcurrentHashMap<Long, Long>> missing = cache.fill(request(1l, 2l));
+        assertEquals(2, missing.get(0).size());
+        cache.putAll(nbt(missing), cache.getVersion());
+
+        List<ConcurrentHashMap<Long, Long>> words = request(1l, 2l, 3l);
+        missing = cache.fill(words);
+        assertEquals(1, missing.get(0).size());
+        assertTrue(missing.get(1).containsKey(3l));
+        assertEquals(new Long(10l), words.get(0).get(1l));
+        assertEquals(new Long(21l), words.get(1).get(2l));
+        assertEquals(4, cache.getHits());
+        assertEquals(6, cache.getMisses());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedRemoved() {
+        System.out.println("testLeastRecentlyUsedRemoved");
+        NBTCache cache = new NBTCache(4);
+        cache.putAll(nbt(request(1l, 2l)), cache.getVersion());
+        //1 is used, 2 is the least recently used
+        cache.fill(request(1l));
+        cache.putAll(nbt(request(3l)), cache.getVersion());
+        assertEquals(4, cache.size());
+        List<ConcurrentHashMap<Long, Long>> missing = cache.fill(request(1l, 2l, 3l));
+        assertTrue(missing.get(0).containsKey(2l));
+        assertFalse(missing.get(0).containsKey(1l));
+        assertFalse(missing.get(1).containsKey(3l));
+    }
+
+    @Test
+    public void testInvalidate() {
+        System.out.println("testInvalidate");
+        NBTCache cache = new NBTCache(100);
+        long version = cache.getVersion();
+        cache.putAll(nbt(request(1l)), version);
+        cache.invalidate();
+        assertEquals(0, cache.size());
+        //NBT read before the index modification are not kept
+        cache.putAll(nbt(request(2l)), version);
+        assertEquals(0, cache.size());
+        cache.putAll(nbt(request(2l)), cache.getVersion());
+        assertEquals(2, cache.size());
+    }
+}
@@ -0,0 +1,49 @@
+package retrieval.storage.index;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author lrollus
+ */
+public class TopKSelectorTest {
+
+    @Test
+    public void testSameAsFullSort() {
+        System.out.println("testSameAsFullSort");
+        Random random = new Random(7);
+        for (int k : new int[]{1, 5, 30, 1000, 5000}) {
+            List<ResultSim> all = new ArrayList<ResultSim>();
+            TopKSelector best = new TopKSelector(k, 10);
+            for (long id = 0; id < 2000; id++) {
+                //few distinct values to have a lot of ties
+                double sim = random.nextInt(50) / 7d;
+                all.add(new ResultSim(id, null, sim));
+                best.offer(id, sim);
+            }
+            Collections.sort(all);
+            List<ResultSim> results = best.toResults();
+            assertEquals(Math.min(k, all.size()), results.size());
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(all.get(i).getId(), results.get(i).getId());
+                assertEquals(all.get(i).getSimilarities(), results.get(i).getSimilarities(), 0d);
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyAndZero() {
+        System.out.println("testEmptyAndZero");
+        assertTrue(new TopKSelector(30, 0).toResults().isEmpty());
+        TopKSelector none = new TopKSelector(0, 10);
+        none.offer(1L, 1d);
+        assertTrue(none.toResults().isEmpty());
+    }
+}
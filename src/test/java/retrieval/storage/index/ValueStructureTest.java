@@ -0,0 +1,99 @@
+package retrieval.storage.index;
+
+import org.junit.Before;
+import org.junit.Test;
+import retrieval.config.ConfigServer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author lrollus
+ */
+public class ValueStructureTest {
+
+    ConfigServer config = null;
+
+    @Before
+    public void setUp() throws Exception {
+        config = new ConfigServer("testdata/ConfigServer.prop");
+    }
+
+    @Test
+    public void testAddEntryHashMap() {
+        System.out.println("testAddEntryHashMap");
+        config.setStrucType(ValueStructure.HASHMAP);
+        checkAddEntry(new ValueStructure(config));
+    }
+
+    @Test
+    public void testAddEntryPrimitive() {
+        System.out.println("testAddEntryPrimitive");
+        config.setStrucType(ValueStructure.PRIMITIVE);
+        checkAddEntry(new ValueStructure(config));
+    }
+
+    @Test
+    public void testDeleteValuePrimitive() {
+        System.out.println("testDeleteValuePrimitive");
+        config.setStrucType(ValueStructure.PRIMITIVE);
+        ValueStructure vs = new ValueStructure(config);
+        for (long i = 0; i < 100; i++) {
+            vs.addEntry(i, 2);
+        }
+        Map<Long, Integer> toDelete = new HashMap<Long, Integer>();
+        for (long i = 0; i < 100; i = i + 2) {
+            toDelete.put(i, 0);
+        }
+        vs.deleteValue(toDelete);
+        assertEquals(50, vs.size());
+        assertEquals(100, vs.getNBT());
+        assertFalse(vs.isPicturePresent(10L));
+        assertTrue(vs.isPicturePresent(11L));
+        assertEquals(2, vs.getNBIT(99L));
+    }
+
+    @Test
+    public void testCursorIsSorted() {
+        System.out.println("testCursorIsSorted");
+        config.setStrucType(ValueStructure.PRIMITIVE);
+        ValueStructure vs = new ValueStructure(config);
+        long[] ids = {50L, 3L, 1000L, 7L, 3L};
+        for (long id : ids) {
+            vs.addEntry(id, 1);
+        }
+        EntryCursor cursor = vs.cursor();
+        long previous = Long.MIN_VALUE;
+        int size = 0;
+        while (cursor.next()) {
+            assertTrue(cursor.getI() > previous);
+            previous = cursor.getI();
+            size++;
+        }
+        assertEquals(4, size);
+        assertEquals(2, vs.getNBIT(3L));
+    }
+
+    private void checkAddEntry(ValueStructure vs) {
+        assertTrue(vs.isEmpty());
+        vs.addEntry(5L, 3);
+        vs.addEntry(1L, 1);
+        vs.addEntry(5L, 2);
+        assertEquals(2, vs.size());
+        assertEquals(6, vs.getNBT());
+        assertEquals(5, vs.getNBIT(5L));
+        assertEquals(1, vs.getNBIT(1L));
+        assertEquals(0, vs.getNBIT(2L));
+        assertEquals(new Integer(5), vs.getEntries().get(5L));
+
+        Map<Long, Integer> fromCursor = new HashMap<Long, Integer>();
+        EntryCursor cursor = vs.cursor();
+        while (cursor.next()) {
+            fromCursor.put(cursor.getI(), cursor.getNIBT());
+        }
+        assertEquals(vs.getEntries(), fromCursor);
+    }
+}
@@ -33,8 +33,8 @@ public abstract class CompressIndexAbstract extends TestUtils {
     @Test
     public void testBlacklistVW() {
         System.out.println("blacklistVW");
-        String blacklisted = "blacklisted"+new Date().getTime();
-        String notblacklisted = "notblacklisted"+new Date().getTime();
+        long blacklisted = new Date().getTime();
+        long notblacklisted = blacklisted + 1;
         CompressIndexNBT instance;
         try {
             instance = CompressIndexNBT.getCompressIndexFactory(config,"s0","tv0",database);
@@ -53,8 +53,8 @@ public abstract class CompressIndexAbstract extends TestUtils {
     @Test
     public void testGetBlacklistedVW() {
         System.out.println("blacklistVW");
-        String blacklisted1 = "blacklisted"+new Date().getTime();
-        String blacklisted2 = "notblacklisted"+new Date().getTime();
+        long blacklisted1 = new Date().getTime();
+        long blacklisted2 = blacklisted1 + 1;
         CompressIndexNBT instance;
         try {
             instance = CompressIndexNBT.getCompressIndexFactory(config,"s0","tv0",database);
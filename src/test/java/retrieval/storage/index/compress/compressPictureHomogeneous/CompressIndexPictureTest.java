@@ -54,17 +54,17 @@ public class CompressIndexPictureTest {
     @Test
     public void testGetOccurrenceOfBiggestVisualWordForEachVector() {
         System.out.println("getOccurrenceOfBiggestVisualWordForEachVector");
-        List<ConcurrentHashMap<String, Long>> visualWords = new ArrayList<ConcurrentHashMap<String, Long>>();
+        List<ConcurrentHashMap<Long, Long>> visualWords = new ArrayList<ConcurrentHashMap<Long, Long>>();
 
-        ConcurrentHashMap<String, Long> map1 = new ConcurrentHashMap<String, Long>();
-        map1.put("a", 1L);
-        map1.put("b", 2L);
-        map1.put("c", 3L);
+        ConcurrentHashMap<Long, Long> map1 = new ConcurrentHashMap<Long, Long>();
+        map1.put(0xaL, 1L);
+        map1.put(0xbL, 2L);
+        map1.put(0xcL, 3L);
         visualWords.add(map1);
-        ConcurrentHashMap<String, Long> map2 = new ConcurrentHashMap<String, Long>();
-        map2.put("x", -1L);
-        map2.put("y", -2L);
-        map2.put("z", -3L);
+        ConcurrentHashMap<Long, Long> map2 = new ConcurrentHashMap<Long, Long>();
+        map2.put(1L, -1L);
+        map2.put(2L, -2L);
+        map2.put(3L, -3L);
         visualWords.add(map2);
 
 
@@ -0,0 +1,172 @@
+package retrieval.storage.index.main;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import retrieval.config.ConfigServer;
+import retrieval.server.globaldatabase.MappedDatabase;
+import retrieval.server.globaldatabase.MemoryDatabase;
+import retrieval.storage.index.ValueStructure;
+import retrieval.storage.index.compress.compressNBT.CompressIndexNBT;
+import retrieval.utils.FileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Mapped index is checked against a memory table with the same postings
+ * @author lrollus
+ */
+public class MappedHashTableTest {
+
+    ConfigServer config = null;
+    MappedDatabase database = null;
+    MemoryDatabase memory = null;
+    CompressIndexNBT compress = null;
+
+    @Before
+    public void setUp() throws Exception {
+        config = new ConfigServer("testdata/ConfigServer.prop");
+        config.setStoreName(MappedHashTable.NAME);
+        config.setIndexPath(config.getIndexPath() + "mappedtest/");
+        config.setMemoryReverseIndex(false);
+        FileUtils.deleteAllFilesRecursively(new File(config.getIndexPath()));
+        database = new MappedDatabase(config);
+        memory = new MemoryDatabase(config);
+        compress = CompressIndexNBT.getCompressIndexFactory(config, "0", "0", database);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteAllFilesRecursively(new File(config.getIndexPath()));
+    }
+
+    private void index(MappedHashTable table, MemoryHashTable reference, long id) {
+        Random random = new Random(id);
+        ConcurrentHashMap<Long, Long> visualWords = new ConcurrentHashMap<Long, Long>();
+        for (int i = 0; i < 20 + random.nextInt(30); i++) {
+            visualWords.put((long) random.nextInt(300) - 100, 1l + random.nextInt(5));
+        }
+        table.incrementHashValue(visualWords, id, compress);
+        for (Map.Entry<Long, Long> entry : visualWords.entrySet()) {
+            ValueStructure value = reference.get(entry.getKey());
+            if (value == null) {
+                value = new ValueStructure(config);
+            }
+            value.addEntry(id, entry.getValue().intValue());
+            reference.put(entry.getKey(), value);
+        }
+    }
+
+    private void assertSameIndex(MemoryHashTable reference, MappedHashTable table) {
+        ConcurrentHashMap<Long, Long> nbt = new ConcurrentHashMap<Long, Long>();
+        List<Long> keys = new ArrayList<Long>();
+        for (long key = -100; key < 200; key++) {
+            nbt.put(key, -1l);
+            keys.add(key);
+        }
+        Map<Long, ValueStructure> values = table.getAll(keys);
+        for (Map.Entry<Long, Long> entry : table.getAllValues(nbt).entrySet()) {
+            ValueStructure expected = reference.get(entry.getKey());
+            ValueStructure value = values.get(entry.getKey());
+            if (expected == null || expected.isEmpty()) {
+                assertEquals(0l, entry.getValue().longValue());
+                assertNull(value);
+            } else {
+                assertEquals(expected.getNBT(), entry.getValue().longValue());
+                assertEquals(expected.getNBT(), value.getNBT());
+                assertEquals(expected.getEntries(), value.getEntries());
+            }
+        }
+    }
+
+    @Test
+    public void testSameAsMemory() throws Exception {
+        System.out.println("testSameAsMemory");
+        MappedHashTable table = new MappedHashTable(database, "0", "0", config);
+        MemoryHashTable reference = new MemoryHashTable(memory, "ref", "0", config, false);
+        //ids are not sorted: negative deltas
+        for (long id = 0; id < 200; id++) {
+            index(table, reference, (id * 7919) % 1000);
+        }
+        assertSameIndex(reference, table);
+        assertTrue(table.isRessourcePresent(7919l % 1000));
+        assertFalse(table.isRessourcePresent(1l));
+        assertEquals(reference.get(5l).getNBT() + "", table.getHashValue(5l, "-1"));
+        table.closeIndex();
+    }
+
+    @Test
+    public void testDeletedPictures() throws Exception {
+        System.out.println("testDeletedPictures");
+        MappedHashTable table = new MappedHashTable(database, "0", "0", config);
+        MemoryHashTable reference = new MemoryHashTable(memory, "ref", "0", config, false);
+        for (long id = 0; id < 100; id++) {
+            index(table, reference, id);
+        }
+        Map<Long, Integer> toDelete = new HashMap<Long, Integer>();
+        for (long id = 0; id < 100; id = id + 3) {
+            toDelete.put(id, 0);
+        }
+        table.deleteAll(toDelete);
+        reference.deleteAll(toDelete);
+        assertSameIndex(reference, table);
+        assertFalse(table.isRessourcePresent(3l));
+        assertTrue(table.isRessourcePresent(4l));
+
+        //postings appended after a delete use the new last id
+        index(table, reference, 3l);
+        index(table, reference, 1000l);
+        assertSameIndex(reference, table);
+        table.closeIndex();
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        System.out.println("testReopen");
+        MappedHashTable table = new MappedHashTable(database, "0", "0", config);
+        MemoryHashTable reference = new MemoryHashTable(memory, "ref", "0", config, false);
+        for (long id = 0; id < 50; id++) {
+            index(table, reference, id);
+        }
+        Map<Long, Integer> toDelete = new HashMap<Long, Integer>();
+        toDelete.put(7l, 0);
+        table.deleteAll(toDelete);
+        reference.deleteAll(toDelete);
+        table.closeIndex();
+
+        MappedHashTable reopened = new MappedHashTable(new MappedDatabase(config), "0", "0", config);
+        assertSameIndex(reference, reopened);
+        assertFalse(reopened.isRessourcePresent(7l));
+        assertTrue(reopened.isRessourcePresent(49l));
+        reopened.closeIndex();
+    }
+
+    @Test
+    public void testRemovePosting() throws Exception {
+        System.out.println("testRemovePosting");
+        MappedHashTable table = new MappedHashTable(database, "0", "0", config);
+        ConcurrentHashMap<Long, Long> visualWords = new ConcurrentHashMap<Long, Long>();
+        visualWords.put(1l, 2l);
+        table.incrementHashValue(visualWords, 10l, compress);
+        table.incrementHashValue(visualWords, 5l, compress);
+        table.incrementHashValue(visualWords, 20l, compress);
+        byte[] bytes = database.getStore("0", "0", MappedDatabase.POSTINGS).get(1l);
+        assertSame(bytes, MappedHashTable.removePosting(bytes, 6l));
+        ValueStructure value = RedisHashTable.readPostings(config, MappedHashTable.removePosting(bytes, 5l));
+        assertEquals(4l, value.getNBT());
+        assertEquals(2, value.getNBIT(10l));
+        assertEquals(2, value.getNBIT(20l));
+        assertEquals(0, value.getNBIT(5l));
+        bytes = MappedHashTable.removePosting(MappedHashTable.removePosting(bytes, 5l), 10l);
+        assertNull(MappedHashTable.removePosting(bytes, 20l));
+        table.closeIndex();
+    }
+}
@@ -0,0 +1,92 @@
+package retrieval.storage.index.main;
+
+import org.junit.Before;
+import org.junit.Test;
+import retrieval.config.ConfigServer;
+import retrieval.server.globaldatabase.MemoryDatabase;
+import retrieval.storage.index.ValueStructure;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author lrollus
+ */
+public class MemoryHashTableTest {
+
+    ConfigServer config = null;
+
+    @Before
+    public void setUp() throws Exception {
+        config = new ConfigServer("testdata/ConfigServer.prop");
+    }
+
+    private MemoryHashTable createTable(boolean reverseIndex) throws Exception {
+        config.setMemoryReverseIndex(reverseIndex);
+        return new MemoryHashTable(new MemoryDatabase(config), "0", "0", config, false);
+    }
+
+    private void index(MemoryHashTable table, long id, Random random) {
+        long[] keys = new long[20 + random.nextInt(30)];
+        for (int i = 0; i < keys.length; i++) {
+            //same visual word may be produced twice by a picture
+            keys[i] = random.nextInt(300);
+            ValueStructure value = table.get(keys[i]);
+            if (value == null) {
+                value = new ValueStructure(config);
+            }
+            value.addEntry(id, 1 + random.nextInt(5));
+            table.put(keys[i], value);
+        }
+        table.putPicture(id, keys);
+    }
+
+    @Test
+    public void testDeleteAllSameAsWithoutReverseIndex() throws Exception {
+        System.out.println("testDeleteAllSameAsWithoutReverseIndex");
+        MemoryHashTable withReverse = createTable(true);
+        MemoryHashTable withoutReverse = createTable(false);
+        for (long id = 0; id < 100; id++) {
+            index(withReverse, id, new Random(id));
+            index(withoutReverse, id, new Random(id));
+        }
+        Map<Long, Integer> toDelete = new HashMap<Long, Integer>();
+        for (long id = 0; id < 100; id = id + 3) {
+            toDelete.put(id, 0);
+        }
+        withReverse.deleteAll(toDelete);
+        withoutReverse.deleteAll(toDelete);
+
+        for (long key = 0; key < 300; key++) {
+            ValueStructure expected = withoutReverse.get(key);
+            ValueStructure value = withReverse.get(key);
+            if (expected == null) {
+                assertNull(value);
+            } else {
+                assertEquals(expected.getNBT(), value.getNBT());
+                assertEquals(expected.getEntries(), value.getEntries());
+            }
+        }
+        for (long id = 0; id < 100; id++) {
+            assertEquals(!toDelete.containsKey(id), withReverse.isRessourcePresent(id));
+            assertEquals(!toDelete.containsKey(id), withoutReverse.isRessourcePresent(id));
+        }
+        withReverse.printStat();
+    }
+
+    @Test
+    public void testDeleteAllRemovesEmptyVisualWords() throws Exception {
+        System.out.println("testDeleteAllRemovesEmptyVisualWords");
+        MemoryHashTable table = createTable(true);
+        index(table, 1l, new Random(1));
+        Map<Long, Integer> toDelete = new HashMap<Long, Integer>();
+        toDelete.put(1l, 0);
+        table.deleteAll(toDelete);
+        assertEquals(0, table.hashmap.size());
+        assertFalse(table.isRessourcePresent(1l));
+    }
+}
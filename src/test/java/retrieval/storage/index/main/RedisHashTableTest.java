@@ -0,0 +1,149 @@
+package retrieval.storage.index.main;
+
+import com.google.protobuf.CodedOutputStream;
+import org.junit.Test;
+import retrieval.RedisInstance;
+import retrieval.config.ConfigServer;
+import retrieval.server.globaldatabase.RedisDatabase;
+import retrieval.storage.index.ValueStructure;
+import retrieval.storage.index.compress.compressNBT.CompressIndexNBT;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Binary posting lists (REDISPOSTINGS=BINARY), values are built as the append script does
+ * @author lrollus
+ */
+public class RedisHashTableTest {
+
+    /**
+     * Build a binary visual word: postings appended one by one
+     */
+    private static byte[] append(long[] ids, int[] counts) throws Exception {
+        ByteArrayOutputStream postings = new ByteArrayOutputStream();
+        CodedOutputStream output = CodedOutputStream.newInstance(postings);
+        long nbt = 0;
+        long last = 0;
+        for (int i = 0; i < ids.length; i++) {
+            output.writeRawVarint64(CodedOutputStream.encodeZigZag64(ids[i] - last));
+            output.writeRawVarint32(counts[i]);
+            nbt = nbt + counts[i];
+            last = ids[i];
+        }
+        output.flush();
+        ByteBuffer value = ByteBuffer.allocate(RedisHashTable.HEADER_SIZE + postings.size());
+        value.putLong(nbt).putLong(last).put(postings.toByteArray());
+        return value.array();
+    }
+
+    @Test
+    public void testReadPostings() throws Exception {
+        System.out.println("testReadPostings");
+        ConfigServer config = new ConfigServer("testdata/ConfigServer.prop");
+        //ids not always increasing (negative delta) and an image with two postings
+        byte[] bytes = append(new long[]{10l, 12l, 300000l, 11l, 12l}, new int[]{1, 4, 200, 2, 3});
+        ValueStructure value = RedisHashTable.readPostings(config, bytes);
+        assertEquals(4, value.size());
+        assertEquals(1, value.getNBIT(10l));
+        assertEquals(2, value.getNBIT(11l));
+        assertEquals(7, value.getNBIT(12l));
+        assertEquals(200, value.getNBIT(300000l));
+        assertEquals(210, value.getNBT());
+        assertEquals(210, ByteBuffer.wrap(bytes).getLong(0));
+    }
+
+    @Test
+    public void testReadPostingsEmpty() throws Exception {
+        System.out.println("testReadPostingsEmpty");
+        ConfigServer config = new ConfigServer("testdata/ConfigServer.prop");
+        assertNull(RedisHashTable.readPostings(config, null));
+        assertNull(RedisHashTable.readPostings(config, append(new long[0], new int[0])));
+    }
+
+    @Test
+    public void testPostingsSmallerThanHash() throws Exception {
+        System.out.println("testPostingsSmallerThanHash");
+        long[] ids = new long[100];
+        int[] counts = new int[100];
+        int hash = 0;
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = 1000000l + i * 3;
+            counts[i] = 1 + i % 5;
+            hash = hash + (ids[i] + "").length() + (counts[i] + "").length();
+        }
+        //2 bytes by posting instead of 8 bytes of decimal strings (without hash overhead)
+        assertEquals(RedisHashTable.HEADER_SIZE + 3 + 1 + 99 * 2, append(ids, counts).length);
+        assertTrue(append(ids, counts).length * 3 < hash);
+    }
+
+    @Test
+    public void testHexId() throws Exception {
+        System.out.println("testHexId");
+        assertEquals("0000000000000000", RedisHashTable.hexId(0l));
+        assertEquals("7fffffffffffffff", RedisHashTable.hexId(Long.MAX_VALUE));
+        assertEquals("ffffffffffffffff", RedisHashTable.hexId(-1l));
+        assertEquals("8000000000000000", RedisHashTable.hexId(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void testScriptsKeepLargeIds() throws Exception {
+        System.out.println("testScriptsKeepLargeIds");
+        RedisInstance redis = new RedisInstance();
+        try {
+            redis.initRedis();
+            redis.clearData();
+            ConfigServer config = new ConfigServer("testdata/ConfigServer.prop");
+            config.setStoreName(RedisHashTable.NAME);
+            config.setRedisPort(RedisInstance.PORT + "");
+            config.setRedisPostings("BINARY");
+            RedisDatabase database = new RedisDatabase(config);
+            CompressIndexNBT compress = CompressIndexNBT.getCompressIndexFactory(config, "0", "0", database);
+            RedisHashTable table = new RedisHashTable(database.getDatabase(), "0", "0", config);
+            //ids above 2^53 (auto-generated ids) are not exact as Lua numbers
+            long[] ids = {Long.MAX_VALUE, Long.MAX_VALUE - 1, (1l << 53) + 1, -5l, Long.MIN_VALUE + 1, 7l};
+            for (int i = 0; i < ids.length; i++) {
+                ConcurrentHashMap<Long, Long> visualWords = new ConcurrentHashMap<Long, Long>();
+                visualWords.put(1l, (long) i + 1);
+                visualWords.put(2l, 1l);
+                table.incrementHashValue(visualWords, ids[i], compress);
+            }
+            ValueStructure value = table.getAll(Arrays.asList(1l)).get(1l);
+            assertEquals(ids.length, value.size());
+            for (int i = 0; i < ids.length; i++) {
+                assertEquals(i + 1, value.getNBIT(ids[i]));
+            }
+            assertEquals(21, value.getNBT());
+
+            Map<Long, Integer> deleted = new HashMap<Long, Integer>();
+            deleted.put(Long.MAX_VALUE - 1, 0);
+            deleted.put(-5l, 0);
+            deleted.put(Long.MIN_VALUE + 1, 0);
+            table.deleteAll(deleted);
+            value = table.getAll(Arrays.asList(1l)).get(1l);
+            assertEquals(3, value.size());
+            assertEquals(1, value.getNBIT(Long.MAX_VALUE));
+            assertEquals(3, value.getNBIT((1l << 53) + 1));
+            assertEquals(6, value.getNBIT(7l));
+            assertEquals(10, value.getNBT());
+            assertFalse(table.isRessourcePresent(-5l));
+
+            //new posting after a delete: delta from the last id kept in header
+            ConcurrentHashMap<Long, Long> visualWords = new ConcurrentHashMap<Long, Long>();
+            visualWords.put(1l, 4l);
+            table.incrementHashValue(visualWords, Long.MIN_VALUE, compress);
+            value = table.getAll(Arrays.asList(1l)).get(1l);
+            assertEquals(4, value.getNBIT(Long.MIN_VALUE));
+            assertEquals(6, value.getNBIT(7l));
+            assertEquals(14, value.getNBT());
+        } finally {
+            redis.killRedisAll();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package retrieval.storage.index.main;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import retrieval.config.ConfigServer;
+import retrieval.server.globaldatabase.MemoryDatabase;
+import retrieval.storage.index.ValueStructure;
+import retrieval.storage.index.compress.compressNBT.CompressIndexNBT;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Segment index is checked against a memory table with the same postings
+ * @author lrollus
+ */
+public class SegmentHashTableTest {
+
+    ConfigServer config = null;
+    MemoryDatabase database = null;
+    CompressIndexNBT compress = null;
+
+    @Before
+    public void setUp() throws Exception {
+        config = new ConfigServer("testdata/ConfigServer.prop");
+        config.setStoreName(SegmentHashTable.NAME);
+        config.setIndexPath(config.getIndexPath() + "segmenttest/");
+        config.setSegmentBuffer(500);
+        config.setSegmentMerge(3);
+        config.setMemoryReverseIndex(false);
+        clear();
+        database = new MemoryDatabase(config);
+        compress = CompressIndexNBT.getCompressIndexFactory(config, "0", "0", database);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        clear();
+    }
+
+    private void clear() {
+        File[] files = new File(config.getIndexPath()).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private void index(SegmentHashTable table, MemoryHashTable reference, long id) {
+        Random random = new Random(id);
+        ConcurrentHashMap<Long, Long> visualWords = new ConcurrentHashMap<Long, Long>();
+        for (int i = 0; i < 20 + random.nextInt(30); i++) {
+            visualWords.put((long) random.nextInt(300) - 100, 1l + random.nextInt(5));
+        }
+        table.incrementHashValue(visualWords, id, compress);
+        for (Map.Entry<Long, Long> entry : visualWords.entrySet()) {
+            ValueStructure value = reference.get(entry.getKey());
+            if (value == null) {
+                value = new ValueStructure(config);
+            }
+            value.addEntry(id, entry.getValue().intValue());
+            reference.put(entry.getKey(), value);
+        }
+    }
+
+    private void assertSameIndex(MemoryHashTable reference, SegmentHashTable table) {
+        ConcurrentHashMap<Long, Long> nbt = new ConcurrentHashMap<Long, Long>();
+        List<Long> keys = new ArrayList<Long>();
+        for (long key = -100; key < 200; key++) {
+            nbt.put(key, -1l);
+            keys.add(key);
+        }
+        Map<Long, ValueStructure> values = table.getAll(keys);
+        for (Map.Entry<Long, Long> entry : table.getAllValues(nbt).entrySet()) {
+            ValueStructure expected = reference.get(entry.getKey());
+            ValueStructure value = values.get(entry.getKey());
+            if (expected == null || expected.isEmpty()) {
+                assertEquals(0l, entry.getValue().longValue());
+                assertNull(value);
+            } else {
+                assertEquals(expected.getNBT(), entry.getValue().longValue());
+                assertEquals(expected.getNBT(), value.getNBT());
+                assertEquals(expected.getEntries(), value.getEntries());
+            }
+        }
+    }
+
+    @Test
+    public void testSameAsMemoryWithMergedSegments() throws Exception {
+        System.out.println("testSameAsMemoryWithMergedSegments");
+        SegmentHashTable table = new SegmentHashTable(database, "0", "0", config);
+        MemoryHashTable reference = new MemoryHashTable(database, "ref", "0", config, false);
+        for (long id = 0; id < 200; id++) {
+            index(table, reference, id);
+            if (id % 20 == 0) {
+                table.maintain();
+            }
+        }
+        //postings are in buffer, flushing table and segments
+        assertSameIndex(reference, table);
+        table.sync();
+        table.maintain();
+        assertTrue(table.getSegmentCount() > 0);
+        assertTrue(table.getSegmentCount() < 200 * 20 / 500);
+        assertSameIndex(reference, table);
+        table.closeIndex();
+    }
+
+    @Test
+    public void testDeletedPicturesDroppedByMerge() throws Exception {
+        System.out.println("testDeletedPicturesDroppedByMerge");
+        SegmentHashTable table = new SegmentHashTable(database, "0", "0", config);
+        MemoryHashTable reference = new MemoryHashTable(database, "ref", "0", config, false);
+        for (long id = 0; id < 100; id++) {
+            index(table, reference, id);
+        }
+        table.sync();
+        Map<Long, Integer> toDelete = new HashMap<Long, Integer>();
+        for (long id = 0; id < 100; id = id + 3) {
+            toDelete.put(id, 0);
+        }
+        //last pictures are still in buffer
+        index(table, reference, 100l);
+        toDelete.put(100l, 0);
+        table.deleteAll(toDelete);
+        reference.deleteAll(toDelete);
+        assertSameIndex(reference, table);
+        assertFalse(table.isRessourcePresent(3l));
+        assertTrue(table.isRessourcePresent(4l));
+
+        table.maintain();
+        assertEquals(0, table.getDeletedCount());
+        assertEquals(1, table.getSegmentCount());
+        assertSameIndex(reference, table);
+        assertFalse(table.isRessourcePresent(3l));
+        assertFalse(table.isRessourcePresent(100l));
+        table.closeIndex();
+    }
+
+    @Test
+    public void testPictureIndexedAgainAfterDelete() throws Exception {
+        System.out.println("testPictureIndexedAgainAfterDelete");
+        SegmentHashTable table = new SegmentHashTable(database, "0", "0", config);
+        MemoryHashTable reference = new MemoryHashTable(database, "ref", "0", config, false);
+        for (long id = 0; id < 60; id++) {
+            index(table, reference, id);
+        }
+        table.sync();
+        Map<Long, Integer> toDelete = new HashMap<Long, Integer>();
+        toDelete.put(5l, 0);
+        toDelete.put(10l, 0);
+        table.deleteAll(toDelete);
+        reference.deleteAll(toDelete);
+        //indexed again before the merge: new postings in buffer, old ones still in segments
+        index(table, reference, 5l);
+        assertSameIndex(reference, table);
+        assertTrue(table.isRessourcePresent(5l));
+        assertFalse(table.isRessourcePresent(10l));
+        //new postings in a segment newer than the delete
+        table.sync();
+        assertSameIndex(reference, table);
+
+        table.maintain();
+        assertEquals(0, table.getDeletedCount());
+        assertSameIndex(reference, table);
+        assertTrue(table.isRessourcePresent(5l));
+
+        //deleted again, indexed again: only the postings of the last index are found after reopen
+        toDelete.remove(10l);
+        table.deleteAll(toDelete);
+        reference.deleteAll(toDelete);
+        index(table, reference, 5l);
+        table.closeIndex();
+        SegmentHashTable reopened = new SegmentHashTable(database, "0", "0", config);
+        assertSameIndex(reference, reopened);
+        reopened.maintain();
+        assertEquals(0, reopened.getDeletedCount());
+        assertSameIndex(reference, reopened);
+        assertTrue(reopened.isRessourcePresent(5l));
+        assertFalse(reopened.isRessourcePresent(10l));
+        reopened.closeIndex();
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        System.out.println("testReopen");
+        SegmentHashTable table = new SegmentHashTable(database, "0", "0", config);
+        MemoryHashTable reference = new MemoryHashTable(database, "ref", "0", config, false);
+        for (long id = 0; id < 50; id++) {
+            index(table, reference, id);
+        }
+        table.sync();
+        Map<Long, Integer> toDelete = new HashMap<Long, Integer>();
+        toDelete.put(7l, 0);
+        table.deleteAll(toDelete);
+        reference.deleteAll(toDelete);
+        index(table, reference, 50l);
+        table.closeIndex();
+        //file of a merge not finished
+        assertTrue(new File(config.getIndexPath(), "0.0.999" + SegmentHashTable.EXTENSION).createNewFile());
+
+        SegmentHashTable reopened = new SegmentHashTable(database, "0", "0", config);
+        assertFalse(new File(config.getIndexPath(), "0.0.999" + SegmentHashTable.EXTENSION).exists());
+        assertSameIndex(reference, reopened);
+        assertFalse(reopened.isRessourcePresent(7l));
+        assertTrue(reopened.isRessourcePresent(50l));
+        reopened.closeIndex();
+
+        SegmentHashTable.delete(database.getIndexDirectory(), "0");
+        assertEquals(0, new File(config.getIndexPath()).listFiles().length);
+    }
+
+    @Test
+    public void testDeletedVisualWord() throws Exception {
+        System.out.println("testDeletedVisualWord");
+        SegmentHashTable table = new SegmentHashTable(database, "0", "0", config);
+        ConcurrentHashMap<Long, Long> visualWords = new ConcurrentHashMap<Long, Long>();
+        visualWords.put(1l, 2l);
+        visualWords.put(2l, 3l);
+        table.incrementHashValue(visualWords, 1l, compress);
+        table.sync();
+        table.delete(1l);
+        assertNull(table.get(1l));
+        assertEquals("3", table.getHashValue(2l, "1"));
+        table.maintain();
+        assertNull(table.get(1l));
+        assertEquals(3l, table.get(2l).getNBT());
+        table.closeIndex();
+    }
+}
@@ -0,0 +1,176 @@
+package retrieval.storage.index.main;
+
+import org.junit.Before;
+import org.junit.Test;
+import retrieval.config.ConfigServer;
+import retrieval.storage.index.ValueStructure;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author lrollus
+ */
+public class VisualWordTableTest {
+
+    ConfigServer config = null;
+
+    @Before
+    public void setUp() throws Exception {
+        config = new ConfigServer("testdata/ConfigServer.prop");
+    }
+
+    @Test
+    public void testPutGetWithResize() {
+        System.out.println("testPutGetWithResize");
+        VisualWordTable table = new VisualWordTable(4);
+        for (long i = 0; i < 5000; i++) {
+            table.put(i * 7, newValue(i));
+        }
+        assertEquals(5000, table.size());
+        for (long i = 0; i < 5000; i++) {
+            assertEquals(i, table.get(i * 7).getNBIT(i));
+        }
+        assertNull(table.get(1L));
+        assertNull(table.get(-7L));
+    }
+
+    @Test
+    public void testRemoveKeepOtherKeys() {
+        System.out.println("testRemoveKeepOtherKeys");
+        VisualWordTable table = new VisualWordTable(16);
+        Random random = new Random(42);
+        long[] keys = new long[2000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextLong();
+            table.put(keys[i], newValue(i));
+        }
+        for (int i = 0; i < keys.length; i = i + 2) {
+            assertNotNull(table.remove(keys[i]));
+        }
+        assertEquals(1000, table.size());
+        for (int i = 0; i < keys.length; i++) {
+            if (i % 2 == 0) {
+                assertNull(table.get(keys[i]));
+            } else {
+                assertEquals(i, table.get(keys[i]).getNBIT(i));
+            }
+        }
+    }
+
+    @Test
+    public void testRemoveEmpty() {
+        System.out.println("testRemoveEmpty");
+        VisualWordTable table = new VisualWordTable(16);
+        table.put(1L, newValue(1));
+        table.put(2L, new ValueStructure(config));
+        assertEquals(1, table.removeEmpty());
+        assertEquals(1, table.size());
+        assertNotNull(table.get(1L));
+        assertNull(table.get(2L));
+    }
+
+    @Test
+    public void testRemoveAll() {
+        System.out.println("testRemoveAll");
+        VisualWordTable table = new VisualWordTable(16);
+        List<Long> removed = new ArrayList<Long>();
+        for (long i = 0; i < 1000; i++) {
+            table.put(i, newValue(i));
+            if (i % 3 == 0) {
+                removed.add(i);
+            }
+        }
+        //key not in table is ignored
+        removed.add(5000L);
+        assertEquals(334, table.removeAll(removed));
+        assertEquals(666, table.size());
+        for (long i = 0; i < 1000; i++) {
+            if (i % 3 == 0) {
+                assertNull(table.get(i));
+            } else {
+                assertEquals(i, table.get(i).getNBIT(i));
+            }
+        }
+        //slots of removed keys are reused
+        table.put(3L, newValue(3));
+        assertEquals(3, table.get(3L).getNBIT(3L));
+    }
+
+    @Test
+    public void testReadersDuringRemove() throws Exception {
+        System.out.println("testReadersDuringRemove");
+        final VisualWordTable table = new VisualWordTable(16);
+        final long[] keys = new long[1000];
+        Random random = new Random(7);
+        for (int i = 0; i < keys.length; i++) {
+            //close keys: long clusters of slots
+            keys[i] = random.nextInt(2000);
+            table.put(keys[i], newValue(keys[i]));
+        }
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread() {
+                @Override
+                public void run() {
+                    while (!stop.get()) {
+                        for (int i = 1; i < keys.length; i = i + 2) {
+                            //odd keys are never removed, even keys may be removed
+                            ValueStructure value = table.get(keys[i]);
+                            if (value == null || value.getNBIT(keys[i]) != (int) keys[i]) {
+                                errors.incrementAndGet();
+                            }
+                            value = table.get(keys[i - 1]);
+                            if (value != null && value.getNBIT(keys[i - 1]) != (int) keys[i - 1]) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            };
+            readers[r].start();
+        }
+        Set<Long> kept = new HashSet<Long>();
+        for (int i = 1; i < keys.length; i = i + 2) {
+            kept.add(keys[i]);
+        }
+        long end = System.currentTimeMillis() + 1000;
+        for (int round = 0; System.currentTimeMillis() < end; round++) {
+            List<Long> removed = new ArrayList<Long>();
+            for (int i = 0; i < keys.length; i = i + 2) {
+                if (!kept.contains(keys[i])) {
+                    if (round % 2 == 0) {
+                        table.remove(keys[i]);
+                    } else {
+                        removed.add(keys[i]);
+                    }
+                }
+            }
+            table.removeAll(removed);
+            for (int i = 0; i < keys.length; i = i + 2) {
+                table.put(keys[i], newValue(keys[i]));
+            }
+        }
+        stop.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertEquals(0, errors.get());
+    }
+
+    private ValueStructure newValue(long i) {
+        ValueStructure value = new ValueStructure(config);
+        value.addEntry(i, (int) i);
+        return value;
+    }
+}
@@ -0,0 +1,150 @@
+package retrieval.testvector;
+
+import org.junit.Test;
+import retrieval.TestUtils;
+import retrieval.config.ConfigClient;
+import retrieval.testvector.generator.TestVectorReading;
+import retrieval.utils.FileUtils;
+import retrieval.utils.ImageData;
+import retrieval.utils.PatchMapping;
+import retrieval.utils.PatcheInformation;
+import retrieval.utils.PictureUtils;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author lrollus
+ */
+public class PatchMappingTest extends TestUtils {
+
+    String[] pictures = {LOCALPICTURE1, LOCALPICTURE2, LOCALPICTURE3, LOCALPICTURE4,
+        LOCALPICTURE5, LOCALPICTURE6, LOCALPICTURE7, LOCALPICTURE8};
+
+    @Test
+    public void testSameVisualWordsAsPatchs() throws Exception {
+        System.out.println("testSameVisualWordsAsPatchs");
+        ConfigClient config = new ConfigClient("testdata/ConfigClient.prop");
+        TestVectorListClient testVectors = TestVectorReading.readClient(config.getVectorPath(), config);
+        int w = config.getSizeOfPatchResizeWidth();
+        int h = config.getSizeOfPatchResizeHeight();
+
+        for (String picture : pictures) {
+            ImageData img = new ImageData(FileUtils.readPicture(picture));
+            List<PatcheInformation> patchsInformation = TestVector.generatePatcheInformation(500, img.getWidth(), img.getHeight());
+            for (PatcheInformation pi : patchsInformation) {
+                img.addPatch(PictureUtils.extractAndResizePicture(img, pi, w, h, 3));
+            }
+            for (TestVector testVector : testVectors) {
+                ConcurrentHashMap<Long, Long> expected = testVector.generateVisualWordFromPatchs(img.getPatchs(patchsInformation.size()));
+                ConcurrentHashMap<Long, Long> result = testVector.generateVisualWordFromPatchsInformation(img, patchsInformation, w, h);
+                assertEquals(expected, result);
+            }
+        }
+    }
+
+    @Test
+    public void testSameVisualWordsAllSizes() throws Exception {
+        System.out.println("testSameVisualWordsAllSizes");
+        ConfigClient config = new ConfigClient("testdata/ConfigClient.prop");
+        TestVector testVector = TestVectorReading.readClient(config.getVectorPath(), config).get(0);
+        int[] types = {BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_GRAY};
+        Random random = new Random(0);
+
+        for (int type : types) {
+            BufferedImage picture = new BufferedImage(400, 300, type);
+            for (int y = 0; y < picture.getHeight(); y++) {
+                for (int x = 0; x < picture.getWidth(); x++) {
+                    picture.setRGB(x, y, random.nextInt());
+                }
+            }
+            ImageData img = new ImageData(picture);
+            //extractions of each size, with a patch of 16x16 and 8x12
+            for (int size = 1; size < picture.getHeight(); size++) {
+                PatcheInformation pi = new PatcheInformation(random.nextInt(picture.getWidth() - size), random.nextInt(picture.getHeight() - size), size, size);
+                BufferedImage patch = PictureUtils.extractAndResizePicture(img, pi, 16, 16, 3);
+                assertEquals(testVector.analyseToVisualWord(patch), testVector.analyseToVisualWord(img, pi, PatchMapping.getMapping(size, size, 16, 16)));
+                PatchMapping mapping = PatchMapping.getMapping(size, size + 1, 8, 12);
+                patch = PictureUtils.extractAndResizePicture(img, new PatcheInformation(pi.getX(), pi.getY(), size, size + 1), 8, 12, 3);
+                for (int y = 0; y < 12; y++) {
+                    for (int x = 0; x < 8; x++) {
+                        assertEquals(patch.getRGB(x, y), picture.getRGB(pi.getX() + mapping.getSourceX(x), pi.getY() + mapping.getSourceY(y)));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLargeExtractions() throws Exception {
+        System.out.println("testLargeExtractions");
+        Random random = new Random(0);
+        BufferedImage picture = new BufferedImage(3200, 2400, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < picture.getHeight(); y++) {
+            for (int x = 0; x < picture.getWidth(); x++) {
+                picture.setRGB(x, y, random.nextInt());
+            }
+        }
+        ImageData img = new ImageData(picture);
+        for (int i = 0; i < 30; i++) {
+            int w = 1 + random.nextInt(picture.getWidth());
+            int h = 1 + random.nextInt(picture.getHeight());
+            PatcheInformation pi = new PatcheInformation(random.nextInt(picture.getWidth() - w + 1), random.nextInt(picture.getHeight() - h + 1), w, h);
+            BufferedImage patch = PictureUtils.extractAndResizePicture(img, pi, 16, 16, 3);
+            PatchMapping mapping = PatchMapping.getMapping(w, h, 16, 16);
+            for (int y = 0; y < 16; y++) {
+                for (int x = 0; x < 16; x++) {
+                    assertEquals(patch.getRGB(x, y), picture.getRGB(pi.getX() + mapping.getSourceX(x), pi.getY() + mapping.getSourceY(y)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testImageDataGetRGB() throws Exception {
+        System.out.println("testImageDataGetRGB");
+        List<BufferedImage> images = new ArrayList<BufferedImage>();
+        images.add(FileUtils.readPicture(LOCALPICTURE1));
+        images.add(new BufferedImage(30, 20, BufferedImage.TYPE_INT_RGB));
+        images.add(new BufferedImage(30, 20, BufferedImage.TYPE_INT_ARGB));
+        images.add(new BufferedImage(30, 20, BufferedImage.TYPE_3BYTE_BGR));
+        images.add(new BufferedImage(30, 20, BufferedImage.TYPE_BYTE_GRAY));
+        Random random = new Random(0);
+        for (BufferedImage image : images) {
+            for (int y = 0; y < 20; y++) {
+                for (int x = 0; x < 30; x++) {
+                    image.setRGB(x, y, random.nextInt());
+                }
+            }
+            ImageData img = new ImageData(image);
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    assertEquals(image.getRGB(x, y) & 0xFFFFFF, img.getRGB(x, y) & 0xFFFFFF);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testVisualWordFromPictureWithoutPatch() throws Exception {
+        System.out.println("testVisualWordFromPictureWithoutPatch");
+        ConfigClient config = new ConfigClient("testdata/ConfigClient.prop");
+        TestVectorListClient testVectors = TestVectorReading.readClient(config.getVectorPath(), config);
+        List<ConcurrentHashMap<Long, Long>> visualWords = testVectors.generateVisualWordFromPicture(
+                FileUtils.readPicture(LOCALPICTURE1), null, 1000, 3, 16, 16);
+        assertEquals(testVectors.size(), visualWords.size());
+        for (ConcurrentHashMap<Long, Long> map : visualWords) {
+            long n = 0;
+            for (Long count : map.values()) {
+                n = n + count;
+            }
+            assertEquals(1000, n);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package retrieval.testvector;
+
+import org.junit.*;
+import retrieval.TestUtils;
+import retrieval.config.ConfigClient;
+import retrieval.config.ConfigServer;
+import retrieval.dist.RequestPictureVisualWord;
+import retrieval.server.globaldatabase.MemoryDatabase;
+import retrieval.storage.Storage;
+import retrieval.storage.index.Entry;
+import retrieval.storage.index.ValueStructure;
+import retrieval.testvector.generator.TestVectorReading;
+import retrieval.utils.FileUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author lrollus
+ */
+public class TestVectorServerTest extends TestUtils {
+
+    Storage storage = null;
+    ConfigServer config = null;
+
+    String[] pictures = {LOCALPICTURE1, LOCALPICTURE2, LOCALPICTURE3, LOCALPICTURE4,
+        LOCALPICTURE5, LOCALPICTURE6, LOCALPICTURE7, LOCALPICTURE8};
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        enableLog();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        config = new ConfigServer("testdata/ConfigServer.prop");
+        config.setStoreName("MEMORY");
+    }
+
+    @After
+    public void tearDown() {
+        try { storage.stop();}catch(Exception e) {}
+        storage=null;
+    }
+
+    @Test
+    public void testCompleteSimilarityPicturesSameAsMergeHashMap() throws Exception {
+        System.out.println("testCompleteSimilarityPicturesSameAsMergeHashMap");
+        checkSameAsMerge();
+    }
+
+    @Test
+    public void testCompleteSimilarityPicturesSameAsMergePrimitive() throws Exception {
+        System.out.println("testCompleteSimilarityPicturesSameAsMergePrimitive");
+        config.setStrucType(ValueStructure.PRIMITIVE);
+        checkSameAsMerge();
+    }
+
+    private void checkSameAsMerge() throws Exception {
+        storage = createServer("0", config, new MemoryDatabase(config));
+        for (int i = 0; i < pictures.length; i++) {
+            storage.indexPicture(FileUtils.readPicture(pictures[i]), (long) i + 1, null);
+        }
+        TestVectorListClient buildVW = TestVectorReading.readClient(config.getVectorPath(), new ConfigClient("testdata/ConfigClient.prop"));
+        int Niq = config.getNumberOfPatch();
+
+        for (int q = 0; q < pictures.length; q = q + 3) {
+            List<ConcurrentHashMap<Long, Long>> vw = buildVW.generateVisualWordFromPicture(
+                    FileUtils.readPicture(pictures[q]), null, Niq, config.getResizeMethod(),
+                    config.getSizeOfPatchResizeWidth(), config.getSizeOfPatchResizeHeight());
+            List<ConcurrentHashMap<Long, Long>> nbt = new ArrayList<ConcurrentHashMap<Long, Long>>();
+            for (ConcurrentHashMap<Long, Long> map : vw) {
+                nbt.add(new ConcurrentHashMap<Long, Long>(map));
+            }
+            nbt = storage.getNBT(nbt);
+
+            for (int t = 0; t < vw.size(); t++) {
+                ConcurrentHashMap<Long, RequestPictureVisualWord> request = new ConcurrentHashMap<Long, RequestPictureVisualWord>();
+                for (Map.Entry<Long, Long> entry : vw.get(t).entrySet()) {
+                    request.put(entry.getKey(), new RequestPictureVisualWord(entry.getValue().intValue(), nbt.get(t).get(entry.getKey()).intValue()));
+                }
+                TestVectorServer tv = storage.getTestVectors().get(t);
+                Map<Long,ValueStructure> postings = tv.getAll(new ArrayList<Long>(request.keySet()));
+
+                Map<Long, Entry> expected = completeSimilarityPicturesWithMerge(postings, request, Niq);
+                Map<Long, Entry> result = tv.completeSimilarityPictures(postings, request, Niq);
+
+                assertFalse(expected.isEmpty());
+                assertEquals(expected.keySet(), result.keySet());
+                for (Map.Entry<Long, Entry> entry : expected.entrySet()) {
+                    Entry e = result.get(entry.getKey());
+                    //same operations in same order: exactly the same double
+                    assertEquals(entry.getValue().getSimilarities(), e.getSimilarities(), 0d);
+                    assertEquals(entry.getValue().getNIBT(), e.getNIBT());
+                }
+            }
+        }
+    }
+
+    /**
+     * Previous implementation of completeSimilarityPictures:
+     * merge each posting list in the candidates map, then walk all candidates
+     * (NI is the number of patch from config like PictureIndex does)
+     */
+    private Map<Long, Entry> completeSimilarityPicturesWithMerge(
+            Map<Long,ValueStructure> map,
+            ConcurrentHashMap<Long, RequestPictureVisualWord> visualWords, int NIQ) {
+        ConcurrentHashMap<Long, Entry> listPicture = new ConcurrentHashMap<Long, Entry>();
+        for (Map.Entry<Long,ValueStructure> vw : map.entrySet()) {
+            RequestPictureVisualWord visualWordRequest = visualWords.get(vw.getKey());
+            ValueStructure list = vw.getValue();
+            if (list != null && !list.isEmpty()) {
+                for (Map.Entry<Long, Integer> posting : list.getEntries().entrySet()) {
+                    Entry e1 = listPicture.get(posting.getKey());
+                    if (e1 != null) {
+                        e1.incrementNIBT(posting.getValue());
+                    } else {
+                        Entry e2 = new Entry(posting.getKey(), posting.getValue());
+                        e2.setNumberOfPatch(config.getNumberOfPatch());
+                        listPicture.put(e2.getI(), e2);
+                    }
+                }
+                double NBT = visualWordRequest.nbtSum;
+                double ONEOverNBT = (double) (1d / NBT);
+                double NIQBT = visualWordRequest.nbiq;
+                double NIQBTOverNIQ = (double) (NIQBT / (double) NIQ);
+                for (Map.Entry<Long, Entry> entry : listPicture.entrySet()) {
+                    Entry e = entry.getValue();
+                    double NIRBT = list.getNBIT(e.getI());
+                    double NIRBTOverNIR = (double) (NIRBT / e.getNumberOfPatch());
+                    if (NIRBTOverNIR != 0) {
+                        entry.getValue().addSimilarityComputation(
+                                ONEOverNBT, NIQBTOverNIQ, NIRBTOverNIR);
+                    }
+                }
+            }
+        }
+        return listPicture;
+    }
+}
@@ -0,0 +1,56 @@
+package retrieval.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author lrollus
+ */
+public class ConvertUtilsTest {
+
+    @Test
+    public void testHexaSameAsBoolString() {
+        System.out.println("testHexaSameAsBoolString");
+        //old visual words: Integer.parseInt(bool,2) as hexa, must give the same store keys
+        Random random = new Random(3);
+        for (int i = 0; i < 1000; i++) {
+            StringBuilder bool = new StringBuilder();
+            long visualWord = 0;
+            for (int j = 0; j < 30; j++) {
+                boolean bit = random.nextBoolean();
+                bool.append(bit ? '1' : '0');
+                visualWord = (visualWord << 1) | (bit ? 1L : 0L);
+            }
+            String old = Integer.toString(Integer.parseInt(bool.toString(), 2), 16);
+            assertEquals(old, ConvertUtils.convertVisualWordToHexa(visualWord));
+            assertEquals(visualWord, ConvertUtils.convertHexaToVisualWord(old));
+        }
+    }
+
+    @Test
+    public void testHexa64Bits() {
+        System.out.println("testHexa64Bits");
+        long[] visualWords = {0L, 1L, 0x1afL, Long.MAX_VALUE, Long.MIN_VALUE, -1L};
+        for (long visualWord : visualWords) {
+            String hexa = ConvertUtils.convertVisualWordToHexa(visualWord);
+            assertEquals(visualWord, ConvertUtils.convertHexaToVisualWord(hexa));
+        }
+        assertEquals("ffffffffffffffff", ConvertUtils.convertVisualWordToHexa(-1L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHexaNotValid() {
+        System.out.println("testHexaNotValid");
+        ConvertUtils.convertHexaToVisualWord("1x");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHexaTooLong() {
+        System.out.println("testHexaTooLong");
+        ConvertUtils.convertHexaToVisualWord("10000000000000000");
+    }
+}